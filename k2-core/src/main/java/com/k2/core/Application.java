@@ -2,11 +2,24 @@
 
 package com.k2.core;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.DispatcherType;
+import javax.servlet.Servlet;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
@@ -19,13 +32,17 @@ import org.springframework.boot.ExitCodeGenerator;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.Banner;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.web.context.support
     .AnnotationConfigWebApplicationContext;
 import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.resource.ResourceUrlEncodingFilter;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
 import org.springframework.context.support
     .PropertySourcesPlaceholderConfigurer;
 
@@ -58,6 +75,28 @@ public class Application {
   /** The class logger. */
   private final Logger log = LoggerFactory.getLogger(Application.class);
 
+  /** The default time a request waits for a permit of a module bulkhead, in
+   * milliseconds. */
+  private static final long BULKHEAD_MAX_WAIT = 100;
+
+  /** The order of the request metrics filters, the first ones, so the
+   * latency includes the rest of the filters.
+   *
+   * The core filter orders are spaced out so modules can place their own
+   * filters between them, relative to these constants. For example, k2-shiro
+   * places its filter after the metrics filters and before the response
+   * cache filters, so only authenticated and authorized requests are
+   * cached. */
+  public static final int METRICS_FILTER_ORDER = Ordered.HIGHEST_PRECEDENCE;
+
+  /** The order of the response cache filters, after the request metrics
+   * filters. */
+  public static final int RESPONSE_CACHE_ORDER = METRICS_FILTER_ORDER + 100;
+
+  /** The order of the bulkhead filters, after the response cache filters, so
+   * cached responses do not take a permit. */
+  public static final int BULKHEAD_FILTER_ORDER = RESPONSE_CACHE_ORDER + 100;
+
   /** The module definitions of all modules initialized in this application.
    *
    * This is never null.
@@ -87,6 +126,30 @@ public class Application {
    */
   private String landingUrl = "";
 
+  /** The timeline where k2 records the startup phases of the application and
+   * its modules, never null.
+   */
+  private StartupTimeline timeline = new StartupTimeline();
+
+  /** The latency of the requests to each module, never null.
+   */
+  private RequestMetrics requestMetrics = new RequestMetrics();
+
+  /** The response compression policies of the modules, provided to the
+   * modules through the CompressionRegistry, never null.
+   */
+  private CompressionPolicies compressionPolicies = new CompressionPolicies();
+
+  /** The response caches of the modules, provided to the modules through the
+   * ResponseCacheRegistry, never null.
+   */
+  private ResponseCaches responseCaches = new ResponseCaches();
+
+  /** The warm-up tasks of the modules, provided to the modules through the
+   * WarmupRegistry, never null.
+   */
+  private Warmups warmups = new Warmups(timeline);
+
   /** Creates a new Application with the given modules.
    *
    * @param moduleInstances the list of modules to bootstrap, cannot be null.
@@ -96,7 +159,7 @@ public class Application {
     Validate.notNull(modules, "The modules cannot be null");
     for (Object moduleInstance : moduleInstances) {
       modules.put(moduleInstance.getClass(),
-          new ModuleDefinition(moduleInstance));
+          new ModuleDefinition(moduleInstance, timeline));
     }
 
     if (!SLF4JBridgeHandler.isInstalled()) {
@@ -137,20 +200,65 @@ public class Application {
     return landingUrl;
   }
 
+  /** Returns the timeline where k2 records the startup phases of the
+   * application and its modules.
+   *
+   * @return the startup timeline, never null.
+   */
+  public StartupTimeline getStartupTimeline() {
+    return timeline;
+  }
+
   /** Launches the application.
    *
    * This operation is not synchronized, so take to call it just once, as soon
    * as your program starts. The best way is to create a launcher class with a
    * single static main that creates and runs the k2 application.
    *
+   * Once started, k2 writes the startup timeline as a json document to the
+   * file specified in the k2.startup.report property, if defined.
+   *
    * @param args the command line arguments. It cannot be null.
    */
   public void run(final String[] args) {
     log.trace("Entering run");
-    applicationContext = getApplication().run(args);
+    try (StartupTimeline.Phase phase = timeline.start(null, "run")) {
+      applicationContext = getApplication().run(args);
+      phase.end();
+    }
+    writeStartupReport();
     log.trace("Leaving run");
   }
 
+  /** Writes the startup timeline to the file specified in the
+   * k2.startup.report property, and logs it in debug level.
+   */
+  private void writeStartupReport() {
+    String reportFile = applicationContext.getEnvironment().getProperty(
+        "k2.startup.report");
+    if (log.isDebugEnabled()) {
+      StringWriter report = new StringWriter();
+      try {
+        timeline.writeJson(report);
+      } catch (IOException e) {
+        throw new RuntimeException("Error generating startup report", e);
+      }
+      log.debug("Startup timeline: {}", report);
+    }
+    if (reportFile != null && !reportFile.isEmpty()) {
+      File file = new File(reportFile);
+      if (file.getParentFile() != null) {
+        file.getParentFile().mkdirs();
+      }
+      try (Writer writer = new OutputStreamWriter(
+          new FileOutputStream(file), StandardCharsets.UTF_8)) {
+        timeline.writeJson(writer);
+      } catch (IOException e) {
+        log.warn("Could not write the startup report to " + reportFile, e);
+      }
+    }
+  }
+
   /** Stops the k2 application.
    */
   public void stop() {
@@ -182,6 +290,8 @@ public class Application {
    *
    * @return the bean named beanName in the corresponding module. Never returns
    * null.
+   *
+   * @throws IllegalStateException if the application was stopped.
    */
   public <T> T getBean(final Class<?> moduleClass, final String beanName,
       final Class<T> requiredType) {
@@ -191,6 +301,7 @@ public class Application {
     ModuleDefinition definition = modules.get(moduleClass);
     Validate.notNull(definition, "The module "
         + moduleClass.getSimpleName() + " was not found.");
+    definition.activate();
     return definition.getContext().getBean(beanName, requiredType);
   }
 
@@ -218,12 +329,18 @@ public class Application {
   /** Calls addRegistrations on all modules that implement Registrator.
    */
   private void registerModules() {
+    RegistryIndex registryIndex = new RegistryIndex(modules.values(),
+        compressionPolicies, responseCaches, warmups);
     for (ModuleDefinition definition : modules.values()) {
       Registrator registrator = definition.getModuleRegistator();
       if (registrator != null) {
-        ModuleContext moduleContext;
-        moduleContext = new ModuleContext(definition, modules.values());
-        registrator.addRegistrations(moduleContext);
+        try (StartupTimeline.Phase phase = timeline.start(
+              definition.getModuleName(), "registerModules")) {
+          ModuleContext moduleContext;
+          moduleContext = new ModuleContext(definition, registryIndex);
+          registrator.addRegistrations(moduleContext);
+          phase.end();
+        }
       }
     }
   }
@@ -331,6 +448,27 @@ public class Application {
         placeHolderConfigurer.setEnvironment(parent.getEnvironment());
         parent.addBeanFactoryPostProcessor(placeHolderConfigurer);
 
+        parent.getBeanFactory().registerSingleton("k2.startupTimeline",
+            timeline);
+        parent.getBeanFactory().registerSingleton("k2.requestMetrics",
+            requestMetrics);
+        parent.getBeanFactory().registerSingleton("k2.compressionPolicies",
+            compressionPolicies);
+        parent.getBeanFactory().registerSingleton("k2.responseCaches",
+            responseCaches);
+        parent.getBeanFactory().registerSingleton(Warmups.BEAN_NAME,
+            warmups);
+
+        // The json converter shared by the modules, see JsonConverters.
+        if (JsonConverters.isJacksonPresent()
+            && parent.getEnvironment().getProperty(
+              "k2.json.sharedConverter", Boolean.class, true)) {
+          boolean isoDates = parent.getEnvironment().getProperty(
+              "k2.json.isoDates", Boolean.class, false);
+          parent.getBeanFactory().registerSingleton(JsonConverters.BEAN_NAME,
+              JsonConverters.create(isoDates));
+        }
+
         if (isWebEnvironment) {
           registerRootDispatcherServlet(parent);
         }
@@ -365,20 +503,28 @@ public class Application {
     Validate.notNull(definition, "The module definiton cannot be null.");
 
     String moduleName = definition.getModuleName();
+    try (StartupTimeline.Phase phase = timeline.start(moduleName,
+          "createModule")) {
+      // Creates a new web application context initialized with the
+      // moduleClass.
+      AnnotationConfigWebApplicationContext moduleContext;
+      moduleContext = definition.getContext();
+      moduleContext.setParent(parent);
 
-    // Creates a new web application context initialized with the moduleClass.
-    AnnotationConfigWebApplicationContext moduleContext;
-    moduleContext = definition.getContext();
-    moduleContext.setParent(parent);
+      if (isWebEnvironment) {
+        registerDispatcherServlet(parent, definition, moduleContext);
+      }
 
-    if (isWebEnvironment) {
-      registerDispatcherServlet(parent, moduleName, moduleContext);
+      phase.end();
     }
-
     log.trace("Leaving createModule");
   }
 
   /** Registers a dispatcher servlet to serve webjars from the /webjars path.
+   *
+   * It also registers a ResourceUrlEncodingFilter, so that
+   * HttpServletResponse.encodeURL returns the versioned urls of the static
+   * content of the module that handles the request.
    *
    * @param context the application root application context. It cannot be null.
    */
@@ -393,40 +539,60 @@ public class Application {
     servletContext.register(RootDispatcherServletConfiguration.class);
 
     DispatcherServlet dispatcherServlet;
-    dispatcherServlet = new DispatcherServlet(servletContext);
+    dispatcherServlet = new K2DispatcherServlet(servletContext, null,
+        timeline);
 
     BeanDefinitionBuilder builder = BeanDefinitionBuilder
         .rootBeanDefinition(ServletRegistrationBean.class);
     builder.addConstructorArgValue(dispatcherServlet);
     builder.addConstructorArgValue("/*");
     builder.addPropertyValue("name", "k2.rootDispatcherServlet");
+    builder.addPropertyValue("asyncSupported", true);
     builder.setLazyInit(true);
 
     BeanDefinitionRegistry registry = (BeanDefinitionRegistry) context;
     registry.registerBeanDefinition("k2-root", builder.getBeanDefinition());
+
+    BeanDefinitionBuilder filter = BeanDefinitionBuilder
+        .rootBeanDefinition(FilterRegistrationBean.class);
+    filter.addPropertyValue("filter", new ResourceUrlEncodingFilter());
+    filter.addPropertyValue("urlPatterns", Collections.singletonList("/*"));
+    filter.addPropertyValue("name", "k2.resourceUrlEncoding");
+    filter.setLazyInit(true);
+    registry.registerBeanDefinition("k2.resourceUrlEncodingFilter",
+        filter.getBeanDefinition());
   }
 
   /** Creates a spring dispatcher servlet and registers it in the provided
    * context.
    *
    * This creates a dispatcher servlet for the module with the provided name. It
-   * registers it in context, and sets moduleContext as its parent.
+   * registers it in context, and sets moduleContext as its parent. Unless
+   * k2.metrics.enabled is false, it also registers a RequestMetricsFilter
+   * mapped to the module path. It registers a ResponseCacheFilter if the
+   * module caches some endpoint and, if the module sets
+   * [module name].bulkhead.maxConcurrent, a BulkheadFilter after it (see
+   * registerBulkhead). The servlet supports asynchronous requests,
+   * see DispatcherServletConfiguration.configureAsyncSupport.
    *
    * @param context the context where this operation will register the
    * dispatcher servlet. It cannot be null.
    *
-   * @param moduleName the name of the module. It cannot be null.
+   * @param definition the definition of the module. It cannot be null.
    *
    * @param moduleContext the module spring context. It cannot be null.
    */
   private void registerDispatcherServlet(
-      final ConfigurableApplicationContext context, final String moduleName,
+      final ConfigurableApplicationContext context,
+      final ModuleDefinition definition,
       final AnnotationConfigWebApplicationContext moduleContext) {
 
     Validate.notNull(context, "The application context cannot be null.");
-    Validate.notNull(moduleName, "The module name cannot be null.");
+    Validate.notNull(definition, "The module definition cannot be null.");
     Validate.notNull(moduleContext, "The module context cannot be null.");
 
+    String moduleName = definition.getModuleName();
+
     // Create a new application context for the dispatcher servlet and
     // set the module context as its parent. The dispatcher servlet will do its
     // magic on the context and call refresh.
@@ -436,18 +602,151 @@ public class Application {
     servletContext.setParent(moduleContext);
 
     DispatcherServlet dispatcherServlet;
-    dispatcherServlet = new DispatcherServlet(servletContext);
+    dispatcherServlet = new K2DispatcherServlet(servletContext, definition,
+        timeline);
+
+    // The servlet container initializes the servlet on startup, so lazy
+    // modules get a servlet that initializes the dispatcher on demand.
+    Servlet servlet = dispatcherServlet;
+    if (definition.isLazy()) {
+      servlet = new LazyModuleServlet(definition, dispatcherServlet);
+    }
+
+    BeanDefinitionRegistry registry = (BeanDefinitionRegistry) context;
+
+    if (context.getEnvironment().getProperty("k2.metrics.enabled",
+        Boolean.class, true)) {
+      BeanDefinitionBuilder filter = BeanDefinitionBuilder
+          .rootBeanDefinition(FilterRegistrationBean.class);
+      filter.addPropertyValue("filter",
+          requestMetrics.createFilter(moduleName));
+      filter.addPropertyValue("urlPatterns",
+          Collections.singletonList("/" + moduleName + "/*"));
+      filter.addPropertyValue("name", "k2.requestMetrics." + moduleName);
+      filter.addPropertyValue("order", METRICS_FILTER_ORDER);
+      filter.setLazyInit(true);
+      registry.registerBeanDefinition("k2.requestMetricsFilter." + moduleName,
+          filter.getBeanDefinition());
+    }
+
+    registerBulkhead(context, moduleName);
+    registerResponseCache(context, moduleName);
 
     BeanDefinitionBuilder builder = BeanDefinitionBuilder
         .rootBeanDefinition(ServletRegistrationBean.class);
-    builder.addConstructorArgValue(dispatcherServlet);
+    builder.addConstructorArgValue(servlet);
     builder.addConstructorArgValue("/" + moduleName + "/*");
     builder.addPropertyValue("name", moduleName);
     builder.addPropertyValue("order", 0);
+    builder.addPropertyValue("asyncSupported", true);
     builder.setLazyInit(true);
 
-    BeanDefinitionRegistry registry = (BeanDefinitionRegistry) context;
     registry.registerBeanDefinition(moduleName, builder.getBeanDefinition());
   }
-}
 
+  /** Registers a BulkheadFilter mapped to the module path, if the module
+   * configures a bulkhead.
+   *
+   * The bulkhead is configured with these properties:
+   *
+   * [module name].bulkhead.maxConcurrent: the maximum number of requests that
+   * the module processes concurrently. There is no bulkhead if this is not
+   * set or it is 0.
+   *
+   * [module name].bulkhead.mode: fixed (the default) or adaptive. An adaptive
+   * limit goes down when the module latency grows.
+   *
+   * [module name].bulkhead.minConcurrent: the minimum limit in adaptive mode,
+   * 1 by default.
+   *
+   * [module name].bulkhead.maxQueued: the number of requests that can wait
+   * for a permit, 0 by default.
+   *
+   * [module name].bulkhead.maxWait: the time, in milliseconds, that a request
+   * can wait for a permit, 100 by default.
+   *
+   * [module name].bulkhead.retryAfter: the value of the Retry-After header in
+   * the rejected requests, in seconds, 1 by default.
+   *
+   * The request metrics publish the state of the bulkhead.
+   *
+   * @param context the context where this operation registers the filter. It
+   * cannot be null.
+   *
+   * @param moduleName the name of the module. It cannot be null.
+   */
+  private void registerBulkhead(final ConfigurableApplicationContext context,
+      final String moduleName) {
+    Environment environment = context.getEnvironment();
+    String prefix = moduleName + ".bulkhead.";
+    int maxConcurrent = environment.getProperty(prefix + "maxConcurrent",
+        Integer.class, 0);
+    if (maxConcurrent == 0) {
+      return;
+    }
+    String mode = environment.getProperty(prefix + "mode", "fixed");
+    Validate.isTrue(mode.equals("fixed") || mode.equals("adaptive"),
+        "Invalid bulkhead mode " + mode + " in module " + moduleName
+        + ", it must be fixed or adaptive.");
+    Bulkhead bulkhead = new Bulkhead(moduleName,
+        environment.getProperty(prefix + "minConcurrent", Integer.class, 1),
+        maxConcurrent, mode.equals("adaptive"),
+        environment.getProperty(prefix + "maxQueued", Integer.class, 0),
+        environment.getProperty(prefix + "maxWait", Long.class,
+          BULKHEAD_MAX_WAIT));
+    requestMetrics.addBulkhead(bulkhead);
+
+    BeanDefinitionBuilder filter = BeanDefinitionBuilder
+        .rootBeanDefinition(FilterRegistrationBean.class);
+    filter.addPropertyValue("filter", new BulkheadFilter(bulkhead,
+          environment.getProperty(prefix + "retryAfter", Integer.class, 1)));
+    filter.addPropertyValue("urlPatterns",
+        Collections.singletonList("/" + moduleName + "/*"));
+    filter.addPropertyValue("name", "k2.bulkhead." + moduleName);
+    filter.addPropertyValue("order", BULKHEAD_FILTER_ORDER);
+    filter.setLazyInit(true);
+    ((BeanDefinitionRegistry) context).registerBeanDefinition(
+        "k2.bulkheadFilter." + moduleName, filter.getBeanDefinition());
+    log.info("Module {} has a {} bulkhead of {} requests", moduleName, mode,
+        maxConcurrent);
+  }
+
+  /** Registers a ResponseCacheFilter mapped to the module path, if the module
+   * caches some endpoint through the ResponseCacheRegistry.
+   *
+   * The filter runs after the shiro filter and the rate limit filter, so only
+   * authorized requests reach the cache, and before the bulkhead filter, so
+   * cached responses do not take a permit. It also runs on async dispatches.
+   * The request metrics publish the cache statistics.
+   *
+   * @param context the context where this operation registers the filter. It
+   * cannot be null.
+   *
+   * @param moduleName the name of the module. It cannot be null.
+   */
+  private void registerResponseCache(
+      final ConfigurableApplicationContext context, final String moduleName) {
+    ResponseCacheRegistry registry;
+    registry = responseCaches.getCachingRegistry(moduleName);
+    if (registry == null) {
+      return;
+    }
+    ResponseCacheStore store = new ResponseCacheStore(moduleName,
+        registry.getMaxWeight());
+    requestMetrics.addResponseCache(store);
+
+    BeanDefinitionBuilder filter = BeanDefinitionBuilder
+        .rootBeanDefinition(FilterRegistrationBean.class);
+    filter.addPropertyValue("filter",
+        new ResponseCacheFilter(registry.getRules(), store));
+    filter.addPropertyValue("urlPatterns",
+        Collections.singletonList("/" + moduleName + "/*"));
+    filter.addPropertyValue("name", "k2.responseCache." + moduleName);
+    filter.addPropertyValue("dispatcherTypes",
+        EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+    filter.addPropertyValue("order", RESPONSE_CACHE_ORDER);
+    filter.setLazyInit(true);
+    ((BeanDefinitionRegistry) context).registerBeanDefinition(
+        "k2.responseCacheFilter." + moduleName, filter.getBeanDefinition());
+  }
+}
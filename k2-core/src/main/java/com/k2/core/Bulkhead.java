@@ -0,0 +1,307 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+
+/** Limits the number of requests that a module processes concurrently.
+ *
+ * K2 creates a bulkhead for each module that sets the
+ * [module name].bulkhead.maxConcurrent property, and a BulkheadFilter mapped
+ * to the module path that asks the bulkhead for a permit before passing the
+ * request to the module. This keeps a slow module from taking all the jetty
+ * threads.
+ *
+ * The limit can be fixed or adaptive. An adaptive limit starts at the maximum
+ * and follows the gradient of the request latency: when the latency grows
+ * over the long term average, the limit goes down, towards the minimum; when
+ * the latency goes back to normal, the limit grows again, up to the maximum.
+ *
+ * A request that does not get a permit waits in a bounded queue, for a
+ * bounded time. If the queue is full or the time runs out, the request is
+ * rejected.
+ *
+ * Acquiring and releasing a permit only updates atomic counters, except when
+ * the request must wait in the queue.
+ */
+class Bulkhead {
+
+  /** The weight of each latency sample in the long term average latency, the
+   * inverse of the number of samples in the average. */
+  private static final double LONG_TERM_WEIGHT = 1.0 / 600;
+
+  /** The factor over the long term average latency that the latency can reach
+   * before the limit goes down. */
+  private static final double TOLERANCE = 1.5;
+
+  /** The minimum gradient, the limit goes down at most to this fraction of
+   * the current limit on each sample. */
+  private static final double MIN_GRADIENT = 0.5;
+
+  /** The weight of each new limit in the estimated limit. */
+  private static final double SMOOTHING = 0.2;
+
+  /** The name of the module that owns this bulkhead, never null. */
+  private final String moduleName;
+
+  /** The minimum concurrency limit, it is the maximum for fixed limits. */
+  private final int minConcurrent;
+
+  /** The maximum concurrency limit. */
+  private final int maxConcurrent;
+
+  /** Whether the limit follows the request latency. */
+  private final boolean adaptive;
+
+  /** The maximum number of requests that wait for a permit. */
+  private final int maxQueued;
+
+  /** The maximum time a request waits for a permit, in nanoseconds. */
+  private final long maxWaitNanos;
+
+  /** The concurrency limit.
+   *
+   * This is volatile because it changes on adaptive limits.
+   */
+  private volatile int limit;
+
+  /** The estimated limit, as a real number. This is only updated by the
+   * thread that holds the adapting flag. */
+  private double estimatedLimit;
+
+  /** The long term average latency, in nanoseconds, 0 before the first
+   * sample. This is only updated by the thread that holds the adapting
+   * flag. */
+  private double longTermNanos = 0;
+
+  /** Set while a thread updates the adaptive limit, never null. */
+  private final AtomicBoolean adapting = new AtomicBoolean(false);
+
+  /** The number of requests that hold a permit, never null. */
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /** The number of requests waiting for a permit, never null. */
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /** The number of rejected requests, never null. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /** The monitor the queued requests wait on, never null. */
+  private final Object monitor = new Object();
+
+  /** Constructor, creates a bulkhead.
+   *
+   * @param theModuleName the name of the module that owns this bulkhead. It
+   * cannot be null.
+   *
+   * @param theMinConcurrent the minimum limit of an adaptive bulkhead,
+   * between 1 and theMaxConcurrent. It is ignored in fixed bulkheads.
+   *
+   * @param theMaxConcurrent the maximum number of requests processed
+   * concurrently. It must be greater than 0.
+   *
+   * @param isAdaptive true if the limit follows the request latency, false
+   * for a fixed limit of theMaxConcurrent.
+   *
+   * @param theMaxQueued the maximum number of requests that wait for a permit,
+   * 0 or more.
+   *
+   * @param maxWaitMillis the maximum time a request waits for a permit, in
+   * milliseconds, 0 or more.
+   */
+  Bulkhead(final String theModuleName, final int theMinConcurrent,
+      final int theMaxConcurrent, final boolean isAdaptive,
+      final int theMaxQueued, final long maxWaitMillis) {
+    Validate.notNull(theModuleName, "The module name cannot be null.");
+    Validate.isTrue(theMaxConcurrent > 0,
+        "The maximum concurrency must be greater than 0.");
+    Validate.isTrue(!isAdaptive
+        || (theMinConcurrent > 0 && theMinConcurrent <= theMaxConcurrent),
+        "The minimum concurrency must be between 1 and the maximum.");
+    Validate.isTrue(theMaxQueued >= 0, "The queue size cannot be negative.");
+    Validate.isTrue(maxWaitMillis >= 0, "The wait time cannot be negative.");
+    moduleName = theModuleName;
+    adaptive = isAdaptive;
+    minConcurrent = adaptive ? theMinConcurrent : theMaxConcurrent;
+    maxConcurrent = theMaxConcurrent;
+    maxQueued = theMaxQueued;
+    maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    limit = maxConcurrent;
+    estimatedLimit = maxConcurrent;
+  }
+
+  /** Obtains a permit to process a request.
+   *
+   * If there are no permits available, this waits in the queue until a
+   * permit is released or the maximum wait time runs out. The caller must
+   * call release when it finishes with the request if and only if this
+   * returns true.
+   *
+   * @return true if the request can proceed, false if it was rejected.
+   */
+  boolean acquire() {
+    if (tryAcquire()) {
+      return true;
+    }
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+    try {
+      long deadline = System.nanoTime() + maxWaitNanos;
+      synchronized (monitor) {
+        while (!tryAcquire()) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            rejected.incrementAndGet();
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+        }
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejected.incrementAndGet();
+      return false;
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /** Takes a permit if one is available, without waiting.
+   *
+   * @return true if this took a permit.
+   */
+  private boolean tryAcquire() {
+    int current = inFlight.get();
+    while (current < limit) {
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+      current = inFlight.get();
+    }
+    return false;
+  }
+
+  /** Releases the permit of a request and wakes up a queued request, if any.
+   *
+   * If the adaptive limit grows, this wakes up all the queued requests, so
+   * that the new permits do not stay unused until the next release.
+   *
+   * @param nanos the time it took to process the request, in nanoseconds.
+   * Adaptive bulkheads use it to update the limit.
+   */
+  void release(final long nanos) {
+    int previous = inFlight.getAndDecrement();
+    boolean grown = false;
+    if (adaptive) {
+      int previousLimit = limit;
+      adapt(nanos, previous);
+      grown = limit > previousLimit;
+    }
+    if (queued.get() > 0) {
+      synchronized (monitor) {
+        if (grown) {
+          monitor.notifyAll();
+        } else {
+          monitor.notify();
+        }
+      }
+    }
+  }
+
+  /** Updates the adaptive limit from a latency sample.
+   *
+   * Only one thread updates the limit at a time, other threads skip their
+   * sample instead of waiting.
+   *
+   * @param nanos the latency of the request, in nanoseconds.
+   *
+   * @param concurrency the number of requests in flight when the request
+   * finished, including the request.
+   */
+  private void adapt(final long nanos, final int concurrency) {
+    if (!adapting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      double sample = Math.max(1, nanos);
+      if (longTermNanos == 0) {
+        longTermNanos = sample;
+      } else {
+        longTermNanos += (sample - longTermNanos) * LONG_TERM_WEIGHT;
+      }
+      // If the latency stays high, the long term average slowly follows it,
+      // and the limit recovers.
+      double gradient = Math.max(MIN_GRADIENT,
+          Math.min(1.0, TOLERANCE * longTermNanos / sample));
+      double newLimit = estimatedLimit * gradient
+        + Math.sqrt(estimatedLimit);
+      if (newLimit > estimatedLimit && concurrency < estimatedLimit / 2) {
+        // The module is not using the current limit, there is no evidence
+        // that it can handle more requests.
+        return;
+      }
+      estimatedLimit = Math.max(minConcurrent, Math.min(maxConcurrent,
+          estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+      limit = (int) estimatedLimit;
+    } finally {
+      adapting.set(false);
+    }
+  }
+
+  /** The name of the module that owns this bulkhead.
+   *
+   * @return the module name, never null.
+   */
+  String getModuleName() {
+    return moduleName;
+  }
+
+  /** Whether the limit follows the request latency.
+   *
+   * @return true for adaptive bulkheads, false for fixed ones.
+   */
+  boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /** The current concurrency limit.
+   *
+   * @return the limit, between the minimum and the maximum concurrency.
+   */
+  int getLimit() {
+    return limit;
+  }
+
+  /** The number of requests that hold a permit.
+   *
+   * @return the number of requests in flight.
+   */
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  /** The number of requests waiting for a permit.
+   *
+   * @return the number of queued requests.
+   */
+  int getQueued() {
+    return queued.get();
+  }
+
+  /** The number of rejected requests since the application started.
+   *
+   * @return the number of rejected requests.
+   */
+  long getRejected() {
+    return rejected.get();
+  }
+}
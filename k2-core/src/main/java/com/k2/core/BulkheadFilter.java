@@ -0,0 +1,133 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+
+/** The filter that only lets a request into a module if the module bulkhead
+ * has a permit for it.
+ *
+ * Rejected requests get a 503 (service unavailable) response with a
+ * Retry-After header, without reaching the rest of the module filters.
+ *
+ * For asynchronous requests, the permit is released when the request
+ * completes, not when the servlet returns.
+ */
+class BulkheadFilter implements Filter {
+
+  /** The bulkhead of the module, never null. */
+  private final Bulkhead bulkhead;
+
+  /** The value of the Retry-After header, in seconds, never null. */
+  private final String retryAfter;
+
+  /** Constructor, creates a filter for a module.
+   *
+   * @param theBulkhead the bulkhead of the module. It cannot be null.
+   *
+   * @param retryAfterSeconds the number of seconds a rejected client should
+   * wait before retrying, 0 or more.
+   */
+  BulkheadFilter(final Bulkhead theBulkhead, final int retryAfterSeconds) {
+    Validate.notNull(theBulkhead, "The bulkhead cannot be null.");
+    Validate.isTrue(retryAfterSeconds >= 0,
+        "The retry after seconds cannot be negative.");
+    bulkhead = theBulkhead;
+    retryAfter = Integer.toString(retryAfterSeconds);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void init(final FilterConfig filterConfig) {
+  }
+
+  /** {@inheritDoc}
+   *
+   * Passes the request to the rest of the chain if the bulkhead has a permit
+   * for it, otherwise sends a 503.
+   */
+  @Override
+  public void doFilter(final ServletRequest request,
+      final ServletResponse response, final FilterChain chain)
+      throws IOException, ServletException {
+    if (!bulkhead.acquire()) {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      httpResponse.setHeader("Retry-After", retryAfter);
+      httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    long start = System.nanoTime();
+    boolean async = false;
+    try {
+      chain.doFilter(request, response);
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(new Releaser(start));
+        async = true;
+      }
+    } finally {
+      if (!async) {
+        bulkhead.release(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void destroy() {
+  }
+
+  /** Releases the permit of an asynchronous request when it completes.
+   *
+   * The container calls onComplete after a timeout or an error too.
+   */
+  private final class Releaser implements AsyncListener {
+
+    /** The time the request started, as returned by System.nanoTime. */
+    private final long start;
+
+    /** Constructor, creates a releaser for a request.
+     *
+     * @param theStart the time the request started.
+     */
+    private Releaser(final long theStart) {
+      start = theStart;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      bulkhead.release(System.nanoTime() - start);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onError(final AsyncEvent event) {
+    }
+
+    /** {@inheritDoc}
+     *
+     * Keeps listening if the request starts a new asynchronous cycle.
+     */
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+      event.getAsyncContext().addListener(this);
+    }
+  }
+}
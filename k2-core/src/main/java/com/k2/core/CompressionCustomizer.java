@@ -0,0 +1,188 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.boot.web.embedded.jetty.JettyServerCustomizer;
+
+/** Wraps the jetty handler with gzip handlers that compress the responses.
+ *
+ * The application wide policy comes from the jetty.compression.* properties
+ * (see WebConfiguration). Each module that overrides that policy through the
+ * CompressionRegistry gets its own gzip handler, limited to /[module name]/*,
+ * and the application wide handler excludes the module paths.
+ *
+ * Jetty compresses the response when it is committed, below the servlet
+ * filters, so filters that set headers just before the response is
+ * committed, like the shiro SaveSessionFilter, keep working. Responses that
+ * already have a content-encoding, like the precompressed static content, are
+ * not compressed again.
+ *
+ * Jetty 9.4 only compresses with gzip. Brotli is only available for the
+ * precompressed static content (see DispatcherServletConfiguration).
+ */
+class CompressionCustomizer implements JettyServerCustomizer {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(
+      CompressionCustomizer.class);
+
+  /** The http methods whose responses are compressed. */
+  private static final String[] METHODS = {"GET", "POST"};
+
+  /** The context path of the application, never null. */
+  private final String contextPath;
+
+  /** Whether to compress the responses. */
+  private final boolean enabled;
+
+  /** The minimum response size to compress, in bytes. */
+  private final int minSize;
+
+  /** The mime types to compress, never null. */
+  private final String[] mimeTypes;
+
+  /** The paths that are never compressed, relative to the context path,
+   * never null. */
+  private final String[] excludedPaths;
+
+  /** The modules that override the application wide policy, never null. */
+  private final Collection<CompressionRegistry> modules;
+
+  /** Constructor, creates a customizer.
+   *
+   * @param theContextPath the context path of the application, "" for the
+   * root context. It cannot be null.
+   *
+   * @param isEnabled whether to compress the responses.
+   *
+   * @param theMinSize the minimum response size to compress, in bytes.
+   *
+   * @param theMimeTypes the mime types to compress. It cannot be null.
+   *
+   * @param theExcludedPaths the paths that are never compressed, relative to
+   * the context path. It cannot be null.
+   *
+   * @param theModules the modules that override the application wide policy.
+   * It cannot be null.
+   */
+  CompressionCustomizer(final String theContextPath, final boolean isEnabled,
+      final int theMinSize, final String[] theMimeTypes,
+      final String[] theExcludedPaths,
+      final Collection<CompressionRegistry> theModules) {
+    Validate.notNull(theContextPath, "The context path cannot be null.");
+    Validate.notNull(theMimeTypes, "The mime types cannot be null.");
+    Validate.notNull(theExcludedPaths, "The excluded paths cannot be null.");
+    Validate.notNull(theModules, "The modules cannot be null.");
+    contextPath = theContextPath;
+    enabled = isEnabled;
+    minSize = theMinSize;
+    mimeTypes = theMimeTypes;
+    excludedPaths = theExcludedPaths;
+    modules = theModules;
+  }
+
+  /** {@inheritDoc}
+   *
+   * Wraps the server handler in the gzip handlers.
+   */
+  @Override
+  public void customize(final Server server) {
+    Handler handler = server.getHandler();
+
+    if (enabled) {
+      List<String> excluded = getPaths(excludedPaths);
+      for (CompressionRegistry module : modules) {
+        excluded.add(getModulePath(module, "/*"));
+      }
+      GzipHandler gzip = createHandler(minSize, mimeTypes);
+      gzip.setExcludedPaths(excluded.toArray(new String[0]));
+      gzip.setHandler(handler);
+      handler = gzip;
+    }
+
+    for (CompressionRegistry module : modules) {
+      boolean moduleEnabled = enabled;
+      if (module.isEnabled() != null) {
+        moduleEnabled = module.isEnabled();
+      }
+      if (moduleEnabled) {
+        Integer moduleMinSize = module.getMinSize();
+        String[] moduleMimeTypes = module.getMimeTypes();
+        GzipHandler gzip = createHandler(
+            moduleMinSize == null ? minSize : moduleMinSize,
+            moduleMimeTypes == null ? mimeTypes : moduleMimeTypes);
+        gzip.setIncludedPaths(getModulePath(module, "/*"));
+        List<String> excluded = getPaths(excludedPaths);
+        for (String path : module.getExcludedPaths()) {
+          excluded.add(getModulePath(module, path));
+        }
+        gzip.setExcludedPaths(excluded.toArray(new String[0]));
+        gzip.setHandler(handler);
+        handler = gzip;
+        log.info("Module {} overrides the compression policy",
+            module.getModuleName());
+      }
+    }
+    server.setHandler(handler);
+  }
+
+  /** Creates a gzip handler.
+   *
+   * @param theMinSize the minimum response size to compress, in bytes.
+   *
+   * @param theMimeTypes the mime types to compress. It cannot be null.
+   *
+   * @return the gzip handler, never null.
+   */
+  private static GzipHandler createHandler(final int theMinSize,
+      final String[] theMimeTypes) {
+    GzipHandler gzip = new GzipHandler();
+    gzip.setMinGzipSize(theMinSize);
+    gzip.setIncludedMimeTypes(theMimeTypes);
+    gzip.setIncludedMethods(METHODS);
+    return gzip;
+  }
+
+  /** Prefixes paths with the context path.
+   *
+   * Jetty matches the request uri against the paths, because the gzip
+   * handlers wrap the web application context.
+   *
+   * @param paths the paths relative to the context path. It cannot be null.
+   *
+   * @return a new modifiable list with the paths, never null.
+   */
+  private List<String> getPaths(final String[] paths) {
+    List<String> result = new ArrayList<>(paths.length);
+    for (String path : paths) {
+      result.add(contextPath + path);
+    }
+    return result;
+  }
+
+  /** Obtains the path of the request uri for a module path.
+   *
+   * @param module the module. It cannot be null.
+   *
+   * @param path the path relative to the module. It cannot be null.
+   *
+   * @return the path, never null.
+   */
+  private String getModulePath(final CompressionRegistry module,
+      final String path) {
+    return contextPath + "/" + module.getModuleName() + path;
+  }
+}
@@ -0,0 +1,52 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** The compression policies of the modules.
+ *
+ * K2 provides the CompressionRegistry to the modules through this factory,
+ * and reads the resulting policies when it configures jetty (see
+ * CompressionCustomizer).
+ */
+class CompressionPolicies implements RegistryFactory {
+
+  /** The registries of the modules, keyed by module name, never null. */
+  private final Map<String, CompressionRegistry> registries
+      = new LinkedHashMap<>();
+
+  /** {@inheritDoc}
+   *
+   * Returns the same registry each time a module asks for it.
+   */
+  @Override
+  public synchronized CompressionRegistry getRegistry(
+      final ModuleDefinition requestor) {
+    String moduleName = requestor.getModuleName();
+    CompressionRegistry registry = registries.get(moduleName);
+    if (registry == null) {
+      registry = new CompressionRegistry(moduleName);
+      registries.put(moduleName, registry);
+    }
+    return registry;
+  }
+
+  /** The registries of the modules that override the application wide
+   * compression policy.
+   *
+   * @return the registries, never null.
+   */
+  synchronized Collection<CompressionRegistry> getCustomizedRegistries() {
+    Collection<CompressionRegistry> result = new ArrayList<>();
+    for (CompressionRegistry registry : registries.values()) {
+      if (registry.isCustomized()) {
+        result.add(registry);
+      }
+    }
+    return result;
+  }
+}
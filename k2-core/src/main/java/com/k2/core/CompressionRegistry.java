@@ -0,0 +1,145 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+/** The registry that modules use to override the response compression policy
+ * for their own paths.
+ *
+ * K2 compresses the responses with gzip, configured by the
+ * jetty.compression.* properties (see WebConfiguration). The compression is
+ * disabled unless jetty.compression.enabled is true. Modules obtain this
+ * registry from the module context to change that configuration for the
+ * requests to /[module name]/*, for example:
+ *
+ * moduleContext.get(CompressionRegistry.class).setMinSize(8192);
+ *
+ * Each option that the module does not set keeps its application wide value.
+ */
+public class CompressionRegistry {
+
+  /** The name of the module that owns this registry, never null. */
+  private final String moduleName;
+
+  /** Whether to compress the module responses, null to use the application
+   * wide value. */
+  private Boolean enabled = null;
+
+  /** The minimum response size to compress, in bytes, null to use the
+   * application wide value. */
+  private Integer minSize = null;
+
+  /** The mime types to compress, null to use the application wide value. */
+  private String[] mimeTypes = null;
+
+  /** The module paths that are never compressed, relative to the module,
+   * never null. */
+  private final List<String> excludedPaths = new LinkedList<>();
+
+  /** Constructor, creates a registry for a module.
+   *
+   * @param theModuleName the name of the module that owns this registry. It
+   * cannot be null.
+   */
+  CompressionRegistry(final String theModuleName) {
+    Validate.notNull(theModuleName, "The module name cannot be null.");
+    moduleName = theModuleName;
+  }
+
+  /** Enables or disables the compression of the module responses.
+   *
+   * @param isEnabled true to compress the module responses, even if the
+   * compression is disabled for the rest of the application.
+   */
+  public void setEnabled(final boolean isEnabled) {
+    enabled = isEnabled;
+  }
+
+  /** Sets the minimum size of the module responses to compress.
+   *
+   * @param theMinSize the size in bytes, 0 or more.
+   */
+  public void setMinSize(final int theMinSize) {
+    Validate.isTrue(theMinSize >= 0, "The minimum size cannot be negative.");
+    minSize = theMinSize;
+  }
+
+  /** Sets the mime types of the module responses to compress.
+   *
+   * @param theMimeTypes the mime types, like application/json. It cannot be
+   * null.
+   */
+  public void setMimeTypes(final String... theMimeTypes) {
+    Validate.noNullElements(theMimeTypes, "The mime types cannot be null.");
+    mimeTypes = Arrays.copyOf(theMimeTypes, theMimeTypes.length);
+  }
+
+  /** Excludes module paths from compression.
+   *
+   * @param paths the paths to exclude, relative to the module, like
+   * /download/*. Paths support the jetty path spec syntax (see
+   * GzipHandler.addExcludedPaths). It cannot be null.
+   */
+  public void addExcludedPaths(final String... paths) {
+    Validate.noNullElements(paths, "The paths cannot be null.");
+    for (String path : paths) {
+      Validate.isTrue(path.startsWith("/"), "The path must start with /.");
+      excludedPaths.add(path);
+    }
+  }
+
+  /** The name of the module that owns this registry.
+   *
+   * @return the module name, never null.
+   */
+  String getModuleName() {
+    return moduleName;
+  }
+
+  /** Whether the module compresses its responses.
+   *
+   * @return true or false, or null to use the application wide value.
+   */
+  Boolean isEnabled() {
+    return enabled;
+  }
+
+  /** The minimum size of the module responses to compress.
+   *
+   * @return the size in bytes, or null to use the application wide value.
+   */
+  Integer getMinSize() {
+    return minSize;
+  }
+
+  /** The mime types of the module responses to compress.
+   *
+   * @return the mime types, or null to use the application wide value.
+   */
+  String[] getMimeTypes() {
+    return mimeTypes;
+  }
+
+  /** The module paths that are never compressed.
+   *
+   * @return the paths relative to the module, never null.
+   */
+  List<String> getExcludedPaths() {
+    return excludedPaths;
+  }
+
+  /** Determines if the module overrides the application wide compression
+   * policy.
+   *
+   * @return true if the module set any option.
+   */
+  boolean isCustomized() {
+    return enabled != null || minSize != null || mimeTypes != null
+      || !excludedPaths.isEmpty();
+  }
+}
@@ -0,0 +1,142 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.lang.reflect.Constructor;
+
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.boot.web.embedded.jetty.JettyServerCustomizer;
+
+/** Tunes the jetty connectors: accept queue size, output buffer sizes and
+ * http/2 cleartext (h2c).
+ *
+ * The acceptor and selector counts are configured in the
+ * JettyServletWebServerFactory, that creates the connector (see
+ * WebConfiguration).
+ *
+ * h2c needs org.eclipse.jetty.http2:http2-server in the classpath. K2 does not
+ * depend on it, so applications that enable h2c must add that dependency.
+ */
+class ConnectorCustomizer implements JettyServerCustomizer {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(ConnectorCustomizer.class);
+
+  /** The class name of the jetty h2c connection factory. */
+  static final String H2C_FACTORY
+      = "org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory";
+
+  /** The size of the queue of connections waiting to be accepted, 0 for the
+   * os default. */
+  private final int acceptQueueSize;
+
+  /** The size of the response buffer, 0 for the jetty default. */
+  private final int outputBufferSize;
+
+  /** The maximum size of the response writes that are aggregated before
+   * writing to the network, 0 for the jetty default. */
+  private final int outputAggregationSize;
+
+  /** Whether to accept http/2 cleartext connections. */
+  private final boolean h2c;
+
+  /** Constructor, creates a customizer.
+   *
+   * @param theAcceptQueueSize the size of the queue of connections waiting to
+   * be accepted, 0 for the os default.
+   *
+   * @param theOutputBufferSize the size of the response buffer, 0 for the
+   * jetty default.
+   *
+   * @param theOutputAggregationSize the maximum size of the response writes
+   * that are aggregated, 0 for the jetty default.
+   *
+   * @param isH2c whether to accept http/2 cleartext connections.
+   */
+  ConnectorCustomizer(final int theAcceptQueueSize,
+      final int theOutputBufferSize, final int theOutputAggregationSize,
+      final boolean isH2c) {
+    acceptQueueSize = theAcceptQueueSize;
+    outputBufferSize = theOutputBufferSize;
+    outputAggregationSize = theOutputAggregationSize;
+    h2c = isH2c;
+  }
+
+  /** {@inheritDoc}
+   *
+   * Tunes all the server connectors.
+   */
+  @Override
+  public void customize(final Server server) {
+    for (Connector connector : server.getConnectors()) {
+      if (connector instanceof ServerConnector) {
+        customize((ServerConnector) connector);
+      }
+    }
+  }
+
+  /** Tunes a connector.
+   *
+   * @param connector the connector to tune. It cannot be null.
+   */
+  private void customize(final ServerConnector connector) {
+    if (acceptQueueSize > 0) {
+      connector.setAcceptQueueSize(acceptQueueSize);
+    }
+    HttpConnectionFactory http;
+    http = connector.getConnectionFactory(HttpConnectionFactory.class);
+    if (http == null) {
+      return;
+    }
+    HttpConfiguration config = http.getHttpConfiguration();
+    if (outputBufferSize > 0) {
+      config.setOutputBufferSize(outputBufferSize);
+    }
+    if (outputAggregationSize > 0) {
+      config.setOutputAggregationSize(outputAggregationSize);
+    }
+    if (h2c) {
+      connector.addConnectionFactory(createH2cFactory(config));
+      log.info("Accepting http/2 cleartext connections on {}",
+          connector.getName());
+    }
+  }
+
+  /** Creates the jetty h2c connection factory.
+   *
+   * @param config the http configuration of the connector. It cannot be null.
+   *
+   * @return the connection factory, never null.
+   *
+   * @throws IllegalStateException if jetty http2-server is not in the
+   * classpath.
+   */
+  private static ConnectionFactory createH2cFactory(
+      final HttpConfiguration config) {
+    Class<?> factoryClass;
+    try {
+      factoryClass = Class.forName(H2C_FACTORY, true,
+          ConnectorCustomizer.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("jetty.h2c is true but " + H2C_FACTORY
+          + " was not found. Add org.eclipse.jetty.http2:http2-server to the"
+          + " application dependencies.", e);
+    }
+    try {
+      Constructor<?> constructor;
+      constructor = factoryClass.getConstructor(HttpConfiguration.class);
+      return (ConnectionFactory) constructor.newInstance(config);
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException("Error creating " + H2C_FACTORY, e);
+    }
+  }
+}
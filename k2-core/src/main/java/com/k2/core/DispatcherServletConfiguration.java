@@ -2,6 +2,10 @@
 
 package com.k2.core;
 
+import org.springframework.web.servlet.config.annotation
+    .AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation
+    .InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation
     .ResourceHandlerRegistration;
 import org.springframework.web.servlet.config.annotation
@@ -12,19 +16,28 @@ import org.springframework.web.servlet.mvc.method.annotation
     .RequestMappingHandlerAdapter;
 import org.springframework.web.servlet.mvc.method.annotation
     .RequestMappingHandlerMapping;
+import org.springframework.web.servlet.resource.CachingResourceResolver;
+import org.springframework.web.servlet.resource.CachingResourceTransformer;
+import org.springframework.web.servlet.resource.CssLinkResourceTransformer;
+import org.springframework.web.servlet.resource.EncodedResourceResolver;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.support
     .PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.Environment;
 import org.springframework.format.FormatterRegistry;
 import org.springframework.format.datetime.standard.DateTimeFormatterRegistrar;
 import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 /** Custom configuration for the dispatcher servlet application context
  *
@@ -36,6 +49,19 @@ import org.springframework.http.converter.HttpMessageConverter;
 @Configuration
 public class DispatcherServletConfiguration extends WebMvcConfigurationSupport {
 
+  /** The default timeout of the asynchronous requests, in milliseconds. */
+  static final long ASYNC_TIMEOUT = 30000;
+
+  /** The default number of threads that the module async executor keeps. */
+  static final int ASYNC_CORE_THREADS = 2;
+
+  /** The default maximum number of threads of the module async executor. */
+  static final int ASYNC_MAX_THREADS = 10;
+
+  /** The default number of tasks that wait for a thread in the module async
+   * executor. */
+  static final int ASYNC_QUEUE_CAPACITY = 100;
+
   /** Whether the application is loaded in debug modue or not.
    *
    * Injected by spring.
@@ -57,6 +83,15 @@ public class DispatcherServletConfiguration extends WebMvcConfigurationSupport {
    */
   @Autowired private ModuleDefinition moduleDefinition;
 
+  /** The validator of the module static content, never null.
+   *
+   * It sets the cache headers of the static content. This is only used
+   * outside debug mode, as a resource transformer in addResourceHandlers and
+   * as an interceptor in addInterceptors.
+   */
+  private final StaticResourceValidator staticResourceValidator
+      = new StaticResourceValidator();
+
   /** Defines a handler mapping to look for handlers in the current
    * application context and its parent.
    *
@@ -74,7 +109,9 @@ public class DispatcherServletConfiguration extends WebMvcConfigurationSupport {
    *
    * If there is at least one message converter up in the application context
    * hierarchy, this bean will override the default message converters for the
-   * handler adapter.
+   * handler adapter. The json converter that k2 shares among the modules does
+   * not count, it only replaces the default json converter (see
+   * extendMessageConverters).
    *
    * @param converters a list of message converters. If empty, the handler
    * adapter uses the default converters (see WebMvcConfigurationSupport).
@@ -88,13 +125,73 @@ public class DispatcherServletConfiguration extends WebMvcConfigurationSupport {
     RequestMappingHandlerAdapter adapter;
     adapter = super.requestMappingHandlerAdapter();
 
-    if (!converters.isEmpty()) {
-      adapter.setMessageConverters(converters);
+    List<HttpMessageConverter<?>> moduleConverters;
+    moduleConverters = new ArrayList<>(converters);
+    moduleConverters.remove(getSharedJsonConverter());
+    if (!moduleConverters.isEmpty()) {
+      adapter.setMessageConverters(moduleConverters);
     }
     return adapter;
   }
 
+  /** Replaces the default json converter with the one that k2 shares among
+   * the modules, if any.
+   *
+   * K2 creates the shared converter if jackson is in the classpath, unless
+   * k2.json.sharedConverter is false (see JsonConverters). A module can keep
+   * the spring mvc default, a new converter for the module, setting
+   * [module name].json.sharedConverter to false.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  protected void extendMessageConverters(
+      final List<HttpMessageConverter<?>> converters) {
+    HttpMessageConverter<?> shared = getSharedJsonConverter();
+    if (shared == null) {
+      return;
+    }
+    Environment environment = getApplicationContext().getParent()
+        .getEnvironment();
+    if (!environment.getProperty(moduleDefinition.getModuleName()
+          + ".json.sharedConverter", Boolean.class, true)) {
+      return;
+    }
+    for (int i = 0; i < converters.size(); i++) {
+      if (converters.get(i).getClass().equals(shared.getClass())) {
+        converters.set(i, shared);
+      }
+    }
+  }
+
+  /** Obtains the json converter that k2 shares among the modules.
+   *
+   * @return the converter, or null if k2 does not share one.
+   */
+  private HttpMessageConverter<?> getSharedJsonConverter() {
+    ApplicationContext context = getApplicationContext();
+    if (!context.containsBean(JsonConverters.BEAN_NAME)) {
+      return null;
+    }
+    return context.getBean(JsonConverters.BEAN_NAME,
+        HttpMessageConverter.class);
+  }
+
   /** Registers handlers that serve the module static content.
+   *
+   * In debug mode, the static content is read from the module source
+   * directory, if available, and then from the classpath, on each request.
+   *
+   * Otherwise, the static content is read once from the classpath and kept in
+   * memory (see StaticResourceValidator). Clients that accept brotli or gzip
+   * get the precompressed variants, the [file].br or [file].gz files next to
+   * the original, if they exist. Each file is also served under a versioned
+   * url, with the md5 of its content before the extension
+   * (static/app-[md5].css). Use the ResourceUrlProvider bean
+   * (mvcResourceUrlProvider) of the module dispatcher servlet to obtain them,
+   * or HttpServletResponse.encodeURL, that k2 rewrites with a
+   * ResourceUrlEncodingFilter. The url() references in css files are
+   * rewritten to their versioned urls.
    */
   @Override
   protected void addResourceHandlers(final ResourceHandlerRegistry registry) {
@@ -105,6 +202,87 @@ public class DispatcherServletConfiguration extends WebMvcConfigurationSupport {
           + "/" + moduleDefinition.getStaticPath());
     }
     reg.addResourceLocations("classpath:" + moduleDefinition.getStaticPath());
+    if (!debug) {
+      Cache cache = new ConcurrentMapCache("k2.staticResources");
+      reg.resourceChain(false)
+          .addResolver(new CachingResourceResolver(cache))
+          .addResolver(new EncodedResourceResolver())
+          .addResolver(staticResourceValidator.newVersionResolver()
+              .addContentVersionStrategy("/**"))
+          .addTransformer(staticResourceValidator)
+          .addTransformer(new CachingResourceTransformer(cache))
+          .addTransformer(new CssLinkResourceTransformer());
+    }
+  }
+
+  /** Registers the interceptor that validates the module static content.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  protected void addInterceptors(final InterceptorRegistry registry) {
+    if (!debug) {
+      registry.addInterceptor(staticResourceValidator);
+    }
+  }
+
+  /** The executor that runs the Callable and WebAsyncTask results of the
+   * module handlers.
+   *
+   * Each module has its own executor, so a slow module cannot take the
+   * threads of other modules nor the jetty threads. It is configured from the
+   * module properties:
+   *
+   * [module name].async.coreThreads: the number of threads to keep, 2 by
+   * default.
+   *
+   * [module name].async.maxThreads: the maximum number of threads, 10 by
+   * default.
+   *
+   * [module name].async.queueCapacity: the number of tasks that wait for a
+   * thread, 100 by default. Further tasks are rejected.
+   *
+   * The threads are named [module name]-async-[n].
+   *
+   * @return the executor, never null.
+   */
+  @Bean(name = "k2.asyncExecutor")
+  public ThreadPoolTaskExecutor asyncExecutor() {
+    String moduleName = moduleDefinition.getModuleName();
+    Environment environment = getApplicationContext().getParent()
+        .getEnvironment();
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setThreadNamePrefix(moduleName + "-async-");
+    executor.setCorePoolSize(environment.getProperty(
+        moduleName + ".async.coreThreads", Integer.class,
+        ASYNC_CORE_THREADS));
+    executor.setMaxPoolSize(environment.getProperty(
+        moduleName + ".async.maxThreads", Integer.class, ASYNC_MAX_THREADS));
+    executor.setQueueCapacity(environment.getProperty(
+        moduleName + ".async.queueCapacity", Integer.class,
+        ASYNC_QUEUE_CAPACITY));
+    return executor;
+  }
+
+  /** Configures the asynchronous request processing of the module.
+   *
+   * The module handlers can return DeferredResult, CompletableFuture,
+   * Callable or WebAsyncTask. Callables run in the module async executor (see
+   * asyncExecutor()). Requests that do not complete in
+   * [module name].async.timeout milliseconds (30 seconds by default) fail
+   * with 503.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  protected void configureAsyncSupport(
+      final AsyncSupportConfigurer configurer) {
+    Environment environment = getApplicationContext().getParent()
+        .getEnvironment();
+    configurer.setDefaultTimeout(environment.getProperty(
+        moduleDefinition.getModuleName() + ".async.timeout", Long.class,
+        ASYNC_TIMEOUT));
+    configurer.setTaskExecutor(asyncExecutor());
   }
 
   /** Bean to resolve @Value from k2 environment.
@@ -0,0 +1,129 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+/** A count-min sketch that estimates how often each key was seen recently,
+ * the TinyLFU admission filter of the response cache.
+ *
+ * This keeps 4 bit counters, 16 in each long. Each key increments 4 of them,
+ * and its frequency is the minimum of the 4. When the number of increments
+ * reaches 10 times the expected number of keys, all the counters are halved,
+ * so the sketch forgets old accesses.
+ *
+ * This class is not thread safe.
+ */
+class FrequencySketch {
+
+  /** The number of counters that each key updates. */
+  private static final int DEPTH = 4;
+
+  /** The number of counters in each long. */
+  private static final int COUNTERS_PER_LONG = 16;
+
+  /** The log2 of COUNTERS_PER_LONG. */
+  private static final int COUNTER_INDEX_BITS = 4;
+
+  /** The number of bits of each counter. */
+  private static final int COUNTER_BITS = 4;
+
+  /** The maximum value of a counter. */
+  private static final long MAX_COUNT = 15;
+
+  /** Clears the high bit of each counter after shifting the table right. */
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  /** The number of increments, relative to the table size, that trigger a
+   * reset. */
+  private static final int SAMPLE_FACTOR = 10;
+
+  /** The number of bits in an int. */
+  private static final int INT_BITS = 32;
+
+  /** The seeds of the hash function of each counter. */
+  private static final long[] SEEDS = {
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+    0xcbf29ce484222325L};
+
+  /** The counters, never null. */
+  private final long[] table;
+
+  /** The mask to obtain a counter index from a hash. */
+  private final int counterMask;
+
+  /** The number of increments that trigger a reset. */
+  private final int sampleSize;
+
+  /** The number of increments since the last reset. */
+  private int additions = 0;
+
+  /** Constructor, creates an empty sketch.
+   *
+   * @param expectedKeys the number of distinct keys the cache is expected to
+   * hold, greater than 0.
+   */
+  FrequencySketch(final int expectedKeys) {
+    int size = Integer.highestOneBit(Math.max(1, expectedKeys - 1)) << 1;
+    table = new long[size];
+    counterMask = size * COUNTERS_PER_LONG - 1;
+    sampleSize = size * SAMPLE_FACTOR;
+  }
+
+  /** Records an access to a key.
+   *
+   * @param hash the hash code of the key.
+   */
+  void increment(final int hash) {
+    boolean added = false;
+    for (int i = 0; i < DEPTH; i++) {
+      int counter = indexOf(hash, i);
+      int slot = counter >>> COUNTER_INDEX_BITS;
+      int shift = (counter & (COUNTERS_PER_LONG - 1)) * COUNTER_BITS;
+      if (((table[slot] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+        table[slot] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  /** Estimates how often a key was accessed recently.
+   *
+   * @param hash the hash code of the key.
+   *
+   * @return the estimated frequency, between 0 and 15.
+   */
+  int frequency(final int hash) {
+    long result = MAX_COUNT;
+    for (int i = 0; i < DEPTH; i++) {
+      int counter = indexOf(hash, i);
+      int shift = (counter & (COUNTERS_PER_LONG - 1)) * COUNTER_BITS;
+      result = Math.min(result,
+          (table[counter >>> COUNTER_INDEX_BITS] >>> shift) & MAX_COUNT);
+    }
+    return (int) result;
+  }
+
+  /** Halves all the counters. */
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  /** Obtains the index of one of the counters of a key.
+   *
+   * @param hash the hash code of the key.
+   *
+   * @param row the counter of the key, from 0 to DEPTH - 1.
+   *
+   * @return the counter index.
+   */
+  private int indexOf(final int hash, final int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> INT_BITS;
+    return (int) h & counterMask;
+  }
+}
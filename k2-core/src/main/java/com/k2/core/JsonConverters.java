@@ -0,0 +1,79 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json
+    .MappingJackson2HttpMessageConverter;
+import org.springframework.util.ClassUtils;
+
+/** Creates the json converter that k2 shares among the modules.
+ *
+ * Spring mvc creates a new ObjectMapper for each dispatcher servlet, and
+ * each one builds its own serializer and deserializer caches. The modules
+ * share this converter instead (see
+ * DispatcherServletConfiguration.extendMessageConverters), so jackson
+ * introspects each class once per application.
+ *
+ * Jackson is an optional dependency of k2. Do not use this class unless
+ * isJacksonPresent returns true.
+ */
+final class JsonConverters {
+
+  /** The name of the shared converter in the global application context. */
+  static final String BEAN_NAME = "k2.jsonConverter";
+
+  /** Utility class, not instantiable. */
+  private JsonConverters() {
+  }
+
+  /** Determines if jackson is in the classpath.
+   *
+   * @return true if jackson is present.
+   */
+  static boolean isJacksonPresent() {
+    ClassLoader classLoader = JsonConverters.class.getClassLoader();
+    return ClassUtils.isPresent("com.fasterxml.jackson.databind.ObjectMapper",
+        classLoader)
+      && ClassUtils.isPresent("com.fasterxml.jackson.core.JsonGenerator",
+          classLoader);
+  }
+
+  /** Creates the shared json converter.
+   *
+   * The object mapper has the spring mvc defaults, including the java 8 and
+   * parameter names modules if they are present, with these changes:
+   *
+   * - It does not flush the response after writing the value: the converter
+   * flushes once at the end, the servlet output stream would send an extra
+   * chunk for each flush.
+   *
+   * - It never closes the response stream, the servlet container does.
+   *
+   * Dates are written as timestamps, like in spring mvc, unless isoDates is
+   * true. In that case, the mapper writes dates as iso strings, like spring
+   * boot does.
+   *
+   * Jackson keeps its buffers in a thread local pool, so the generators do
+   * not allocate new buffers for each response.
+   *
+   * @param isoDates whether to write dates as iso strings instead of
+   * timestamps.
+   *
+   * @return a new converter, never null.
+   */
+  static MappingJackson2HttpMessageConverter create(final boolean isoDates) {
+    Jackson2ObjectMapperBuilder builder = Jackson2ObjectMapperBuilder.json()
+        .featuresToDisable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    if (isoDates) {
+      builder.featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+    ObjectMapper mapper = builder.build();
+    mapper.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    return new MappingJackson2HttpMessageConverter(mapper);
+  }
+}
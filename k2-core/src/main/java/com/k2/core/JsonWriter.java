@@ -0,0 +1,248 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.commons.lang3.Validate;
+
+/** Writes a json document to a writer, one token at a time.
+ *
+ * K2 writes its own documents (the request metrics, the startup timeline and
+ * the warm-up results) because jackson is an optional dependency. This writer
+ * adds the separators between the values and escapes the strings as the json
+ * specification (RFC 8259) requires, for example:
+ *
+ * new JsonWriter(writer).beginObject().name("phases").beginArray()
+ *   .beginObject().name("module").value("m").endObject()
+ *   .endArray().endObject();
+ *
+ * This does not validate the structure of the document.
+ */
+final class JsonWriter {
+
+  /** The writer to write the document to, never null. */
+  private final Writer writer;
+
+  /** Whether the next value or name needs a comma before it. */
+  private boolean separate = false;
+
+  /** Constructor, creates a json writer.
+   *
+   * @param theWriter the writer to write the document to. It cannot be null.
+   */
+  JsonWriter(final Writer theWriter) {
+    Validate.notNull(theWriter, "The writer cannot be null.");
+    writer = theWriter;
+  }
+
+  /** Starts an object.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter beginObject() throws IOException {
+    return open('{');
+  }
+
+  /** Ends the current object.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter endObject() throws IOException {
+    return close('}');
+  }
+
+  /** Starts an array.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter beginArray() throws IOException {
+    return open('[');
+  }
+
+  /** Ends the current array.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter endArray() throws IOException {
+    return close(']');
+  }
+
+  /** Writes the name of the next member of the current object.
+   *
+   * @param name the name of the member. It cannot be null.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter name(final String name) throws IOException {
+    Validate.notNull(name, "The name cannot be null.");
+    separate();
+    writeString(name);
+    writer.write(':');
+    separate = false;
+    return this;
+  }
+
+  /** Writes a string value.
+   *
+   * @param value the value to write, null writes a json null.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter value(final String value) throws IOException {
+    separate();
+    if (value == null) {
+      writer.write("null");
+    } else {
+      writeString(value);
+    }
+    separate = true;
+    return this;
+  }
+
+  /** Writes a number.
+   *
+   * @param value the value to write.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter value(final long value) throws IOException {
+    return literal(Long.toString(value));
+  }
+
+  /** Writes a number.
+   *
+   * @param value the value to write. NaN and the infinities, that json cannot
+   * represent, are written as null.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter value(final double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return literal("null");
+    }
+    return literal(Double.toString(value));
+  }
+
+  /** Writes a boolean.
+   *
+   * @param value the value to write.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  JsonWriter value(final boolean value) throws IOException {
+    return literal(Boolean.toString(value));
+  }
+
+  /** Writes the start of an object or array.
+   *
+   * @param c the character that starts the object or array.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  private JsonWriter open(final char c) throws IOException {
+    separate();
+    writer.write(c);
+    separate = false;
+    return this;
+  }
+
+  /** Writes the end of an object or array.
+   *
+   * @param c the character that ends the object or array.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  private JsonWriter close(final char c) throws IOException {
+    writer.write(c);
+    separate = true;
+    return this;
+  }
+
+  /** Writes a value that needs no escaping.
+   *
+   * @param value the value to write. It cannot be null.
+   *
+   * @return this writer, never null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  private JsonWriter literal(final String value) throws IOException {
+    separate();
+    writer.write(value);
+    separate = true;
+    return this;
+  }
+
+  /** Writes the comma before a value or name, if needed.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  private void separate() throws IOException {
+    if (separate) {
+      writer.write(',');
+    }
+  }
+
+  /** Writes a quoted and escaped string.
+   *
+   * This escapes the quotes, backslashes and control characters.
+   *
+   * @param value the string to write. It cannot be null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  private void writeString(final String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < ' ') {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+    writer.write('"');
+  }
+}
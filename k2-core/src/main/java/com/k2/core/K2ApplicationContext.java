@@ -44,12 +44,16 @@ class K2ApplicationContext extends AnnotationConfigApplicationContext {
 
   /** {@inheritDoc}
    *
-   * Refreshes all the modules.
+   * Refreshes all the modules, see ModuleRefresher, and runs their warm-up
+   * tasks, see Warmups.
    */
   @Override
   protected void onRefresh() {
-    for (ModuleDefinition module : modules) {
-      module.refresh(this.getBeanFactory(), null);
+    new ModuleRefresher(modules, getEnvironment()).refresh(
+        this.getBeanFactory(), null);
+    if (getBeanFactory().containsBean(Warmups.BEAN_NAME)) {
+      getBeanFactory().getBean(Warmups.BEAN_NAME, Warmups.class).run(
+          getEnvironment());
     }
   }
 
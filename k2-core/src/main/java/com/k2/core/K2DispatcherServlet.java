@@ -0,0 +1,88 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.HandlerExecutionChain;
+
+/** The dispatcher servlet that k2 registers for each module and for the
+ * webjars.
+ *
+ * It records its initialization in the startup timeline, as the
+ * dispatcherServlet phase. It also refreshes lazy modules before initializing
+ * the servlet application context (see LazyModuleServlet).
+ */
+class K2DispatcherServlet extends DispatcherServlet {
+
+  /** The serial version id. */
+  private static final long serialVersionUID = 1L;
+
+  /** The name of the request attribute with the handler that this servlet
+   * selected for the request. */
+  static final String HANDLER_ATTRIBUTE = K2DispatcherServlet.class.getName()
+    + ".HANDLER";
+
+  /** The module that owns this servlet, null for the root dispatcher servlet.
+   */
+  private final transient ModuleDefinition module;
+
+  /** The timeline to record the servlet initialization, never null. */
+  private final transient StartupTimeline timeline;
+
+  /** Constructor, creates a dispatcher servlet.
+   *
+   * @param context the servlet application context. It cannot be null.
+   *
+   * @param theModule the module that owns this servlet, null for the root
+   * dispatcher servlet.
+   *
+   * @param theTimeline the timeline to record the servlet initialization. It
+   * cannot be null.
+   */
+  K2DispatcherServlet(final WebApplicationContext context,
+      final ModuleDefinition theModule, final StartupTimeline theTimeline) {
+    super(context);
+    Validate.notNull(theTimeline, "The timeline cannot be null.");
+    module = theModule;
+    timeline = theTimeline;
+  }
+
+  /** {@inheritDoc}
+   *
+   * Refreshes the module if it is lazy, and records the initialization of the
+   * servlet application context in the startup timeline.
+   */
+  @Override
+  protected WebApplicationContext initWebApplicationContext() {
+    String moduleName = null;
+    if (module != null) {
+      module.activate();
+      moduleName = module.getModuleName();
+    }
+    try (StartupTimeline.Phase phase = timeline.start(moduleName,
+          "dispatcherServlet")) {
+      WebApplicationContext result = super.initWebApplicationContext();
+      phase.end(result.getBeanDefinitionCount());
+      return result;
+    }
+  }
+
+  /** {@inheritDoc}
+   *
+   * Exposes the handler in the HANDLER_ATTRIBUTE request attribute.
+   */
+  @Override
+  protected HandlerExecutionChain getHandler(final HttpServletRequest request)
+      throws Exception {
+    HandlerExecutionChain chain = super.getHandler(request);
+    if (chain != null) {
+      request.setAttribute(HANDLER_ATTRIBUTE, chain.getHandler());
+    }
+    return chain;
+  }
+}
@@ -2,9 +2,13 @@
 
 package com.k2.core;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.lang3.Validate;
 
@@ -29,12 +33,33 @@ import org.springframework.web.context.support.StandardServletEnvironment;
  * be initialized by spring from a standard environment, hibernate provides an
  * applySettings operation that takes a map as parameter. So to initialize it,
  * the module calls applySettings(environment.getProperties("hibernate")).
+ *
+ * To avoid scanning every property of every source on each call, this keeps a
+ * sorted index of the names of the properties found in the enumerable property
+ * sources. The index is rebuilt when a property source is added, removed or
+ * replaced. Properties added to an existing source are not seen until the
+ * list of sources changes.
  */
 public class K2Environment extends StandardServletEnvironment {
 
   /** The class logger. */
   private Logger log = LoggerFactory.getLogger(K2Environment.class);
 
+  /** The sorted names of all the properties in the enumerable property
+   * sources.
+   *
+   * This is null until the first call to getProperties, and rebuilt when the
+   * property sources change.
+   */
+  private volatile NavigableSet<String> propertyNames = null;
+
+  /** The property sources used to build propertyNames, in order.
+   *
+   * This is used to detect changes in the property sources. It is null if
+   * propertyNames is null.
+   */
+  private volatile List<PropertySource<?>> indexedSources = null;
+
   /** Constructor, creates a new K2Enviroment copying all the property sources
    * and active profiles.
    *
@@ -103,29 +128,82 @@ public class K2Environment extends StandardServletEnvironment {
     Validate.notEmpty(prefix, "prefix cannot be null nor empty");
     log.trace("Entering getProperties({})", prefix);
 
+    // '/' is the character after '.', so this is the range of all the names
+    // that start with prefix + '.'.
+    String namePrefix = prefix + ".";
     Properties properties = new Properties();
-    for (PropertySource<?> propertySource : getPropertySources()) {
-      if (propertySource instanceof EnumerablePropertySource<?>) {
-        EnumerablePropertySource<?> source;
-        source = (EnumerablePropertySource<?>) propertySource;
-        for (String name : source.getPropertyNames()) {
-          if (name.startsWith(prefix + ".")) {
-            String propertyName;
-            if (removePrefix) {
-              propertyName = name.substring(prefix.length() + 1);
-            } else {
-              propertyName = name;
-            }
-            properties.setProperty(propertyName, this.getProperty(name));
-          }
-        }
+    for (String name : getPropertyNames().subSet(namePrefix, prefix + "/")) {
+      String propertyName;
+      if (removePrefix) {
+        propertyName = name.substring(namePrefix.length());
       } else {
-        log.debug("{} is not enumerable, ignoring", propertySource.getName());
+        propertyName = name;
+      }
+      String value = this.getProperty(name);
+      if (value != null) {
+        properties.setProperty(propertyName, value);
       }
     }
     log.trace("Leaving getProperties({})", prefix);
 
     return properties;
   }
+
+  /** Returns the sorted names of all the properties in the enumerable property
+   * sources, rebuilding the index if the property sources changed.
+   *
+   * @return the property names, never null.
+   */
+  private NavigableSet<String> getPropertyNames() {
+    List<PropertySource<?>> sources = new ArrayList<>();
+    for (PropertySource<?> source : getPropertySources()) {
+      sources.add(source);
+    }
+
+    NavigableSet<String> names = propertyNames;
+    if (names == null || !sameSources(sources, indexedSources)) {
+      synchronized (this) {
+        names = new TreeSet<>();
+        for (PropertySource<?> propertySource : sources) {
+          if (propertySource instanceof EnumerablePropertySource<?>) {
+            EnumerablePropertySource<?> source;
+            source = (EnumerablePropertySource<?>) propertySource;
+            for (String name : source.getPropertyNames()) {
+              names.add(name);
+            }
+          } else {
+            log.debug("{} is not enumerable, ignoring",
+                propertySource.getName());
+          }
+        }
+        indexedSources = sources;
+        propertyNames = names;
+      }
+    }
+    return names;
+  }
+
+  /** Checks that two lists contain the same property sources, in the same
+   * order.
+   *
+   * @param current the current property sources. It cannot be null.
+   *
+   * @param indexed the property sources used to build the index. It may be
+   * null.
+   *
+   * @return true if both lists contain the same instances in the same order.
+   */
+  private static boolean sameSources(final List<PropertySource<?>> current,
+      final List<PropertySource<?>> indexed) {
+    if (indexed == null || current.size() != indexed.size()) {
+      return false;
+    }
+    for (int i = 0; i < current.size(); i++) {
+      if (current.get(i) != indexed.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
 
@@ -55,7 +55,9 @@ class K2WebApplicationContext
    * This is a very dirty hack: we need to include the module's servlet context
    * initializers in the list of the parent context initializers. As spring
    * boot does not provide a 'pre-servlet-container-started' hook, we need to
-   * refresh the modules as side effect of this operation.
+   * refresh the modules as side effect of this operation (see
+   * ModuleRefresher). The warm-up tasks run here too (see Warmups): jetty
+   * does not open its connectors until the application context is refreshed.
    */
   @Override
   protected Collection<ServletContextInitializer>
@@ -67,9 +69,16 @@ class K2WebApplicationContext
 
     initializers.addAll(super.getServletContextInitializerBeans());
 
+    new ModuleRefresher(modules, getEnvironment()).refresh(
+        this.getBeanFactory(), servletContext);
+    if (getBeanFactory().containsBean(Warmups.BEAN_NAME)) {
+      getBeanFactory().getBean(Warmups.BEAN_NAME, Warmups.class).run(
+          getEnvironment());
+    }
     for (ModuleDefinition module : modules) {
-      module.refresh(this.getBeanFactory(), servletContext);
-      initializers.addAll(module.getServletContextInitializers());
+      if (!module.isLazy()) {
+        initializers.addAll(module.getServletContextInitializers());
+      }
     }
 
     Collections.sort(initializers, AnnotationAwareOrderComparator.INSTANCE);
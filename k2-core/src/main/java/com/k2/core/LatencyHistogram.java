@@ -0,0 +1,182 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.Validate;
+
+/** A lock free histogram of latencies, in nanoseconds.
+ *
+ * This is a log-linear histogram, in the style of HdrHistogram: values below
+ * 128 have their own bucket, and each power of two above that is split in 64
+ * buckets, so the reported values are within 1.6% of the recorded ones. It
+ * tracks values up to 2^40 nanoseconds (around 18 minutes), larger values are
+ * counted in the last bucket.
+ *
+ * Recording a value does not allocate memory nor take locks, it only updates
+ * atomic counters. Reading the percentiles takes a snapshot of the counters,
+ * that may be slightly inconsistent if values are recorded concurrently.
+ */
+class LatencyHistogram {
+
+  /** The number of bits of precision of each power of two. */
+  private static final int SUB_BUCKET_BITS = 6;
+
+  /** The number of buckets in each power of two. */
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** The number of values that have their own bucket. */
+  private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+
+  /** The exponent of the smallest power of two split in sub buckets. */
+  private static final int MIN_EXPONENT = SUB_BUCKET_BITS + 1;
+
+  /** The exponent of the largest power of two tracked by the histogram. */
+  private static final int MAX_EXPONENT = 40;
+
+  /** The number of buckets. */
+  private static final int BUCKETS = LINEAR_BUCKETS
+    + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+
+  /** The largest percentile. */
+  private static final double MAX_PERCENTILE = 100.0;
+
+  /** The number of nanoseconds in a second. */
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  /** The count of values in each bucket, never null. */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /** The number of recorded values, never null. */
+  private final AtomicLong count = new AtomicLong();
+
+  /** The sum of the recorded values, never null. */
+  private final AtomicLong sum = new AtomicLong();
+
+  /** The largest recorded value, never null. */
+  private final AtomicLong max = new AtomicLong();
+
+  /** The time this histogram was created, as returned by System.nanoTime. */
+  private final long startNanos = System.nanoTime();
+
+  /** Records a value.
+   *
+   * @param nanos the value to record. Negative values are recorded as 0.
+   */
+  void record(final long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /** The number of recorded values.
+   *
+   * @return the number of recorded values.
+   */
+  long getCount() {
+    return count.get();
+  }
+
+  /** The sum of the recorded values.
+   *
+   * @return the sum of the recorded values, in nanoseconds.
+   */
+  long getSum() {
+    return sum.get();
+  }
+
+  /** The largest recorded value.
+   *
+   * @return the largest recorded value, 0 if none was recorded.
+   */
+  long getMax() {
+    return max.get();
+  }
+
+  /** The number of values recorded per second since this histogram was
+   * created.
+   *
+   * @return the throughput, in values per second.
+   */
+  double getThroughput() {
+    long elapsed = System.nanoTime() - startNanos;
+    if (elapsed <= 0) {
+      return 0;
+    }
+    return count.get() * NANOS_PER_SECOND / elapsed;
+  }
+
+  /** Obtains the value at the provided percentile.
+   *
+   * @param percentile the percentile, between 0 and 100.
+   *
+   * @return the highest value that is equivalent to the value at the
+   * percentile, 0 if no values were recorded.
+   */
+  long getValueAtPercentile(final double percentile) {
+    Validate.inclusiveBetween(0.0, MAX_PERCENTILE, percentile,
+        "The percentile must be between 0 and 100.");
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / MAX_PERCENTILE
+        * total));
+    long accumulated = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      accumulated += snapshot[i];
+      if (accumulated >= target) {
+        return Math.min(highestEquivalentValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Obtains the bucket of a value.
+   *
+   * @param value the value, it must not be negative.
+   *
+   * @return the index of the bucket.
+   */
+  static int indexOf(final long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+    return LINEAR_BUCKETS + (exponent - MIN_EXPONENT) * SUB_BUCKETS
+      + subBucket - SUB_BUCKETS;
+  }
+
+  /** Obtains the highest value that goes to a bucket.
+   *
+   * @param index the index of the bucket.
+   *
+   * @return the highest value of the bucket.
+   */
+  static long highestEquivalentValue(final int index) {
+    if (index < LINEAR_BUCKETS) {
+      return index;
+    }
+    int offset = index - LINEAR_BUCKETS;
+    int exponent = offset / SUB_BUCKETS + MIN_EXPONENT;
+    long subBucket = offset % SUB_BUCKETS + SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (subBucket << shift) + (1L << shift) - 1;
+  }
+}
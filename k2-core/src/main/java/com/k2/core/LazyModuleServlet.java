@@ -0,0 +1,87 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.GenericServlet;
+
+import org.apache.commons.lang3.Validate;
+
+/** A servlet that refreshes a lazy module and initializes its dispatcher
+ * servlet on the first request.
+ *
+ * The servlet container initializes the servlets registered as instances when
+ * it starts, so k2 registers this servlet instead of the dispatcher servlet of
+ * lazy modules. The first request refreshes the module and initializes the
+ * dispatcher servlet. Concurrent first requests wait for the initialization to
+ * finish.
+ */
+class LazyModuleServlet extends GenericServlet {
+
+  /** The serial version id. */
+  private static final long serialVersionUID = 1L;
+
+  /** The lazy module, never null. */
+  private final transient ModuleDefinition module;
+
+  /** The dispatcher servlet of the module, never null. */
+  private final Servlet dispatcherServlet;
+
+  /** Whether the dispatcher servlet was already initialized. */
+  private volatile boolean initialized = false;
+
+  /** Constructor, creates a lazy module servlet.
+   *
+   * @param theModule the lazy module. It cannot be null.
+   *
+   * @param theDispatcherServlet the dispatcher servlet of the module. It
+   * cannot be null.
+   */
+  LazyModuleServlet(final ModuleDefinition theModule,
+      final Servlet theDispatcherServlet) {
+    Validate.notNull(theModule, "The module cannot be null.");
+    Validate.notNull(theDispatcherServlet,
+        "The dispatcher servlet cannot be null.");
+    module = theModule;
+    dispatcherServlet = theDispatcherServlet;
+  }
+
+  /** {@inheritDoc}
+   *
+   * Refreshes the module and initializes the dispatcher servlet on the first
+   * call, then delegates to the dispatcher servlet.
+   */
+  @Override
+  public void service(final ServletRequest request,
+      final ServletResponse response) throws ServletException, IOException {
+    if (!initialized) {
+      synchronized (this) {
+        if (!initialized) {
+          module.activate();
+          dispatcherServlet.init(getServletConfig());
+          initialized = true;
+        }
+      }
+    }
+    dispatcherServlet.service(request, response);
+  }
+
+  /** {@inheritDoc}
+   *
+   * Destroys the dispatcher servlet if it was initialized.
+   */
+  @Override
+  public void destroy() {
+    synchronized (this) {
+      if (initialized) {
+        dispatcherServlet.destroy();
+        initialized = false;
+      }
+    }
+  }
+}
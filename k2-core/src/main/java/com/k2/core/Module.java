@@ -45,5 +45,18 @@ public @interface Module {
    * ../[mvn module]/src/main/resources.
    */
   String relativePath() default "";
+
+  /** Indicates that k2 should refresh the module application context on
+   * demand.
+   *
+   * Lazy modules are not refreshed when the application starts. K2 refreshes
+   * them on the first request to /[module-name]/*, or on the first lookup of
+   * one of its public beans, whatever comes first. Lazy modules cannot
+   * register servlets or filters (ServletContextInitializer beans), because
+   * the servlet container is already started when k2 refreshes them.
+   *
+   * @return true if the module is lazy, false by default.
+   */
+  boolean lazy() default false;
 }
 
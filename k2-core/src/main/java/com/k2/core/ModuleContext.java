@@ -6,10 +6,13 @@ import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.apache.commons.lang3.Validate;
+
 /** The context that k2 presents to a module during the registration phase.
  *
  * Modules use this class to look for other modules registration
- * implementations.
+ * implementations. The provider of each registry type is found through an
+ * index built once per application, see RegistryIndex.
  */
 public class ModuleContext {
 
@@ -18,10 +21,9 @@ public class ModuleContext {
    */
   private ModuleDefinition definition;
 
-  /** The module definitions of all the modules in the application, never
-   * null.
+  /** The index of the registry providers of the application, never null.
    */
-  private Collection<ModuleDefinition> modules;
+  private RegistryIndex registryIndex;
 
   /** A cache of the registries requested by the modules.
    *
@@ -42,8 +44,24 @@ public class ModuleContext {
    */
   ModuleContext(final ModuleDefinition theDefinition,
       final Collection<ModuleDefinition> theModules) {
+    this(theDefinition, new RegistryIndex(theModules));
+  }
+
+  /** Constructor, creates a module context for a specific module that shares
+   * the registry index with the rest of the modules.
+   *
+   * @param theDefinition the module definition wrapped in this module
+   * context. It cannot be null.
+   *
+   * @param theRegistryIndex the index of the registry providers of the
+   * application. It cannot be null.
+   */
+  ModuleContext(final ModuleDefinition theDefinition,
+      final RegistryIndex theRegistryIndex) {
+    Validate.notNull(theDefinition, "The module definition cannot be null.");
+    Validate.notNull(theRegistryIndex, "The registry index cannot be null.");
     definition = theDefinition;
-    modules = theModules;
+    registryIndex = theRegistryIndex;
   }
 
   /** Obtains a registry of a specific type.
@@ -53,6 +71,9 @@ public class ModuleContext {
    * @param registryType the type of registry to find.
    *
    * @return an implementation of the provided type, or null if none found.
+   *
+   * @throws IllegalStateException if more than one module provides a
+   * registry of the requested type.
    */
   @SuppressWarnings("unchecked")
   public <T> T get(final Class<T> registryType) {
@@ -60,14 +81,9 @@ public class ModuleContext {
     T registry = (T) registries.get(registryType);
 
     if (registry == null) {
-      for (ModuleDefinition definitionForProvider : modules) {
-        Object configurer;
-        configurer = definitionForProvider.getRegistry(definition);
-        if (registryType.isInstance(configurer)) {
-          registry = (T) configurer;
-          registries.put(registryType, registry);
-          break;
-        }
+      registry = registryIndex.getRegistry(registryType, definition);
+      if (registry != null) {
+        registries.put(registryType, registry);
       }
     }
     return registry;
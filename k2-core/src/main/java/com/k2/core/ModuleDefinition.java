@@ -2,11 +2,15 @@
 
 package com.k2.core;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 
 import java.io.IOException;
 
@@ -15,11 +19,21 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.commons.lang3.Validate;
 
-import java.beans.Introspector;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
 import javax.servlet.ServletContext;
 
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
@@ -28,11 +42,14 @@ import org.springframework.beans.factory.support.DefaultListableBeanFactory;
 import org.springframework.boot.web.servlet.ServletContextInitializer;
 import org.springframework.boot.context.properties
     .EnableConfigurationProperties;
-import org.springframework.context.annotation.Configuration;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.ImportResource;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 import org.springframework.beans.factory.config.PropertyOverrideConfigurer;
 import org.springframework.core.annotation.AnnotationUtils;
-import org.springframework.stereotype.Component;
 import org.springframework.util.ClassUtils;
 import org.springframework.util.CollectionUtils;
 import org.springframework.web.context.support
@@ -70,13 +87,86 @@ public class ModuleDefinition {
    */
   private List<String> publicBeanNames = new LinkedList<String>();
 
-  /** Constructor, creates a new module definition.
+  /** The modules that provided a registry to this module, never null.
+   *
+   * This is populated by the ModuleContext during the registration phase, and
+   * it is used to determine the order to refresh the modules.
+   */
+  private Set<ModuleDefinition> registryProviders = new LinkedHashSet<>();
+
+  /** The timeline where this module records its startup phases, never null.
+   */
+  private StartupTimeline timeline;
+
+  /** The module metadata, null until first used.
+   *
+   * This is loaded from the index generated by ModuleIndexProcessor or, if not
+   * found, obtained by reflection (see ModuleIndex).
+   */
+  private volatile ModuleIndex index = null;
+
+  /** Whether the module application context finished its refresh.
+   *
+   * This is set once refresh returns, so a thread that sees it true can use
+   * the context beans.
+   */
+  private volatile boolean activated = false;
+
+  /** Whether the module was closed. A closed module cannot be activated. */
+  private volatile boolean closed = false;
+
+  /** The injection points of the module class, null until first used. */
+  private List<Dependency> dependencies = null;
+
+  /** The packages of the types that the module context provides, or that
+   * the module cannot get from other modules. */
+  private static final String[] FRAMEWORK_PACKAGES = {"java.", "javax.",
+    "org.springframework."};
+
+  /** The k2 types that the module context provides. */
+  private static final List<Class<?>> K2_TYPES = Arrays.asList(
+      K2Environment.class, ModuleDefinition.class);
+
+  /** Constructor, creates a new module definition with its own startup
+   * timeline.
    *
    * @param module the module instance. It cannot be null.
    */
   ModuleDefinition(final Object module) {
+    this(module, new StartupTimeline());
+  }
+
+  /** Constructor, creates a new module definition.
+   *
+   * @param module the module instance. It cannot be null.
+   *
+   * @param theTimeline the timeline where this module records its startup
+   * phases. It cannot be null.
+   */
+  ModuleDefinition(final Object module, final StartupTimeline theTimeline) {
     Validate.notNull(module, "The module cannot be null");
+    Validate.notNull(theTimeline, "The timeline cannot be null");
     moduleInstance = module;
+    timeline = theTimeline;
+  }
+
+  /** Returns the timeline where this module records its startup phases.
+   *
+   * @return the startup timeline, never null.
+   */
+  StartupTimeline getTimeline() {
+    return timeline;
+  }
+
+  /** Returns the module metadata, loading it on the first call.
+   *
+   * @return the module index, never null.
+   */
+  private ModuleIndex getIndex() {
+    if (index == null) {
+      index = ModuleIndex.get(moduleInstance.getClass());
+    }
+    return index;
   }
 
   /** Determines the module name.
@@ -88,24 +178,7 @@ public class ModuleDefinition {
    * @return a string with the module name.
    */
   public String getModuleName() {
-    Class<?> moduleClass = moduleInstance.getClass();
-
-    String name = null;
-    Component component = moduleClass.getAnnotation(Component.class);
-    if (component != null) {
-      name = component.value();
-    }
-    if (name == null) {
-      Configuration config = moduleClass.getAnnotation(Configuration.class);
-      if (config != null) {
-        name = config.value();
-      }
-    }
-    if (name == null || "".equals(name)) {
-      name = ClassUtils.getShortName(moduleClass);
-      name = Introspector.decapitalize(name);
-    }
-    return name;
+    return getIndex().getName();
   }
 
   /** Returns the module short name, as specified by the @Module annotation.
@@ -113,19 +186,23 @@ public class ModuleDefinition {
    * @return the module short name, or null if not specified.
    */
   public String getModuleShortName() {
-    Class<?> moduleClass = moduleInstance.getClass();
+    return getIndex().getShortName();
+  }
 
-    String shortName = null;
-    Module module = moduleClass.getAnnotation(Module.class);
-    if (module != null && !Module.NO_SHORT_NAME.equals(module.shortName())) {
-      shortName = module.shortName();
-    }
-    return shortName;
+  /** Determines if the module is lazy, as specified by the @Module
+   * annotation.
+   *
+   * @return true if k2 must refresh the module on demand.
+   */
+  boolean isLazy() {
+    return getIndex().isLazy();
   }
 
   /** Obtains a bean of the specified type from the application context of this
    * module.
    *
+   * This refreshes the module if it is lazy and it was not yet refreshed.
+   *
    * @param <T> the type of bean to return.
    *
    * @param type the type of bean to obtain. It cannot be null.
@@ -133,6 +210,7 @@ public class ModuleDefinition {
    * @return a bean of the specified type, never returns null.
    */
   public <T> T getBean(final Class<T> type) {
+    activate();
     return context.getBean(type);
   }
 
@@ -146,8 +224,7 @@ public class ModuleDefinition {
    * @return a string of the form [package as path]/static/.
    */
   String getStaticPath() {
-    return moduleInstance.getClass().getPackage().getName().replace(".", "/")
-        + "/static/";
+    return getIndex().getStaticPath();
   }
 
   /** The file system relative path where to find this module resources.
@@ -161,14 +238,7 @@ public class ModuleDefinition {
    * the module does support reloading of resources during development.
    */
   public String getRelativePath() {
-    Class<?> moduleClass = moduleInstance.getClass();
-
-    String path = null;
-    Module module = moduleClass.getAnnotation(Module.class);
-    if (module != null && !module.relativePath().isEmpty()) {
-      path = module.relativePath();
-    }
-    return path;
+    return getIndex().getRelativePath();
   }
 
   /** Returns an instance of the module registry factory if the module
@@ -205,6 +275,318 @@ public class ModuleDefinition {
     return registry;
   }
 
+  /** Records that this module obtained a registry from the provided module.
+   *
+   * @param provider the module that provided the registry. It cannot be null.
+   */
+  void addRegistryProvider(final ModuleDefinition provider) {
+    Validate.notNull(provider, "The provider cannot be null");
+    if (provider != this) {
+      registryProviders.add(provider);
+    }
+  }
+
+  /** Determines if this module must be refreshed after the provided module.
+   *
+   * A module depends on another one if it obtained a registry from it, or if
+   * one of its injection points (the parameters of its bean factory methods
+   * and its @Autowired or @Inject fields, methods and constructors) can be
+   * satisfied by one of the other module public beans, either by type or by a
+   * qualifier of the form [module-name].[bean-name].
+   *
+   * @param other the module to check. It cannot be null.
+   *
+   * @return true if this module needs the other module to be refreshed first.
+   */
+  boolean dependsOn(final ModuleDefinition other) {
+    Validate.notNull(other, "The other module cannot be null");
+    if (other == this) {
+      return false;
+    }
+    if (registryProviders.contains(other)) {
+      return true;
+    }
+    for (Dependency dependency : getDependencies()) {
+      if (other.provides(dependency)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Determines if this module may need beans that k2 cannot attribute to
+   * a module.
+   *
+   * This happens when the module imports other configurations or scans for
+   * components, when it has access to a bean factory (to look up beans by
+   * name), or when one of its injection points is not satisfied by its own
+   * beans, by a framework type, by a public bean of the provided modules or
+   * by a bean of the parent bean factory. The ModuleRefresher refreshes such
+   * modules after all the modules declared before them, as if the modules
+   * were refreshed sequentially.
+   *
+   * @param modules the modules of the application. It cannot be null.
+   *
+   * @param parentBeanFactory the bean factory the public beans are exported
+   * to, with the beans of the application. Null to not consider it.
+   *
+   * @return true if the module may have dependencies that dependsOn does not
+   * see.
+   */
+  boolean hasUnknownDependencies(final Collection<ModuleDefinition> modules,
+      final ListableBeanFactory parentBeanFactory) {
+    Validate.notNull(modules, "The modules cannot be null");
+    Class<?> moduleClass = moduleInstance.getClass();
+    if (BeanFactoryAware.class.isAssignableFrom(moduleClass)
+        || ApplicationContextAware.class.isAssignableFrom(moduleClass)
+        || AnnotationUtils.findAnnotation(moduleClass, Import.class) != null
+        || AnnotationUtils.findAnnotation(moduleClass, ComponentScan.class)
+          != null
+        || AnnotationUtils.findAnnotation(moduleClass, ImportResource.class)
+          != null) {
+      return true;
+    }
+    for (Dependency dependency : getDependencies()) {
+      if (BeanFactory.class.isAssignableFrom(dependency.type)) {
+        return true;
+      }
+      if (isLocal(dependency)) {
+        continue;
+      }
+      boolean found = false;
+      for (ModuleDefinition other : modules) {
+        if (other != this && other.provides(dependency)) {
+          found = true;
+          break;
+        }
+      }
+      if (!found && parentBeanFactory != null) {
+        if (dependency.qualifier != null) {
+          found = parentBeanFactory.containsBean(dependency.qualifier);
+        } else {
+          found = parentBeanFactory.getBeanNamesForType(dependency.type,
+              true, false).length > 0;
+        }
+      }
+      if (!found) {
+        log.debug("Module {} needs {}, not found in any module",
+            getModuleName(), dependency);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Determines if a dependency of this module is satisfied by one of its
+   * own beans or by a framework type.
+   *
+   * @param dependency the dependency. It cannot be null.
+   *
+   * @return true if the dependency does not need other modules.
+   */
+  private boolean isLocal(final Dependency dependency) {
+    if (dependency.qualifier != null) {
+      if (dependency.qualifier.startsWith("k2.")) {
+        return true;
+      }
+      for (ModuleIndex.BeanMethod method : getIndex().getBeanMethods()) {
+        if (method.getMethodName().equals(dependency.qualifier)
+            || method.getBeanNames().contains(dependency.qualifier)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (dependency.type.isPrimitive()
+        || K2_TYPES.contains(dependency.type)) {
+      return true;
+    }
+    String typeName = dependency.type.getName();
+    for (String prefix : FRAMEWORK_PACKAGES) {
+      if (typeName.startsWith(prefix)) {
+        return true;
+      }
+    }
+    for (Class<?> beanType : getBeanTypes(false)) {
+      if (dependency.type.isAssignableFrom(beanType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Determines if one of the public beans of this module satisfies a
+   * dependency of another module.
+   *
+   * @param dependency the dependency of the other module. It cannot be null.
+   *
+   * @return true if the dependency is satisfied by a public bean.
+   */
+  private boolean provides(final Dependency dependency) {
+    if (dependency.qualifier != null) {
+      return dependency.qualifier.startsWith(getModuleName() + ".");
+    }
+    for (Class<?> publicType : getBeanTypes(true)) {
+      if (dependency.type.isAssignableFrom(publicType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the types of the beans of the module, as found in the module
+   * index.
+   *
+   * @param onlyPublic whether to only return the types of the public beans.
+   *
+   * @return the bean types, never null. Types that cannot be loaded are not
+   * included.
+   */
+  private List<Class<?>> getBeanTypes(final boolean onlyPublic) {
+    List<Class<?>> result = new LinkedList<>();
+    for (ModuleIndex.BeanMethod method : getIndex().getBeanMethods()) {
+      if (!onlyPublic || method.isPublic()) {
+        Class<?> type = resolveType(method.getType());
+        if (type != null) {
+          result.add(type);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Loads a class by name, with the class loader of the module.
+   *
+   * @param typeName the name of the class, as found in the module index. It
+   * cannot be null.
+   *
+   * @return the class, or null if it cannot be loaded.
+   */
+  private Class<?> resolveType(final String typeName) {
+    try {
+      return ClassUtils.forName(typeName,
+          moduleInstance.getClass().getClassLoader());
+    } catch (ClassNotFoundException | LinkageError e) {
+      log.debug("Could not load {} for module {}", typeName,
+          getModuleName());
+      return null;
+    }
+  }
+
+  /** Returns the injection points of the module class, computing them on the
+   * first call.
+   *
+   * These are the parameters of the bean factory methods and the @Autowired
+   * or @Inject fields, methods and constructors. Parameters and fields
+   * annotated with @Value are not included.
+   *
+   * This reflects over the module class instead of reading the module index,
+   * because only the ModuleRefresher needs it.
+   *
+   * @return the dependencies of the module, never null.
+   */
+  private List<Dependency> getDependencies() {
+    if (dependencies == null) {
+      List<Dependency> result = new LinkedList<>();
+      Class<?> moduleClass = moduleInstance.getClass();
+      for (Method method : moduleClass.getMethods()) {
+        if (AnnotationUtils.findAnnotation(method, Bean.class) != null
+            || isInjected(method)) {
+          addDependencies(result, method.getParameterTypes(),
+              method.getParameterAnnotations());
+        }
+      }
+      for (Constructor<?> constructor : moduleClass.getConstructors()) {
+        if (isInjected(constructor)) {
+          addDependencies(result, constructor.getParameterTypes(),
+              constructor.getParameterAnnotations());
+        }
+      }
+      Class<?> current = moduleClass;
+      while (current != null && current != Object.class) {
+        for (Field field : current.getDeclaredFields()) {
+          if (isInjected(field)) {
+            addDependencies(result, new Class<?>[] {field.getType()},
+                new Annotation[][] {field.getAnnotations()});
+          }
+        }
+        current = current.getSuperclass();
+      }
+      dependencies = result;
+    }
+    return dependencies;
+  }
+
+  /** Determines if an element is annotated with @Autowired or @Inject.
+   *
+   * @param element the field, method or constructor. It cannot be null.
+   *
+   * @return true if spring injects the element.
+   */
+  private static boolean isInjected(final AnnotatedElement element) {
+    for (Annotation annotation : element.getAnnotations()) {
+      if (annotation instanceof Autowired || annotation.annotationType()
+          .getName().equals("javax.inject.Inject")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Adds the injected parameters to the list of dependencies.
+   *
+   * @param result the list to add the dependencies to. It cannot be null.
+   *
+   * @param types the parameter types. It cannot be null.
+   *
+   * @param annotations the annotations of each parameter. It cannot be null.
+   */
+  private static void addDependencies(final List<Dependency> result,
+      final Class<?>[] types, final Annotation[][] annotations) {
+    for (int i = 0; i < types.length; i++) {
+      String qualifier = null;
+      boolean value = false;
+      for (Annotation annotation : annotations[i]) {
+        if (annotation instanceof Qualifier) {
+          qualifier = ((Qualifier) annotation).value();
+        } else if (annotation instanceof Value) {
+          value = true;
+        }
+      }
+      if (!value) {
+        result.add(new Dependency(types[i], qualifier));
+      }
+    }
+  }
+
+  /** An injection point of the module class. */
+  private static final class Dependency {
+
+    /** The type of the injected bean, never null. */
+    private final Class<?> type;
+
+    /** The qualifier of the injected bean, null if not qualified. */
+    private final String qualifier;
+
+    /** Constructor, creates a dependency.
+     *
+     * @param theType the type of the injected bean. It cannot be null.
+     *
+     * @param theQualifier the qualifier of the injected bean, null if not
+     * qualified.
+     */
+    private Dependency(final Class<?> theType, final String theQualifier) {
+      type = theType;
+      qualifier = theQualifier;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return qualifier == null ? type.getName() : qualifier;
+    }
+  }
+
   /** Returns an instance of the module initializer if the module implements
    * that interface.
    *
@@ -243,60 +625,64 @@ public class ModuleDefinition {
    */
   AnnotationConfigWebApplicationContext getContext() {
     if (context == null) {
-
-      context = new AnnotationConfigWebApplicationContext() {
-        @Override
-        protected void loadBeanDefinitions(
-            final DefaultListableBeanFactory beanFactory) {
-          beanFactory.setInstantiationStrategy(
-              new K2InstantiationStrategy(getModuleName(), moduleInstance));
-          super.loadBeanDefinitions(beanFactory);
-        }
-      };
-
-      final K2Environment environment;
-      environment = new K2Environment(context.getEnvironment());
-      context.setEnvironment(environment);
-      context.register(AnnotationHolder.class);
-      context.register(moduleInstance.getClass());
-
-      // Resolves ${...} in @Value annotations.
-      PropertySourcesPlaceholderConfigurer placeHolderConfigurer =
-          new PropertySourcesPlaceholderConfigurer();
-      placeHolderConfigurer.setEnvironment(context.getEnvironment());
-      context.addBeanFactoryPostProcessor(placeHolderConfigurer);
-
-      // Overrides bean properties from values obtained from the spring
-      // environment. We cannot directly pass the K2Environment properties to
-      // the PropertyOverrideConfigurer because it is not yet initialized here.
-      PropertyOverrideConfigurer overrideConfigurer;
-      overrideConfigurer = new PropertyOverrideConfigurer() {
-        /** {@inheritDoc} */
-        @Override
-        protected Properties mergeProperties() throws IOException {
-          Properties properties = super.mergeProperties();
-          CollectionUtils.mergePropertiesIntoMap(environment.getProperties(
-                getModuleName(), true), properties);
-          return properties;
-        }
-      };
-      overrideConfigurer.setIgnoreInvalidKeys(true);
-      context.addBeanFactoryPostProcessor(overrideConfigurer);
-
-      // Exposes the public beans.
-      context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
-        /** {@inheritDoc} */
-        @Override
-        public void postProcessBeanFactory(
-            final ConfigurableListableBeanFactory beanFactory) {
-          beanFactory.registerSingleton("k2.moduleDefinition",
-              ModuleDefinition.this);
-          BeanDefinitionRegistry beanRegistry;
-          beanRegistry = (BeanDefinitionRegistry) beanFactory;
-          recordPublicBeanNames(beanRegistry);
-        }
-
-      });
+      try (StartupTimeline.Phase phase = timeline.start(getModuleName(),
+            "getContext")) {
+        context = new AnnotationConfigWebApplicationContext() {
+          @Override
+          protected void loadBeanDefinitions(
+              final DefaultListableBeanFactory beanFactory) {
+            beanFactory.setInstantiationStrategy(
+                new K2InstantiationStrategy(getModuleName(), moduleInstance));
+            super.loadBeanDefinitions(beanFactory);
+          }
+        };
+
+        final K2Environment environment;
+        environment = new K2Environment(context.getEnvironment());
+        context.setEnvironment(environment);
+        context.register(AnnotationHolder.class);
+        context.register(moduleInstance.getClass());
+
+        // Resolves ${...} in @Value annotations.
+        PropertySourcesPlaceholderConfigurer placeHolderConfigurer =
+            new PropertySourcesPlaceholderConfigurer();
+        placeHolderConfigurer.setEnvironment(context.getEnvironment());
+        context.addBeanFactoryPostProcessor(placeHolderConfigurer);
+
+        // Overrides bean properties from values obtained from the spring
+        // environment. We cannot directly pass the K2Environment properties
+        // to the PropertyOverrideConfigurer because it is not yet
+        // initialized here.
+        PropertyOverrideConfigurer overrideConfigurer;
+        overrideConfigurer = new PropertyOverrideConfigurer() {
+          /** {@inheritDoc} */
+          @Override
+          protected Properties mergeProperties() throws IOException {
+            Properties properties = super.mergeProperties();
+            CollectionUtils.mergePropertiesIntoMap(environment.getProperties(
+                  getModuleName(), true), properties);
+            return properties;
+          }
+        };
+        overrideConfigurer.setIgnoreInvalidKeys(true);
+        context.addBeanFactoryPostProcessor(overrideConfigurer);
+
+        // Exposes the public beans.
+        context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
+          /** {@inheritDoc} */
+          @Override
+          public void postProcessBeanFactory(
+              final ConfigurableListableBeanFactory beanFactory) {
+            beanFactory.registerSingleton("k2.moduleDefinition",
+                ModuleDefinition.this);
+            BeanDefinitionRegistry beanRegistry;
+            beanRegistry = (BeanDefinitionRegistry) beanFactory;
+            recordPublicBeanNames(beanRegistry);
+          }
+
+        });
+        phase.end();
+      }
     }
     return context;
   }
@@ -317,16 +703,137 @@ public class ModuleDefinition {
       final ServletContext servletContext) {
     Validate.notNull(parentBeanFactory,
         "The parent bean factory cannot be null");
+    refreshContext(servletContext);
+    exportPublicBeans(parentBeanFactory);
+  }
+
+  /** Refreshes the wrapped application context without exporting the public
+   * beans.
+   *
+   * This is used by the ModuleRefresher to refresh independent modules in
+   * parallel. The caller is responsible for calling exportPublicBeans after
+   * this operation.
+   *
+   * @param servletContext the context of the web application context that is
+   * running this application. Null if the application is not running in a web
+   * environment.
+   */
+  void refreshContext(final ServletContext servletContext) {
+    if (servletContext != null) {
+      getContext().setServletContext(servletContext);
+    }
+    try (StartupTimeline.Phase phase = timeline.start(getModuleName(),
+          "refresh")) {
+      getContext().refresh();
+      activated = true;
+      phase.end(getContext().getBeanDefinitionCount());
+    }
+  }
+
+  /** Prepares a lazy module to be refreshed on demand.
+   *
+   * This exports a placeholder for each public bean to the parent bean
+   * factory that refreshes the module on the first lookup.
+   *
+   * @param parentBeanFactory the bean factory to export the public beans to.
+   * It cannot be null.
+   *
+   * @param servletContext the context of the web application context that is
+   * running this application. Null if the application is not running in a web
+   * environment.
+   */
+  void deferRefresh(final ConfigurableListableBeanFactory parentBeanFactory,
+      final ServletContext servletContext) {
+    Validate.notNull(parentBeanFactory,
+        "The parent bean factory cannot be null");
     if (servletContext != null) {
       getContext().setServletContext(servletContext);
     }
-    getContext().refresh();
-    exportPublicBeans(parentBeanFactory);
+    for (ModuleIndex.BeanMethod method : getIndex().getBeanMethods()) {
+      if (method.isPublic()) {
+        String beanName = method.getBeanName();
+        String publishedBeanName = getModuleName() + "." + beanName;
+        log.debug("Exposing lazy bean {} as {}", beanName, publishedBeanName);
+        Class<?> type = resolveType(method.getType());
+        parentBeanFactory.registerSingleton(publishedBeanName,
+            new LazyPublicBean(beanName, type == null ? Object.class : type));
+      }
+    }
+  }
+
+  /** Refreshes the module application context if it was not yet refreshed.
+   *
+   * This is used to refresh lazy modules on demand. It is safe to call this
+   * operation concurrently, the context is refreshed only once, and callers
+   * only return once the refresh finished.
+   *
+   * @throws IllegalStateException if the module was closed.
+   */
+  void activate() {
+    if (!activated) {
+      synchronized (this) {
+        Validate.validState(!closed, "The module %s was closed.",
+            getModuleName());
+        if (!activated) {
+          log.debug("Activating module {}", getModuleName());
+          refreshContext(null);
+        }
+      }
+    }
+    Validate.validState(!closed, "The module %s was closed.",
+        getModuleName());
+  }
+
+  /** A placeholder for a public bean of a lazy module.
+   *
+   * Refreshes the module on the first lookup of the public bean.
+   */
+  private class LazyPublicBean implements FactoryBean<Object> {
+
+    /** The name of the bean in the module application context, never null. */
+    private final String beanName;
+
+    /** The type of the bean, never null. */
+    private final Class<?> beanType;
+
+    /** Constructor, creates a lazy public bean.
+     *
+     * @param theBeanName the name of the bean in the module application
+     * context. It cannot be null.
+     *
+     * @param theBeanType the type of the bean. It cannot be null.
+     */
+    LazyPublicBean(final String theBeanName, final Class<?> theBeanType) {
+      beanName = theBeanName;
+      beanType = theBeanType;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Object getObject() {
+      activate();
+      return context.getBean(beanName);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Class<?> getObjectType() {
+      return beanType;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isSingleton() {
+      return true;
+    }
   }
 
   /** Closes the module and its corresponding application context.
    */
   void close() {
+    synchronized (this) {
+      closed = true;
+    }
     getContext().close();
   }
 
@@ -368,16 +875,21 @@ public class ModuleDefinition {
    * @param parentBeanFactory the bean factory to register the public beans. It
    * cannot be null.
    */
-  private void exportPublicBeans(
+  void exportPublicBeans(
       final ConfigurableListableBeanFactory parentBeanFactory) {
     log.trace("Entering exportPublicBeans");
     Validate.notNull(parentBeanFactory,
         "The parent bean factory cannot be null");
-    for (String publicBeanName : publicBeanNames) {
-      String publishedBeanName = getModuleName() + "." + publicBeanName;
-      log.debug("Exposing bean {} as {}", publicBeanName, publishedBeanName);
-      parentBeanFactory.registerSingleton(publishedBeanName,
-          context.getBean(publicBeanName));
+    try (StartupTimeline.Phase phase = timeline.start(getModuleName(),
+          "exportPublicBeans")) {
+      for (String publicBeanName : publicBeanNames) {
+        String publishedBeanName = getModuleName() + "." + publicBeanName;
+        log.debug("Exposing bean {} as {}", publicBeanName,
+            publishedBeanName);
+        parentBeanFactory.registerSingleton(publishedBeanName,
+            context.getBean(publicBeanName));
+      }
+      phase.end(publicBeanNames.size());
     }
     log.trace("Leaving exportPublicBeans");
   }
@@ -407,21 +919,13 @@ public class ModuleDefinition {
   /** Returns the list of methods in the module configuration that creates
    * public beans.
    *
-   * This looks for methods with the @Public annotation.
+   * These are the methods with the @Public annotation, as found in the
+   * module index.
    *
    * @return a list of method names, never null.
    */
   private List<String> getPublicBeanMethodNames() {
-    log.trace("Entering getPublicBeanMethodNames");
-    List<String> result = new LinkedList<String>();
-    for (Method method : moduleInstance.getClass().getMethods()) {
-      if (AnnotationUtils.findAnnotation(method, Public.class) != null) {
-        result.add(method.getName());
-        log.debug("Found @Public method {}.", method.getName());
-      }
-    }
-    log.trace("Leaving getPublicBeanMethodNames");
-    return result;
+    return getIndex().getPublicBeanMethodNames();
   }
 }
 
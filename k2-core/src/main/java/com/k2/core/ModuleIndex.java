@@ -0,0 +1,687 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.ReflectionUtils;
+
+/** The metadata of a module: its name, short name, paths and its bean
+ * factory methods.
+ *
+ * The ModuleIndexProcessor annotation processor writes this metadata at
+ * compile time to META-INF/k2/modules/[module class name].properties for every
+ * class annotated with @Module or with methods annotated with @Public. K2 reads
+ * it from there when the module is created, and only falls back to reflection
+ * if it is not found. Either way, the metadata is computed once per module.
+ *
+ * The index holds a fingerprint of the module class, computed from its name,
+ * modifiers, superclass, interfaces, annotations and public methods, with
+ * their signatures and annotations. An index whose fingerprint does not
+ * match the class is stale (the class was compiled again without the
+ * annotation processor) and is ignored. The fingerprint only covers the
+ * module class itself, not its superclasses or interfaces.
+ *
+ * Both ways follow the semantics of AnnotationUtils.findAnnotation: the
+ * @Module, @Bean and @Public annotations are also found in superclasses,
+ * interfaces and as meta-annotations.
+ *
+ * Types are kept by name, in the format accepted by ClassUtils.forName.
+ */
+final class ModuleIndex {
+
+  /** The classpath location of the module indexes. */
+  static final String LOCATION = "META-INF/k2/modules/";
+
+  /** The version of the index format. Indexes of other versions are
+   * ignored. */
+  static final String VERSION = "3";
+
+  /** The modifiers that are part of the fingerprint. */
+  static final int MODIFIERS = Modifier.PUBLIC | Modifier.PROTECTED
+    | Modifier.PRIVATE | Modifier.ABSTRACT | Modifier.STATIC | Modifier.FINAL;
+
+  /** The class logger. */
+  private static Logger log = LoggerFactory.getLogger(ModuleIndex.class);
+
+  /** The module name, never null. */
+  private final String name;
+
+  /** The module short name, null if not specified. */
+  private final String shortName;
+
+  /** The file system relative path of the module resources, null if not
+   * specified. */
+  private final String relativePath;
+
+  /** The classpath location of the module static content, never null. */
+  private final String staticPath;
+
+  /** Whether the module is lazy. */
+  private final boolean lazy;
+
+  /** The fingerprint of the module class, never null. */
+  private final String fingerprint;
+
+  /** The bean factory methods and the @Public methods, never null. */
+  private final List<BeanMethod> beanMethods;
+
+
+  /** Constructor, creates a module index.
+   *
+   * @param theName the module name. It cannot be null.
+   *
+   * @param theShortName the module short name, null if not specified.
+   *
+   * @param theRelativePath the file system relative path of the module
+   * resources, null if not specified.
+   *
+   * @param theStaticPath the classpath location of the module static content.
+   * It cannot be null.
+   *
+   * @param isLazy whether the module is lazy.
+   *
+   * @param theBeanMethods the bean factory methods and the @Public methods.
+   * It cannot be null.
+   *
+   * @param theFingerprint the fingerprint of the module class. It cannot be
+   * null.
+   */
+  ModuleIndex(final String theName, final String theShortName,
+      final String theRelativePath, final String theStaticPath,
+      final boolean isLazy, final List<BeanMethod> theBeanMethods,
+      final String theFingerprint) {
+    Validate.notNull(theName, "The name cannot be null.");
+    Validate.notNull(theStaticPath, "The static path cannot be null.");
+    Validate.notNull(theBeanMethods, "The bean methods cannot be null.");
+    Validate.notNull(theFingerprint, "The fingerprint cannot be null.");
+    name = theName;
+    shortName = theShortName;
+    relativePath = theRelativePath;
+    staticPath = theStaticPath;
+    lazy = isLazy;
+    fingerprint = theFingerprint;
+    beanMethods = Collections.unmodifiableList(
+        new ArrayList<>(theBeanMethods));
+  }
+
+  /** Obtains the index of a module class, from the classpath or, if not found
+   * there, by reflection.
+   *
+   * @param moduleClass the module class. It cannot be null.
+   *
+   * @return the module index, never null.
+   */
+  static ModuleIndex get(final Class<?> moduleClass) {
+    ModuleIndex result = load(moduleClass);
+    if (result == null) {
+      result = fromReflection(moduleClass);
+    }
+    return result;
+  }
+
+  /** Loads the index of a module class generated by ModuleIndexProcessor.
+   *
+   * @param moduleClass the module class. It cannot be null.
+   *
+   * @return the module index, or null if there is no index for the module
+   * class, it was generated by a different version of k2 or it does not
+   * match the module class.
+   */
+  static ModuleIndex load(final Class<?> moduleClass) {
+    Validate.notNull(moduleClass, "The module class cannot be null.");
+    ClassLoader loader = moduleClass.getClassLoader();
+    if (loader == null) {
+      return null;
+    }
+    String resource = LOCATION + moduleClass.getName() + ".properties";
+    Properties properties = new Properties();
+    try (InputStream in = loader.getResourceAsStream(resource)) {
+      if (in == null) {
+        return null;
+      }
+      properties.load(in);
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading " + resource, e);
+    }
+    if (!VERSION.equals(properties.getProperty("version"))) {
+      return null;
+    }
+    String classFingerprint = fingerprint(moduleClass);
+    if (!classFingerprint.equals(properties.getProperty("fingerprint"))) {
+      log.info("Ignoring stale module index {}", resource);
+      return null;
+    }
+    List<BeanMethod> methods = new LinkedList<>();
+    int beanCount = Integer.parseInt(properties.getProperty("beans", "0"));
+    for (int i = 0; i < beanCount; i++) {
+      String prefix = "bean." + i + ".";
+      List<String> names = new LinkedList<>();
+      int nameCount = Integer.parseInt(properties.getProperty(
+            prefix + "names", "0"));
+      for (int j = 0; j < nameCount; j++) {
+        names.add(properties.getProperty(prefix + "name." + j));
+      }
+      methods.add(new BeanMethod(properties.getProperty(prefix + "method"),
+          names, properties.getProperty(prefix + "type"),
+          Boolean.parseBoolean(properties.getProperty(prefix + "public"))));
+    }
+    return new ModuleIndex(properties.getProperty("name"),
+        properties.getProperty("shortName"),
+        properties.getProperty("relativePath"),
+        properties.getProperty("staticPath"),
+        Boolean.parseBoolean(properties.getProperty("lazy")), methods,
+        classFingerprint);
+  }
+
+  /** Builds the index of a module class by reflection.
+   *
+   * @param moduleClass the module class. It cannot be null.
+   *
+   * @return the module index, never null.
+   */
+  static ModuleIndex fromReflection(final Class<?> moduleClass) {
+    Validate.notNull(moduleClass, "The module class cannot be null.");
+
+    String moduleName = null;
+    Component component = moduleClass.getAnnotation(Component.class);
+    if (component != null) {
+      moduleName = component.value();
+    }
+    if (moduleName == null) {
+      Configuration config = moduleClass.getAnnotation(Configuration.class);
+      if (config != null) {
+        moduleName = config.value();
+      }
+    }
+    if (moduleName == null || "".equals(moduleName)) {
+      moduleName = defaultModuleName(ClassUtils.getShortName(moduleClass));
+    }
+
+    String moduleShortName = null;
+    String path = null;
+    boolean isLazy = false;
+    Module module = AnnotationUtils.findAnnotation(moduleClass, Module.class);
+    if (module != null) {
+      if (!Module.NO_SHORT_NAME.equals(module.shortName())) {
+        moduleShortName = module.shortName();
+      }
+      if (!module.relativePath().isEmpty()) {
+        path = module.relativePath();
+      }
+      isLazy = module.lazy();
+    }
+
+    List<BeanMethod> methods = new LinkedList<>();
+    for (Method method : moduleClass.getMethods()) {
+      Bean bean = AnnotationUtils.findAnnotation(method, Bean.class);
+      boolean isPublic
+        = AnnotationUtils.findAnnotation(method, Public.class) != null;
+      if ((bean != null || isPublic) && !contains(methods, method)) {
+        List<String> names = new LinkedList<>();
+        if (bean != null) {
+          names.addAll(Arrays.asList(bean.name()));
+        }
+        methods.add(new BeanMethod(method.getName(), names,
+            ClassUtils.getQualifiedName(method.getReturnType()), isPublic));
+      }
+    }
+    String packageName = ClassUtils.getPackageName(moduleClass);
+    return new ModuleIndex(moduleName, moduleShortName, path,
+        toStaticPath(packageName), isLazy, methods,
+        fingerprint(moduleClass));
+  }
+
+  /** Computes the fingerprint of a module class by reflection.
+   *
+   * ModuleIndexProcessor computes the same fingerprint from the source of
+   * the module class.
+   *
+   * @param moduleClass the module class. It cannot be null.
+   *
+   * @return the fingerprint, never null.
+   */
+  static String fingerprint(final Class<?> moduleClass) {
+    List<String> interfaces = new LinkedList<>();
+    for (Class<?> type : moduleClass.getInterfaces()) {
+      interfaces.add(type.getName());
+    }
+    Class<?> superclass = moduleClass.getSuperclass();
+    String header = describeClass(moduleClass.getName(),
+        Modifier.toString(moduleClass.getModifiers() & MODIFIERS),
+        superclass == null ? null : superclass.getName(), interfaces);
+
+    List<String> methods = new LinkedList<>();
+    for (Method method : moduleClass.getDeclaredMethods()) {
+      if (!Modifier.isPublic(method.getModifiers()) || method.isSynthetic()
+          || method.isBridge()) {
+        continue;
+      }
+      List<String> parameters = new LinkedList<>();
+      for (Class<?> type : method.getParameterTypes()) {
+        parameters.add(ClassUtils.getQualifiedName(type));
+      }
+      methods.add(describeMethod(
+          Modifier.toString(method.getModifiers() & MODIFIERS),
+          ClassUtils.getQualifiedName(method.getReturnType()),
+          method.getName(), parameters,
+          describeAnnotations(method.getDeclaredAnnotations())));
+    }
+    return fingerprint(header,
+        describeAnnotations(moduleClass.getDeclaredAnnotations()), methods);
+  }
+
+  /** Describes annotations for the fingerprint.
+   *
+   * @param annotations the annotations. It cannot be null.
+   *
+   * @return the description of each annotation, never null.
+   */
+  private static List<String> describeAnnotations(
+      final Annotation[] annotations) {
+    List<String> result = new LinkedList<>();
+    for (Annotation annotation : annotations) {
+      Map<String, String> values = new TreeMap<>();
+      for (Method member
+          : annotation.annotationType().getDeclaredMethods()) {
+        String value;
+        try {
+          ReflectionUtils.makeAccessible(member);
+          value = describeValue(member.invoke(annotation));
+        } catch (IllegalAccessException | InvocationTargetException e) {
+          // Like a class that is not in the classpath. The fingerprint will
+          // not match, so k2 falls back to reflection.
+          value = "?";
+        }
+        values.put(member.getName(), value);
+      }
+      result.add(describeAnnotation(
+          annotation.annotationType().getName(), values));
+    }
+    return result;
+  }
+
+  /** Describes the value of an annotation member for the fingerprint.
+   *
+   * @param value the value. It cannot be null.
+   *
+   * @return the description of the value, never null.
+   */
+  private static String describeValue(final Object value) {
+    if (value.getClass().isArray()) {
+      List<String> elements = new LinkedList<>();
+      for (int i = 0; i < Array.getLength(value); i++) {
+        elements.add(describeValue(Array.get(value, i)));
+      }
+      return "[" + StringUtils.join(elements, ",") + "]";
+    }
+    if (value instanceof Class) {
+      return ClassUtils.getQualifiedName((Class<?>) value);
+    }
+    if (value instanceof Enum) {
+      return ((Enum<?>) value).name();
+    }
+    if (value instanceof Annotation) {
+      return "@" + ((Annotation) value).annotationType().getName();
+    }
+    return value.toString();
+  }
+
+  /** Describes a class for the fingerprint.
+   *
+   * @param className the binary name of the class. It cannot be null.
+   *
+   * @param modifiers the class modifiers, in the format of
+   * Modifier.toString. It cannot be null.
+   *
+   * @param superclass the binary name of the superclass, null if none.
+   *
+   * @param interfaces the binary names of the interfaces, in declaration
+   * order. It cannot be null.
+   *
+   * @return the description of the class, never null.
+   */
+  static String describeClass(final String className, final String modifiers,
+      final String superclass, final List<String> interfaces) {
+    return "class " + className + " " + modifiers + " extends " + superclass
+      + " implements " + StringUtils.join(interfaces, ",");
+  }
+
+  /** Describes a public method for the fingerprint.
+   *
+   * @param modifiers the method modifiers, in the format of
+   * Modifier.toString. It cannot be null.
+   *
+   * @param returnType the name of the return type, in the format of
+   * ClassUtils.getQualifiedName. It cannot be null.
+   *
+   * @param methodName the method name. It cannot be null.
+   *
+   * @param parameters the names of the parameter types. It cannot be null.
+   *
+   * @param annotations the descriptions of the method annotations, in any
+   * order. It cannot be null.
+   *
+   * @return the description of the method, never null.
+   */
+  static String describeMethod(final String modifiers,
+      final String returnType, final String methodName,
+      final List<String> parameters, final List<String> annotations) {
+    List<String> sorted = new ArrayList<>(annotations);
+    Collections.sort(sorted);
+    return "method " + modifiers + " " + returnType + " " + methodName + "("
+      + StringUtils.join(parameters, ",") + ") "
+      + StringUtils.join(sorted, " ");
+  }
+
+  /** Describes an annotation for the fingerprint.
+   *
+   * @param annotationType the name of the annotation type. It cannot be null.
+   *
+   * @param values the description of the value of each member, sorted by
+   * member name. It cannot be null.
+   *
+   * @return the description of the annotation, never null.
+   */
+  static String describeAnnotation(final String annotationType,
+      final Map<String, String> values) {
+    return "@" + annotationType + values;
+  }
+
+  /** Computes a fingerprint from the description of a class.
+   *
+   * @param header the description of the class, from describeClass. It
+   * cannot be null.
+   *
+   * @param annotations the descriptions of the class annotations, in any
+   * order. It cannot be null.
+   *
+   * @param methods the descriptions of the public methods, in any order. It
+   * cannot be null.
+   *
+   * @return the md5 of the description, as an hex string. Never null.
+   */
+  static String fingerprint(final String header,
+      final List<String> annotations, final List<String> methods) {
+    List<String> lines = new ArrayList<>();
+    lines.add(header);
+    List<String> sorted = new ArrayList<>(annotations);
+    Collections.sort(sorted);
+    lines.addAll(sorted);
+    sorted = new ArrayList<>(methods);
+    Collections.sort(sorted);
+    lines.addAll(sorted);
+    return DigestUtils.md5DigestAsHex(StringUtils.join(lines, "\n")
+        .getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Determines if a method with the same name is already in the list.
+   *
+   * @param methods the bean methods found so far. It cannot be null.
+   *
+   * @param method the method to check. It cannot be null.
+   *
+   * @return true if the list has a method with the same name.
+   */
+  private static boolean contains(final List<BeanMethod> methods,
+      final Method method) {
+    for (BeanMethod beanMethod : methods) {
+      if (beanMethod.getMethodName().equals(method.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Derives the default module name from the class short name.
+   *
+   * @param classShortName the class name without the package, with nested
+   * classes separated by '.'. It cannot be null.
+   *
+   * @return the decapitalized short name, never null.
+   */
+  static String defaultModuleName(final String classShortName) {
+    return Introspector.decapitalize(classShortName);
+  }
+
+  /** Obtains the classpath location of the static content from the module
+   * package name.
+   *
+   * @param packageName the module package name. It cannot be null.
+   *
+   * @return a string of the form [package as path]/static/, never null.
+   */
+  static String toStaticPath(final String packageName) {
+    return packageName.replace(".", "/") + "/static/";
+  }
+
+  /** Writes this index in the format read by load.
+   *
+   * @param writer the writer to write the index to. It cannot be null.
+   *
+   * @throws IOException in case of error writing the index.
+   */
+  void write(final Writer writer) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("version", VERSION);
+    properties.setProperty("name", name);
+    if (shortName != null) {
+      properties.setProperty("shortName", shortName);
+    }
+    if (relativePath != null) {
+      properties.setProperty("relativePath", relativePath);
+    }
+    properties.setProperty("staticPath", staticPath);
+    properties.setProperty("lazy", Boolean.toString(lazy));
+    properties.setProperty("fingerprint", fingerprint);
+    // Each list element has its own key, so the names need no escaping.
+    properties.setProperty("beans", Integer.toString(beanMethods.size()));
+    for (int i = 0; i < beanMethods.size(); i++) {
+      BeanMethod method = beanMethods.get(i);
+      String prefix = "bean." + i + ".";
+      properties.setProperty(prefix + "method", method.getMethodName());
+      properties.setProperty(prefix + "type", method.getType());
+      properties.setProperty(prefix + "public",
+          Boolean.toString(method.isPublic()));
+      List<String> names = method.getBeanNames();
+      properties.setProperty(prefix + "names",
+          Integer.toString(names.size()));
+      for (int j = 0; j < names.size(); j++) {
+        properties.setProperty(prefix + "name." + j, names.get(j));
+      }
+    }
+
+    // Properties.store adds a timestamp comment and writes the properties in
+    // hash order, so the lines are filtered and sorted to keep the build
+    // reproducible.
+    StringWriter buffer = new StringWriter();
+    properties.store(buffer, null);
+    List<String> lines = new ArrayList<>();
+    for (String line : buffer.toString().split("\\r?\\n")) {
+      if (!line.startsWith("#")) {
+        lines.add(line);
+      }
+    }
+    Collections.sort(lines);
+    for (String line : lines) {
+      writer.write(line);
+      writer.write("\n");
+    }
+  }
+
+  /** The module name.
+   *
+   * @return the module name, never null.
+   */
+  String getName() {
+    return name;
+  }
+
+  /** The module short name.
+   *
+   * @return the module short name, null if not specified.
+   */
+  String getShortName() {
+    return shortName;
+  }
+
+  /** The file system relative path of the module resources.
+   *
+   * @return the relative path, null if not specified.
+   */
+  String getRelativePath() {
+    return relativePath;
+  }
+
+  /** The classpath location of the module static content.
+   *
+   * @return a string of the form [package as path]/static/, never null.
+   */
+  String getStaticPath() {
+    return staticPath;
+  }
+
+  /** Whether the module is lazy.
+   *
+   * @return true if the module is lazy.
+   */
+  boolean isLazy() {
+    return lazy;
+  }
+
+  /** The names of the methods that create public beans.
+   *
+   * @return a list of method names, never null.
+   */
+  List<String> getPublicBeanMethodNames() {
+    List<String> result = new LinkedList<>();
+    for (BeanMethod method : beanMethods) {
+      if (method.isPublic()) {
+        result.add(method.getMethodName());
+      }
+    }
+    return result;
+  }
+
+  /** The bean factory methods and the @Public methods of the module.
+   *
+   * @return an unmodifiable list of methods, never null.
+   */
+  List<BeanMethod> getBeanMethods() {
+    return beanMethods;
+  }
+
+  /** A bean factory method or a @Public method of the module.
+   */
+  static final class BeanMethod {
+
+    /** The method name, never null. */
+    private final String methodName;
+
+    /** The names in the @Bean annotation, never null. */
+    private final List<String> beanNames;
+
+    /** The name of the return type, never null. */
+    private final String type;
+
+    /** Whether the method is annotated with @Public. */
+    private final boolean isPublic;
+
+    /** Constructor, creates a bean method.
+     *
+     * @param theMethodName the method name. It cannot be null.
+     *
+     * @param theBeanNames the names in the @Bean annotation. It cannot be
+     * null.
+     *
+     * @param theType the name of the return type. It cannot be null.
+     *
+     * @param thePublic whether the method is annotated with @Public.
+     */
+    BeanMethod(final String theMethodName, final List<String> theBeanNames,
+        final String theType, final boolean thePublic) {
+      Validate.notNull(theMethodName, "The method name cannot be null.");
+      Validate.notNull(theBeanNames, "The bean names cannot be null.");
+      Validate.notNull(theType, "The type cannot be null.");
+      methodName = theMethodName;
+      beanNames = Collections.unmodifiableList(new ArrayList<>(theBeanNames));
+      type = theType;
+      isPublic = thePublic;
+    }
+
+    /** The method name.
+     *
+     * @return the method name, never null.
+     */
+    String getMethodName() {
+      return methodName;
+    }
+
+    /** The names in the @Bean annotation.
+     *
+     * @return the bean names, empty if the bean is named after the method.
+     * Never null.
+     */
+    List<String> getBeanNames() {
+      return beanNames;
+    }
+
+    /** The name of the bean, the first name in the @Bean annotation or the
+     * method name.
+     *
+     * @return the bean name, never null.
+     */
+    String getBeanName() {
+      if (beanNames.isEmpty()) {
+        return methodName;
+      }
+      return beanNames.get(0);
+    }
+
+    /** The name of the return type.
+     *
+     * @return the type name, never null.
+     */
+    String getType() {
+      return type;
+    }
+
+    /** Whether the method is annotated with @Public.
+     *
+     * @return true if the method creates a public bean.
+     */
+    boolean isPublic() {
+      return isPublic;
+    }
+  }
+}
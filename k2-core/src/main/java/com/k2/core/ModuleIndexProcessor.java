@@ -0,0 +1,523 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+/** Annotation processor that writes the module index (see ModuleIndex) of
+ * every class annotated with @Module or with methods annotated with @Public.
+ *
+ * The annotations are searched like AnnotationUtils.findAnnotation does at
+ * runtime: in the class, its superclasses and its interfaces, and as
+ * meta-annotations. So a class that inherits @Public methods from an
+ * interface is indexed too.
+ *
+ * This processor is registered in META-INF/services, so javac runs it on
+ * every project that has k2-core in its classpath.
+ */
+@SupportedAnnotationTypes("*")
+public class ModuleIndexProcessor extends AbstractProcessor {
+
+  /** The name of the @Module annotation. */
+  private static final String MODULE = Module.class.getName();
+
+  /** The name of the @Public annotation. */
+  private static final String PUBLIC = Public.class.getName();
+
+  /** The name of the @Bean annotation. */
+  private static final String BEAN = Bean.class.getName();
+
+  /** {@inheritDoc} */
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  /** {@inheritDoc}
+   *
+   * Writes the index of the modules found in this round. It does not claim
+   * the annotations.
+   */
+  @Override
+  public boolean process(final Set<? extends TypeElement> annotations,
+      final RoundEnvironment roundEnv) {
+    List<TypeElement> classes = new LinkedList<>();
+    for (Element element : roundEnv.getRootElements()) {
+      addClasses(element, classes);
+    }
+    for (TypeElement type : classes) {
+      if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+        continue;
+      }
+      Map<String, List<ExecutableElement>> methods = getPublicMethods(type);
+      if (findOnClass(type, MODULE) != null || hasPublicMethod(methods)) {
+        writeIndex(type, methods);
+      }
+    }
+    return false;
+  }
+
+  /** Adds the class and its nested classes to the list.
+   *
+   * @param element the element to add. It cannot be null.
+   *
+   * @param result the list of classes. It cannot be null.
+   */
+  private void addClasses(final Element element,
+      final List<TypeElement> result) {
+    if (element.getKind() == ElementKind.CLASS) {
+      result.add((TypeElement) element);
+    }
+    for (TypeElement nested
+        : ElementFilter.typesIn(element.getEnclosedElements())) {
+      addClasses(nested, result);
+    }
+  }
+
+  /** Determines if some of the methods is annotated with @Public.
+   *
+   * @param methods the public methods of the class, as returned by
+   * getPublicMethods. It cannot be null.
+   *
+   * @return true if the class has at least one @Public method.
+   */
+  private boolean hasPublicMethod(
+      final Map<String, List<ExecutableElement>> methods) {
+    for (List<ExecutableElement> declarations : methods.values()) {
+      if (findOnMethod(declarations, PUBLIC) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Writes the index of a module class.
+   *
+   * @param module the module class. It cannot be null.
+   *
+   * @param methods the public methods of the module class, as returned by
+   * getPublicMethods. It cannot be null.
+   */
+  private void writeIndex(final TypeElement module,
+      final Map<String, List<ExecutableElement>> methods) {
+    String binaryName = processingEnv.getElementUtils().getBinaryName(module)
+        .toString();
+    String packageName = processingEnv.getElementUtils().getPackageOf(module)
+        .getQualifiedName().toString();
+
+    String name = null;
+    Component component = module.getAnnotation(Component.class);
+    if (component != null) {
+      name = component.value();
+    }
+    if (name == null) {
+      Configuration config = module.getAnnotation(Configuration.class);
+      if (config != null) {
+        name = config.value();
+      }
+    }
+    if (name == null || name.isEmpty()) {
+      name = ModuleIndex.defaultModuleName(
+          ClassUtils.getShortName(binaryName));
+    }
+
+    String shortName = null;
+    String relativePath = null;
+    boolean lazy = false;
+    Element annotated = findOnClass(module, MODULE);
+    if (annotated != null) {
+      Module annotation = annotated.getAnnotation(Module.class);
+      if (!Module.NO_SHORT_NAME.equals(annotation.shortName())) {
+        shortName = annotation.shortName();
+      }
+      if (!annotation.relativePath().isEmpty()) {
+        relativePath = annotation.relativePath();
+      }
+      lazy = annotation.lazy();
+    }
+
+    List<ModuleIndex.BeanMethod> beanMethods = new LinkedList<>();
+    Set<String> methodNames = new HashSet<>();
+    for (List<ExecutableElement> declarations : methods.values()) {
+      ExecutableElement method = declarations.get(0);
+      Element bean = findOnMethod(declarations, BEAN);
+      boolean isPublic = findOnMethod(declarations, PUBLIC) != null;
+      String methodName = method.getSimpleName().toString();
+      if ((bean != null || isPublic) && methodNames.add(methodName)) {
+        List<String> beanNames = new ArrayList<>();
+        if (bean != null && bean.getAnnotation(Bean.class) != null) {
+          for (String beanName : bean.getAnnotation(Bean.class).name()) {
+            beanNames.add(beanName);
+          }
+        }
+        beanMethods.add(new ModuleIndex.BeanMethod(methodName, beanNames,
+            getTypeName(method.getReturnType()), isPublic));
+      }
+    }
+    ModuleIndex index = new ModuleIndex(name, shortName, relativePath,
+        ModuleIndex.toStaticPath(packageName), lazy, beanMethods,
+        fingerprint(module));
+
+    String resource = ModuleIndex.LOCATION + binaryName + ".properties";
+    try {
+      FileObject file = processingEnv.getFiler().createResource(
+          StandardLocation.CLASS_OUTPUT, "", resource, module);
+      try (Writer writer = file.openWriter()) {
+        index.write(writer);
+      }
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Error writing " + resource + ": " + e.getMessage(), module);
+    }
+  }
+
+  /** Computes the fingerprint of a module class, as
+   * ModuleIndex.fingerprint(Class) does by reflection.
+   *
+   * @param module the module class. It cannot be null.
+   *
+   * @return the fingerprint, never null.
+   */
+  private String fingerprint(final TypeElement module) {
+    List<String> interfaces = new LinkedList<>();
+    for (TypeMirror mirror : module.getInterfaces()) {
+      interfaces.add(getTypeName(mirror));
+    }
+    TypeElement superclass = getSuperclass(module);
+    String header = ModuleIndex.describeClass(
+        processingEnv.getElementUtils().getBinaryName(module).toString(),
+        getModifiers(module),
+        superclass == null ? null : getTypeName(superclass.asType()),
+        interfaces);
+
+    List<String> methods = new LinkedList<>();
+    for (ExecutableElement method
+        : ElementFilter.methodsIn(module.getEnclosedElements())) {
+      if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+        continue;
+      }
+      List<String> parameters = new LinkedList<>();
+      for (VariableElement parameter : method.getParameters()) {
+        parameters.add(getTypeName(parameter.asType()));
+      }
+      methods.add(ModuleIndex.describeMethod(getModifiers(method),
+          getTypeName(method.getReturnType()),
+          method.getSimpleName().toString(), parameters,
+          describeAnnotations(method)));
+    }
+    return ModuleIndex.fingerprint(header, describeAnnotations(module),
+        methods);
+  }
+
+  /** Describes the modifiers of an element in the format of
+   * java.lang.reflect.Modifier.toString, limited to ModuleIndex.MODIFIERS.
+   *
+   * @param element the class or method. It cannot be null.
+   *
+   * @return the modifiers, never null.
+   */
+  private String getModifiers(final Element element) {
+    List<String> result = new LinkedList<>();
+    for (Modifier modifier : new Modifier[] {Modifier.PUBLIC,
+          Modifier.PROTECTED, Modifier.PRIVATE, Modifier.ABSTRACT,
+          Modifier.STATIC, Modifier.FINAL}) {
+      if (element.getModifiers().contains(modifier)) {
+        result.add(modifier.toString());
+      }
+    }
+    return String.join(" ", result);
+  }
+
+  /** Describes the annotations of an element that are retained at runtime,
+   * for the fingerprint.
+   *
+   * @param element the element. It cannot be null.
+   *
+   * @return the description of each annotation, never null.
+   */
+  private List<String> describeAnnotations(final Element element) {
+    List<String> result = new LinkedList<>();
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      Retention retention = mirror.getAnnotationType().asElement()
+        .getAnnotation(Retention.class);
+      if (retention == null
+          || retention.value() != RetentionPolicy.RUNTIME) {
+        continue;
+      }
+      Map<String, String> values = new TreeMap<>();
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue>
+          entry : processingEnv.getElementUtils()
+            .getElementValuesWithDefaults(mirror).entrySet()) {
+        values.put(entry.getKey().getSimpleName().toString(),
+            describeValue(entry.getValue()));
+      }
+      result.add(ModuleIndex.describeAnnotation(getName(mirror), values));
+    }
+    return result;
+  }
+
+  /** Describes the value of an annotation member for the fingerprint, as
+   * ModuleIndex does by reflection.
+   *
+   * @param value the value. It cannot be null.
+   *
+   * @return the description of the value, never null.
+   */
+  private String describeValue(final AnnotationValue value) {
+    Object content = value.getValue();
+    if (content instanceof List) {
+      List<String> elements = new LinkedList<>();
+      for (Object element : (List<?>) content) {
+        elements.add(describeValue((AnnotationValue) element));
+      }
+      return "[" + String.join(",", elements) + "]";
+    }
+    if (content instanceof TypeMirror) {
+      return getTypeName((TypeMirror) content);
+    }
+    if (content instanceof VariableElement) {
+      return ((VariableElement) content).getSimpleName().toString();
+    }
+    if (content instanceof AnnotationMirror) {
+      return "@" + getName((AnnotationMirror) content);
+    }
+    return content.toString();
+  }
+
+  /** Finds the element that is annotated with an annotation, directly or
+   * through meta-annotations.
+   *
+   * @param element the element to search. It cannot be null.
+   *
+   * @param annotation the name of the annotation. It cannot be null.
+   *
+   * @param visited the annotation types already searched. It cannot be
+   * null.
+   *
+   * @return the element or annotation type that is directly annotated, or
+   * null if not found.
+   */
+  private Element findAnnotated(final Element element,
+      final String annotation, final Set<String> visited) {
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      if (getName(mirror).equals(annotation)) {
+        return element;
+      }
+    }
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      String name = getName(mirror);
+      if (!name.startsWith("java.lang.annotation.") && visited.add(name)) {
+        Element result = findAnnotated(mirror.getAnnotationType().asElement(),
+            annotation, visited);
+        if (result != null) {
+          return result;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Finds an annotation on a class, its interfaces or its superclasses, as
+   * AnnotationUtils.findAnnotation(Class, Class) does.
+   *
+   * @param type the class. It cannot be null.
+   *
+   * @param annotation the name of the annotation. It cannot be null.
+   *
+   * @return the element that is directly annotated, or null if not found.
+   */
+  private Element findOnClass(final TypeElement type,
+      final String annotation) {
+    for (TypeElement current : getHierarchy(type)) {
+      Element result = findAnnotated(current, annotation,
+          new HashSet<String>());
+      if (result != null) {
+        return result;
+      }
+    }
+    return null;
+  }
+
+  /** Finds an annotation on a method or on the methods it overrides, as
+   * AnnotationUtils.findAnnotation(Method, Class) does.
+   *
+   * @param declarations the declarations of the method, from the most
+   * specific. It cannot be null.
+   *
+   * @param annotation the name of the annotation. It cannot be null.
+   *
+   * @return the element that is directly annotated, or null if not found.
+   */
+  private Element findOnMethod(final List<ExecutableElement> declarations,
+      final String annotation) {
+    for (ExecutableElement method : declarations) {
+      Element result = findAnnotated(method, annotation,
+          new HashSet<String>());
+      if (result != null) {
+        return result;
+      }
+    }
+    return null;
+  }
+
+  /** Finds the public methods of a class, as Class.getMethods does, with all
+   * their declarations in the class hierarchy.
+   *
+   * @param type the class. It cannot be null.
+   *
+   * @return the declarations of each method, indexed by the method
+   * signature, from the most specific. Never null.
+   */
+  private Map<String, List<ExecutableElement>> getPublicMethods(
+      final TypeElement type) {
+    Map<String, List<ExecutableElement>> result = new LinkedHashMap<>();
+    for (TypeElement current : getHierarchy(type)) {
+      if (current.getQualifiedName().contentEquals("java.lang.Object")) {
+        continue;
+      }
+      for (ExecutableElement method
+          : ElementFilter.methodsIn(current.getEnclosedElements())) {
+        if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+          continue;
+        }
+        StringBuilder signature = new StringBuilder(
+            method.getSimpleName());
+        for (VariableElement parameter : method.getParameters()) {
+          signature.append(',').append(getTypeName(parameter.asType()));
+        }
+        List<ExecutableElement> declarations = result.get(
+            signature.toString());
+        if (declarations == null) {
+          declarations = new LinkedList<>();
+          result.put(signature.toString(), declarations);
+        }
+        declarations.add(method);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the class, its superclasses and all their interfaces.
+   *
+   * @param type the class. It cannot be null.
+   *
+   * @return the types, starting with the class and its superclasses, never
+   * null.
+   */
+  private Set<TypeElement> getHierarchy(final TypeElement type) {
+    Set<TypeElement> result = new LinkedHashSet<>();
+    TypeElement current = type;
+    while (current != null) {
+      result.add(current);
+      current = getSuperclass(current);
+    }
+    List<TypeElement> pending = new LinkedList<>(result);
+    while (!pending.isEmpty()) {
+      TypeElement next = pending.remove(0);
+      for (TypeMirror mirror : next.getInterfaces()) {
+        TypeElement element = asTypeElement(mirror);
+        if (element != null && result.add(element)) {
+          pending.add(element);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Returns the superclass of a class.
+   *
+   * @param type the class. It cannot be null.
+   *
+   * @return the superclass, null if the type has no superclass.
+   */
+  private TypeElement getSuperclass(final TypeElement type) {
+    return asTypeElement(type.getSuperclass());
+  }
+
+  /** Returns the element of a declared type.
+   *
+   * @param mirror the type. It cannot be null.
+   *
+   * @return the element, null if the type is not a declared type.
+   */
+  private TypeElement asTypeElement(final TypeMirror mirror) {
+    if (mirror.getKind() == TypeKind.DECLARED) {
+      return (TypeElement) ((DeclaredType) mirror).asElement();
+    }
+    return null;
+  }
+
+  /** Returns the name of an annotation.
+   *
+   * @param mirror the annotation. It cannot be null.
+   *
+   * @return the qualified name of the annotation type, never null.
+   */
+  private String getName(final AnnotationMirror mirror) {
+    return ((TypeElement) mirror.getAnnotationType().asElement())
+      .getQualifiedName().toString();
+  }
+
+  /** Returns the name of a type, in the format of
+   * ClassUtils.getQualifiedName.
+   *
+   * @param type the type. It cannot be null.
+   *
+   * @return the binary name of the erased type, with [] for arrays. Never
+   * null.
+   */
+  private String getTypeName(final TypeMirror type) {
+    switch (type.getKind()) {
+      case ARRAY:
+        return getTypeName(((ArrayType) type).getComponentType()) + "[]";
+      case DECLARED:
+        return processingEnv.getElementUtils().getBinaryName(
+            asTypeElement(type)).toString();
+      case TYPEVAR:
+        return getTypeName(processingEnv.getTypeUtils().erasure(type));
+      default:
+        if (type.getKind().isPrimitive() || type.getKind() == TypeKind.VOID) {
+          return type.toString();
+        }
+        return Object.class.getName();
+    }
+  }
+}
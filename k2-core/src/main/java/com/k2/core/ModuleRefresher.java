@@ -0,0 +1,259 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.config
+    .ConfigurableListableBeanFactory;
+import org.springframework.core.env.Environment;
+
+/** Refreshes the application context of all the modules in a k2 application.
+ *
+ * By default, this refreshes the modules one after the other, in the order
+ * they were declared in the application. If the property k2.refresh.parallel
+ * is true, this builds a dependency graph between the modules (see
+ * ModuleDefinition.dependsOn) and refreshes the modules in waves: all the
+ * modules in a wave only depend on modules of previous waves, so they are
+ * refreshed in parallel in a pool of k2.refresh.threads threads (defaults to
+ * the number of available processors).
+ *
+ * The public beans of the modules in a wave are exported once all the modules
+ * in that wave are refreshed, always in the declaration order of the modules,
+ * so the global application context ends up the same in both modes.
+ *
+ * Modules that may need beans that k2 cannot attribute to a module (see
+ * ModuleDefinition.hasUnknownDependencies) depend on all the modules
+ * declared before them, so they see the same beans as in sequential mode.
+ *
+ * Lazy modules (see Module.lazy) are not refreshed here, they are refreshed
+ * on demand.
+ */
+class ModuleRefresher {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(ModuleRefresher.class);
+
+  /** The modules to refresh, in declaration order, never null.
+   *
+   * This does not include the lazy modules.
+   */
+  private final Collection<ModuleDefinition> modules = new LinkedList<>();
+
+  /** The lazy modules, refreshed on demand, never null. */
+  private final Collection<ModuleDefinition> lazyModules = new LinkedList<>();
+
+  /** Whether to refresh independent modules in parallel. */
+  private final boolean parallel;
+
+  /** The maximum number of modules to refresh at the same time, greater than
+   * 0. */
+  private final int threads;
+
+  /** Constructor, creates a module refresher configured from the k2
+   * environment.
+   *
+   * @param theModules the modules to refresh, in declaration order. It cannot
+   * be null.
+   *
+   * @param environment the environment to read the k2.refresh.* properties
+   * from. It cannot be null.
+   */
+  ModuleRefresher(final Collection<ModuleDefinition> theModules,
+      final Environment environment) {
+    Validate.notNull(theModules, "The modules cannot be null");
+    Validate.notNull(environment, "The environment cannot be null");
+    for (ModuleDefinition module : theModules) {
+      if (module.isLazy()) {
+        lazyModules.add(module);
+      } else {
+        modules.add(module);
+      }
+    }
+    parallel = environment.getProperty("k2.refresh.parallel", Boolean.class,
+        false);
+    threads = environment.getProperty("k2.refresh.threads", Integer.class,
+        Runtime.getRuntime().availableProcessors());
+    Validate.isTrue(threads > 0, "k2.refresh.threads must be positive");
+  }
+
+  /** Refreshes all the modules and exports their public beans.
+   *
+   * @param parentBeanFactory the bean factory to export the public beans to.
+   * It cannot be null.
+   *
+   * @param servletContext the servlet context of the web application. Null if
+   * the application is not running in a web environment.
+   */
+  void refresh(final ConfigurableListableBeanFactory parentBeanFactory,
+      final ServletContext servletContext) {
+    Validate.notNull(parentBeanFactory,
+        "The parent bean factory cannot be null");
+
+    for (ModuleDefinition module : lazyModules) {
+      module.deferRefresh(parentBeanFactory, servletContext);
+    }
+
+    if (!parallel || modules.size() < 2) {
+      for (ModuleDefinition module : modules) {
+        module.refresh(parentBeanFactory, servletContext);
+      }
+      return;
+    }
+
+    List<List<ModuleDefinition>> waves = getWaves(parentBeanFactory);
+    log.debug("Refreshing {} modules in {} waves with {} threads",
+        modules.size(), waves.size(), threads);
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(threads, modules.size()), new RefreshThreadFactory());
+    try {
+      for (List<ModuleDefinition> wave : waves) {
+        List<Future<?>> results = new LinkedList<>();
+        for (final ModuleDefinition module : wave) {
+          results.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+              module.refreshContext(servletContext);
+            }
+          }));
+        }
+        waitFor(results);
+        for (ModuleDefinition module : wave) {
+          module.exportPublicBeans(parentBeanFactory);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Groups the modules in waves of independent modules.
+   *
+   * Each wave contains the modules whose dependencies are all in previous
+   * waves, in declaration order. If the modules have a circular dependency,
+   * the modules in the cycle (and the ones that depend on them) are refreshed
+   * one per wave, in declaration order.
+   *
+   * @param parentBeanFactory the bean factory the public beans are exported
+   * to. Null to not consider the beans already there.
+   *
+   * @return the list of waves, never null.
+   */
+  List<List<ModuleDefinition>> getWaves(
+      final ListableBeanFactory parentBeanFactory) {
+    Collection<ModuleDefinition> all = new LinkedList<>(modules);
+    all.addAll(lazyModules);
+    Map<ModuleDefinition, Set<ModuleDefinition>> pending;
+    pending = new LinkedHashMap<>();
+    List<ModuleDefinition> previous = new LinkedList<>();
+    for (ModuleDefinition module : modules) {
+      Set<ModuleDefinition> dependencies = new LinkedHashSet<>();
+      if (module.hasUnknownDependencies(all, parentBeanFactory)) {
+        log.debug("{} may have unknown dependencies, refreshing it after the"
+            + " previous modules", module.getModuleName());
+        dependencies.addAll(previous);
+      }
+      for (ModuleDefinition other : modules) {
+        if (module.dependsOn(other)) {
+          log.debug("{} depends on {}", module.getModuleName(),
+              other.getModuleName());
+          dependencies.add(other);
+        }
+      }
+      pending.put(module, dependencies);
+      previous.add(module);
+    }
+
+    List<List<ModuleDefinition>> waves = new LinkedList<>();
+    while (!pending.isEmpty()) {
+      List<ModuleDefinition> wave = new ArrayList<>();
+      for (Map.Entry<ModuleDefinition, Set<ModuleDefinition>> entry
+          : pending.entrySet()) {
+        if (entry.getValue().isEmpty()) {
+          wave.add(entry.getKey());
+        }
+      }
+      if (wave.isEmpty()) {
+        ModuleDefinition first = pending.keySet().iterator().next();
+        log.warn("Circular module dependency found in {}, refreshing it"
+            + " sequentially", first.getModuleName());
+        wave.add(first);
+      }
+      for (ModuleDefinition module : wave) {
+        pending.remove(module);
+      }
+      for (Set<ModuleDefinition> dependencies : pending.values()) {
+        dependencies.removeAll(wave);
+      }
+      waves.add(wave);
+    }
+    return waves;
+  }
+
+  /** Waits for all the refresh tasks to finish.
+   *
+   * @param results the results of the refresh tasks. It cannot be null.
+   */
+  private void waitFor(final List<Future<?>> results) {
+    RuntimeException error = null;
+    for (Future<?> result : results) {
+      try {
+        result.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted refreshing modules", e);
+      } catch (ExecutionException e) {
+        if (error == null) {
+          if (e.getCause() instanceof RuntimeException) {
+            error = (RuntimeException) e.getCause();
+          } else {
+            error = new RuntimeException("Error refreshing module",
+                e.getCause());
+          }
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /** Creates the threads that refresh the modules, named k2-refresh-n.
+   */
+  private static class RefreshThreadFactory implements ThreadFactory {
+
+    /** The number of the next thread to create. */
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    /** {@inheritDoc} */
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable,
+          "k2-refresh-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.commons.lang3.Validate;
+
+/** Maps registry types to the module that provides them.
+ *
+ * K2 builds this index once per application from the modules that implement
+ * RegistryFactory. The registry type of each module is the return type of its
+ * getRegistry implementation, so modules should declare a covariant return
+ * type, like:
+ *
+ * public ShiroRegistry getRegistry(final ModuleDefinition requestor)
+ *
+ * Modules whose getRegistry returns Object are still supported: they are asked
+ * for a registry only when no module declares a matching type.
+ *
+ * The result of each lookup is cached, so finding the provider of a registry
+ * type is a map lookup after the first time.
+ *
+ * K2 itself provides some registries, like CompressionRegistry. These core
+ * registries take precedence over the ones provided by modules.
+ */
+class RegistryIndex {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(RegistryIndex.class);
+
+  /** The declared registry type of each registry factory module, in
+   * declaration order, never null. */
+  private final Map<Class<?>, List<ModuleDefinition>> declaredTypes
+      = new LinkedHashMap<>();
+
+  /** The registry factories provided by k2, keyed by their declared registry
+   * type, never null. */
+  private final Map<Class<?>, RegistryFactory> coreFactories
+      = new LinkedHashMap<>();
+
+  /** The registry factory modules that do not declare a specific registry
+   * type, in declaration order, never null. */
+  private final List<ModuleDefinition> undeclared = new LinkedList<>();
+
+  /** The cache of the declared providers of each requested registry type,
+   * never null.
+   *
+   * The value is null when no module declares the requested type.
+   */
+  private final Map<Class<?>, ModuleDefinition> providers
+      = new LinkedHashMap<>();
+
+  /** Constructor, builds the index from the application modules.
+   *
+   * @param modules the module definitions of all the modules in the
+   * application. It cannot be null.
+   *
+   * @param theCoreFactories the registry factories provided by k2. Each one
+   * must declare its registry type as the return type of getRegistry.
+   */
+  RegistryIndex(final Collection<ModuleDefinition> modules,
+      final RegistryFactory... theCoreFactories) {
+    Validate.notNull(modules, "The modules cannot be null.");
+    for (RegistryFactory factory : theCoreFactories) {
+      coreFactories.put(getDeclaredRegistryType(factory), factory);
+    }
+    for (ModuleDefinition module : modules) {
+      RegistryFactory factory = module.getRegistryFactory();
+      if (factory != null) {
+        Class<?> type = getDeclaredRegistryType(factory);
+        if (type == Object.class) {
+          undeclared.add(module);
+        } else {
+          List<ModuleDefinition> modulesForType = declaredTypes.get(type);
+          if (modulesForType == null) {
+            modulesForType = new LinkedList<>();
+            declaredTypes.put(type, modulesForType);
+          }
+          modulesForType.add(module);
+        }
+      }
+    }
+  }
+
+  /** Obtains the registry of the provided type for a module.
+   *
+   * @param <T> the type of the registry to return.
+   *
+   * @param registryType the type of registry to find. It cannot be null.
+   *
+   * @param requestor the module that requests the registry. It cannot be
+   * null.
+   *
+   * @return the registry, or null if no module provides a registry of the
+   * requested type.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T getRegistry(final Class<T> registryType,
+      final ModuleDefinition requestor) {
+    Validate.notNull(registryType, "The registry type cannot be null.");
+    Validate.notNull(requestor, "The requestor cannot be null.");
+
+    for (Map.Entry<Class<?>, RegistryFactory> entry
+        : coreFactories.entrySet()) {
+      if (registryType.isAssignableFrom(entry.getKey())) {
+        return (T) entry.getValue().getRegistry(requestor);
+      }
+    }
+
+    ModuleDefinition provider = getDeclaredProvider(registryType);
+    if (provider != null) {
+      Object registry = provider.getRegistry(requestor);
+      Validate.validState(registryType.isInstance(registry),
+          "Module %s returned a registry that is not a %s",
+          provider.getModuleName(), registryType.getName());
+      requestor.addRegistryProvider(provider);
+      return (T) registry;
+    }
+
+    for (ModuleDefinition candidate : undeclared) {
+      Object registry = candidate.getRegistry(requestor);
+      if (registryType.isInstance(registry)) {
+        requestor.addRegistryProvider(candidate);
+        return (T) registry;
+      }
+    }
+    return null;
+  }
+
+  /** Finds the module that declares a registry assignable to the requested
+   * type.
+   *
+   * @param registryType the requested registry type. It cannot be null.
+   *
+   * @return the provider module, or null if none declares the type.
+   *
+   * @throws IllegalStateException if more than one module declares a
+   * matching registry type.
+   */
+  private synchronized ModuleDefinition getDeclaredProvider(
+      final Class<?> registryType) {
+    if (providers.containsKey(registryType)) {
+      return providers.get(registryType);
+    }
+    List<ModuleDefinition> candidates = new LinkedList<>();
+    for (Map.Entry<Class<?>, List<ModuleDefinition>> entry
+        : declaredTypes.entrySet()) {
+      if (registryType.isAssignableFrom(entry.getKey())) {
+        candidates.addAll(entry.getValue());
+      }
+    }
+    if (candidates.size() > 1) {
+      List<String> names = new LinkedList<>();
+      for (ModuleDefinition candidate : candidates) {
+        names.add(candidate.getModuleName());
+      }
+      throw new IllegalStateException("Ambiguous registry "
+          + registryType.getName() + ", provided by modules " + names);
+    }
+    ModuleDefinition result = null;
+    if (!candidates.isEmpty()) {
+      result = candidates.get(0);
+      log.debug("Registry {} provided by {}", registryType.getName(),
+          result.getModuleName());
+    }
+    providers.put(registryType, result);
+    return result;
+  }
+
+  /** Obtains the registry type declared by a registry factory, the return
+   * type of its getRegistry operation.
+   *
+   * @param factory the registry factory. It cannot be null.
+   *
+   * @return the declared registry type, Object if the factory does not
+   * declare a more specific type. Never returns null.
+   */
+  private static Class<?> getDeclaredRegistryType(
+      final RegistryFactory factory) {
+    try {
+      Method method = factory.getClass().getMethod("getRegistry",
+          ModuleDefinition.class);
+      return method.getReturnType();
+    } catch (NoSuchMethodException e) {
+      return Object.class;
+    }
+  }
+}
@@ -0,0 +1,382 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.ToLongFunction;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.web.method.HandlerMethod;
+
+/** The request latency of each module, by handler, the state of the module
+ * bulkheads and the statistics of the module response caches.
+ *
+ * K2 registers a RequestMetricsFilter in front of each module dispatcher
+ * servlet that records the latency of each request in a LatencyHistogram,
+ * keyed by module name and the handler that processed the request (the
+ * controller method, for example).
+ *
+ * The root dispatcher servlet publishes these metrics in json in
+ * /k2/metrics and in the prometheus text format in /k2/metrics/prometheus.
+ * Set k2.metrics.enabled to false to disable the filters.
+ *
+ * The same endpoints publish the limit, the requests in flight, the queued
+ * requests and the rejected requests of each module Bulkhead, and the hits,
+ * misses, coalesced requests, evictions and size of each module response
+ * cache.
+ *
+ * K2 registers this object in the global application context under the name
+ * k2.requestMetrics.
+ */
+public class RequestMetrics {
+
+  /** The key of the requests that did not match any handler. */
+  private static final Object NO_HANDLER = new Object();
+
+  /** The percentiles published for each handler. */
+  private static final double[] PERCENTILES = {50.0, 99.0, 99.9};
+
+  /** The names of the published percentiles, in json. */
+  private static final String[] JSON_NAMES = {"p50", "p99", "p999"};
+
+  /** The names of the published percentiles, in prometheus. */
+  private static final String[] QUANTILES = {"0.5", "0.99", "0.999"};
+
+  /** The number of nanoseconds in a second. */
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  /** The metrics of each module, by module name, never null. */
+  private final ConcurrentMap<String, ConcurrentMap<Object, Handler>> modules
+      = new ConcurrentHashMap<>();
+
+  /** The bulkheads of the modules, by module name, never null. */
+  private final ConcurrentMap<String, Bulkhead> bulkheads
+      = new ConcurrentHashMap<>();
+
+  /** The response caches of the modules, by module name, never null. */
+  private final ConcurrentMap<String, ResponseCacheStore> responseCaches
+      = new ConcurrentHashMap<>();
+
+  /** Creates the filter that records the requests of a module.
+   *
+   * @param moduleName the name of the module. It cannot be null.
+   *
+   * @return the filter, never null.
+   */
+  RequestMetricsFilter createFilter(final String moduleName) {
+    Validate.notNull(moduleName, "The module name cannot be null.");
+    ConcurrentMap<Object, Handler> handlers = new ConcurrentHashMap<>();
+    ConcurrentMap<Object, Handler> previous;
+    previous = modules.putIfAbsent(moduleName, handlers);
+    if (previous != null) {
+      handlers = previous;
+    }
+    return new RequestMetricsFilter(this, handlers);
+  }
+
+  /** Adds a module bulkhead to the published metrics.
+   *
+   * @param bulkhead the bulkhead. It cannot be null.
+   */
+  void addBulkhead(final Bulkhead bulkhead) {
+    Validate.notNull(bulkhead, "The bulkhead cannot be null.");
+    bulkheads.put(bulkhead.getModuleName(), bulkhead);
+  }
+
+  /** Adds a module response cache to the published metrics.
+   *
+   * @param store the response cache. It cannot be null.
+   */
+  void addResponseCache(final ResponseCacheStore store) {
+    Validate.notNull(store, "The response cache cannot be null.");
+    responseCaches.put(store.getModuleName(), store);
+  }
+
+  /** Records the latency of a request.
+   *
+   * This does not allocate memory unless it is the first request for the
+   * handler.
+   *
+   * @param handlers the handlers of the module that processed the request. It
+   * cannot be null.
+   *
+   * @param handler the handler that processed the request, null if none.
+   *
+   * @param nanos the latency of the request, in nanoseconds.
+   */
+  void record(final ConcurrentMap<Object, Handler> handlers,
+      final Object handler, final long nanos) {
+    Object key = NO_HANDLER;
+    if (handler instanceof HandlerMethod) {
+      // Spring creates a new HandlerMethod for each request, the method is
+      // always the same.
+      key = ((HandlerMethod) handler).getMethod();
+    } else if (handler != null) {
+      key = handler;
+    }
+    Handler metrics = handlers.get(key);
+    if (metrics == null) {
+      Handler newMetrics = new Handler(getLabel(handler));
+      metrics = handlers.putIfAbsent(key, newMetrics);
+      if (metrics == null) {
+        metrics = newMetrics;
+      }
+    }
+    metrics.histogram.record(nanos);
+  }
+
+  /** Obtains a readable name for a handler.
+   *
+   * @param handler the handler, null if none.
+   *
+   * @return Class#method for handler methods, the handler class name for
+   * other handlers and 'none' for null. Never returns null.
+   */
+  private static String getLabel(final Object handler) {
+    if (handler == null) {
+      return "none";
+    } else if (handler instanceof HandlerMethod) {
+      HandlerMethod method = (HandlerMethod) handler;
+      return method.getBeanType().getSimpleName() + "#"
+        + method.getMethod().getName();
+    }
+    return handler.getClass().getSimpleName();
+  }
+
+  /** Returns the handler metrics of each module, sorted by module and handler
+   * name.
+   *
+   * @return a map from module name to a list of handlers, never null.
+   */
+  private Map<String, List<Handler>> getSortedHandlers() {
+    Map<String, List<Handler>> result = new TreeMap<>();
+    for (Map.Entry<String, ConcurrentMap<Object, Handler>> module
+        : modules.entrySet()) {
+      List<Handler> handlers = new ArrayList<>(module.getValue().values());
+      Collections.sort(handlers, new Comparator<Handler>() {
+        @Override
+        public int compare(final Handler o1, final Handler o2) {
+          return o1.label.compareTo(o2.label);
+        }
+      });
+      result.put(module.getKey(), handlers);
+    }
+    return result;
+  }
+
+  /** Writes the metrics as a json document.
+   *
+   * The document has the form:
+   *
+   * {"modules":[{"module":"m","handlers":[{"handler":"C#m","count":1,
+   *   "throughput":0.5,"p50":1,"p99":2,"p999":3,"max":4}, ...]}, ...],
+   *  "bulkheads":[{"module":"m","adaptive":false,"limit":10,"inFlight":2,
+   *   "queued":0,"rejected":5}, ...],
+   *  "responseCaches":[{"module":"m","hits":10,"misses":2,"coalesced":1,
+   *   "evictions":0,"weight":2048}, ...]}
+   *
+   * Latencies are in nanoseconds, throughput in requests per second since the
+   * first request to the handler.
+   *
+   * @param writer the writer to write the json document to. It cannot be
+   * null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  public void writeJson(final Writer writer) throws IOException {
+    Validate.notNull(writer, "The writer cannot be null.");
+    JsonWriter json = new JsonWriter(writer);
+    json.beginObject().name("modules").beginArray();
+    for (Map.Entry<String, List<Handler>> module
+        : getSortedHandlers().entrySet()) {
+      json.beginObject()
+        .name("module").value(module.getKey())
+        .name("handlers").beginArray();
+      for (Handler handler : module.getValue()) {
+        LatencyHistogram histogram = handler.histogram;
+        json.beginObject()
+          .name("handler").value(handler.label)
+          .name("count").value(histogram.getCount())
+          .name("throughput").value(histogram.getThroughput());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+          json.name(JSON_NAMES[i])
+            .value(histogram.getValueAtPercentile(PERCENTILES[i]));
+        }
+        json.name("max").value(histogram.getMax()).endObject();
+      }
+      json.endArray().endObject();
+    }
+    json.endArray().name("bulkheads").beginArray();
+    for (Bulkhead bulkhead : new TreeMap<>(bulkheads).values()) {
+      json.beginObject()
+        .name("module").value(bulkhead.getModuleName())
+        .name("adaptive").value(bulkhead.isAdaptive())
+        .name("limit").value(bulkhead.getLimit())
+        .name("inFlight").value(bulkhead.getInFlight())
+        .name("queued").value(bulkhead.getQueued())
+        .name("rejected").value(bulkhead.getRejected())
+        .endObject();
+    }
+    json.endArray().name("responseCaches").beginArray();
+    for (ResponseCacheStore cache : new TreeMap<>(responseCaches).values()) {
+      json.beginObject()
+        .name("module").value(cache.getModuleName())
+        .name("hits").value(cache.getHits())
+        .name("misses").value(cache.getMisses())
+        .name("coalesced").value(cache.getCoalesced())
+        .name("evictions").value(cache.getEvictions())
+        .name("weight").value(cache.getWeight())
+        .endObject();
+    }
+    json.endArray().endObject();
+  }
+
+  /** Writes the metrics in the prometheus text format, as a summary named
+   * k2_request_duration_seconds with module and handler labels, and the
+   * k2_bulkhead_* and k2_response_cache_* metrics with a module label.
+   *
+   * @param writer the writer to write the metrics to. It cannot be null.
+   *
+   * @throws IOException if the metrics could not be written.
+   */
+  public void writePrometheus(final Writer writer) throws IOException {
+    Validate.notNull(writer, "The writer cannot be null.");
+    String name = "k2_request_duration_seconds";
+    writer.write("# HELP " + name
+        + " The latency of the requests to each module, by handler.\n");
+    writer.write("# TYPE " + name + " summary\n");
+    for (Map.Entry<String, List<Handler>> module
+        : getSortedHandlers().entrySet()) {
+      for (Handler handler : module.getValue()) {
+        LatencyHistogram histogram = handler.histogram;
+        String labels = "module=\"" + escapeLabel(module.getKey())
+          + "\",handler=\"" + escapeLabel(handler.label) + "\"";
+        for (int i = 0; i < PERCENTILES.length; i++) {
+          writer.write(name + "{" + labels + ",quantile=\"" + QUANTILES[i]
+              + "\"} " + toSeconds(histogram.getValueAtPercentile(
+                  PERCENTILES[i])) + "\n");
+        }
+        writer.write(name + "_sum{" + labels + "} "
+            + toSeconds(histogram.getSum()) + "\n");
+        writer.write(name + "_count{" + labels + "} "
+            + histogram.getCount() + "\n");
+      }
+    }
+    Map<String, Bulkhead> sorted = new TreeMap<>(bulkheads);
+    writeModuleMetric(writer, sorted, "k2_bulkhead_limit", "gauge",
+        "The concurrency limit of each module.", Bulkhead::getLimit);
+    writeModuleMetric(writer, sorted, "k2_bulkhead_in_flight", "gauge",
+        "The requests that each module is processing.",
+        Bulkhead::getInFlight);
+    writeModuleMetric(writer, sorted, "k2_bulkhead_queued", "gauge",
+        "The requests waiting to enter each module.", Bulkhead::getQueued);
+    writeModuleMetric(writer, sorted, "k2_bulkhead_rejected_total",
+        "counter", "The requests that each module rejected.",
+        Bulkhead::getRejected);
+    Map<String, ResponseCacheStore> caches = new TreeMap<>(responseCaches);
+    writeModuleMetric(writer, caches, "k2_response_cache_hits_total",
+        "counter", "The requests served from each module response cache.",
+        ResponseCacheStore::getHits);
+    writeModuleMetric(writer, caches, "k2_response_cache_misses_total",
+        "counter", "The requests not found in each module response cache.",
+        ResponseCacheStore::getMisses);
+    writeModuleMetric(writer, caches, "k2_response_cache_coalesced_total",
+        "counter", "The requests that waited for another one to load their"
+        + " response.", ResponseCacheStore::getCoalesced);
+    writeModuleMetric(writer, caches, "k2_response_cache_evictions_total",
+        "counter", "The responses evicted from each module response cache.",
+        ResponseCacheStore::getEvictions);
+    writeModuleMetric(writer, caches, "k2_response_cache_weight_bytes",
+        "gauge", "The size of the responses in each module response cache.",
+        ResponseCacheStore::getWeight);
+  }
+
+  /** Writes a metric with a module label in the prometheus text format.
+   *
+   * Nothing is written if there are no values.
+   *
+   * @param <T> the type of the objects that hold the values.
+   *
+   * @param writer the writer to write the metric to. It cannot be null.
+   *
+   * @param sources the objects that hold the values, by module name. It
+   * cannot be null.
+   *
+   * @param name the name of the metric. It cannot be null.
+   *
+   * @param type the prometheus type of the metric. It cannot be null.
+   *
+   * @param help the description of the metric. It cannot be null.
+   *
+   * @param value obtains the value of the metric from a source. It cannot be
+   * null.
+   *
+   * @throws IOException if the metric could not be written.
+   */
+  private static <T> void writeModuleMetric(final Writer writer,
+      final Map<String, T> sources, final String name, final String type,
+      final String help, final ToLongFunction<T> value) throws IOException {
+    if (sources.isEmpty()) {
+      return;
+    }
+    writer.write("# HELP " + name + " " + help + "\n");
+    writer.write("# TYPE " + name + " " + type + "\n");
+    for (Map.Entry<String, T> source : sources.entrySet()) {
+      writer.write(name + "{module=\"" + escapeLabel(source.getKey())
+          + "\"} " + value.applyAsLong(source.getValue()) + "\n");
+    }
+  }
+
+  /** Converts nanoseconds to seconds.
+   *
+   * @param nanos the nanoseconds to convert.
+   *
+   * @return the number of seconds.
+   */
+  private static double toSeconds(final long nanos) {
+    return nanos / NANOS_PER_SECOND;
+  }
+
+  /** Escapes the provided string to include it as a prometheus label value.
+   *
+   * The prometheus text format escapes the backslashes, quotes and line
+   * feeds.
+   *
+   * @param value the value to escape. It cannot be null.
+   *
+   * @return the escaped value, never null.
+   */
+  private static String escapeLabel(final String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"")
+      .replace("\n", "\\n");
+  }
+
+  /** The metrics of a handler.
+   */
+  static final class Handler {
+
+    /** The readable name of the handler, never null. */
+    private final String label;
+
+    /** The latency histogram of the handler, never null. */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /** Constructor, creates the metrics of a handler.
+     *
+     * @param theLabel the readable name of the handler. It cannot be null.
+     */
+    private Handler(final String theLabel) {
+      label = theLabel;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/** The controller, in the root dispatcher servlet, that publishes the request
+ * metrics.
+ */
+@Controller
+class RequestMetricsController {
+
+  /** The request metrics, never null. */
+  private final RequestMetrics metrics;
+
+  /** Constructor, creates the controller.
+   *
+   * @param theMetrics the request metrics to publish. It cannot be null.
+   */
+  RequestMetricsController(final RequestMetrics theMetrics) {
+    Validate.notNull(theMetrics, "The metrics cannot be null.");
+    metrics = theMetrics;
+  }
+
+  /** Writes the request metrics in json.
+   *
+   * @param response the response to write the metrics to. It cannot be null.
+   *
+   * @throws IOException in case of error writing the response.
+   */
+  @RequestMapping(value = "/k2/metrics", method = RequestMethod.GET)
+  public void json(final HttpServletResponse response) throws IOException {
+    response.setContentType("application/json;charset=UTF-8");
+    metrics.writeJson(response.getWriter());
+  }
+
+  /** Writes the request metrics in the prometheus text format.
+   *
+   * @param response the response to write the metrics to. It cannot be null.
+   *
+   * @throws IOException in case of error writing the response.
+   */
+  @RequestMapping(value = "/k2/metrics/prometheus",
+      method = RequestMethod.GET)
+  public void prometheus(final HttpServletResponse response)
+      throws IOException {
+    response.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+    metrics.writePrometheus(response.getWriter());
+  }
+}
@@ -0,0 +1,142 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/** The filter that records the latency of the requests to a module in the
+ * request metrics.
+ *
+ * K2 maps this filter to /[module name]/* with the highest precedence, so the
+ * latency includes the rest of the module filters. The handler is the one
+ * that the module dispatcher servlet selected for the request (see
+ * K2DispatcherServlet.HANDLER_ATTRIBUTE). For asynchronous requests, this
+ * records the time until the async request completes, times out or fails.
+ */
+class RequestMetricsFilter implements Filter {
+
+  /** The request metrics, never null. */
+  private final RequestMetrics metrics;
+
+  /** The handlers of the module, never null. */
+  private final ConcurrentMap<Object, RequestMetrics.Handler> handlers;
+
+  /** Constructor, creates a filter for a module.
+   *
+   * @param theMetrics the request metrics. It cannot be null.
+   *
+   * @param theHandlers the handlers of the module. It cannot be null.
+   */
+  RequestMetricsFilter(final RequestMetrics theMetrics,
+      final ConcurrentMap<Object, RequestMetrics.Handler> theHandlers) {
+    metrics = theMetrics;
+    handlers = theHandlers;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void init(final FilterConfig filterConfig) {
+  }
+
+  /** {@inheritDoc}
+   *
+   * Records the time it took the rest of the chain to process the request.
+   * If the request went async, the time is recorded when the async request
+   * completes.
+   */
+  @Override
+  public void doFilter(final ServletRequest request,
+      final ServletResponse response, final FilterChain chain)
+      throws IOException, ServletException {
+    long start = System.nanoTime();
+    boolean async = false;
+    try {
+      chain.doFilter(request, response);
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(new Recorder(request, start));
+        async = true;
+      }
+    } finally {
+      if (!async) {
+        record(request, start);
+      }
+    }
+  }
+
+  /** Records the latency of a request.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @param start the time the request started, as returned by
+   * System.nanoTime.
+   */
+  private void record(final ServletRequest request, final long start) {
+    metrics.record(handlers,
+        request.getAttribute(K2DispatcherServlet.HANDLER_ATTRIBUTE),
+        System.nanoTime() - start);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void destroy() {
+  }
+
+  /** Records the latency of an asynchronous request when it completes.
+   *
+   * The container calls onComplete after a timeout or an error too.
+   */
+  private final class Recorder implements AsyncListener {
+
+    /** The request, never null. */
+    private final ServletRequest request;
+
+    /** The time the request started, as returned by System.nanoTime. */
+    private final long start;
+
+    /** Constructor, creates a recorder for a request.
+     *
+     * @param theRequest the request. It cannot be null.
+     *
+     * @param theStart the time the request started.
+     */
+    private Recorder(final ServletRequest theRequest, final long theStart) {
+      request = theRequest;
+      start = theStart;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      record(request, start);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onError(final AsyncEvent event) {
+    }
+
+    /** {@inheritDoc}
+     *
+     * Keeps listening if the request starts a new asynchronous cycle.
+     */
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+      event.getAsyncContext().addListener(this);
+    }
+  }
+}
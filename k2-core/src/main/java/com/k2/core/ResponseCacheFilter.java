@@ -0,0 +1,541 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+import org.springframework.web.util.UrlPathHelper;
+
+/** The filter that serves the cached responses of a module.
+ *
+ * K2 maps this filter to /[module name]/* after the shiro filter, for the
+ * modules that cache some endpoint (see ResponseCacheRegistry). On a miss,
+ * the first request processes the request and stores the response; the
+ * concurrent requests for the same response wait for it instead of
+ * processing the request too. If the response cannot be cached, the waiting
+ * requests are processed normally. The waiting requests go async when the
+ * chain supports it, so they do not hold a container thread.
+ *
+ * The filter also runs on async dispatches, to store the responses of
+ * asynchronous requests when they complete, and to finish the waiting
+ * requests.
+ *
+ * The filter only sees the Set-Cookie headers added inside it. Cookies that
+ * an outer filter adds when the response is committed, like the session
+ * cookie of k2-shiro, are not seen, so do not cache endpoints that change
+ * the session.
+ */
+class ResponseCacheFilter implements Filter {
+
+  /** The name of the request attribute with the pending load of an
+   * asynchronous request. */
+  private static final String LOAD_ATTRIBUTE
+      = ResponseCacheFilter.class.getName() + ".load";
+
+  /** The name of the request attribute with the waiter of a request that
+   * waited for another one to load its response. */
+  private static final String WAITER_ATTRIBUTE
+      = ResponseCacheFilter.class.getName() + ".waiter";
+
+  /** The maximum time a request waits for another one to load its response,
+   * in seconds. */
+  private static final long MAX_WAIT_SECONDS = 30;
+
+  /** The headers that are not stored with the response. */
+  private static final String[] EXCLUDED_HEADERS = {"Content-Length",
+    "Content-Type", "Date", "Set-Cookie", "Transfer-Encoding"};
+
+  /** The cached endpoints, never null. */
+  private final List<ResponseCacheRegistry.Rule> rules;
+
+  /** The cached responses, never null. */
+  private final ResponseCacheStore store;
+
+  /** The responses being loaded, keyed by cache key, never null. */
+  private final ConcurrentMap<String,
+      CompletableFuture<ResponseCacheStore.Entry>> loads
+      = new ConcurrentHashMap<>();
+
+  /** Matches the request paths against the patterns, never null. */
+  private final PathMatcher pathMatcher = new AntPathMatcher();
+
+  /** Obtains the request paths, never null. */
+  private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+  /** Constructor, creates a filter for a module.
+   *
+   * @param theRules the cached endpoints. It cannot be null.
+   *
+   * @param theStore the store of the cached responses. It cannot be null.
+   */
+  ResponseCacheFilter(final List<ResponseCacheRegistry.Rule> theRules,
+      final ResponseCacheStore theStore) {
+    Validate.notNull(theRules, "The rules cannot be null.");
+    Validate.notNull(theStore, "The store cannot be null.");
+    rules = new ArrayList<>(theRules);
+    store = theStore;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void init(final FilterConfig filterConfig) {
+  }
+
+  /** {@inheritDoc}
+   *
+   * Serves the response from the cache, or processes the request and stores
+   * the response.
+   */
+  @Override
+  public void doFilter(final ServletRequest request,
+      final ServletResponse response, final FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+
+    Load pending = (Load) request.getAttribute(LOAD_ATTRIBUTE);
+    if (pending != null) {
+      // The async dispatch of a request that is loading a response.
+      request.removeAttribute(LOAD_ATTRIBUTE);
+      process(httpRequest, pending, chain);
+      return;
+    }
+
+    Waiter waiter = (Waiter) request.getAttribute(WAITER_ATTRIBUTE);
+    if (waiter != null) {
+      // The async dispatch of a request that waited for another one.
+      request.removeAttribute(WAITER_ATTRIBUTE);
+      writeOrProcess(waiter.entry, httpRequest, httpResponse, chain);
+      return;
+    }
+
+    ResponseCacheRegistry.Rule rule = getRule(httpRequest);
+    if (rule == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    String key = getKey(rule, httpRequest);
+    ResponseCacheStore.Entry entry = store.get(key, System.nanoTime());
+    if (entry != null) {
+      write(entry, httpResponse);
+      return;
+    }
+
+    CompletableFuture<ResponseCacheStore.Entry> load;
+    load = new CompletableFuture<>();
+    CompletableFuture<ResponseCacheStore.Entry> other;
+    other = loads.putIfAbsent(key, load);
+    if (other != null) {
+      store.recordCoalesced();
+      if (request.isAsyncSupported()) {
+        awaitAsync(httpRequest, httpResponse, other);
+      } else {
+        writeOrProcess(await(other), httpRequest, httpResponse, chain);
+      }
+      return;
+    }
+
+    process(httpRequest, new Load(key, rule, load,
+          new ContentCachingResponseWrapper(httpResponse)), chain);
+  }
+
+  /** Passes the request to the rest of the chain and stores the response.
+   *
+   * If the request starts an asynchronous cycle, this leaves the load in a
+   * request attribute, and the async dispatch finishes it. If the cycle ends
+   * without a dispatch, on a timeout, an error or a client disconnect, the
+   * load is released when the cycle completes.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @param load the response being loaded. It cannot be null.
+   *
+   * @param chain the rest of the filter chain. It cannot be null.
+   *
+   * @throws IOException in case of an io error.
+   *
+   * @throws ServletException in case of a servlet error.
+   */
+  private void process(final HttpServletRequest request, final Load load,
+      final FilterChain chain) throws IOException, ServletException {
+    boolean pending = false;
+    try {
+      chain.doFilter(request, load.response);
+      if (request.isAsyncStarted()) {
+        request.setAttribute(LOAD_ATTRIBUTE, load);
+        request.getAsyncContext().addListener(new Releaser(load));
+        pending = true;
+        return;
+      }
+      ContentCachingResponseWrapper response = load.response;
+      if (response.getStatus() == HttpServletResponse.SC_OK
+          && !response.containsHeader("Set-Cookie")) {
+        ResponseCacheStore.Entry entry = new ResponseCacheStore.Entry(
+            response.getContentType(), getHeaders(response),
+            response.getContentAsByteArray(),
+            System.nanoTime() + load.rule.getTtlNanos());
+        store.put(load.key, entry);
+        load.future.complete(entry);
+      }
+      response.copyBodyToResponse();
+    } finally {
+      if (!pending) {
+        release(load);
+      }
+    }
+  }
+
+  /** Removes a load from the responses being loaded and wakes up the
+   * requests waiting for it.
+   *
+   * This does nothing if the load was already released.
+   *
+   * @param load the response being loaded. It cannot be null.
+   */
+  private void release(final Load load) {
+    loads.remove(load.key, load.future);
+    load.future.complete(null);
+  }
+
+  /** Writes the response loaded by another request, or processes the request
+   * if there is none.
+   *
+   * @param entry the loaded response, null if it could not be cached.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @param response the response. It cannot be null.
+   *
+   * @param chain the rest of the filter chain. It cannot be null.
+   *
+   * @throws IOException in case of an io error.
+   *
+   * @throws ServletException in case of a servlet error.
+   */
+  private static void writeOrProcess(final ResponseCacheStore.Entry entry,
+      final HttpServletRequest request, final HttpServletResponse response,
+      final FilterChain chain) throws IOException, ServletException {
+    if (entry != null) {
+      write(entry, response);
+    } else {
+      chain.doFilter(request, response);
+    }
+  }
+
+  /** Starts an asynchronous cycle that waits for another request to load a
+   * response.
+   *
+   * The cycle is dispatched again when the load completes, or after
+   * MAX_WAIT_SECONDS without a response.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @param response the response. It cannot be null.
+   *
+   * @param load the response being loaded. It cannot be null.
+   */
+  private static void awaitAsync(final HttpServletRequest request,
+      final HttpServletResponse response,
+      final CompletableFuture<ResponseCacheStore.Entry> load) {
+    AsyncContext async = request.startAsync(request, response);
+    async.setTimeout(TimeUnit.SECONDS.toMillis(MAX_WAIT_SECONDS));
+    Waiter waiter = new Waiter(async);
+    async.addListener(waiter);
+    load.whenComplete((entry, error) -> waiter.dispatch(entry));
+  }
+
+  /** Waits for another request to load a response.
+   *
+   * @param load the response being loaded. It cannot be null.
+   *
+   * @return the response, or null if it could not be cached or it took too
+   * long.
+   */
+  private static ResponseCacheStore.Entry await(
+      final CompletableFuture<ResponseCacheStore.Entry> load) {
+    try {
+      return load.get(MAX_WAIT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | TimeoutException e) {
+      return null;
+    }
+  }
+
+  /** Finds the first rule that matches a request.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @return the rule, null if the request is not cacheable.
+   */
+  private ResponseCacheRegistry.Rule getRule(
+      final HttpServletRequest request) {
+    if (!"GET".equals(request.getMethod())) {
+      return null;
+    }
+    String path = urlPathHelper.getPathWithinApplication(request);
+    for (ResponseCacheRegistry.Rule rule : rules) {
+      if (pathMatcher.match(rule.getPattern(), path)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  /** Obtains the cache key of a request.
+   *
+   * @param rule the rule that matched the request. It cannot be null.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @return the key, never null.
+   */
+  private static String getKey(final ResponseCacheRegistry.Rule rule,
+      final HttpServletRequest request) {
+    StringBuilder key = new StringBuilder(request.getRequestURI());
+    if (request.getQueryString() != null) {
+      key.append('?').append(request.getQueryString());
+    }
+    for (String header : rule.getVaryHeaders()) {
+      key.append('\n').append(header).append(':');
+      String value = request.getHeader(header);
+      if (value != null) {
+        key.append(value);
+      }
+    }
+    if (rule.isVaryByPrincipal()) {
+      Principal principal = request.getUserPrincipal();
+      key.append("\nprincipal:");
+      if (principal != null) {
+        key.append(principal.getName());
+      }
+    }
+    return key.toString();
+  }
+
+  /** Obtains the headers to store with a response.
+   *
+   * @param response the response. It cannot be null.
+   *
+   * @return the names and values of the headers, alternating, never null.
+   */
+  private static String[] getHeaders(final HttpServletResponse response) {
+    List<String> result = new ArrayList<>();
+    for (String name : response.getHeaderNames()) {
+      boolean excluded = false;
+      for (String excludedHeader : EXCLUDED_HEADERS) {
+        excluded = excluded || excludedHeader.equalsIgnoreCase(name);
+      }
+      if (!excluded) {
+        for (String value : response.getHeaders(name)) {
+          result.add(name);
+          result.add(value);
+        }
+      }
+    }
+    return result.toArray(new String[0]);
+  }
+
+  /** Writes a cached response.
+   *
+   * @param entry the cached response. It cannot be null.
+   *
+   * @param response the response to write to. It cannot be null.
+   *
+   * @throws IOException in case of error writing the response.
+   */
+  private static void write(final ResponseCacheStore.Entry entry,
+      final HttpServletResponse response) throws IOException {
+    if (entry.getContentType() != null) {
+      response.setContentType(entry.getContentType());
+    }
+    String[] headers = entry.getHeaders();
+    for (int i = 0; i < headers.length; i += 2) {
+      if (!response.containsHeader(headers[i])) {
+        response.setHeader(headers[i], headers[i + 1]);
+      } else {
+        response.addHeader(headers[i], headers[i + 1]);
+      }
+    }
+    response.setContentLength(entry.getBody().length);
+    response.getOutputStream().write(entry.getBody());
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void destroy() {
+  }
+
+  /** Releases a load when its asynchronous cycle ends.
+   */
+  private final class Releaser implements AsyncListener {
+
+    /** The response being loaded, never null. */
+    private final Load load;
+
+    /** Constructor, creates a listener for a load.
+     *
+     * @param theLoad the response being loaded. It cannot be null.
+     */
+    private Releaser(final Load theLoad) {
+      load = theLoad;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      release(load);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+      release(load);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onError(final AsyncEvent event) {
+      release(load);
+    }
+
+    /** {@inheritDoc}
+     *
+     * The load adds a new listener if it goes async again.
+     */
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+    }
+  }
+
+  /** A request waiting asynchronously for another one to load a response.
+   */
+  private static final class Waiter implements AsyncListener {
+
+    /** The asynchronous cycle of the waiting request, never null. */
+    private final AsyncContext async;
+
+    /** Whether the cycle was already dispatched or completed. */
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    /** The loaded response, null if there is none. */
+    private volatile ResponseCacheStore.Entry entry;
+
+    /** Constructor, creates a waiter.
+     *
+     * @param theAsync the asynchronous cycle of the waiting request. It
+     * cannot be null.
+     */
+    private Waiter(final AsyncContext theAsync) {
+      async = theAsync;
+    }
+
+    /** Dispatches the waiting request, only once.
+     *
+     * @param theEntry the loaded response, null if there is none.
+     */
+    private void dispatch(final ResponseCacheStore.Entry theEntry) {
+      if (done.compareAndSet(false, true)) {
+        entry = theEntry;
+        async.getRequest().setAttribute(WAITER_ATTRIBUTE, this);
+        async.dispatch();
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onComplete(final AsyncEvent event) {
+    }
+
+    /** {@inheritDoc}
+     *
+     * Processes the request without waiting any longer.
+     */
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+      dispatch(null);
+    }
+
+    /** {@inheritDoc}
+     *
+     * Gives up on the request, usually because the client went away.
+     */
+    @Override
+    public void onError(final AsyncEvent event) {
+      if (done.compareAndSet(false, true)) {
+        async.complete();
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+    }
+  }
+
+  /** A response being loaded by a request.
+   */
+  private static final class Load {
+
+    /** The cache key, never null. */
+    private final String key;
+
+    /** The rule that matched the request, never null. */
+    private final ResponseCacheRegistry.Rule rule;
+
+    /** Completed with the response, or null if it cannot be cached, never
+     * null. */
+    private final CompletableFuture<ResponseCacheStore.Entry> future;
+
+    /** The buffered response, never null. */
+    private final ContentCachingResponseWrapper response;
+
+    /** Constructor, creates a load.
+     *
+     * @param theKey the cache key. It cannot be null.
+     *
+     * @param theRule the rule that matched the request. It cannot be null.
+     *
+     * @param theFuture the future to complete. It cannot be null.
+     *
+     * @param theResponse the buffered response. It cannot be null.
+     */
+    private Load(final String theKey, final ResponseCacheRegistry.Rule theRule,
+        final CompletableFuture<ResponseCacheStore.Entry> theFuture,
+        final ContentCachingResponseWrapper theResponse) {
+      key = theKey;
+      rule = theRule;
+      future = theFuture;
+      response = theResponse;
+    }
+  }
+}
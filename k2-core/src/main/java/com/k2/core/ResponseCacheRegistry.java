@@ -0,0 +1,214 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.Validate;
+
+/** The registry that modules use to cache the responses of their endpoints in
+ * memory.
+ *
+ * Modules obtain this registry from the module context and declare which GET
+ * endpoints to cache, for how long, and what parts of the request select a
+ * different response, for example:
+ *
+ * ResponseCacheRegistry cache = moduleContext.get(ResponseCacheRegistry.class);
+ * cache.cache("/countries/**", 60000, "Accept-Language");
+ *
+ * K2 only caches successful responses (200) that do not set cookies. The
+ * cache filter runs after the shiro filter, so requests that shiro rejects
+ * never reach the cache. Endpoints whose response depends on the user must
+ * use cacheByPrincipal.
+ *
+ * The cookie check only sees the cookies that the endpoint sets. The session
+ * cookie that the shiro filter writes when the response is committed is not
+ * seen, so do not cache endpoints that change the session.
+ */
+public class ResponseCacheRegistry {
+
+  /** The default maximum weight of the module cache, in bytes. */
+  private static final long DEFAULT_MAX_WEIGHT = 16 * 1024 * 1024;
+
+  /** The name of the module that owns this registry, never null. */
+  private final String moduleName;
+
+  /** The maximum total size of the cached responses, in bytes. */
+  private long maxWeight = DEFAULT_MAX_WEIGHT;
+
+  /** The cached endpoints, in registration order, never null. */
+  private final List<Rule> rules = new LinkedList<>();
+
+  /** Constructor, creates a registry for a module.
+   *
+   * @param theModuleName the name of the module that owns this registry. It
+   * cannot be null.
+   */
+  ResponseCacheRegistry(final String theModuleName) {
+    Validate.notNull(theModuleName, "The module name cannot be null.");
+    moduleName = theModuleName;
+  }
+
+  /** Caches the responses of the endpoints that match a pattern.
+   *
+   * @param pattern the module relative url path pattern, in ant syntax, like
+   * /countries/**. It cannot be null.
+   *
+   * @param ttlMillis the time to keep each response, in milliseconds. It
+   * must be greater than 0.
+   *
+   * @param varyHeaders the request headers that select a different response,
+   * like Accept-Language. The query string always selects a different
+   * response. It cannot be null.
+   */
+  public void cache(final String pattern, final long ttlMillis,
+      final String... varyHeaders) {
+    addRule(pattern, ttlMillis, false, varyHeaders);
+  }
+
+  /** Caches the responses of the endpoints that match a pattern, for each
+   * user.
+   *
+   * Anonymous requests share the same responses.
+   *
+   * @param pattern the module relative url path pattern, in ant syntax. It
+   * cannot be null.
+   *
+   * @param ttlMillis the time to keep each response, in milliseconds. It
+   * must be greater than 0.
+   *
+   * @param varyHeaders the request headers that select a different response.
+   * It cannot be null.
+   */
+  public void cacheByPrincipal(final String pattern, final long ttlMillis,
+      final String... varyHeaders) {
+    addRule(pattern, ttlMillis, true, varyHeaders);
+  }
+
+  /** Sets the maximum total size of the cached responses of the module.
+   *
+   * @param bytes the size in bytes, greater than 0. It is 16MB by default.
+   */
+  public void setMaxWeight(final long bytes) {
+    Validate.isTrue(bytes > 0, "The maximum weight must be greater than 0.");
+    maxWeight = bytes;
+  }
+
+  /** Adds a cached endpoint.
+   *
+   * @param pattern the module relative url path pattern. It cannot be null.
+   *
+   * @param ttlMillis the time to keep each response, in milliseconds.
+   *
+   * @param varyByPrincipal whether each user gets its own response.
+   *
+   * @param varyHeaders the request headers that select a different response.
+   * It cannot be null.
+   */
+  private void addRule(final String pattern, final long ttlMillis,
+      final boolean varyByPrincipal, final String... varyHeaders) {
+    Validate.notNull(pattern, "The pattern cannot be null.");
+    Validate.isTrue(pattern.startsWith("/"), "The pattern must start with /.");
+    Validate.isTrue(ttlMillis > 0, "The ttl must be greater than 0.");
+    Validate.noNullElements(varyHeaders, "The headers cannot be null.");
+    rules.add(new Rule("/" + moduleName + pattern,
+        TimeUnit.MILLISECONDS.toNanos(ttlMillis), varyByPrincipal,
+        Arrays.copyOf(varyHeaders, varyHeaders.length)));
+  }
+
+  /** The name of the module that owns this registry.
+   *
+   * @return the module name, never null.
+   */
+  String getModuleName() {
+    return moduleName;
+  }
+
+  /** The maximum total size of the cached responses.
+   *
+   * @return the size in bytes.
+   */
+  long getMaxWeight() {
+    return maxWeight;
+  }
+
+  /** The cached endpoints.
+   *
+   * @return the rules in registration order, never null.
+   */
+  List<Rule> getRules() {
+    return rules;
+  }
+
+  /** A cached endpoint.
+   */
+  static final class Rule {
+
+    /** The context relative url path pattern, never null. */
+    private final String pattern;
+
+    /** The time to keep each response, in nanoseconds. */
+    private final long ttlNanos;
+
+    /** Whether each user gets its own response. */
+    private final boolean varyByPrincipal;
+
+    /** The request headers that select a different response, never null. */
+    private final String[] varyHeaders;
+
+    /** Constructor, creates a rule.
+     *
+     * @param thePattern the context relative url path pattern. It cannot be
+     * null.
+     *
+     * @param theTtlNanos the time to keep each response, in nanoseconds.
+     *
+     * @param isVaryByPrincipal whether each user gets its own response.
+     *
+     * @param theVaryHeaders the request headers that select a different
+     * response. It cannot be null.
+     */
+    private Rule(final String thePattern, final long theTtlNanos,
+        final boolean isVaryByPrincipal, final String[] theVaryHeaders) {
+      pattern = thePattern;
+      ttlNanos = theTtlNanos;
+      varyByPrincipal = isVaryByPrincipal;
+      varyHeaders = theVaryHeaders;
+    }
+
+    /** The context relative url path pattern.
+     *
+     * @return the pattern, never null.
+     */
+    String getPattern() {
+      return pattern;
+    }
+
+    /** The time to keep each response.
+     *
+     * @return the time in nanoseconds.
+     */
+    long getTtlNanos() {
+      return ttlNanos;
+    }
+
+    /** Whether each user gets its own response.
+     *
+     * @return true if the principal is part of the cache key.
+     */
+    boolean isVaryByPrincipal() {
+      return varyByPrincipal;
+    }
+
+    /** The request headers that select a different response.
+     *
+     * @return the header names, never null.
+     */
+    String[] getVaryHeaders() {
+      return varyHeaders;
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.Validate;
+
+/** The cached responses of a module, bounded by their total size.
+ *
+ * This follows the W-TinyLFU design: new responses enter a small lru window
+ * (1% of the size), and the responses evicted from the window compete to
+ * enter the main lru space against the responses that the main space would
+ * evict to make room for them. A FrequencySketch decides the winner, the
+ * response accessed more often recently. This keeps the popular responses
+ * in the cache when many responses are only requested once.
+ *
+ * Lookups read a concurrent map without locking. The lookups also update the
+ * sketch and the lru order under a lock, but only if the lock is free: under
+ * contention, some accesses are not recorded. Insertions and removals always
+ * take the lock.
+ */
+class ResponseCacheStore {
+
+  /** The percentage of the maximum weight used by the window. */
+  private static final int WINDOW_PERCENT = 1;
+
+  /** The number of percentage points in the whole. */
+  private static final int HUNDRED = 100;
+
+  /** The expected average size of a response, to size the sketch. */
+  private static final int AVERAGE_WEIGHT = 4096;
+
+  /** The minimum number of keys the sketch is sized for. */
+  private static final int MIN_SKETCH_KEYS = 256;
+
+  /** The maximum number of keys the sketch is sized for. */
+  private static final int MAX_SKETCH_KEYS = 1048576;
+
+  /** The initial capacity of the lru maps. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The load factor of the lru maps. */
+  private static final float LOAD_FACTOR = 0.75f;
+
+  /** The name of the module that owns this store, never null. */
+  private final String moduleName;
+
+  /** The maximum total weight of the window, in bytes. */
+  private final long windowMaxWeight;
+
+  /** The maximum total weight of the main space, in bytes. */
+  private final long mainMaxWeight;
+
+  /** The cached responses, keyed by cache key, never null. */
+  private final ConcurrentMap<String, Entry> data = new ConcurrentHashMap<>();
+
+  /** The responses in the window, in lru order, never null.
+   *
+   * This is guarded by lock.
+   */
+  private final LinkedHashMap<String, Entry> window
+      = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+  /** The responses in the main space, in lru order, never null.
+   *
+   * This is guarded by lock.
+   */
+  private final LinkedHashMap<String, Entry> main
+      = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+
+  /** The total weight of the window, guarded by lock. */
+  private long windowWeight = 0;
+
+  /** The total weight of the main space, guarded by lock. */
+  private long mainWeight = 0;
+
+  /** The recent access frequency of the keys, guarded by lock. */
+  private final FrequencySketch sketch;
+
+  /** The lock that guards the eviction policy, never null. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** The number of lookups that found a response, never null. */
+  private final LongAdder hits = new LongAdder();
+
+  /** The number of lookups that did not find a response, never null. */
+  private final LongAdder misses = new LongAdder();
+
+  /** The number of requests that waited for another request to load the
+   * same response, never null. */
+  private final LongAdder coalesced = new LongAdder();
+
+  /** The number of responses evicted or rejected by the eviction policy,
+   * never null. */
+  private final LongAdder evictions = new LongAdder();
+
+  /** Constructor, creates an empty store.
+   *
+   * @param theModuleName the name of the module that owns this store. It
+   * cannot be null.
+   *
+   * @param maxWeight the maximum total size of the cached responses, in
+   * bytes. It must be greater than 0.
+   */
+  ResponseCacheStore(final String theModuleName, final long maxWeight) {
+    Validate.notNull(theModuleName, "The module name cannot be null.");
+    Validate.isTrue(maxWeight > 0, "The maximum weight must be positive.");
+    moduleName = theModuleName;
+    windowMaxWeight = Math.max(1, maxWeight * WINDOW_PERCENT / HUNDRED);
+    mainMaxWeight = Math.max(1, maxWeight - windowMaxWeight);
+    sketch = new FrequencySketch((int) Math.min(MAX_SKETCH_KEYS,
+          Math.max(MIN_SKETCH_KEYS, maxWeight / AVERAGE_WEIGHT)));
+  }
+
+  /** Looks up a response.
+   *
+   * @param key the cache key. It cannot be null.
+   *
+   * @param now the current time, as returned by System.nanoTime.
+   *
+   * @return the response, or null if there is no response for the key or it
+   * expired.
+   */
+  Entry get(final String key, final long now) {
+    Entry entry = data.get(key);
+    if (lock.tryLock()) {
+      try {
+        sketch.increment(key.hashCode());
+        if (entry != null) {
+          // Moves the entry to the end of the lru order.
+          if (window.get(key) == null) {
+            main.get(key);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    if (entry != null && entry.expiresAt - now <= 0) {
+      remove(key, entry);
+      entry = null;
+    }
+    if (entry == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return entry;
+  }
+
+  /** Stores a response.
+   *
+   * Responses larger than the main space are not stored.
+   *
+   * @param key the cache key. It cannot be null.
+   *
+   * @param entry the response. It cannot be null.
+   */
+  void put(final String key, final Entry entry) {
+    if (entry.weight > mainMaxWeight) {
+      return;
+    }
+    lock.lock();
+    try {
+      Entry previous = data.put(key, entry);
+      if (previous != null) {
+        unlink(key, previous);
+      }
+      window.put(key, entry);
+      windowWeight += entry.weight;
+      while (windowWeight > windowMaxWeight) {
+        Iterator<Map.Entry<String, Entry>> eldest;
+        eldest = window.entrySet().iterator();
+        Map.Entry<String, Entry> candidate = eldest.next();
+        eldest.remove();
+        windowWeight -= candidate.getValue().weight;
+        admit(candidate.getKey(), candidate.getValue());
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Moves a response evicted from the window to the main space, if it is
+   * accessed more often than the responses it would evict from there.
+   *
+   * This must be called with the lock held.
+   *
+   * @param key the cache key. It cannot be null.
+   *
+   * @param candidate the response. It cannot be null.
+   */
+  private void admit(final String key, final Entry candidate) {
+    List<String> victims = new ArrayList<>();
+    long freed = 0;
+    if (mainWeight + candidate.weight > mainMaxWeight) {
+      int frequency = sketch.frequency(key.hashCode());
+      Iterator<Map.Entry<String, Entry>> eldest = main.entrySet().iterator();
+      while (mainWeight - freed + candidate.weight > mainMaxWeight) {
+        Map.Entry<String, Entry> victim = eldest.next();
+        if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+          data.remove(key, candidate);
+          evictions.increment();
+          return;
+        }
+        victims.add(victim.getKey());
+        freed += victim.getValue().weight;
+      }
+    }
+    for (String victim : victims) {
+      data.remove(victim, main.remove(victim));
+      evictions.increment();
+    }
+    mainWeight -= freed;
+    main.put(key, candidate);
+    mainWeight += candidate.weight;
+  }
+
+  /** Removes a response, if it is still cached.
+   *
+   * @param key the cache key. It cannot be null.
+   *
+   * @param entry the response to remove. It cannot be null.
+   */
+  private void remove(final String key, final Entry entry) {
+    lock.lock();
+    try {
+      if (data.remove(key, entry)) {
+        unlink(key, entry);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Removes a response from the window or the main space.
+   *
+   * This must be called with the lock held.
+   *
+   * @param key the cache key. It cannot be null.
+   *
+   * @param entry the response to remove. It cannot be null.
+   */
+  private void unlink(final String key, final Entry entry) {
+    if (window.remove(key) != null) {
+      windowWeight -= entry.weight;
+    } else if (main.remove(key) != null) {
+      mainWeight -= entry.weight;
+    }
+  }
+
+  /** Records that a request waited for another one to load its response. */
+  void recordCoalesced() {
+    coalesced.increment();
+  }
+
+  /** The name of the module that owns this store.
+   *
+   * @return the module name, never null.
+   */
+  String getModuleName() {
+    return moduleName;
+  }
+
+  /** The number of lookups that found a response.
+   *
+   * @return the number of hits.
+   */
+  long getHits() {
+    return hits.sum();
+  }
+
+  /** The number of lookups that did not find a response.
+   *
+   * @return the number of misses.
+   */
+  long getMisses() {
+    return misses.sum();
+  }
+
+  /** The number of requests that waited for another request to load the
+   * same response, instead of processing the request.
+   *
+   * @return the number of coalesced requests.
+   */
+  long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  /** The number of responses evicted or not admitted by the eviction
+   * policy.
+   *
+   * @return the number of evictions.
+   */
+  long getEvictions() {
+    return evictions.sum();
+  }
+
+  /** The total size of the cached responses.
+   *
+   * @return the size in bytes.
+   */
+  long getWeight() {
+    lock.lock();
+    try {
+      return windowWeight + mainWeight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** A cached response.
+   */
+  static final class Entry {
+
+    /** The content type of the response, null if none. */
+    private final String contentType;
+
+    /** The names and values of the response headers, alternating, never
+     * null. */
+    private final String[] headers;
+
+    /** The response body, never null. */
+    private final byte[] body;
+
+    /** The time this response expires, as returned by System.nanoTime. */
+    private final long expiresAt;
+
+    /** The approximate size of this response, in bytes. */
+    private final long weight;
+
+    /** Constructor, creates a cached response.
+     *
+     * @param theContentType the content type of the response, null if none.
+     *
+     * @param theHeaders the names and values of the response headers,
+     * alternating. It cannot be null.
+     *
+     * @param theBody the response body. It cannot be null.
+     *
+     * @param theExpiresAt the time this response expires, as returned by
+     * System.nanoTime.
+     */
+    Entry(final String theContentType, final String[] theHeaders,
+        final byte[] theBody, final long theExpiresAt) {
+      contentType = theContentType;
+      headers = theHeaders;
+      body = theBody;
+      expiresAt = theExpiresAt;
+      long size = body.length;
+      for (String header : headers) {
+        size += header.length();
+      }
+      weight = size;
+    }
+
+    /** The content type of the response.
+     *
+     * @return the content type, null if none.
+     */
+    String getContentType() {
+      return contentType;
+    }
+
+    /** The response headers.
+     *
+     * @return the names and values of the headers, alternating, never null.
+     */
+    String[] getHeaders() {
+      return headers;
+    }
+
+    /** The response body.
+     *
+     * @return the body, never null.
+     */
+    byte[] getBody() {
+      return body;
+    }
+  }
+}
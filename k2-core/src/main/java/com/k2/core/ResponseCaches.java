@@ -0,0 +1,50 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** The response caches of the modules.
+ *
+ * K2 provides the ResponseCacheRegistry to the modules through this factory,
+ * and reads the cached endpoints when it registers the module dispatcher
+ * servlets (see ResponseCacheFilter).
+ */
+class ResponseCaches implements RegistryFactory {
+
+  /** The registries of the modules, keyed by module name, never null. */
+  private final Map<String, ResponseCacheRegistry> registries
+      = new HashMap<>();
+
+  /** {@inheritDoc}
+   *
+   * Returns the same registry each time a module asks for it.
+   */
+  @Override
+  public synchronized ResponseCacheRegistry getRegistry(
+      final ModuleDefinition requestor) {
+    String moduleName = requestor.getModuleName();
+    ResponseCacheRegistry registry = registries.get(moduleName);
+    if (registry == null) {
+      registry = new ResponseCacheRegistry(moduleName);
+      registries.put(moduleName, registry);
+    }
+    return registry;
+  }
+
+  /** The registry of a module that caches some endpoint.
+   *
+   * @param moduleName the name of the module. It cannot be null.
+   *
+   * @return the registry, or null if the module does not cache any endpoint.
+   */
+  synchronized ResponseCacheRegistry getCachingRegistry(
+      final String moduleName) {
+    ResponseCacheRegistry registry = registries.get(moduleName);
+    if (registry == null || registry.getRules().isEmpty()) {
+      return null;
+    }
+    return registry;
+  }
+}
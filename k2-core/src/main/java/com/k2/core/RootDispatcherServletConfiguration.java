@@ -1,25 +1,158 @@
 package com.k2.core;
 
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation
+    .AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation
+    .InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation
     .ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation
     .WebMvcConfigurationSupport;
+import org.springframework.web.servlet.resource.CachingResourceResolver;
+import org.springframework.web.servlet.resource.CachingResourceTransformer;
 
 /** A spring configuration class to use in the root dispatcher servlet.
  *
- * This configuration registers a handler to server webjars.
+ * This configuration registers a handler to server webjars, and the
+ * controllers that publish the request metrics in /k2/metrics and the
+ * warm-up results in /k2/warmup.
  */
 @Configuration
 class RootDispatcherServletConfiguration extends WebMvcConfigurationSupport {
 
-  /** Registers handlers that serve the static content from webjars..
+  /** The cache-control header value for the webjar urls without the webjar
+   * version.
+   *
+   * These urls change when the application upgrades a webjar, so browsers
+   * keep them for a day, and then revalidate them with the etag.
+   */
+  static final String WEBJAR_CACHE_CONTROL = "public, max-age=86400";
+
+  /** Resolves the webjar paths without the version, never null.
+   *
+   * This lists the webjars in the classpath once, when the root dispatcher
+   * servlet starts.
+   */
+  private final WebJarResolver webJarResolver = new WebJarResolver(
+      new PathMatchingResourcePatternResolver(
+        RootDispatcherServletConfiguration.class.getClassLoader()));
+
+  /** Validates the webjar content and sets its cache headers, never null. */
+  private final StaticResourceValidator webJarValidator
+      = new StaticResourceValidator(webJarResolver::isVersioned,
+          WEBJAR_CACHE_CONTROL);
+
+  /** Registers handlers that serve the static content from webjars.
+   *
+   * Webjar files are available with or without the webjar version, like
+   * /webjars/jquery/2.2.4/jquery.min.js or /webjars/jquery/jquery.min.js.
+   * The CachingResourceResolver keeps the resolved resource of each path, and
+   * the webJarValidator keeps the content of each file the first time it is
+   * served, so later requests do not read the jar. Only the files that are
+   * requested are kept, and they stay in memory until the application stops.
+   * The urls with the version never change, so browsers can cache them for a
+   * year.
    */
   @Override
   protected void addResourceHandlers(
       final ResourceHandlerRegistry registry) {
+    Cache cache = new ConcurrentMapCache("k2.webjars");
     registry.addResourceHandler("/webjars/**")
-        .addResourceLocations("classpath:/META-INF/resources/webjars/");
+        .addResourceLocations("classpath:/" + WebJarResolver.LOCATION)
+        .resourceChain(false)
+        .addResolver(new CachingResourceResolver(cache))
+        .addResolver(webJarResolver)
+        .addTransformer(webJarValidator)
+        .addTransformer(new CachingResourceTransformer(cache));
+  }
+
+  /** Registers the interceptor that validates the webjar content.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  protected void addInterceptors(final InterceptorRegistry registry) {
+    registry.addInterceptor(webJarValidator);
   }
-}
 
+  /** The controller that publishes the request metrics.
+   *
+   * @param metrics the request metrics, from the global application context.
+   * It cannot be null.
+   *
+   * @return the controller, never null.
+   */
+  @Bean RequestMetricsController requestMetricsController(
+      final RequestMetrics metrics) {
+    return new RequestMetricsController(metrics);
+  }
+
+  /** The controller that publishes the warm-up results.
+   *
+   * @param warmups the warm-up tasks, from the global application context.
+   * It cannot be null.
+   *
+   * @return the controller, never null.
+   */
+  @Bean WarmupController warmupController(final Warmups warmups) {
+    return new WarmupController(warmups);
+  }
+
+  /** The executor that runs the Callable and WebAsyncTask results of the
+   * root dispatcher servlet handlers.
+   *
+   * Without it, spring runs them in a SimpleAsyncTaskExecutor, that creates a
+   * thread per task without limit. It is configured like the module
+   * executors (see DispatcherServletConfiguration.asyncExecutor), with the
+   * k2.root.async.coreThreads, k2.root.async.maxThreads and
+   * k2.root.async.queueCapacity properties.
+   *
+   * The threads are named k2-root-async-[n].
+   *
+   * @return the executor, never null.
+   */
+  @Bean(name = "k2.asyncExecutor")
+  public ThreadPoolTaskExecutor asyncExecutor() {
+    Environment environment = getApplicationContext().getParent()
+        .getEnvironment();
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setThreadNamePrefix("k2-root-async-");
+    executor.setCorePoolSize(environment.getProperty(
+        "k2.root.async.coreThreads", Integer.class,
+        DispatcherServletConfiguration.ASYNC_CORE_THREADS));
+    executor.setMaxPoolSize(environment.getProperty(
+        "k2.root.async.maxThreads", Integer.class,
+        DispatcherServletConfiguration.ASYNC_MAX_THREADS));
+    executor.setQueueCapacity(environment.getProperty(
+        "k2.root.async.queueCapacity", Integer.class,
+        DispatcherServletConfiguration.ASYNC_QUEUE_CAPACITY));
+    return executor;
+  }
+
+  /** Configures the asynchronous request processing of the root dispatcher
+   * servlet.
+   *
+   * Callables run in the root async executor (see asyncExecutor()). Requests
+   * that do not complete in k2.root.async.timeout milliseconds (30 seconds by
+   * default) fail with 503.
+   *
+   * {@inheritDoc}
+   */
+  @Override
+  protected void configureAsyncSupport(
+      final AsyncSupportConfigurer configurer) {
+    Environment environment = getApplicationContext().getParent()
+        .getEnvironment();
+    configurer.setDefaultTimeout(environment.getProperty(
+        "k2.root.async.timeout", Long.class,
+        DispatcherServletConfiguration.ASYNC_TIMEOUT));
+    configurer.setTaskExecutor(asyncExecutor());
+  }
+}
@@ -0,0 +1,61 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** The JFR event that k2 emits for each startup phase.
+ *
+ * This class is only loaded by StartupTimeline if the jvm supports JFR.
+ */
+@Name("com.k2.StartupPhase")
+@Label("K2 Startup Phase")
+@Category("K2")
+class StartupPhaseEvent extends Event {
+
+  /** The module name, null for application wide phases. */
+  @Label("Module")
+  private String module;
+
+  /** The phase name. */
+  @Label("Phase")
+  private String phase;
+
+  /** The number of beans involved in this phase, -1 if not known. */
+  @Label("Bean Count")
+  private int beanCount;
+
+  /** Creates and begins a new startup phase event.
+   *
+   * @param module the module name, null for application wide phases.
+   *
+   * @param phase the phase name. It cannot be null.
+   *
+   * @return the event, never null.
+   */
+  static Object begin(final String module, final String phase) {
+    StartupPhaseEvent event = new StartupPhaseEvent();
+    event.module = module;
+    event.phase = phase;
+    event.begin();
+    return event;
+  }
+
+  /** Ends and commits an event created by begin.
+   *
+   * @param event the event returned by begin. It cannot be null.
+   *
+   * @param beanCount the number of beans involved in the phase.
+   */
+  static void commit(final Object event, final int beanCount) {
+    StartupPhaseEvent startupEvent = (StartupPhaseEvent) event;
+    startupEvent.end();
+    if (startupEvent.shouldCommit()) {
+      startupEvent.beanCount = beanCount;
+      startupEvent.commit();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+/** Records how long each startup phase of a k2 application takes, per module.
+ *
+ * K2 records the following phases: registerModules, createModule, getContext,
+ * refresh, exportPublicBeans and dispatcherServlet (the initialization of the
+ * module dispatcher servlet when the servlet container starts, or on the
+ * first request for lazy modules). Each phase records the module name (null
+ * for application wide phases), its start relative to the creation of the
+ * timeline, its duration in nanoseconds and, when it makes sense, the number
+ * of beans involved.
+ *
+ * If the jvm supports JFR, each phase is also emitted as a
+ * com.k2.StartupPhase JFR event.
+ *
+ * Phases are AutoCloseable: start them in a try-with-resources block and call
+ * end when the phase succeeds. A phase closed without calling end, because
+ * the phase threw an exception, is recorded as failed.
+ *
+ * This is thread safe, modules may be refreshed in parallel.
+ *
+ * K2 registers the timeline in the global application context under the name
+ * k2.startupTimeline.
+ */
+public class StartupTimeline {
+
+  /** Whether the jvm supports JFR events. */
+  private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+  /** The time this timeline was created, as returned by System.nanoTime. */
+  private final long origin = System.nanoTime();
+
+  /** The finished phases, in the order they finished, never null. */
+  private final List<Phase> phases = new ArrayList<>();
+
+  /** Starts a new phase.
+   *
+   * @param module the name of the module, null for application wide phases.
+   *
+   * @param name the name of the phase. It cannot be null.
+   *
+   * @return the started phase, call end on it once the phase is finished.
+   * Never returns null.
+   */
+  public Phase start(final String module, final String name) {
+    Validate.notNull(name, "The phase name cannot be null.");
+    return new Phase(module, name);
+  }
+
+  /** Returns the finished phases.
+   *
+   * @return a copy of the finished phases, in the order they finished. Never
+   * returns null.
+   */
+  public List<Phase> getPhases() {
+    synchronized (phases) {
+      return new ArrayList<>(phases);
+    }
+  }
+
+  /** Writes the timeline as a json document.
+   *
+   * The document has the form:
+   *
+   * {"phases":[{"module":"m","phase":"refresh","startNanos":1,
+   *   "durationNanos":2,"beanCount":3,"failed":false}, ...]}
+   *
+   * @param writer the writer to write the json document to. It cannot be
+   * null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  public void writeJson(final Writer writer) throws IOException {
+    Validate.notNull(writer, "The writer cannot be null.");
+    JsonWriter json = new JsonWriter(writer);
+    json.beginObject().name("phases").beginArray();
+    for (Phase phase : getPhases()) {
+      json.beginObject()
+        .name("module").value(phase.module)
+        .name("phase").value(phase.name)
+        .name("startNanos").value(phase.startNanos - origin)
+        .name("durationNanos").value(phase.durationNanos)
+        .name("beanCount").value(phase.beanCount)
+        .name("failed").value(phase.failed)
+        .endObject();
+    }
+    json.endArray().endObject();
+  }
+
+  /** Determines if the jvm supports JFR events.
+   *
+   * @return true if the jdk.jfr api is available.
+   */
+  private static boolean isJfrAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /** A startup phase of a module or the application.
+   */
+  public final class Phase implements AutoCloseable {
+
+    /** The module name, null for application wide phases. */
+    private final String module;
+
+    /** The phase name, never null. */
+    private final String name;
+
+    /** The start of this phase, as returned by System.nanoTime. */
+    private final long startNanos;
+
+    /** The JFR event for this phase, null if JFR is not available. */
+    private final Object event;
+
+    /** The duration of this phase, -1 until the phase ends. */
+    private long durationNanos = -1;
+
+    /** The number of beans involved in this phase, -1 if not known. */
+    private int beanCount = -1;
+
+    /** Whether this phase was closed without calling end. */
+    private boolean failed = false;
+
+    /** Whether this phase already ended. */
+    private boolean ended = false;
+
+    /** Constructor, starts a new phase.
+     *
+     * @param theModule the module name, null for application wide phases.
+     *
+     * @param theName the phase name. It cannot be null.
+     */
+    private Phase(final String theModule, final String theName) {
+      module = theModule;
+      name = theName;
+      if (JFR_AVAILABLE) {
+        event = StartupPhaseEvent.begin(theModule, theName);
+      } else {
+        event = null;
+      }
+      startNanos = System.nanoTime();
+    }
+
+    /** Ends this phase without a bean count.
+     */
+    public void end() {
+      end(-1);
+    }
+
+    /** Ends this phase and records it in the timeline.
+     *
+     * @param theBeanCount the number of beans involved in this phase, -1 if
+     * not known.
+     */
+    public void end(final int theBeanCount) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      durationNanos = System.nanoTime() - startNanos;
+      beanCount = theBeanCount;
+      if (event != null) {
+        StartupPhaseEvent.commit(event, theBeanCount);
+      }
+      synchronized (phases) {
+        phases.add(this);
+      }
+    }
+
+    /** Ends this phase as failed, unless it already ended.
+     */
+    @Override
+    public void close() {
+      if (!ended) {
+        failed = true;
+        end(-1);
+      }
+    }
+
+    /** Whether this phase was closed without calling end.
+     *
+     * @return true if the phase failed.
+     */
+    public boolean isFailed() {
+      return failed;
+    }
+
+    /** The module name.
+     *
+     * @return the module name, null for application wide phases.
+     */
+    public String getModule() {
+      return module;
+    }
+
+    /** The phase name.
+     *
+     * @return the phase name, never null.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /** The duration of this phase.
+     *
+     * @return the duration in nanoseconds, -1 if the phase did not end.
+     */
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    /** The number of beans involved in this phase.
+     *
+     * @return the number of beans, -1 if not known.
+     */
+    public int getBeanCount() {
+      return beanCount;
+    }
+  }
+}
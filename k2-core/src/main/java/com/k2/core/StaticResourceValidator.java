@@ -0,0 +1,376 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.resource.HttpResource;
+import org.springframework.web.servlet.resource.ResourceHttpRequestHandler;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+import org.springframework.web.servlet.resource.ResourceTransformer;
+import org.springframework.web.servlet.resource.ResourceTransformerChain;
+import org.springframework.web.servlet.resource.VersionResourceResolver;
+
+/** Adds strong etags and cache headers to the module static content.
+ *
+ * K2 installs this in the /static/** resource chain of each module when the
+ * application is not in debug mode (see DispatcherServletConfiguration). As a
+ * resource transformer, it computes the md5 of the content served for each
+ * path and accepted content coding, and sends it as the etag. As a handler
+ * interceptor, it answers 304 when the request if-none-match header matches
+ * that etag, and sets the cache-control header: versioned urls, like
+ * /static/app-[md5].css, never change, so browsers can cache them for a year
+ * without revalidating. The rest must be revalidated on each use. A url is
+ * versioned only if the version resolver created by newVersionResolver
+ * matched its version with the content, so a file that happens to have a
+ * name like app-[32 hex digits].css is revalidated.
+ *
+ * This keeps the content of each transformed resource in memory, so each
+ * file is read and its etag computed once. It must be the first transformer
+ * of the chain, before the CachingResourceTransformer: that one caches by
+ * resource, and the same resource is served under a versioned and an
+ * unversioned url, with a different cache-control header.
+ *
+ * The root dispatcher servlet uses another instance for the webjars, where
+ * the versioned urls are the ones that include the webjar version.
+ */
+class StaticResourceValidator implements ResourceTransformer,
+    HandlerInterceptor {
+
+  /** The cache-control header value for versioned urls. */
+  static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+  /** The cache-control header value for urls without a version. */
+  static final String REVALIDATE = "no-cache";
+
+  /** The content codings that the resource chain serves precompressed
+   * variants for, in the order of the EncodedResourceResolver. */
+  private static final String[] CODINGS = {"br", "gzip"};
+
+  /** The etags of the resources already served, keyed by the path and the
+   * accepted content codings (see getKey), never null. */
+  private final Map<String, String> etags = new ConcurrentHashMap<>();
+
+  /** The content of the resources already transformed by the rest of the
+   * chain, keyed by the transformed resource, never null. */
+  private final Map<Resource, Content> contents = new ConcurrentHashMap<>();
+
+  /** The paths, relative to the resource handler mapping, that the version
+   * resolver created by newVersionResolver resolved by their version, never
+   * null. */
+  private final Set<String> versionedPaths = ConcurrentHashMap.newKeySet();
+
+  /** Determines if a path, relative to the resource handler mapping, is
+   * versioned. Never null. */
+  private final Predicate<String> versioned;
+
+  /** The cache-control header value for urls without a version, never
+   * null. */
+  private final String unversionedCacheControl;
+
+  /** Constructor, creates a validator for the module static content.
+   *
+   * Versioned urls are the ones resolved by the version resolver returned by
+   * newVersionResolver, and the rest must be revalidated on each use.
+   */
+  StaticResourceValidator() {
+    versioned = versionedPaths::contains;
+    unversionedCacheControl = REVALIDATE;
+  }
+
+  /** Constructor, creates a validator.
+   *
+   * @param isVersioned determines if a path, relative to the resource handler
+   * mapping, is versioned. It cannot be null.
+   *
+   * @param theUnversionedCacheControl the cache-control header value for the
+   * urls without a version. It cannot be null.
+   */
+  StaticResourceValidator(final Predicate<String> isVersioned,
+      final String theUnversionedCacheControl) {
+    Validate.notNull(isVersioned, "The version predicate cannot be null.");
+    Validate.notNull(theUnversionedCacheControl,
+        "The cache control cannot be null.");
+    versioned = isVersioned;
+    unversionedCacheControl = theUnversionedCacheControl;
+  }
+
+  /** Creates a version resolver that records the paths it resolves by their
+   * version.
+   *
+   * The resolver first looks for a file with the requested name, like the
+   * VersionResourceResolver, and if there is none, it strips the version and
+   * checks it against the content. Only the paths resolved in the second way
+   * get the immutable cache-control header.
+   *
+   * @return a resolver without version strategies, never null.
+   */
+  VersionResourceResolver newVersionResolver() {
+    return new VersionResourceResolver() {
+      @Override
+      protected Resource resolveResourceInternal(
+          final HttpServletRequest request, final String requestPath,
+          final List<? extends Resource> locations,
+          final ResourceResolverChain chain) {
+        Resource resource = chain.resolveResource(request, requestPath,
+            locations);
+        if (resource == null) {
+          resource = super.resolveResourceInternal(request, requestPath,
+              locations, chain);
+          if (resource != null) {
+            versionedPaths.add(requestPath);
+          }
+        }
+        return resource;
+      }
+    };
+  }
+
+  /** {@inheritDoc}
+   *
+   * Wraps the resource transformed by the rest of the chain in a resource
+   * that holds its content in memory and sends its md5 as the etag.
+   */
+  @Override
+  public Resource transform(final HttpServletRequest request,
+      final Resource resource, final ResourceTransformerChain chain)
+      throws IOException {
+    Resource transformed = chain.transform(request, resource);
+    Content content = contents.get(transformed);
+    if (content == null) {
+      try (InputStream in = transformed.getInputStream()) {
+        content = new Content(StreamUtils.copyToByteArray(in));
+      }
+      contents.put(transformed, content);
+    }
+    etags.put(getKey(request), content.etag);
+    String path = (String) request.getAttribute(
+        HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+    String cacheControl = unversionedCacheControl;
+    if (path != null && versioned.test(path)) {
+      cacheControl = IMMUTABLE;
+    }
+    return new ValidatedResource(transformed, content, cacheControl);
+  }
+
+  /** {@inheritDoc}
+   *
+   * Sets the cache-control header of the static content and answers 304 when
+   * the client already has the last version of the resource.
+   */
+  @Override
+  public boolean preHandle(final HttpServletRequest request,
+      final HttpServletResponse response, final Object handler) {
+    if (!(handler instanceof ResourceHttpRequestHandler)) {
+      return true;
+    }
+    String path = (String) request.getAttribute(
+        HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+    if (path == null) {
+      return true;
+    }
+    if (versioned.test(path)) {
+      response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE);
+    } else {
+      response.setHeader(HttpHeaders.CACHE_CONTROL, unversionedCacheControl);
+    }
+    String etag = etags.get(getKey(request));
+    if (etag != null) {
+      return !new ServletWebRequest(request, response).checkNotModified(etag);
+    }
+    return true;
+  }
+
+  /** Obtains the key of the resource served for a request.
+   *
+   * The resource chain selects the precompressed variant from the
+   * accept-encoding header, so the key includes the content codings accepted
+   * by the client.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @return the key, never null.
+   */
+  private static String getKey(final HttpServletRequest request) {
+    StringBuilder key = new StringBuilder();
+    key.append(request.getAttribute(
+          HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE));
+    String accepted = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+    if (accepted != null) {
+      accepted = accepted.toLowerCase(Locale.ENGLISH);
+      for (String coding : CODINGS) {
+        if (accepted.contains(coding)) {
+          key.append('+').append(coding);
+        }
+      }
+    }
+    return key.toString();
+  }
+
+  /** The content of a resource and its etag.
+   */
+  private static final class Content {
+
+    /** The content, never null. */
+    private final byte[] bytes;
+
+    /** The etag, the quoted md5 of the content, never null. */
+    private final String etag;
+
+    /** Constructor, creates a content and computes its etag.
+     *
+     * @param theBytes the content. It cannot be null.
+     */
+    private Content(final byte[] theBytes) {
+      bytes = theBytes;
+      etag = "\"" + DigestUtils.md5DigestAsHex(bytes) + "\"";
+    }
+  }
+
+  /** A resource that serves the content of the wrapped resource from memory
+   * and adds an etag and the cache-control to its response headers.
+   *
+   * The cache-control header is also set in preHandle, but the first request
+   * for a path runs preHandle before the path is resolved, so this is the one
+   * that sets it for that request.
+   */
+  private static final class ValidatedResource extends AbstractResource
+      implements HttpResource {
+
+    /** The wrapped resource, never null. */
+    private final Resource resource;
+
+    /** The content of the wrapped resource and its etag, never null. */
+    private final Content content;
+
+    /** The cache-control header value, never null. */
+    private final String cacheControl;
+
+    /** Constructor, creates a validated resource.
+     *
+     * @param theResource the wrapped resource. It cannot be null.
+     *
+     * @param theContent the content of the wrapped resource and its etag. It
+     * cannot be null.
+     *
+     * @param theCacheControl the cache-control header value. It cannot be
+     * null.
+     */
+    private ValidatedResource(final Resource theResource,
+        final Content theContent, final String theCacheControl) {
+      resource = theResource;
+      content = theContent;
+      cacheControl = theCacheControl;
+    }
+
+    /** {@inheritDoc}
+     *
+     * Adds the etag to the headers of the wrapped resource, like the
+     * content-encoding of the precompressed variants.
+     */
+    @Override
+    public HttpHeaders getResponseHeaders() {
+      HttpHeaders headers = new HttpHeaders();
+      if (resource instanceof HttpResource) {
+        headers.putAll(((HttpResource) resource).getResponseHeaders());
+      }
+      headers.setETag(content.etag);
+      headers.setCacheControl(cacheControl);
+      return headers;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean exists() {
+      return resource.exists();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isReadable() {
+      return resource.isReadable();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public URL getURL() throws IOException {
+      return resource.getURL();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public URI getURI() throws IOException {
+      return resource.getURI();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public File getFile() throws IOException {
+      return resource.getFile();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long contentLength() {
+      return content.bytes.length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long lastModified() throws IOException {
+      return resource.lastModified();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Resource createRelative(final String relativePath)
+        throws IOException {
+      return resource.createRelative(relativePath);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getFilename() {
+      return resource.getFilename();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDescription() {
+      return resource.getDescription();
+    }
+
+    /** {@inheritDoc}
+     *
+     * Reads the content from memory.
+     */
+    @Override
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(content.bytes);
+    }
+  }
+}
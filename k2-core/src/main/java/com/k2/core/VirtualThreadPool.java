@@ -0,0 +1,135 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import org.apache.commons.lang3.Validate;
+
+/** A jetty thread pool that keeps platform threads for the jetty acceptors
+ * and selectors and runs every other task in a new virtual thread.
+ *
+ * K2 uses this pool when jetty.threadMode is 'virtual'. Request handlers that
+ * block, on jdbc for example, do not hold a platform thread, so the number of
+ * concurrent requests is not limited by jetty.maxThreads.
+ *
+ * The acceptors and the selectors run for the life of the server and spend
+ * their time blocked in accept and select, so they stay in the platform
+ * threads of the QueuedThreadPool this extends, and jetty.maxThreads only
+ * sizes that part. This pool has no reserved threads: a selector that finds a
+ * request cannot hand its production to a reserved platform thread and run
+ * the request itself, so every request goes through execute and runs in a
+ * virtual thread.
+ *
+ * Jetty 9.4 has no hook to tell these tasks apart, so this recognizes the
+ * acceptor and selector tasks by their class.
+ *
+ * Virtual threads need jdk 21 or later. K2 is compiled for java 8, so it finds
+ * the virtual thread api by reflection: create returns null on older jdks and
+ * k2 falls back to QueuedThreadPool.
+ *
+ * The concurrency is then limited by the resources that the requests use.
+ * With hibernate, each request that opens a transaction holds a tomcat-jdbc
+ * connection, and requests wait for a connection for up to datasource.maxWait
+ * milliseconds. Size datasource.maxActive to what the database supports, not
+ * to the expected number of concurrent requests, and keep datasource.maxWait
+ * low so that excess requests fail fast instead of piling up.
+ */
+class VirtualThreadPool extends QueuedThreadPool {
+
+  /** The prefixes of the class names of the tasks that run in a platform
+   * thread, the jetty acceptors and selectors. */
+  private static final String[] PLATFORM_TASKS = {
+    "org.eclipse.jetty.server.AbstractConnector$Acceptor",
+    "org.eclipse.jetty.io.ManagedSelector"
+  };
+
+  /** The number of seconds to wait for running tasks on stop. */
+  private static final int STOP_TIMEOUT = 30;
+
+  /** The executor that creates a virtual thread per task, never null. */
+  private final ExecutorService executor;
+
+  /** Constructor, creates a virtual thread pool.
+   *
+   * @param theExecutor the executor that creates a virtual thread per task.
+   * It cannot be null.
+   */
+  VirtualThreadPool(final ExecutorService theExecutor) {
+    Validate.notNull(theExecutor, "The executor cannot be null.");
+    executor = theExecutor;
+    setReservedThreads(0);
+  }
+
+  /** Creates a virtual thread pool if the jvm supports virtual threads.
+   *
+   * The virtual threads are named k2-virtual-[n].
+   *
+   * @return the pool, or null if the jvm does not support virtual threads.
+   */
+  static VirtualThreadPool create() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+        .invoke(builder, "k2-virtual-", 0L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod(
+          "factory").invoke(builder);
+      Method newExecutor = Executors.class.getMethod(
+          "newThreadPerTaskExecutor", ThreadFactory.class);
+      return new VirtualThreadPool(
+          (ExecutorService) newExecutor.invoke(null, factory));
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  /** {@inheritDoc}
+   *
+   * Runs the jetty acceptors and selectors in a platform thread, and any other
+   * task in a new virtual thread.
+   */
+  @Override
+  public void execute(final Runnable task) {
+    if (isPlatformTask(task)) {
+      super.execute(task);
+    } else {
+      executor.execute(task);
+    }
+  }
+
+  /** Checks if a task must run in a platform thread.
+   *
+   * @param task the task to check. It cannot be null.
+   *
+   * @return true for the jetty acceptors and selectors.
+   */
+  private static boolean isPlatformTask(final Runnable task) {
+    String className = task.getClass().getName();
+    for (String prefix : PLATFORM_TASKS) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** {@inheritDoc}
+   *
+   * Stops the platform threads and waits for the virtual threads to finish.
+   */
+  @Override
+  protected void doStop() throws Exception {
+    super.doStop();
+    executor.shutdown();
+    if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS)) {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/** The controller, in the root dispatcher servlet, that publishes the results
+ * of the warm-up tasks.
+ */
+@Controller
+class WarmupController {
+
+  /** The warm-up tasks, never null. */
+  private final Warmups warmups;
+
+  /** Constructor, creates the controller.
+   *
+   * @param theWarmups the warm-up tasks to publish. It cannot be null.
+   */
+  WarmupController(final Warmups theWarmups) {
+    Validate.notNull(theWarmups, "The warmups cannot be null.");
+    warmups = theWarmups;
+  }
+
+  /** Writes the warm-up results in json.
+   *
+   * @param response the response to write the results to. It cannot be null.
+   *
+   * @throws IOException in case of error writing the response.
+   */
+  @RequestMapping(value = "/k2/warmup", method = RequestMethod.GET)
+  public void json(final HttpServletResponse response) throws IOException {
+    response.setContentType("application/json;charset=UTF-8");
+    warmups.writeJson(response.getWriter());
+  }
+}
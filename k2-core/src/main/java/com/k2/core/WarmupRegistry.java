@@ -0,0 +1,132 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.context.ApplicationContext;
+
+/** The registry that modules use to warm up before the application accepts
+ * requests.
+ *
+ * The first requests after a deploy are slow: the jit did not compile the
+ * code yet, the connection pools are empty, the query plans and templates are
+ * not loaded. Modules obtain this registry from the module context and add
+ * tasks that exercise those paths, for example:
+ *
+ * WarmupRegistry warmup = moduleContext.get(WarmupRegistry.class);
+ * warmup.add("countries", context ->
+ *     context.getBean(CountryRepository.class).findAll());
+ *
+ * K2 runs the tasks of all the modules in parallel once the modules are
+ * refreshed, before jetty opens its port, within a time budget (see
+ * Warmups). A task that fails or does not finish in time does not stop the
+ * application.
+ *
+ * Lazy modules are not warmed up, they are refreshed on demand.
+ */
+public class WarmupRegistry {
+
+  /** The module that owns this registry, never null. */
+  private final ModuleDefinition module;
+
+  /** The tasks of the module, in registration order, never null. */
+  private final List<Entry> tasks = new LinkedList<>();
+
+  /** Constructor, creates a registry for a module.
+   *
+   * @param theModule the module that owns this registry. It cannot be null.
+   */
+  WarmupRegistry(final ModuleDefinition theModule) {
+    Validate.notNull(theModule, "The module cannot be null.");
+    module = theModule;
+  }
+
+  /** Adds a warm-up task.
+   *
+   * @param name the name of the task, to identify it in the logs and the
+   * results. It cannot be null.
+   *
+   * @param task the task to run. It cannot be null.
+   */
+  public void add(final String name, final Task task) {
+    Validate.notNull(name, "The name cannot be null.");
+    Validate.notNull(task, "The task cannot be null.");
+    tasks.add(new Entry(name, task));
+  }
+
+  /** The module that owns this registry.
+   *
+   * @return the module, never null.
+   */
+  ModuleDefinition getModule() {
+    return module;
+  }
+
+  /** The tasks of the module.
+   *
+   * @return the tasks in registration order, never null.
+   */
+  List<Entry> getTasks() {
+    return tasks;
+  }
+
+  /** A warm-up task.
+   */
+  @FunctionalInterface
+  public interface Task {
+
+    /** Warms up the module.
+     *
+     * Tasks run in a k2 thread, and are interrupted when the warm-up time
+     * budget runs out.
+     *
+     * @param moduleContext the refreshed application context of the module.
+     * It is never null.
+     *
+     * @throws Exception in case of error. K2 logs the error and goes on.
+     */
+    void warmup(ApplicationContext moduleContext) throws Exception;
+  }
+
+  /** A named warm-up task.
+   */
+  static final class Entry {
+
+    /** The name of the task, never null. */
+    private final String name;
+
+    /** The task, never null. */
+    private final Task task;
+
+    /** Constructor, creates a named task.
+     *
+     * @param theName the name of the task. It cannot be null.
+     *
+     * @param theTask the task. It cannot be null.
+     */
+    private Entry(final String theName, final Task theTask) {
+      name = theName;
+      task = theTask;
+    }
+
+    /** The name of the task.
+     *
+     * @return the name, never null.
+     */
+    String getName() {
+      return name;
+    }
+
+    /** The task.
+     *
+     * @return the task, never null.
+     */
+    Task getTask() {
+      return task;
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.commons.lang3.Validate;
+
+import org.springframework.core.env.Environment;
+
+/** The warm-up tasks of the modules.
+ *
+ * K2 provides the WarmupRegistry to the modules through this factory, and
+ * runs the tasks once all the modules are refreshed. In a web environment,
+ * this happens before jetty opens its connectors, so no request arrives
+ * before the warm-up ends.
+ *
+ * The tasks run in parallel, in a pool of k2.warmup.threads threads (defaults
+ * to the number of available processors), for at most k2.warmup.budget
+ * milliseconds (defaults to 30000). When the budget runs out, k2 interrupts
+ * the tasks that did not finish and starts the application. A budget of 0
+ * disables the warm-up.
+ *
+ * K2 logs the result of each task, records them in the startup timeline
+ * (phase warmup), and publishes them in /k2/warmup. K2 registers this object
+ * in the global application context under the name k2.warmups.
+ */
+class Warmups implements RegistryFactory {
+
+  /** The name of this object in the global application context. */
+  static final String BEAN_NAME = "k2.warmups";
+
+  /** The default time budget of the warm-up, in milliseconds. */
+  private static final long DEFAULT_BUDGET = 30000;
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(Warmups.class);
+
+  /** The timeline to record the tasks in, never null. */
+  private final StartupTimeline timeline;
+
+  /** The registries of the modules, keyed by module name, never null. */
+  private final Map<String, WarmupRegistry> registries
+      = new LinkedHashMap<>();
+
+  /** The results of the last warm-up, in registration order, never null. */
+  private List<Result> results = new ArrayList<>();
+
+  /** The time budget of the last warm-up in milliseconds, 0 if it did not
+   * run. */
+  private long budget = 0;
+
+  /** The duration of the last warm-up, in nanoseconds. */
+  private long durationNanos = 0;
+
+  /** Constructor, creates the warm-up tasks of an application.
+   *
+   * @param theTimeline the timeline to record the tasks in. It cannot be
+   * null.
+   */
+  Warmups(final StartupTimeline theTimeline) {
+    Validate.notNull(theTimeline, "The timeline cannot be null.");
+    timeline = theTimeline;
+  }
+
+  /** {@inheritDoc}
+   *
+   * Returns the same registry each time a module asks for it.
+   */
+  @Override
+  public synchronized WarmupRegistry getRegistry(
+      final ModuleDefinition requestor) {
+    String moduleName = requestor.getModuleName();
+    WarmupRegistry registry = registries.get(moduleName);
+    if (registry == null) {
+      registry = new WarmupRegistry(requestor);
+      registries.put(moduleName, registry);
+    }
+    return registry;
+  }
+
+  /** Runs the warm-up tasks of the refreshed modules.
+   *
+   * This waits until all the tasks finish or the time budget runs out.
+   *
+   * @param environment the environment to read the k2.warmup.* properties
+   * from. It cannot be null.
+   */
+  void run(final Environment environment) {
+    Validate.notNull(environment, "The environment cannot be null.");
+    long theBudget = environment.getProperty("k2.warmup.budget", Long.class,
+        DEFAULT_BUDGET);
+    int threads = environment.getProperty("k2.warmup.threads",
+        Integer.class, Runtime.getRuntime().availableProcessors());
+    Validate.isTrue(theBudget >= 0, "k2.warmup.budget cannot be negative");
+    Validate.isTrue(threads > 0, "k2.warmup.threads must be positive");
+
+    List<Result> theResults = new ArrayList<>();
+    List<Callable<Result>> tasks = new ArrayList<>();
+    synchronized (this) {
+      for (WarmupRegistry registry : registries.values()) {
+        ModuleDefinition module = registry.getModule();
+        for (WarmupRegistry.Entry entry : registry.getTasks()) {
+          Result result = new Result(module.getModuleName(), entry.getName());
+          theResults.add(result);
+          if (module.isLazy()) {
+            result.status = Status.SKIPPED;
+          } else {
+            tasks.add(() -> warmup(module, entry, result));
+          }
+        }
+      }
+    }
+    if (tasks.isEmpty() || theBudget == 0) {
+      for (Result result : theResults) {
+        result.status = Status.SKIPPED;
+      }
+      synchronized (this) {
+        results = theResults;
+      }
+      return;
+    }
+
+    log.info("Warming up {} tasks, budget {} ms", tasks.size(), theBudget);
+    StartupTimeline.Phase phase = timeline.start(null, "warmup");
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(threads, tasks.size()), new WarmupThreadFactory());
+    try {
+      runTasks(executor, tasks, theBudget);
+      phase.end(tasks.size());
+    } finally {
+      executor.shutdownNow();
+      phase.close();
+    }
+
+    synchronized (this) {
+      budget = theBudget;
+      durationNanos = System.nanoTime() - start;
+      results = theResults;
+    }
+    log.info("Warm-up finished in {} ms",
+        TimeUnit.NANOSECONDS.toMillis(durationNanos));
+  }
+
+  /** Runs the warm-up tasks, waiting for them at most the budget.
+   *
+   * @param executor the executor to run the tasks in. It cannot be null.
+   *
+   * @param tasks the tasks to run. It cannot be null.
+   *
+   * @param theBudget the maximum time to wait for the tasks, in
+   * milliseconds.
+   */
+  private void runTasks(final ExecutorService executor,
+      final List<Callable<Result>> tasks, final long theBudget) {
+    try {
+      for (Future<Result> future
+          : executor.invokeAll(tasks, theBudget, TimeUnit.MILLISECONDS)) {
+        try {
+          future.get();
+        } catch (CancellationException | ExecutionException e) {
+          // The task did not finish in time, its result says so.
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Runs a warm-up task.
+   *
+   * @param module the module that registered the task. It cannot be null.
+   *
+   * @param entry the task to run. It cannot be null.
+   *
+   * @param result the result to update. It cannot be null.
+   *
+   * @return the result, never null.
+   */
+  private Result warmup(final ModuleDefinition module,
+      final WarmupRegistry.Entry entry, final Result result) {
+    StartupTimeline.Phase phase = timeline.start(module.getModuleName(),
+        "warmup");
+    long start = System.nanoTime();
+    result.status = Status.RUNNING;
+    try {
+      entry.getTask().warmup(module.getContext());
+      result.status = Status.OK;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.status = Status.TIMEOUT;
+    } catch (Exception e) {
+      result.status = Status.FAILED;
+      log.warn("Warm-up task " + module.getModuleName() + "/"
+          + entry.getName() + " failed", e);
+    } finally {
+      result.durationNanos = System.nanoTime() - start;
+      if (result.status == Status.OK) {
+        phase.end();
+      } else {
+        phase.close();
+      }
+    }
+    log.info("Warm-up task {}/{}: {} in {} ms", module.getModuleName(),
+        entry.getName(), result.status,
+        TimeUnit.NANOSECONDS.toMillis(result.durationNanos));
+    return result;
+  }
+
+  /** Returns the results of the last warm-up.
+   *
+   * The tasks that are still running when the budget runs out are reported
+   * as TIMEOUT.
+   *
+   * @return the result of each task, in registration order. Never returns
+   * null.
+   */
+  synchronized List<Result> getResults() {
+    List<Result> copy = new ArrayList<>();
+    for (Result result : results) {
+      copy.add(result.snapshot());
+    }
+    return copy;
+  }
+
+  /** Writes the results of the last warm-up as a json document.
+   *
+   * The document has the form:
+   *
+   * {"budgetMillis":30000,"durationNanos":1,"tasks":[{"module":"m",
+   *   "task":"t","status":"OK","durationNanos":2}, ...]}
+   *
+   * @param writer the writer to write the json document to. It cannot be
+   * null.
+   *
+   * @throws IOException if the document could not be written.
+   */
+  void writeJson(final Writer writer) throws IOException {
+    Validate.notNull(writer, "The writer cannot be null.");
+    long theBudget;
+    long theDuration;
+    synchronized (this) {
+      theBudget = budget;
+      theDuration = durationNanos;
+    }
+    JsonWriter json = new JsonWriter(writer);
+    json.beginObject()
+      .name("budgetMillis").value(theBudget)
+      .name("durationNanos").value(theDuration)
+      .name("tasks").beginArray();
+    for (Result result : getResults()) {
+      json.beginObject()
+        .name("module").value(result.module)
+        .name("task").value(result.task)
+        .name("status").value(result.status.name())
+        .name("durationNanos").value(result.durationNanos)
+        .endObject();
+    }
+    json.endArray().endObject();
+  }
+
+  /** The outcome of a warm-up task. */
+  enum Status {
+    /** The task did not start before the budget ran out. */
+    PENDING,
+    /** The task did not finish before the budget ran out. */
+    RUNNING,
+    /** The task finished. */
+    OK,
+    /** The task threw an exception. */
+    FAILED,
+    /** The task was interrupted when the budget ran out. */
+    TIMEOUT,
+    /** The task belongs to a lazy module or the warm-up is disabled, so it
+     * did not run. */
+    SKIPPED
+  }
+
+  /** The result of a warm-up task.
+   */
+  static final class Result {
+
+    /** The name of the module that registered the task, never null. */
+    private final String module;
+
+    /** The name of the task, never null. */
+    private final String task;
+
+    /** The outcome of the task, never null. */
+    private volatile Status status = Status.PENDING;
+
+    /** The time the task took, in nanoseconds, -1 if it did not finish. */
+    private volatile long durationNanos = -1;
+
+    /** Constructor, creates a pending result.
+     *
+     * @param theModule the name of the module. It cannot be null.
+     *
+     * @param theTask the name of the task. It cannot be null.
+     */
+    private Result(final String theModule, final String theTask) {
+      module = theModule;
+      task = theTask;
+    }
+
+    /** Copies this result, reporting the unfinished tasks as TIMEOUT.
+     *
+     * @return the copy, never null.
+     */
+    private Result snapshot() {
+      Result copy = new Result(module, task);
+      copy.status = status;
+      if (status == Status.PENDING || status == Status.RUNNING) {
+        copy.status = Status.TIMEOUT;
+      }
+      copy.durationNanos = durationNanos;
+      return copy;
+    }
+
+    /** The name of the module that registered the task.
+     *
+     * @return the module name, never null.
+     */
+    String getModule() {
+      return module;
+    }
+
+    /** The name of the task.
+     *
+     * @return the task name, never null.
+     */
+    String getTask() {
+      return task;
+    }
+
+    /** The outcome of the task.
+     *
+     * @return the status, never null.
+     */
+    Status getStatus() {
+      return status;
+    }
+
+    /** The time the task took.
+     *
+     * @return the duration in nanoseconds, -1 if the task did not finish.
+     */
+    long getDurationNanos() {
+      return durationNanos;
+    }
+  }
+
+  /** Creates the threads that run the warm-up tasks, named k2-warmup-n.
+   */
+  private static class WarmupThreadFactory implements ThreadFactory {
+
+    /** The number of the next thread to create. */
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    /** {@inheritDoc} */
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      Thread thread = new Thread(runnable,
+          "k2-warmup-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
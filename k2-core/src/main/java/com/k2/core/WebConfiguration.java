@@ -2,11 +2,16 @@
 
 package com.k2.core;
 
+import org.apache.commons.lang3.Validate;
+
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.AbstractConfiguration;
 import org.eclipse.jetty.webapp.WebAppContext;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 
@@ -25,6 +30,14 @@ import org.springframework.context.annotation.Bean;
  */
 public class WebConfiguration {
 
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(WebConfiguration.class);
+
+  /** The default mime types of the responses that jetty compresses. */
+  static final String COMPRESSED_MIME_TYPES = "text/html,text/xml,text/plain,"
+      + "text/css,text/javascript,application/javascript,application/json,"
+      + "application/xml";
+
   /** Configures the embedded servlet container implementation.
    *
    * This bean creates and configures a jetty embedded server. The server will
@@ -36,6 +49,17 @@ public class WebConfiguration {
    * @param contextPath the jetty context path. Defaults to the root context
    * path if not specified.
    *
+   * @param acceptors the number of threads that accept connections, -1 for
+   * the jetty default (based on the number of cpus).
+   *
+   * @param selectors the number of threads that select on the connections
+   * ready for io, -1 for the jetty default (based on the number of cpus).
+   *
+   * @param threadMode 'platform' to handle requests in a QueuedThreadPool,
+   * limited by jetty.maxThreads, or 'virtual' to handle each request in a new
+   * virtual thread (see VirtualThreadPool). K2 falls back to platform threads
+   * if the jvm does not support virtual threads.
+   *
    * @param serverCustomizer a the server customizer that configures specific
    * options in jetty. See serverCustomizer(...). It cannot be null.
    *
@@ -44,11 +68,29 @@ public class WebConfiguration {
   @Bean public ConfigurableServletWebServerFactory servletContainer(
       @Value("${server.port:8081}") final int port,
       @Value("${server.contextPath:}") final String contextPath,
+      @Value("${jetty.acceptors:-1}") final String acceptors,
+      @Value("${jetty.selectors:-1}") final String selectors,
+      @Value("${jetty.threadMode:platform}") final String threadMode,
       final JettyServerCustomizer serverCustomizer) {
 
+    Validate.isTrue("platform".equals(threadMode)
+        || "virtual".equals(threadMode),
+        "jetty.threadMode must be platform or virtual, found " + threadMode);
+
     JettyServletWebServerFactory factory;
     factory = new JettyServletWebServerFactory("", port);
     factory.setContextPath(contextPath);
+    factory.setAcceptors(Integer.valueOf(acceptors));
+    factory.setSelectors(Integer.valueOf(selectors));
+    if ("virtual".equals(threadMode)) {
+      VirtualThreadPool pool = VirtualThreadPool.create();
+      if (pool == null) {
+        log.warn("jetty.threadMode is virtual but this jvm does not support"
+            + " virtual threads, using a QueuedThreadPool.");
+      } else {
+        factory.setThreadPool(pool);
+      }
+    }
     factory.addServerCustomizers(serverCustomizer);
     factory.addConfigurations(new AbstractConfiguration() {
       @Override
@@ -62,6 +104,11 @@ public class WebConfiguration {
   }
 
   /** Jetty server customizer.
+   *
+   * Configures the thread pool, the connectors (see ConnectorCustomizer) and
+   * the response compression (see CompressionCustomizer). When jetty uses
+   * virtual threads, the thread pool options only size the platform threads
+   * of the acceptors and selectors.
    *
    * @param minThreads the minimum number of active threads.
    *
@@ -71,20 +118,81 @@ public class WebConfiguration {
    * for longer than this period may be stopped. Delegated to the named or
    * anonymous Pool.
    *
+   * @param acceptQueueSize the size of the queue of connections waiting to be
+   * accepted, 0 for the os default.
+   *
+   * @param outputBufferSize the size of the response buffer, 0 for the jetty
+   * default (32k).
+   *
+   * @param outputAggregationSize the maximum size of the response writes that
+   * jetty aggregates before writing to the network, 0 for the jetty default
+   * (a quarter of the output buffer size).
+   *
+   * @param h2c true to accept http/2 cleartext connections. This needs
+   * org.eclipse.jetty.http2:http2-server in the classpath.
+   *
+   * @param contextPath the jetty context path, "" for the root context.
+   *
+   * @param compression true to compress the responses with gzip, from the
+   * jetty.compression.enabled property. It is false by default: compressing
+   * a response that reflects request data next to a secret, like a csrf
+   * token, lets an attacker guess the secret from the compressed sizes
+   * (BREACH). Modules can still enable it for their own paths (see
+   * CompressionRegistry).
+   *
+   * @param compressionMinSize the minimum size of the responses to compress,
+   * in bytes.
+   *
+   * @param compressionMimeTypes the comma separated list of mime types of the
+   * responses to compress.
+   *
+   * @param compressionExcludedPaths the comma separated list of paths, like
+   * /k2/metrics/*, whose responses are never compressed. Empty for none.
+   *
+   * @param compressionPolicies the compression policies of the modules, that
+   * override the previous options for the module paths. It cannot be null.
+   *
    * @return a jetty servlet customizer, never returns null.
    */
   @Bean
   public JettyServerCustomizer serverCustomizer(
       @Value("${jetty.minThreads:50}") final String minThreads,
       @Value("${jetty.maxThreads:300}") final String maxThreads,
-      @Value("${jetty.idleTime:60000}") final String idleTimeOut) {
+      @Value("${jetty.idleTime:60000}") final String idleTimeOut,
+      @Value("${jetty.acceptQueueSize:0}") final String acceptQueueSize,
+      @Value("${jetty.outputBufferSize:0}") final String outputBufferSize,
+      @Value("${jetty.outputAggregationSize:0}")
+      final String outputAggregationSize,
+      @Value("${jetty.h2c:false}") final String h2c,
+      @Value("${server.contextPath:}") final String contextPath,
+      @Value("${jetty.compression.enabled:false}") final String compression,
+      @Value("${jetty.compression.minSize:2048}")
+      final String compressionMinSize,
+      @Value("${jetty.compression.mimeTypes:" + COMPRESSED_MIME_TYPES + "}")
+      final String[] compressionMimeTypes,
+      @Value("${jetty.compression.excludedPaths:}")
+      final String[] compressionExcludedPaths,
+      @Qualifier("k2.compressionPolicies")
+      final CompressionPolicies compressionPolicies) {
+    final ConnectorCustomizer connectorCustomizer = new ConnectorCustomizer(
+        Integer.valueOf(acceptQueueSize), Integer.valueOf(outputBufferSize),
+        Integer.valueOf(outputAggregationSize), Boolean.valueOf(h2c));
+    final CompressionCustomizer compressionCustomizer
+        = new CompressionCustomizer(contextPath, Boolean.valueOf(compression),
+            Integer.valueOf(compressionMinSize), compressionMimeTypes,
+            compressionExcludedPaths,
+            compressionPolicies.getCustomizedRegistries());
     JettyServerCustomizer customizer = new JettyServerCustomizer() {
       @Override
       public void customize(final Server pServer) {
         QueuedThreadPool pool = pServer.getBean(QueuedThreadPool.class);
-        pool.setMinThreads(Integer.valueOf(minThreads));
-        pool.setMaxThreads(Integer.valueOf(maxThreads));
-        pool.setIdleTimeout(Integer.valueOf(idleTimeOut));
+        if (pool != null) {
+          pool.setMinThreads(Integer.valueOf(minThreads));
+          pool.setMaxThreads(Integer.valueOf(maxThreads));
+          pool.setIdleTimeout(Integer.valueOf(idleTimeOut));
+        }
+        connectorCustomizer.customize(pServer);
+        compressionCustomizer.customize(pServer);
       }
     };
     return customizer;
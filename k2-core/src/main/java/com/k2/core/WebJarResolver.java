@@ -0,0 +1,146 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.Validate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.web.servlet.resource.AbstractResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+
+/** Resolves webjar paths without the webjar version.
+ *
+ * Webjars place their files in META-INF/resources/webjars/[name]/[version]/.
+ * This resolver maps [name]/[file] to [name]/[version]/[file], so the
+ * applications can refer to webjar files without hardcoding the version, for
+ * example /webjars/jquery/jquery.min.js. Paths that already include the
+ * version are resolved unchanged.
+ *
+ * The webjar versions are found once, when this resolver is created, by
+ * listing the webjar directories in the classpath. If the classpath contains
+ * more than one version of a webjar, this resolver uses the first one.
+ */
+class WebJarResolver extends AbstractResourceResolver {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(WebJarResolver.class);
+
+  /** The location of the webjars in the classpath. */
+  static final String LOCATION = "META-INF/resources/webjars/";
+
+  /** The version of each webjar, keyed by the webjar name, never null. */
+  private final Map<String, String> versions;
+
+  /** Constructor, creates a resolver for the webjars in the classpath.
+   *
+   * @param resolver the resolver used to list the webjars. It cannot be null.
+   */
+  WebJarResolver(final ResourcePatternResolver resolver) {
+    Validate.notNull(resolver, "The resource resolver cannot be null.");
+    Map<String, String> index = new TreeMap<>();
+    Resource[] directories;
+    try {
+      directories = resolver.getResources(
+          ResourcePatternResolver.CLASSPATH_ALL_URL_PREFIX + LOCATION + "*/*/");
+    } catch (IOException e) {
+      throw new RuntimeException("Error listing the webjars", e);
+    }
+    for (Resource directory : directories) {
+      String url;
+      try {
+        url = directory.getURL().toString();
+      } catch (IOException e) {
+        throw new RuntimeException("Error listing the webjars", e);
+      }
+      // url ends with [name]/[version]/.
+      String[] path = url.substring(url.lastIndexOf(LOCATION)
+          + LOCATION.length()).split("/");
+      if (path.length != 2) {
+        log.debug("Ignoring {}, not a webjar directory", url);
+        continue;
+      }
+      String previous = index.putIfAbsent(path[0], path[1]);
+      if (previous != null && !previous.equals(path[1])) {
+        log.warn("Found versions {} and {} of webjar {}, using {}.", previous,
+            path[1], path[0], previous);
+      }
+    }
+    log.debug("Found webjars {}", index);
+    versions = Collections.unmodifiableMap(index);
+  }
+
+  /** Determines if a webjar path includes the webjar version.
+   *
+   * @param path the path of the webjar file, relative to the webjars
+   * location. It cannot be null.
+   *
+   * @return true if the path starts with the name and the version of a
+   * webjar in the classpath.
+   */
+  boolean isVersioned(final String path) {
+    int separator = path.indexOf('/');
+    if (separator == -1) {
+      return false;
+    }
+    String version = versions.get(path.substring(0, separator));
+    return version != null
+      && path.startsWith(version + "/", separator + 1);
+  }
+
+  /** Adds the webjar version to a path that does not include it.
+   *
+   * @param path the path of the webjar file, relative to the webjars
+   * location. It cannot be null.
+   *
+   * @return the path with the webjar version. Returns the path unchanged if
+   * it already includes the version, or it does not start with the name of a
+   * webjar in the classpath. Never returns null.
+   */
+  String getVersionedPath(final String path) {
+    int separator = path.indexOf('/');
+    if (separator == -1 || isVersioned(path)) {
+      return path;
+    }
+    String version = versions.get(path.substring(0, separator));
+    if (version == null) {
+      return path;
+    }
+    return path.substring(0, separator + 1) + version
+      + path.substring(separator);
+  }
+
+  /** {@inheritDoc}
+   *
+   * Resolves the resource with the webjar version.
+   */
+  @Override
+  protected Resource resolveResourceInternal(final HttpServletRequest request,
+      final String requestPath, final List<? extends Resource> locations,
+      final ResourceResolverChain chain) {
+    return chain.resolveResource(request, getVersionedPath(requestPath),
+        locations);
+  }
+
+  /** {@inheritDoc}
+   *
+   * Resolves the url path with the webjar version.
+   */
+  @Override
+  protected String resolveUrlPathInternal(final String resourceUrlPath,
+      final List<? extends Resource> locations,
+      final ResourceResolverChain chain) {
+    return chain.resolveUrlPath(getVersionedPath(resourceUrlPath), locations);
+  }
+}
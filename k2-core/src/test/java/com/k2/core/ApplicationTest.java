@@ -2,17 +2,32 @@
 
 package com.k2.core;
 
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.time.LocalDate;
 import java.time.OffsetDateTime;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.junit.BeforeClass;
@@ -25,9 +40,11 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.startsWith;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -40,11 +57,15 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.converter.json
+    .MappingJackson2HttpMessageConverter;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.filter.GenericFilterBean;
 import org.springframework.web.util.ContentCachingResponseWrapper;
 
@@ -65,7 +86,9 @@ public class ApplicationTest {
     initCalled = false;
     application = new WebApplication();
     application.run(new String[] {"--server.port=0",
-      "--logging.file=target/log/test-overriden.log"});
+      "--logging.file=target/log/test-overriden.log",
+      "--k2.startup.report=target/k2-startup.json",
+      "--jetty.compression.enabled=true"});
 
     K2Environment environment;
     environment = application.getBean("environment", K2Environment.class);
@@ -96,6 +119,80 @@ public class ApplicationTest {
     emptyApplication.stop();
   }
 
+  @Test public void parallelRefresh() {
+    Application parallelApplication = new WebApplication();
+    parallelApplication.run(new String[] {"--server.port=0",
+      "--k2.refresh.parallel=true", "--k2.refresh.threads=2"});
+    assertThat(parallelApplication.getBean(Module2.class,
+        "dependencyOnModule1", Object.class).toString(),
+        is("Module 2 dependency on Module 1 exposed bean"));
+    assertThat(parallelApplication.getBean("applicationTest.Module2"
+        + ".exposedBean", StringHolder.class).toString(),
+        is("Module 2 exposed bean"));
+    parallelApplication.stop();
+  }
+
+  @Test public void lazyModule_request() throws Exception {
+    Application lazyApplication = new LazyApplication();
+    lazyApplication.run(new String[] {"--server.port=0"});
+    assertThat(hasPhase(lazyApplication, "lazymodule:refresh"), is(false));
+
+    String port = lazyApplication.getBean("environment", K2Environment.class)
+        .getProperty("local.server.port");
+    String page = executor.execute(Request.Get("http://localhost:" + port
+          + "/lazymodule/lazy.html")).returnContent().asString();
+    assertThat(page, is("Lazy public bean"));
+    assertThat(hasPhase(lazyApplication, "lazymodule:refresh"), is(true));
+    lazyApplication.stop();
+  }
+
+  @Test public void virtualThreadMode() throws Exception {
+    Application virtualApplication = new WebApplication();
+    virtualApplication.run(new String[] {"--server.port=0",
+      "--jetty.threadMode=virtual"});
+    String url = "http://localhost:" + virtualApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port");
+
+    String page = executor.execute(Request.Get(url
+          + "/applicationTest.Module2/thread.html")).returnContent().asString();
+    if (VirtualThreadPool.create() != null) {
+      assertThat(page, startsWith("k2-virtual-"));
+    } else {
+      // Falls back to the QueuedThreadPool on jdks before 21.
+      assertThat(page, startsWith("qtp"));
+    }
+    virtualApplication.stop();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void lazyModule_stopped() throws Exception {
+    Application lazyApplication = new LazyApplication();
+    lazyApplication.run(new String[] {"--server.port=0"});
+    lazyApplication.stop();
+    // A stopped module must not be refreshed again.
+    lazyApplication.getBean(LazyModule.class, "lazyBean",
+        StringHolder.class);
+  }
+
+  @Test public void lazyModule_publicBean() throws Exception {
+    Application lazyApplication = new LazyApplication();
+    lazyApplication.run(new String[] {"--server.port=0"});
+    assertThat(hasPhase(lazyApplication, "lazymodule:refresh"), is(false));
+    assertThat(lazyApplication.getBean("lazymodule.lazyBean",
+        StringHolder.class).toString(), is("Lazy public bean"));
+    assertThat(hasPhase(lazyApplication, "lazymodule:refresh"), is(true));
+    lazyApplication.stop();
+  }
+
+  private static boolean hasPhase(final Application app, final String name) {
+    for (StartupTimeline.Phase phase : app.getStartupTimeline().getPhases()) {
+      if (name.equals(phase.getModule() + ":" + phase.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Test public void standAloneApplication() {
     Application standAloneApplication = new StandAloneApplication();
     standAloneApplication.run(new String[0]);
@@ -171,6 +268,304 @@ public class ApplicationTest {
     assertThat(page, containsString("static content"));
   }
 
+  @Test public void staticCache() throws Exception {
+    Application cachedApplication = new StaticApplication();
+    cachedApplication.run(new String[] {"--server.port=0", "--debug=false"});
+    String url = "http://localhost:" + cachedApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/testmodule/static/";
+    Executor plainExecutor = Executor.newInstance(HttpClientBuilder.create()
+        .disableContentCompression().build());
+
+    HttpResponse response = plainExecutor.execute(
+        Request.Get(url + "static-test.html")).returnResponse();
+    assertThat(response.getFirstHeader("Cache-Control").getValue(),
+        is("no-cache"));
+    assertThat(response.getFirstHeader("Content-Encoding"), is(nullValue()));
+    String etag = response.getFirstHeader("ETag").getValue();
+    assertThat(etag, startsWith("\""));
+
+    int status = plainExecutor.execute(Request.Get(url + "static-test.html")
+        .addHeader("If-None-Match", etag))
+      .returnResponse().getStatusLine().getStatusCode();
+    assertThat(status, is(HttpServletResponse.SC_NOT_MODIFIED));
+
+    // The precompressed variant is a different representation.
+    response = plainExecutor.execute(Request.Get(url + "static-test.html")
+        .addHeader("Accept-Encoding", "gzip")
+        .addHeader("If-None-Match", etag)).returnResponse();
+    assertThat(response.getStatusLine().getStatusCode(),
+        is(HttpServletResponse.SC_OK));
+    assertThat(response.getFirstHeader("Content-Encoding").getValue(),
+        is("gzip"));
+    assertThat(response.getFirstHeader("ETag").getValue(), is(not(etag)));
+
+    // static-test.html with its md5.
+    response = plainExecutor.execute(Request.Get(url
+          + "static-test-bf5f57a2cbb48331bf9e819de5b8a63b.html"))
+      .returnResponse();
+    assertThat(response.getStatusLine().getStatusCode(),
+        is(HttpServletResponse.SC_OK));
+    assertThat(response.getFirstHeader("Cache-Control").getValue(),
+        is("public, max-age=31536000, immutable"));
+
+    status = plainExecutor.execute(Request.Get(url
+          + "static-test-00000000000000000000000000000000.html"))
+      .returnResponse().getStatusLine().getStatusCode();
+    assertThat(status, is(HttpServletResponse.SC_NOT_FOUND));
+
+    // A file whose name looks versioned, but the version does not match.
+    response = plainExecutor.execute(Request.Get(url
+          + "literal-0123456789abcdef0123456789abcdef.html"))
+      .returnResponse();
+    assertThat(response.getStatusLine().getStatusCode(),
+        is(HttpServletResponse.SC_OK));
+    assertThat(response.getFirstHeader("Cache-Control").getValue(),
+        is("no-cache"));
+
+    // The ResourceUrlEncodingFilter rewrites the urls to the versioned ones.
+    String encoded = plainExecutor.execute(Request.Get(url.replace("static/",
+            "staticUrl.html"))).returnContent().asString();
+    assertThat(encoded, is("/testmodule/static/"
+          + "static-test-bf5f57a2cbb48331bf9e819de5b8a63b.html"));
+    cachedApplication.stop();
+  }
+
+  @Test public void webjarsCache() throws Exception {
+    Application cachedApplication = new StaticApplication();
+    cachedApplication.run(new String[] {"--server.port=0"});
+    String url = "http://localhost:" + cachedApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/webjars/jquery/";
+
+    HttpResponse response = executor.execute(
+        Request.Get(url + "jquery.min.js")).returnResponse();
+    assertThat(response.getStatusLine().getStatusCode(),
+        is(HttpServletResponse.SC_OK));
+    assertThat(response.getFirstHeader("Cache-Control").getValue(),
+        is("public, max-age=86400"));
+    String etag = response.getFirstHeader("ETag").getValue();
+
+    response = executor.execute(Request.Get(url + "2.2.4/jquery.min.js"))
+      .returnResponse();
+    assertThat(response.getFirstHeader("Cache-Control").getValue(),
+        is("public, max-age=31536000, immutable"));
+    assertThat(response.getFirstHeader("ETag").getValue(), is(etag));
+
+    int status = executor.execute(Request.Get(url + "jquery.min.js")
+        .addHeader("If-None-Match", etag))
+      .returnResponse().getStatusLine().getStatusCode();
+    assertThat(status, is(HttpServletResponse.SC_NOT_MODIFIED));
+
+    status = executor.execute(Request.Get(url + "1.0.0/jquery.min.js"))
+      .returnResponse().getStatusLine().getStatusCode();
+    assertThat(status, is(HttpServletResponse.SC_NOT_FOUND));
+    cachedApplication.stop();
+  }
+
+  @Test public void compression() throws Exception {
+    Executor plainExecutor = Executor.newInstance(HttpClientBuilder.create()
+        .disableContentCompression().build());
+    String endpoint = baseUrl + "/webjars/jquery/jquery.min.js";
+
+    HttpResponse response = plainExecutor.execute(Request.Get(endpoint)
+        .addHeader("Accept-Encoding", "gzip")).returnResponse();
+    assertThat(response.getFirstHeader("Content-Encoding").getValue(),
+        is("gzip"));
+
+    response = plainExecutor.execute(Request.Get(endpoint)).returnResponse();
+    assertThat(response.getFirstHeader("Content-Encoding"), is(nullValue()));
+  }
+
+  @Test public void asyncRequests() throws Exception {
+    Application asyncApplication = new AsyncApplication();
+    asyncApplication.run(new String[] {"--server.port=0",
+      "--asyncmodule.async.timeout=200"});
+    String url = "http://localhost:" + asyncApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/asyncmodule/";
+
+    String page = executor.execute(Request.Get(url + "thread.html"))
+      .returnContent().asString();
+    assertThat(page, startsWith("asyncmodule-async-"));
+
+    int status = executor.execute(Request.Get(url + "timeout.html"))
+      .returnResponse().getStatusLine().getStatusCode();
+    assertThat(status, is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+
+    // The latency of an async request is recorded when it completes, that
+    // can be after the client gets the response.
+    String metricsUrl = url.replace("/asyncmodule/", "/k2/metrics");
+    Pattern timeoutMax = Pattern.compile(
+        "\"handler\":\"AsyncController#timeout\"[^}]*\"max\":([0-9]+)");
+    Matcher matcher = timeoutMax.matcher("");
+    while (!matcher.find()) {
+      Thread.sleep(10);
+      matcher = timeoutMax.matcher(executor.execute(Request.Get(metricsUrl))
+          .returnContent().asString());
+    }
+    assertThat(Long.parseLong(matcher.group(1)) >= 200000000L, is(true));
+    asyncApplication.stop();
+  }
+
+  @Test public void bulkhead() throws Exception {
+    Application asyncApplication = new AsyncApplication();
+    asyncApplication.run(new String[] {"--server.port=0",
+      "--asyncmodule.async.timeout=500",
+      "--asyncmodule.bulkhead.maxConcurrent=1"});
+    String base = "http://localhost:" + asyncApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port");
+    final String url = base + "/asyncmodule/";
+
+    // Holds the only permit until the async request times out.
+    Thread slow = new Thread(() -> {
+      try {
+        Request.Get(url + "timeout.html").execute().discardContent();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    slow.start();
+    while (!executor.execute(Request.Get(base + "/k2/metrics"))
+        .returnContent().asString().contains("\"inFlight\":1")) {
+      Thread.sleep(10);
+    }
+
+    HttpResponse response = executor.execute(Request.Get(url + "thread.html"))
+      .returnResponse();
+    assertThat(response.getStatusLine().getStatusCode(),
+        is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+    assertThat(response.getFirstHeader("Retry-After").getValue(), is("1"));
+
+    slow.join();
+    // The permit is released when the async request completes, that can be
+    // after the client gets the response.
+    while (!executor.execute(Request.Get(base + "/k2/metrics"))
+        .returnContent().asString().contains("\"inFlight\":0")) {
+      Thread.sleep(10);
+    }
+    String page = executor.execute(Request.Get(url + "thread.html"))
+      .returnContent().asString();
+    assertThat(page, startsWith("asyncmodule-async-"));
+
+    String prometheus = executor.execute(Request.Get(base
+          + "/k2/metrics/prometheus")).returnContent().asString();
+    assertThat(prometheus, containsString(
+          "k2_bulkhead_rejected_total{module=\"asyncmodule\"} 1"));
+    assertThat(prometheus, containsString(
+          "k2_bulkhead_in_flight{module=\"asyncmodule\"} 0"));
+    asyncApplication.stop();
+  }
+
+  @Test public void responseCache() throws Exception {
+    Application cacheApplication = new CacheApplication();
+    cacheApplication.run(new String[] {"--server.port=0"});
+    String base = "http://localhost:" + cacheApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port");
+    String url = base + "/cachemodule/counter.html";
+
+    String first = executor.execute(Request.Get(url)
+        .addHeader("Accept-Language", "en")).returnContent().asString();
+    String second = executor.execute(Request.Get(url)
+        .addHeader("Accept-Language", "en")).returnContent().asString();
+    assertThat(second, is(first));
+
+    // Accept-Language is part of the key, and so is the query string.
+    String other = executor.execute(Request.Get(url)
+        .addHeader("Accept-Language", "es")).returnContent().asString();
+    assertThat(other, is(not(first)));
+    String query = executor.execute(Request.Get(url + "?a=1")
+        .addHeader("Accept-Language", "en")).returnContent().asString();
+    assertThat(query, is(not(first)));
+
+    String json = executor.execute(Request.Get(base + "/k2/metrics"))
+      .returnContent().asString();
+    assertThat(json, containsString("{\"module\":\"cachemodule\","
+          + "\"hits\":1,\"misses\":3,"));
+    cacheApplication.stop();
+  }
+
+  @Test public void responseCache_coalesced() throws Exception {
+    Application cacheApplication = new CacheApplication();
+    cacheApplication.run(new String[] {"--server.port=0"});
+    String base = "http://localhost:" + cacheApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port");
+    String url = base + "/cachemodule/slow.html";
+
+    // The requests that arrive while the first one is loading wait for it.
+    ExecutorService clients = Executors.newFixedThreadPool(3);
+    List<Future<String>> pages = new LinkedList<>();
+    for (int i = 0; i < 3; i++) {
+      pages.add(clients.submit(() -> executor.execute(Request.Get(url))
+          .returnContent().asString()));
+    }
+    for (Future<String> page : pages) {
+      assertThat(page.get(), is("1"));
+    }
+    clients.shutdown();
+    cacheApplication.stop();
+  }
+
+  @Test public void warmup() throws Exception {
+    Application warmupApplication = new WarmupApplication();
+    long start = System.nanoTime();
+    warmupApplication.run(new String[] {"--server.port=0",
+      "--k2.warmup.budget=500"});
+    assertThat(System.nanoTime() - start >= 500000000L, is(true));
+    String url = "http://localhost:" + warmupApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/k2/warmup";
+
+    String json = executor.execute(Request.Get(url)).returnContent()
+      .asString();
+    assertThat(json, containsString("\"budgetMillis\":500"));
+    assertThat(json, containsString(
+          "{\"module\":\"warmupmodule\",\"task\":\"counter\","
+          + "\"status\":\"OK\""));
+    assertThat(json, containsString(
+          "\"task\":\"failure\",\"status\":\"FAILED\""));
+    assertThat(json, containsString(
+          "\"task\":\"slow\",\"status\":\"TIMEOUT\""));
+
+    List<String> phases = new LinkedList<>();
+    for (StartupTimeline.Phase phase
+        : warmupApplication.getStartupTimeline().getPhases()) {
+      phases.add(phase.getModule() + ":" + phase.getName());
+    }
+    assertThat(phases.contains("null:warmup"), is(true));
+    assertThat(phases.contains("warmupmodule:warmup"), is(true));
+    warmupApplication.stop();
+  }
+
+  @Test public void jsonConverter() throws Exception {
+    Application jsonApplication = new CacheApplication();
+    jsonApplication.run(new String[] {"--server.port=0"});
+    String url = "http://localhost:" + jsonApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/cachemodule/date.json";
+
+    assertThat(jsonApplication.getBean("k2.jsonConverter",
+          MappingJackson2HttpMessageConverter.class), is(not(nullValue())));
+    String json = executor.execute(Request.Get(url)).returnContent()
+      .asString();
+    assertThat(json, is("{\"date\":[2020,12,20],\"empty\":null}"));
+    jsonApplication.stop();
+  }
+
+  @Test public void jsonConverter_isoDates() throws Exception {
+    Application jsonApplication = new CacheApplication();
+    jsonApplication.run(new String[] {"--server.port=0",
+      "--k2.json.isoDates=true"});
+    String url = "http://localhost:" + jsonApplication.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/cachemodule/date.json";
+
+    String json = executor.execute(Request.Get(url)).returnContent()
+      .asString();
+    assertThat(json, is("{\"date\":\"2020-12-20\",\"empty\":null}"));
+    jsonApplication.stop();
+  }
+
   @Test public void module2Controller() throws Exception {
     String endpoint = baseUrl + "/applicationTest.Module2/hi.html";
     String page;
@@ -199,6 +594,45 @@ public class ApplicationTest {
     assertThat(page, containsString("jQuery v2.2.4"));
   }
 
+  @Test public void requestMetrics() throws Exception {
+    executor.execute(Request.Get(baseUrl + "/applicationTest.Module2/hi.html"))
+      .returnContent().asString();
+
+    String json = executor.execute(Request.Get(baseUrl + "/k2/metrics"))
+      .returnContent().asString();
+    assertThat(json, containsString("{\"module\":\"applicationTest.Module2\""));
+    assertThat(json, containsString("\"handler\":\"Module2Controller#hi\""));
+    assertThat(json, containsString("\"p999\":"));
+
+    String prometheus = executor.execute(Request.Get(baseUrl
+          + "/k2/metrics/prometheus")).returnContent().asString();
+    assertThat(prometheus, containsString("k2_request_duration_seconds{"
+          + "module=\"applicationTest.Module2\","
+          + "handler=\"Module2Controller#hi\",quantile=\"0.99\"}"));
+    assertThat(prometheus, containsString("k2_request_duration_seconds_count{"
+          + "module=\"applicationTest.Module2\""));
+  }
+
+  @Test public void startupTimeline() throws Exception {
+    List<String> phases = new LinkedList<>();
+    for (StartupTimeline.Phase phase
+        : application.getStartupTimeline().getPhases()) {
+      phases.add(phase.getModule() + ":" + phase.getName());
+    }
+    assertThat(phases.contains("testmodule:registerModules"), is(false));
+    assertThat(phases.contains("applicationTest.Module2:registerModules"),
+        is(true));
+    assertThat(phases.contains("testmodule:createModule"), is(true));
+    assertThat(phases.contains("testmodule:refresh"), is(true));
+    assertThat(phases.contains("testmodule:exportPublicBeans"), is(true));
+    assertThat(phases.contains("null:run"), is(true));
+
+    String report = new String(Files.readAllBytes(
+          Paths.get("target/k2-startup.json")), StandardCharsets.UTF_8);
+    assertThat(report, containsString(
+          "\"module\":\"testmodule\",\"phase\":\"refresh\""));
+  }
+
   // Tests that k2 calls init on modules that implement Module.
   @Test public void init() {
     assertThat(initCalled, is(true));
@@ -298,6 +732,10 @@ public class ApplicationTest {
       return new StringHolder("Module 1 private bean");
     }
 
+    @Bean public StaticUrlController staticUrlController() {
+      return new StaticUrlController();
+    }
+
     @Public @Bean public StringHolder exposedBean() {
       return new StringHolder("Module 1 exposed bean");
     }
@@ -323,6 +761,17 @@ public class ApplicationTest {
     }
   };
 
+  @Controller
+  public static class StaticUrlController {
+
+    @RequestMapping(value = "/staticUrl.html", method = RequestMethod.GET)
+    public HttpEntity<String> staticUrl(final HttpServletRequest request,
+        final HttpServletResponse response) {
+      return new HttpEntity<String>(response.encodeURL(
+            request.getContextPath() + "/testmodule/static/static-test.html"));
+    }
+  }
+
   @Controller
   public static class Module2Controller {
 
@@ -338,6 +787,11 @@ public class ApplicationTest {
         final OffsetDateTime when) {
       return new HttpEntity<String>(response);
     }
+
+    @RequestMapping(value = "/thread.html", method = RequestMethod.GET)
+    public HttpEntity<String> thread() {
+      return new HttpEntity<String>(Thread.currentThread().getName());
+    }
   };
 
   /* Filter that adds a suffix to the response. */
@@ -427,6 +881,175 @@ public class ApplicationTest {
     }
   }
 
+  @Controller
+  public static class LazyController {
+
+    private StringHolder response;
+
+    public LazyController(final StringHolder theResponse) {
+      response = theResponse;
+    }
+
+    @RequestMapping(value = "/lazy.html", method = RequestMethod.GET)
+    public HttpEntity<String> lazy() {
+      return new HttpEntity<String>(response.toString());
+    }
+  };
+
+  // A lazy module, refreshed on demand.
+  @Component("lazymodule")
+  @Module(lazy = true)
+  public static class LazyModule {
+
+    @Public @Bean public StringHolder lazyBean() {
+      return new StringHolder("Lazy public bean");
+    }
+
+    @Bean public LazyController lazyController(
+        @Qualifier("lazyBean") final StringHolder response) {
+      return new LazyController(response);
+    }
+  }
+
+  // A web test application with a lazy module.
+  @Configuration
+  public static class LazyApplication extends Application {
+
+    public LazyApplication() {
+      super(new Module1(), new LazyModule());
+    }
+  }
+
+  @Controller
+  public static class AsyncController {
+
+    @RequestMapping(value = "/thread.html", method = RequestMethod.GET)
+    @ResponseBody
+    public Callable<String> thread() {
+      return () -> Thread.currentThread().getName();
+    }
+
+    @RequestMapping(value = "/timeout.html", method = RequestMethod.GET)
+    @ResponseBody
+    public DeferredResult<String> timeout() {
+      return new DeferredResult<>();
+    }
+  }
+
+  // A module with asynchronous handlers.
+  @Component("asyncmodule")
+  public static class AsyncModule {
+
+    @Bean public AsyncController asyncController() {
+      return new AsyncController();
+    }
+  }
+
+  // A web test application with a module with asynchronous handlers.
+  @Configuration
+  public static class AsyncApplication extends Application {
+
+    public AsyncApplication() {
+      super(new AsyncModule());
+    }
+  }
+
+  // A controller that returns a different number on each request.
+  @Controller
+  public static class CounterController {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    private final AtomicInteger slowCounter = new AtomicInteger();
+
+    @RequestMapping(value = "/counter.html", method = RequestMethod.GET)
+    @ResponseBody
+    public String counter() {
+      return Integer.toString(counter.incrementAndGet());
+    }
+
+    @RequestMapping(value = "/slow.html", method = RequestMethod.GET)
+    @ResponseBody
+    public String slow() throws InterruptedException {
+      Thread.sleep(500);
+      return Integer.toString(slowCounter.incrementAndGet());
+    }
+
+    @RequestMapping(value = "/date.json", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> date() {
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("date", LocalDate.of(2020, 12, 20));
+      result.put("empty", Optional.empty());
+      return result;
+    }
+  }
+
+  // A module that caches the counter.html responses.
+  @Component("cachemodule")
+  public static class CacheModule implements Registrator {
+
+    @Override
+    public void addRegistrations(final ModuleContext moduleContext) {
+      ResponseCacheRegistry cache;
+      cache = moduleContext.get(ResponseCacheRegistry.class);
+      cache.cache("/counter.html", 60000, "Accept-Language");
+      cache.cache("/slow.html", 60000);
+    }
+
+    @Bean public CounterController counterController() {
+      return new CounterController();
+    }
+  }
+
+  @Component("warmupmodule")
+  public static class WarmupModule implements Registrator {
+
+    @Override
+    public void addRegistrations(final ModuleContext moduleContext) {
+      WarmupRegistry warmup = moduleContext.get(WarmupRegistry.class);
+      warmup.add("counter", context -> {
+        assertThat(context.getBean(CounterController.class).counter(),
+          is("1"));
+      });
+      warmup.add("failure", context -> {
+        throw new IllegalStateException("Expected warm-up failure");
+      });
+      warmup.add("slow", context -> Thread.sleep(60000));
+    }
+
+    @Bean public CounterController counterController() {
+      return new CounterController();
+    }
+  }
+
+  // A web test application with a module that warms up.
+  @Configuration
+  public static class WarmupApplication extends Application {
+
+    public WarmupApplication() {
+      super(new WarmupModule());
+    }
+  }
+
+  // A web test application with a module that caches responses.
+  @Configuration
+  public static class CacheApplication extends Application {
+
+    public CacheApplication() {
+      super(new CacheModule());
+    }
+  }
+
+  // A web test application that only serves the testmodule static content.
+  @Configuration
+  public static class StaticApplication extends Application {
+
+    public StaticApplication() {
+      super(new Module1());
+    }
+  }
+
   // A web test application with 3 test modules.
   @Configuration
   public static class WebApplication extends Application {
@@ -0,0 +1,126 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class BulkheadTest {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test public void acquire_fixed() {
+    Bulkhead bulkhead = new Bulkhead("m", 0, 2, false, 0, 0);
+    assertThat(bulkhead.acquire(), is(true));
+    assertThat(bulkhead.acquire(), is(true));
+    assertThat(bulkhead.acquire(), is(false));
+    assertThat(bulkhead.getInFlight(), is(2));
+    assertThat(bulkhead.getRejected(), is(1L));
+
+    bulkhead.release(MILLIS);
+    assertThat(bulkhead.acquire(), is(true));
+    assertThat(bulkhead.getLimit(), is(2));
+  }
+
+  @Test public void acquire_queued() throws Exception {
+    final Bulkhead bulkhead = new Bulkhead("m", 0, 1, false, 1, 10000);
+    assertThat(bulkhead.acquire(), is(true));
+
+    final boolean[] acquired = new boolean[1];
+    Thread waiter = new Thread(() -> acquired[0] = bulkhead.acquire());
+    waiter.start();
+    while (bulkhead.getQueued() == 0) {
+      Thread.sleep(1);
+    }
+    // The queue is full.
+    assertThat(bulkhead.acquire(), is(false));
+
+    bulkhead.release(MILLIS);
+    waiter.join();
+    assertThat(acquired[0], is(true));
+    assertThat(bulkhead.getInFlight(), is(1));
+    assertThat(bulkhead.getQueued(), is(0));
+    assertThat(bulkhead.getRejected(), is(1L));
+  }
+
+  @Test public void acquire_queueTimeout() {
+    Bulkhead bulkhead = new Bulkhead("m", 0, 1, false, 1, 10);
+    assertThat(bulkhead.acquire(), is(true));
+    assertThat(bulkhead.acquire(), is(false));
+    assertThat(bulkhead.getQueued(), is(0));
+    assertThat(bulkhead.getRejected(), is(1L));
+  }
+
+  @Test public void release_adaptive() {
+    Bulkhead bulkhead = new Bulkhead("m", 5, 100, true, 0, 0);
+    for (int i = 0; i < 1000; i++) {
+      bulkhead.acquire();
+      bulkhead.release(MILLIS);
+    }
+    assertThat(bulkhead.getLimit(), is(100));
+
+    // The latency grows, the limit goes down to the minimum.
+    for (int i = 0; i < 200; i++) {
+      bulkhead.acquire();
+      bulkhead.release(20 * MILLIS);
+    }
+    assertThat(bulkhead.getLimit(), is(5));
+
+    // The latency goes back to normal, the limit grows with the load.
+    for (int i = 0; i < 100; i++) {
+      for (int j = 0; j < 5; j++) {
+        bulkhead.acquire();
+      }
+      for (int j = 0; j < 5; j++) {
+        bulkhead.release(MILLIS);
+      }
+    }
+    assertTrue(bulkhead.getLimit() > 5);
+  }
+
+  @Test public void release_adaptiveGrowWakesUp() throws Exception {
+    final Bulkhead bulkhead = new Bulkhead("m", 50, 100, true, 3, 10000);
+    for (int i = 0; i < 1000; i++) {
+      bulkhead.acquire();
+      bulkhead.release(MILLIS);
+    }
+    for (int i = 0; i < 100; i++) {
+      bulkhead.acquire();
+      bulkhead.release(20 * MILLIS);
+    }
+    assertThat(bulkhead.getLimit(), is(50));
+    for (int i = 0; i < 50; i++) {
+      bulkhead.acquire();
+    }
+
+    Thread[] waiters = new Thread[3];
+    for (int i = 0; i < waiters.length; i++) {
+      waiters[i] = new Thread(() -> bulkhead.acquire());
+      waiters[i].start();
+    }
+    while (bulkhead.getQueued() != 3) {
+      Thread.sleep(1);
+    }
+
+    // The limit grows to 51 and a permit is released: two waiters get in.
+    bulkhead.release(MILLIS);
+    assertThat(bulkhead.getLimit(), is(51));
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (bulkhead.getInFlight() != 51 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertThat(bulkhead.getInFlight(), is(51));
+    assertThat(bulkhead.getQueued(), is(1));
+
+    bulkhead.release(MILLIS);
+    for (Thread waiter : waiters) {
+      waiter.join();
+    }
+  }
+}
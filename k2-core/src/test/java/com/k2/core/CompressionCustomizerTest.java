@@ -0,0 +1,78 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.DefaultHandler;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.instanceOf;
+
+public class CompressionCustomizerTest {
+
+  private static final String[] MIME_TYPES = {"application/json"};
+
+  @Test public void customize() {
+    Server server = new Server();
+    Handler handler = new DefaultHandler();
+    server.setHandler(handler);
+
+    new CompressionCustomizer("", true, 1024, MIME_TYPES,
+        new String[] {"/k2/metrics/*"},
+        Collections.<CompressionRegistry>emptyList()).customize(server);
+
+    GzipHandler gzip = (GzipHandler) server.getHandler();
+    assertThat(gzip.getMinGzipSize(), is(1024));
+    assertThat(gzip.getIncludedMimeTypes(), is(MIME_TYPES));
+    assertThat(gzip.getExcludedPaths(), is(new String[] {"/k2/metrics/*"}));
+    assertThat(gzip.getHandler(), is(handler));
+  }
+
+  @Test public void customize_disabled() {
+    Server server = new Server();
+    Handler handler = new DefaultHandler();
+    server.setHandler(handler);
+
+    new CompressionCustomizer("", false, 1024, MIME_TYPES, new String[0],
+        Collections.<CompressionRegistry>emptyList()).customize(server);
+
+    assertThat(server.getHandler(), is(handler));
+  }
+
+  @Test public void customize_modules() {
+    Server server = new Server();
+    Handler handler = new DefaultHandler();
+    server.setHandler(handler);
+
+    CompressionRegistry module1 = new CompressionRegistry("module1");
+    module1.setMinSize(0);
+    module1.addExcludedPaths("/download/*");
+    CompressionRegistry module2 = new CompressionRegistry("module2");
+    module2.setEnabled(false);
+
+    new CompressionCustomizer("/app", true, 1024, MIME_TYPES,
+        new String[0], Arrays.asList(module1, module2)).customize(server);
+
+    GzipHandler gzip1 = (GzipHandler) server.getHandler();
+    assertThat(gzip1.getMinGzipSize(), is(0));
+    assertThat(gzip1.getIncludedPaths(), is(new String[] {"/app/module1/*"}));
+    assertThat(gzip1.getExcludedPaths(),
+        is(new String[] {"/app/module1/download/*"}));
+
+    assertThat(gzip1.getHandler(), instanceOf(GzipHandler.class));
+    GzipHandler gzip = (GzipHandler) gzip1.getHandler();
+    assertThat(gzip.getMinGzipSize(), is(1024));
+    assertThat(gzip.getExcludedPaths(),
+        is(new String[] {"/app/module1/*", "/app/module2/*"}));
+    assertThat(gzip.getHandler(), is(handler));
+  }
+}
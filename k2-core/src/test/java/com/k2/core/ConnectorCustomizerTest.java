@@ -0,0 +1,62 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.containsString;
+
+public class ConnectorCustomizerTest {
+
+  @Test public void customize() {
+    Server server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    server.addConnector(connector);
+
+    new ConnectorCustomizer(100, 65536, 8192, false).customize(server);
+
+    HttpConfiguration config = connector.getConnectionFactory(
+        HttpConnectionFactory.class).getHttpConfiguration();
+    assertThat(connector.getAcceptQueueSize(), is(100));
+    assertThat(config.getOutputBufferSize(), is(65536));
+    assertThat(config.getOutputAggregationSize(), is(8192));
+    assertThat(connector.getConnectionFactories().size(), is(1));
+  }
+
+  @Test public void customize_defaults() {
+    Server server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    server.addConnector(connector);
+    HttpConfiguration defaults = new HttpConfiguration();
+
+    new ConnectorCustomizer(0, 0, 0, false).customize(server);
+
+    HttpConfiguration config = connector.getConnectionFactory(
+        HttpConnectionFactory.class).getHttpConfiguration();
+    assertThat(connector.getAcceptQueueSize(), is(0));
+    assertThat(config.getOutputBufferSize(),
+        is(defaults.getOutputBufferSize()));
+    assertThat(config.getOutputAggregationSize(),
+        is(defaults.getOutputAggregationSize()));
+  }
+
+  @Test public void customize_h2cWithoutHttp2() {
+    Server server = new Server();
+    server.addConnector(new ServerConnector(server));
+    try {
+      new ConnectorCustomizer(0, 0, 0, true).customize(server);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage(), containsString("http2-server"));
+    }
+  }
+}
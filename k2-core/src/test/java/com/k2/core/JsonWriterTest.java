@@ -0,0 +1,46 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class JsonWriterTest {
+
+  @Test public void write() throws Exception {
+    StringWriter writer = new StringWriter();
+    new JsonWriter(writer).beginObject()
+      .name("a").value(1)
+      .name("b").beginArray()
+        .beginObject().name("c").value(true).endObject()
+        .beginObject().endObject()
+        .value((String) null)
+      .endArray()
+      .name("d").value(0.5)
+      .endObject();
+    assertThat(writer.toString(),
+        is("{\"a\":1,\"b\":[{\"c\":true},{},null],\"d\":0.5}"));
+  }
+
+  @Test public void write_escape() throws Exception {
+    StringWriter writer = new StringWriter();
+    new JsonWriter(writer).beginArray()
+      .value("a\"b\\c\nd\re\tf\bg\u001f")
+      .endArray();
+    assertThat(writer.toString(),
+        is("[\"a\\\"b\\\\c\\nd\\re\\tf\\u0008g\\u001f\"]"));
+  }
+
+  @Test public void write_nan() throws Exception {
+    StringWriter writer = new StringWriter();
+    new JsonWriter(writer).beginArray()
+      .value(Double.NaN).value(Double.POSITIVE_INFINITY)
+      .endArray();
+    assertThat(writer.toString(), is("[null,null]"));
+  }
+}
@@ -29,6 +29,8 @@ public class K2EnvironmentTest {
         HashMap<String, Object> map = new HashMap<>();
         map.put("prefix1.prop1", "value1");
         map.put("prefix2.sub.prop2", "value2");
+        map.put("prefix1x.prop3", "value3");
+        map.put("prefix1", "value4");
         ps.addLast(new MapPropertySource("test", map));
         return ps;
       }
@@ -58,5 +60,48 @@ public class K2EnvironmentTest {
     assertThat(environment.getProperties("prefix2.sub", true)
         .getProperty("prop2"), is("value2"));
   }
-}
 
+  @Test public void getProperties_onlyWithDot() {
+    assertThat(environment.getProperties("prefix1").size(), is(1));
+    assertThat(environment.getProperties("prefix1x").size(), is(1));
+  }
+
+  @Test public void getProperties_sourceAdded() {
+    assertThat(environment.getProperties("prefix3").size(), is(0));
+
+    HashMap<String, Object> map = new HashMap<>();
+    map.put("prefix3.prop1", "value5");
+    map.put("prefix1.prop1", "overriden");
+    environment.getPropertySources().addFirst(
+        new MapPropertySource("added", map));
+
+    assertThat(environment.getProperties("prefix3", true)
+        .getProperty("prop1"), is("value5"));
+    assertThat(environment.getProperties("prefix1", true)
+        .getProperty("prop1"), is("overriden"));
+  }
+
+  @Test public void getProperties_sourceRemoved() {
+    HashMap<String, Object> map = new HashMap<>();
+    map.put("prefix3.prop1", "value5");
+    environment.getPropertySources().addFirst(
+        new MapPropertySource("added", map));
+    assertThat(environment.getProperties("prefix3").size(), is(1));
+
+    environment.getPropertySources().remove("added");
+    assertThat(environment.getProperties("prefix3").size(), is(0));
+  }
+
+  @Test public void getProperties_sourceReplaced() {
+    assertThat(environment.getProperties("prefix4").size(), is(0));
+
+    HashMap<String, Object> map = new HashMap<>();
+    map.put("prefix4.prop1", "value6");
+    environment.getPropertySources().replace("test",
+        new MapPropertySource("test", map));
+
+    assertThat(environment.getProperties("prefix4", true)
+        .getProperty("prop1"), is("value6"));
+    assertThat(environment.getProperties("prefix1").size(), is(0));
+  }
+}
@@ -0,0 +1,49 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class LatencyHistogramTest {
+
+  @Test public void indexOf_roundTrip() {
+    long previous = -1;
+    for (long value = 0; value < 1L << 41; value = value * 3 / 2 + 1) {
+      int index = LatencyHistogram.indexOf(value);
+      long highest = LatencyHistogram.highestEquivalentValue(index);
+      assertTrue(highest >= value);
+      // Within 1/64 of the value.
+      assertTrue(highest - value <= value / 64);
+      assertTrue(highest >= previous);
+      previous = highest;
+    }
+  }
+
+  @Test public void getValueAtPercentile() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    assertThat(histogram.getCount(), is(1000L));
+    assertThat(histogram.getMax(), is(1000000L));
+    assertAround(histogram.getValueAtPercentile(50), 500000);
+    assertAround(histogram.getValueAtPercentile(99), 990000);
+    assertAround(histogram.getValueAtPercentile(99.9), 999000);
+    assertThat(histogram.getValueAtPercentile(100), is(1000000L));
+  }
+
+  @Test public void getValueAtPercentile_empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertThat(histogram.getValueAtPercentile(99), is(0L));
+  }
+
+  private void assertAround(final long value, final long expected) {
+    assertTrue(value + " is lower than " + expected, value >= expected);
+    assertTrue(value + " is too high", value <= expected + expected / 64);
+  }
+}
@@ -0,0 +1,149 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import org.springframework.context.annotation.Bean;
+
+import com.k2.core.ApplicationTest.StringHolder;
+
+public class ModuleIndexTest {
+
+  @Test public void load_generatedIndex() {
+    ModuleIndex index = ModuleIndex.load(ApplicationTest.Module1.class);
+    assertThat(index, is(not(nullValue())));
+    assertThat(index.getName(), is("testmodule"));
+    assertThat(index.getShortName(), is(nullValue()));
+    assertThat(index.getRelativePath(), is("../k2-core/src/test/resources"));
+    assertThat(index.getStaticPath(), is("com/k2/core/static/"));
+    assertThat(index.isLazy(), is(false));
+    assertThat(index.getPublicBeanMethodNames(),
+        is(Arrays.asList("exposedBean", "exposedBean2")));
+  }
+
+  @Test public void load_defaultName() {
+    ModuleIndex index = ModuleIndex.load(ApplicationTest.Module2.class);
+    assertThat(index.getName(), is("applicationTest.Module2"));
+    assertThat(index.getPublicBeanMethodNames(),
+        is(Arrays.asList("exposedBean")));
+  }
+
+  @Test public void load_lazy() {
+    ModuleIndex index = ModuleIndex.load(ApplicationTest.LazyModule.class);
+    assertThat(index.isLazy(), is(true));
+  }
+
+  @Test public void load_notIndexed() {
+    assertThat(ModuleIndex.load(ApplicationTest.Module3.class),
+        is(nullValue()));
+  }
+
+  @Test public void fromReflection_matchesIndex() {
+    for (Class<?> moduleClass : Arrays.asList(ApplicationTest.Module1.class,
+          ApplicationTest.Module2.class, ApplicationTest.LazyModule.class)) {
+      ModuleIndex loaded = ModuleIndex.load(moduleClass);
+      ModuleIndex reflected = ModuleIndex.fromReflection(moduleClass);
+      assertThat(reflected.getName(), is(loaded.getName()));
+      assertThat(reflected.getShortName(), is(loaded.getShortName()));
+      assertThat(reflected.getRelativePath(), is(loaded.getRelativePath()));
+      assertThat(reflected.getStaticPath(), is(loaded.getStaticPath()));
+      assertThat(reflected.isLazy(), is(loaded.isLazy()));
+      assertThat(reflected.getPublicBeanMethodNames().size(),
+          is(loaded.getPublicBeanMethodNames().size()));
+      assertThat(describe(reflected.getBeanMethods()),
+          is(describe(loaded.getBeanMethods())));
+    }
+  }
+
+  @Test public void load_interface() {
+    ModuleIndex index = ModuleIndex.load(InterfaceModule.class);
+    assertThat(index, is(not(nullValue())));
+    assertThat(index.getPublicBeanMethodNames(),
+        is(Arrays.asList("interfaceBean")));
+    assertThat(index.getBeanMethods().get(0).getType(),
+        is(StringHolder.class.getName()));
+    assertThat(describe(ModuleIndex.fromReflection(InterfaceModule.class)
+          .getBeanMethods()), is(describe(index.getBeanMethods())));
+  }
+
+  @Test public void load_separators() {
+    ModuleIndex index = ModuleIndex.load(SeparatorModule.class);
+    assertThat(index, is(not(nullValue())));
+    assertThat(index.getBeanMethods().get(0).getBeanNames(),
+        is(Arrays.asList("a,b", "c:d", "e=f")));
+  }
+
+  @Test public void load_stale() {
+    // The index in the test resources does not match StaleModule.
+    assertThat(ModuleIndex.load(StaleModule.class), is(nullValue()));
+    assertThat(ModuleIndex.get(StaleModule.class).getName(),
+        is("moduleIndexTest.StaleModule"));
+  }
+
+  @Test public void fingerprint() {
+    assertThat(ModuleIndex.fingerprint(SeparatorModule.class),
+        is(ModuleIndex.fingerprint(SeparatorModule.class)));
+    assertThat(ModuleIndex.fingerprint(SeparatorModule.class),
+        is(not(ModuleIndex.fingerprint(InterfaceModule.class))));
+  }
+
+  private Set<String> describe(final List<ModuleIndex.BeanMethod> methods) {
+    Set<String> result = new HashSet<>();
+    for (ModuleIndex.BeanMethod method : methods) {
+      result.add(method.getMethodName() + " " + method.getBeanName() + " "
+          + method.getType() + " " + method.isPublic());
+    }
+    return result;
+  }
+
+  /** An interface that declares a public bean. */
+  public interface PublicBeans {
+    @Public @Bean StringHolder interfaceBean();
+  }
+
+  /** A module that inherits its public bean from an interface. */
+  public static class InterfaceModule implements PublicBeans {
+    @Override
+    public StringHolder interfaceBean() {
+      return new StringHolder("interface");
+    }
+  }
+
+  /** A module whose bean names have the characters that separate lists. */
+  public static class SeparatorModule {
+    @Public @Bean(name = {"a,b", "c:d", "e=f"})
+    public StringHolder separatorBean() {
+      return new StringHolder("separator");
+    }
+  }
+
+  /** A module with a stale index in the test resources. */
+  public static class StaleModule {
+  }
+
+  @Test public void write_noTimestamp() throws Exception {
+    StringWriter writer = new StringWriter();
+    ModuleIndex.fromReflection(ApplicationTest.Module3.class).write(writer);
+    assertThat(writer.toString().contains("#"), is(false));
+
+    Properties properties = new Properties();
+    properties.load(new StringReader(writer.toString()));
+    assertThat(properties.getProperty("name"), is("applicationTest.Module3"));
+    assertThat(properties.getProperty("beans"), is("0"));
+  }
+}
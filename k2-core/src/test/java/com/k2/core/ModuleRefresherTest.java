@@ -0,0 +1,95 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.StandardEnvironment;
+
+public class ModuleRefresherTest {
+
+  @Test public void getWaves_dependencies() {
+    ModuleDefinition module1 = new ModuleDefinition(
+        new ApplicationTest.Module1());
+    ModuleDefinition module2 = new ModuleDefinition(
+        new ApplicationTest.Module2());
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+    List<ModuleDefinition> modules = Arrays.asList(module3, module2, module1);
+
+    // Module3 only depends on module1 through its registry.
+    new ModuleContext(module3, modules).get(
+        ApplicationTest.Module1Registry.class);
+
+    List<List<ModuleDefinition>> waves;
+    waves = new ModuleRefresher(modules, new StandardEnvironment())
+      .getWaves(null);
+
+    assertThat(waves.size(), is(2));
+    assertThat(waves.get(0), is(Arrays.asList(module1)));
+    assertThat(waves.get(1), is(Arrays.asList(module3, module2)));
+  }
+
+  @Test public void getWaves_independent() {
+    ModuleDefinition module1 = new ModuleDefinition(
+        new ApplicationTest.Module1());
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+    List<ModuleDefinition> modules = Arrays.asList(module3, module1);
+
+    List<List<ModuleDefinition>> waves;
+    waves = new ModuleRefresher(modules, new StandardEnvironment())
+      .getWaves(null);
+
+    assertThat(waves.size(), is(1));
+    assertThat(waves.get(0), is(Arrays.asList(module3, module1)));
+  }
+
+  @Test public void getWaves_unknownDependencies() {
+    ModuleDefinition module1 = new ModuleDefinition(
+        new ApplicationTest.Module1());
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+    ModuleDefinition lookup = new ModuleDefinition(new LookupModule());
+    ModuleDefinition autowired = new ModuleDefinition(new AutowiredModule());
+    List<ModuleDefinition> modules = Arrays.asList(module3, lookup, module1,
+        autowired);
+
+    List<List<ModuleDefinition>> waves;
+    waves = new ModuleRefresher(modules, new StandardEnvironment())
+      .getWaves(null);
+
+    // The modules that may look up or inject unknown beans wait for all the
+    // modules declared before them.
+    assertThat(waves.size(), is(3));
+    assertThat(waves.get(0), is(Arrays.asList(module3, module1)));
+    assertThat(waves.get(1), is(Arrays.asList(lookup)));
+    assertThat(waves.get(2), is(Arrays.asList(autowired)));
+  }
+
+  /** A module that can look up beans by name. */
+  public static class LookupModule {
+    @Bean public String lookup(final ApplicationContext context) {
+      return "lookup";
+    }
+  }
+
+  /** A type that no module provides. */
+  public static class Missing {
+  }
+
+  /** A module that injects a bean that no module provides. */
+  public static class AutowiredModule {
+    @Autowired private Missing missing;
+  }
+}
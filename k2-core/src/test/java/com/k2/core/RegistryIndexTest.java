@@ -0,0 +1,102 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+
+public class RegistryIndexTest {
+
+  /** A registry factory that does not declare its registry type. */
+  public static class UndeclaredModule implements RegistryFactory {
+
+    private int calls = 0;
+
+    @Override
+    public Object getRegistry(final ModuleDefinition requestor) {
+      calls++;
+      return "a registry";
+    }
+  }
+
+  /** Another module that provides Module1Registry. */
+  public static class OtherModule1 extends ApplicationTest.Module1 {
+  }
+
+  @Test public void getRegistry_declared() {
+    UndeclaredModule undeclared = new UndeclaredModule();
+    ModuleDefinition module1 = new ModuleDefinition(
+        new ApplicationTest.Module1());
+    ModuleDefinition undeclaredModule = new ModuleDefinition(undeclared);
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+
+    RegistryIndex index = new RegistryIndex(
+        Arrays.asList(undeclaredModule, module1, module3));
+
+    Object registry = index.getRegistry(
+        ApplicationTest.Module1Registry.class, module3);
+    assertThat(registry, instanceOf(ApplicationTest.Module1Registry.class));
+    assertThat(module3.dependsOn(module1), is(true));
+    // The undeclared module was not asked for a registry.
+    assertThat(undeclared.calls, is(0));
+  }
+
+  @Test public void getRegistry_undeclared() {
+    UndeclaredModule undeclared = new UndeclaredModule();
+    ModuleDefinition module1 = new ModuleDefinition(
+        new ApplicationTest.Module1());
+    ModuleDefinition undeclaredModule = new ModuleDefinition(undeclared);
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+
+    RegistryIndex index = new RegistryIndex(
+        Arrays.asList(module1, undeclaredModule, module3));
+
+    assertThat(index.getRegistry(String.class, module3), is("a registry"));
+    assertThat(index.getRegistry(Integer.class, module3), nullValue());
+  }
+
+  @Test public void getRegistry_ambiguous() {
+    ModuleDefinition module1 = new ModuleDefinition(
+        new ApplicationTest.Module1());
+    ModuleDefinition other = new ModuleDefinition(new OtherModule1());
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+
+    RegistryIndex index = new RegistryIndex(
+        Arrays.asList(module1, other, module3));
+    try {
+      index.getRegistry(ApplicationTest.Module1Registry.class, module3);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage(), containsString("testmodule"));
+      assertThat(e.getMessage(), containsString("OtherModule1"));
+    }
+  }
+
+  @Test public void getRegistry_core() {
+    UndeclaredModule undeclared = new UndeclaredModule();
+    ModuleDefinition undeclaredModule = new ModuleDefinition(undeclared);
+    ModuleDefinition module3 = new ModuleDefinition(
+        new ApplicationTest.Module3());
+    CompressionPolicies policies = new CompressionPolicies();
+
+    RegistryIndex index = new RegistryIndex(
+        Arrays.asList(undeclaredModule, module3), policies);
+
+    CompressionRegistry registry = index.getRegistry(
+        CompressionRegistry.class, module3);
+    assertThat(registry, is(policies.getRegistry(module3)));
+    assertThat(undeclared.calls, is(0));
+  }
+}
@@ -0,0 +1,68 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+public class ResponseCacheStoreTest {
+
+  private static final long TTL = TimeUnit.MINUTES.toNanos(1);
+
+  private ResponseCacheStore.Entry entry(final int size) {
+    return new ResponseCacheStore.Entry("text/plain", new String[0],
+        new byte[size], TTL);
+  }
+
+  @Test public void get_expired() {
+    ResponseCacheStore store = new ResponseCacheStore("m", 1000);
+    store.put("a", entry(10));
+    assertThat(store.get("a", 0), is(not(nullValue())));
+    assertThat(store.get("a", TTL), is(nullValue()));
+    assertThat(store.getHits(), is(1L));
+    assertThat(store.getMisses(), is(1L));
+    assertThat(store.getWeight(), is(0L));
+  }
+
+  @Test public void put_bounded() {
+    ResponseCacheStore store = new ResponseCacheStore("m", 1000);
+    for (int i = 0; i < 1000; i++) {
+      store.put("key" + i, entry(100));
+    }
+    assertThat(store.getWeight() <= 1000, is(true));
+    assertThat(store.getEvictions() > 0, is(true));
+  }
+
+  @Test public void put_keepsFrequentResponses() {
+    ResponseCacheStore store = new ResponseCacheStore("m", 1000);
+    for (int i = 0; i < 9; i++) {
+      store.put("popular" + i, entry(100));
+    }
+    for (int j = 0; j < 5; j++) {
+      for (int i = 0; i < 9; i++) {
+        store.get("popular" + i, 0);
+      }
+    }
+    // A scan of responses requested once does not evict the popular ones.
+    for (int i = 0; i < 100; i++) {
+      store.get("once" + i, 0);
+      store.put("once" + i, entry(100));
+    }
+    for (int i = 0; i < 9; i++) {
+      assertThat(store.get("popular" + i, 0), is(not(nullValue())));
+    }
+  }
+
+  @Test public void put_tooLarge() {
+    ResponseCacheStore store = new ResponseCacheStore("m", 1000);
+    store.put("a", entry(2000));
+    assertThat(store.get("a", 0), is(nullValue()));
+  }
+}
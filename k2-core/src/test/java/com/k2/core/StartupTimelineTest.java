@@ -0,0 +1,44 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.containsString;
+
+public class StartupTimelineTest {
+
+  @Test public void close_failed() {
+    StartupTimeline timeline = new StartupTimeline();
+    try (StartupTimeline.Phase phase = timeline.start("m", "ok")) {
+      phase.end(2);
+    }
+    try (StartupTimeline.Phase phase = timeline.start("m", "failed")) {
+      throw new IllegalStateException("refresh failed");
+    } catch (IllegalStateException e) {
+      // Expected, the phase must be closed anyway.
+    }
+
+    assertThat(timeline.getPhases().size(), is(2));
+    assertThat(timeline.getPhases().get(0).isFailed(), is(false));
+    assertThat(timeline.getPhases().get(0).getBeanCount(), is(2));
+    StartupTimeline.Phase failed = timeline.getPhases().get(1);
+    assertThat(failed.getName(), is("failed"));
+    assertThat(failed.isFailed(), is(true));
+    assertThat(failed.getDurationNanos() >= 0, is(true));
+  }
+
+  @Test public void writeJson_escape() throws Exception {
+    StartupTimeline timeline = new StartupTimeline();
+    timeline.start("a\"b\\c\nd\u0001", "refresh").end();
+    StringWriter writer = new StringWriter();
+    timeline.writeJson(writer);
+    assertThat(writer.toString(),
+        containsString("\"module\":\"a\\\"b\\\\c\\nd\\u0001\""));
+  }
+}
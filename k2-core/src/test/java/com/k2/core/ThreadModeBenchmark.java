@@ -0,0 +1,149 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/** Compares the throughput of jetty.threadMode platform and virtual with
+ * handlers that block, like handlers that wait for jdbc.
+ *
+ * This is not run with the tests. Run it with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=com.k2.core.ThreadModeBenchmark
+ *
+ * on jdk 21 or later to compare both modes. It starts the application with
+ * jetty.maxThreads=50, sends 4000 requests from 400 concurrent clients to a
+ * handler that blocks for 50ms and logs the throughput of each mode.
+ *
+ * With platform threads the throughput cannot go over the ceiling of
+ * maxThreads requests every 50ms, 1000 req/s, less the threads that jetty
+ * keeps for the acceptors and selectors. A virtual run that stays at that
+ * ceiling means that the requests are still handled in platform threads. On
+ * jdks before 21 this only measures the platform mode.
+ */
+public final class ThreadModeBenchmark {
+
+  /** The class logger. */
+  private static final Logger LOG
+      = LoggerFactory.getLogger(ThreadModeBenchmark.class);
+
+  /** The number of requests to send. */
+  private static final int REQUESTS = 4000;
+
+  /** The maximum number of jetty threads. */
+  private static final int MAX_THREADS = 50;
+
+  /** The number of concurrent clients. */
+  private static final int CLIENTS = 400;
+
+  /** The time the handler blocks, in milliseconds. */
+  private static final long BLOCK_MILLIS = 50;
+
+  private ThreadModeBenchmark() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    // Warm up the jvm.
+    run("platform");
+    double platform = run("platform");
+    LOG.info("Platform thread ceiling: {} req/s",
+        MAX_THREADS * 1000 / BLOCK_MILLIS);
+    if (VirtualThreadPool.create() == null) {
+      LOG.info("Throughput: platform {} req/s, this jvm does not support"
+          + " virtual threads", Math.round(platform));
+      return;
+    }
+    double virtual = run("virtual");
+    LOG.info("Throughput: platform {} req/s, virtual {} req/s",
+        Math.round(platform), Math.round(virtual));
+  }
+
+  private static double run(final String threadMode) throws Exception {
+    Application application = new BenchmarkApplication();
+    application.run(new String[] {"--server.port=0",
+      "--jetty.maxThreads=" + MAX_THREADS,
+      "--jetty.threadMode=" + threadMode});
+    final String url = "http://localhost:" + application.getBean(
+        "environment", K2Environment.class).getProperty("local.server.port")
+      + "/benchmark/block.html";
+
+    CloseableHttpClient httpClient = HttpClientBuilder.create()
+      .setMaxConnTotal(CLIENTS).setMaxConnPerRoute(CLIENTS).build();
+    final Executor executor = Executor.newInstance(httpClient);
+    ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+    try {
+      List<Callable<String>> requests = new ArrayList<>();
+      for (int i = 0; i < REQUESTS; i++) {
+        requests.add(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            return executor.execute(Request.Get(url)).returnContent()
+              .asString();
+          }
+        });
+      }
+      long start = System.nanoTime();
+      for (Future<String> result : clients.invokeAll(requests)) {
+        result.get();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      double throughput = REQUESTS / seconds;
+      LOG.info("{}: {} requests in {} s, {} req/s", threadMode, REQUESTS,
+          seconds, Math.round(throughput));
+      return throughput;
+    } finally {
+      clients.shutdown();
+      httpClient.close();
+      application.stop();
+    }
+  }
+
+  @Controller
+  public static class BlockingController {
+
+    @RequestMapping(value = "/block.html", method = RequestMethod.GET)
+    public HttpEntity<String> block() throws InterruptedException {
+      // Simulates a handler that waits for the database.
+      Thread.sleep(BLOCK_MILLIS);
+      return new HttpEntity<String>("done");
+    }
+  }
+
+  @Component("benchmark")
+  public static class BenchmarkModule {
+
+    @Bean public BlockingController blockingController() {
+      return new BlockingController();
+    }
+  }
+
+  @Configuration
+  public static class BenchmarkApplication extends Application {
+
+    public BenchmarkApplication() {
+      super(new BenchmarkModule());
+    }
+  }
+}
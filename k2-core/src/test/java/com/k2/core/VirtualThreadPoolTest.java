@@ -0,0 +1,69 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.core;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.client.fluent.Request;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+
+public class VirtualThreadPoolTest {
+
+  @Test public void execute() throws Exception {
+    // Stands for the virtual thread executor, that needs jdk 21.
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService executor = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable task) {
+            return new Thread(task, "test-virtual-" + count.getAndIncrement());
+          }
+        });
+    VirtualThreadPool pool = new VirtualThreadPool(executor);
+
+    Server server = new Server(pool);
+    ServerConnector connector = new ServerConnector(server, 1, 1);
+    connector.setPort(0);
+    server.addConnector(connector);
+    server.setHandler(new AbstractHandler() {
+      @Override
+      public void handle(final String target,
+          final org.eclipse.jetty.server.Request baseRequest,
+          final HttpServletRequest request, final HttpServletResponse response)
+        throws IOException {
+        response.getWriter().print(Thread.currentThread().getName());
+        baseRequest.setHandled(true);
+      }
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + connector.getLocalPort() + "/";
+      for (int i = 0; i < 3; i++) {
+        assertThat(Request.Get(url).execute().returnContent().asString(),
+            startsWith("test-virtual-"));
+      }
+      // The acceptor and the selector hold platform threads.
+      assertThat(pool.getThreads() - pool.getIdleThreads() >= 2, is(true));
+    } finally {
+      server.stop();
+    }
+    assertThat(executor.isShutdown(), is(true));
+  }
+}
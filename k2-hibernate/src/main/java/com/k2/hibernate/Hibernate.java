@@ -336,6 +336,14 @@ public class Hibernate implements RegistryFactory {
    *
    * This is initialized from properties that start with 'datasource'.
    *
+   * With jetty.threadMode=virtual the number of concurrent requests is not
+   * bounded by jetty.maxThreads, so the pool becomes the limit: set
+   * datasource.maxActive to the number of connections the database can
+   * serve, datasource.maxIdle and datasource.initialSize to the same value
+   * to avoid opening connections under load, and a small datasource.maxWait
+   * (for example 1000ms) so that requests fail fast when the pool is
+   * exhausted.
+   *
    * @return the pool properties, never null.
    */
   @ConfigurationProperties(prefix = "datasource")
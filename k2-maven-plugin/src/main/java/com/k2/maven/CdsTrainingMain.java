@@ -0,0 +1,67 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.maven;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/** Entry point of the jvm that GenerateCdsArchiveMojo forks to train the
+ * class data sharing archive.
+ *
+ * It creates the application, calls run and then stop, the same way
+ * GenerateDdlMojo does, and writes the number of milliseconds it took run to
+ * finish to a report file.
+ *
+ * This class must only depend on the jdk: it is run with the application
+ * classpath, not the plugin classpath.
+ */
+public final class CdsTrainingMain {
+
+  /** The number of nanoseconds in a millisecond. */
+  private static final long NANOS_PER_MILLI = 1000000;
+
+  /** Private constructor, this is a utility class. */
+  private CdsTrainingMain() {
+  }
+
+  /** Runs and stops the application.
+   *
+   * @param args the report file name and the application class name,
+   * followed by the arguments to pass to the application run operation. It
+   * must have at least two elements.
+   *
+   * @throws Exception in case of error starting or stopping the application.
+   */
+  public static void main(final String[] args) throws Exception {
+    if (args.length < 2) {
+      throw new IllegalArgumentException(
+          "Usage: CdsTrainingMain [report file] [application class] [args]");
+    }
+    String[] applicationArgs = new String[args.length - 2];
+    System.arraycopy(args, 2, applicationArgs, 0, applicationArgs.length);
+
+    long start = System.nanoTime();
+
+    Class<?> appClass = Class.forName(args[1]);
+    Constructor<?> constructor = appClass.getConstructor();
+    Object application = constructor.newInstance();
+
+    Method run = appClass.getMethod("run", String[].class);
+    run.invoke(application, new Object[] {applicationArgs});
+
+    long millis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+    Files.write(Paths.get(args[0]),
+        Long.toString(millis).getBytes(StandardCharsets.UTF_8));
+
+    Method stop = appClass.getMethod("stop");
+    stop.invoke(application);
+
+    // Non daemon threads from the application must not keep the jvm alive,
+    // the archive is written at exit.
+    System.exit(0);
+  }
+}
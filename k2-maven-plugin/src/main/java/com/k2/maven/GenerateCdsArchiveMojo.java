@@ -0,0 +1,459 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.maven;
+
+import java.util.List;
+import java.util.Map;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/** Goal that generates a class data sharing (AppCDS) archive for a k2
+ * application.
+ *
+ * Most of the startup time of a k2 application is spent loading the spring,
+ * hibernate, jetty and shiro classes. This goal forks a jvm that boots the
+ * application with Application.run and stops it (see CdsTrainingMain), and
+ * asks the jvm to archive the loaded classes at exit. It needs jdk 13 or
+ * later.
+ *
+ * The jvm only archives classes loaded from jar files, so this goal copies
+ * every directory in the test classpath (target/classes, target/test-classes)
+ * to a jar in [outputDirectory]/cds. Everything goes to that directory:
+ *
+ * - app.jsa: the archive.
+ *
+ * - fork.log: the output of the last forked jvm.
+ *
+ * - launcher.args: a jvm argument file with the classpath and the archive,
+ *   used as java @target/cds/launcher.args [main class]. The jvm only uses the
+ *   archive if the classpath is the same used to create it, so do not move
+ *   the jars.
+ *
+ * Unless measureStartup is false, this goal runs the application once without
+ * and once with the archive and logs the startup time of both runs.
+ *
+ * run with:
+ *
+ *   mvn com.github.katari:k2-maven-plugin:generateCdsArchive
+ *   -Dk2.applicationClassName=com.k2.hibernate.HibernateTest\$TestApplication
+ */
+@Mojo(name = "generateCdsArchive", defaultPhase = LifecyclePhase.PACKAGE,
+   requiresDependencyResolution = ResolutionScope.TEST)
+public class GenerateCdsArchiveMojo extends AbstractMojo {
+
+  /** The name of the archive file. */
+  private static final String ARCHIVE = "app.jsa";
+
+  /** The name of the launcher configuration file. */
+  private static final String LAUNCHER = "launcher.args";
+
+  /** The name of the file where CdsTrainingMain reports the run time. */
+  private static final String REPORT = "run-millis.txt";
+
+  /** The name of the file where the forked jvm writes its output. */
+  private static final String OUTPUT = "fork.log";
+
+  /** The number of nanoseconds in a millisecond. */
+  private static final long NANOS_PER_MILLI = 1000000;
+
+  /** Factor to convert a ratio to a percentage. */
+  private static final double PERCENT = 100.0;
+
+  /** The size of the buffer used to copy files to jars. */
+  private static final int BUFFER_SIZE = 8192;
+
+  /** The maven project where the plugin is run, never null.
+   */
+  @Parameter(defaultValue = "${project}", required = true, readonly = true)
+  private MavenProject project;
+
+  /** The directory where this plugin creates the cds directory, defaults to
+   * target.
+   */
+  @Parameter(defaultValue = "${project.build.directory}",
+      property = "outputDirectory", required = true)
+  private File outputDirectory;
+
+  /** The application class name, never null.
+   */
+  @Parameter(property = "k2.applicationClassName", required = true)
+  private String applicationClassName;
+
+  /** The arguments passed to the application run operation.
+   */
+  @Parameter private List<String> arguments;
+
+  /** A list of system properties to be passed to the forked jvm.
+   */
+  @Parameter private Map<String, String> systemProperties;
+
+  /** The java executable used to create the archive, defaults to the one
+   * running maven.
+   *
+   * The archive can only be used by the same jvm that created it.
+   */
+  @Parameter(property = "k2.cds.java")
+  private String javaExecutable;
+
+  /** Whether to measure the startup time with and without the archive.
+   */
+  @Parameter(property = "k2.cds.measureStartup", defaultValue = "true")
+  private boolean measureStartup;
+
+  /** The maximum time to wait for each forked jvm, in seconds.
+   */
+  @Parameter(property = "k2.cds.timeout", defaultValue = "300")
+  private int timeout;
+
+  /** Runs this mojo.
+   *
+   * @throws MojoExecutionException in case of error.
+   */
+  public void execute() throws MojoExecutionException {
+    File cdsDirectory = new File(outputDirectory, "cds");
+    if (!cdsDirectory.isDirectory() && !cdsDirectory.mkdirs()) {
+      throw new MojoExecutionException("Cannot create " + cdsDirectory);
+    }
+    File archive = new File(cdsDirectory, ARCHIVE);
+    if (archive.exists() && !archive.delete()) {
+      throw new MojoExecutionException("Cannot delete " + archive);
+    }
+
+    String classpath = buildClasspath(cdsDirectory);
+    File report = new File(cdsDirectory, REPORT);
+
+    Run baseline = null;
+    if (measureStartup) {
+      baseline = fork(classpath, null, report);
+    }
+
+    getLog().info("Creating class data sharing archive " + archive);
+    fork(classpath, "-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath(),
+        report);
+    if (!archive.exists()) {
+      throw new MojoExecutionException("The jvm did not create " + archive
+          + ". Class data sharing archives need jdk 13 or later.");
+    }
+
+    String useArchive = "-XX:SharedArchiveFile=" + archive.getAbsolutePath();
+    writeLauncher(new File(cdsDirectory, LAUNCHER), classpath, useArchive);
+
+    if (measureStartup) {
+      Run archived = fork(classpath, useArchive, report);
+      getLog().info("Startup without archive: " + baseline);
+      getLog().info("Startup with archive: " + archived);
+      if (baseline.totalMillis > 0) {
+        double improvement = PERCENT * (baseline.totalMillis
+            - archived.totalMillis) / baseline.totalMillis;
+        getLog().info(String.format("Cold start improvement: %.1f%%",
+              improvement));
+      }
+    }
+  }
+
+  /** Builds the classpath of the forked jvm, the project test classpath plus
+   * the jar with CdsTrainingMain.
+   *
+   * Directories in the classpath are copied to jars in the cds directory.
+   *
+   * @param cdsDirectory the directory to create the jars in. It cannot be
+   * null.
+   *
+   * @return the classpath, never null.
+   *
+   * @throws MojoExecutionException in case of error.
+   */
+  @SuppressWarnings("unchecked")
+  private String buildClasspath(final File cdsDirectory)
+      throws MojoExecutionException {
+    List<String> classpathElements = new ArrayList<>();
+    try {
+      classpathElements.addAll(project.getTestClasspathElements());
+    } catch (DependencyResolutionRequiredException e) {
+      throw new MojoExecutionException("Dependency resolution failed", e);
+    }
+    try {
+      classpathElements.add(new File(CdsTrainingMain.class
+          .getProtectionDomain().getCodeSource().getLocation().toURI())
+          .getAbsolutePath());
+    } catch (URISyntaxException e) {
+      throw new MojoExecutionException("Cannot find the plugin jar", e);
+    }
+
+    StringBuilder classpath = new StringBuilder();
+    int jarNumber = 0;
+    for (String element : classpathElements) {
+      File file = new File(element);
+      if (file.isDirectory()) {
+        File jar = new File(cdsDirectory, "classpath-" + jarNumber + "-"
+            + file.getName() + ".jar");
+        jarNumber++;
+        createJar(file, jar);
+        file = jar;
+      } else if (!file.exists()) {
+        continue;
+      }
+      if (classpath.length() != 0) {
+        classpath.append(File.pathSeparator);
+      }
+      classpath.append(file.getAbsolutePath());
+    }
+    return classpath.toString();
+  }
+
+  /** Copies the content of a directory to a jar.
+   *
+   * @param directory the directory to copy. It cannot be null.
+   *
+   * @param jar the jar to create. It cannot be null.
+   *
+   * @throws MojoExecutionException in case of error.
+   */
+  private void createJar(final File directory, final File jar)
+      throws MojoExecutionException {
+    try (JarOutputStream out = new JarOutputStream(
+          new FileOutputStream(jar))) {
+      addToJar(directory, "", out);
+    } catch (IOException e) {
+      throw new MojoExecutionException("Cannot create " + jar, e);
+    }
+  }
+
+  /** Adds the content of a directory to a jar, recursively.
+   *
+   * @param directory the directory to add. It cannot be null.
+   *
+   * @param prefix the path of the directory in the jar, empty or ending in
+   * '/'. It cannot be null.
+   *
+   * @param out the jar to add the entries to. It cannot be null.
+   *
+   * @throws IOException in case of error.
+   */
+  private void addToJar(final File directory, final String prefix,
+      final JarOutputStream out) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (File file : files) {
+      String name = prefix + file.getName();
+      if (file.isDirectory()) {
+        out.putNextEntry(new JarEntry(name + "/"));
+        out.closeEntry();
+        addToJar(file, name + "/", out);
+      } else {
+        out.putNextEntry(new JarEntry(name));
+        try (InputStream in = new FileInputStream(file)) {
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        }
+        out.closeEntry();
+      }
+    }
+  }
+
+  /** Writes the jvm argument file that runs the application with the
+   * archive.
+   *
+   * @param launcher the file to write. It cannot be null.
+   *
+   * @param classpath the classpath used to create the archive. It cannot be
+   * null.
+   *
+   * @param useArchive the jvm option that enables the archive. It cannot be
+   * null.
+   *
+   * @throws MojoExecutionException in case of error.
+   */
+  private void writeLauncher(final File launcher, final String classpath,
+      final String useArchive) throws MojoExecutionException {
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(launcher),
+          StandardCharsets.UTF_8)) {
+      writer.write("-Xshare:auto\n");
+      writer.write(quote(useArchive) + "\n");
+      writer.write("-cp\n");
+      writer.write(quote(classpath) + "\n");
+    } catch (IOException e) {
+      throw new MojoExecutionException("Cannot write " + launcher, e);
+    }
+    getLog().info("Run the application with java @" + launcher
+        + " [main class]");
+  }
+
+  /** Quotes an argument for a jvm argument file.
+   *
+   * @param argument the argument to quote. It cannot be null.
+   *
+   * @return the quoted argument, never null.
+   */
+  private static String quote(final String argument) {
+    return "\"" + argument.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /** Runs the application in a new jvm, through CdsTrainingMain.
+   *
+   * @param classpath the classpath of the new jvm. It cannot be null.
+   *
+   * @param cdsOption the class data sharing option, null for none.
+   *
+   * @param report the file where CdsTrainingMain writes the run time. It
+   * cannot be null.
+   *
+   * @return the times of the run, never null.
+   *
+   * @throws MojoExecutionException if the jvm could not be run, failed or did
+   * not stop in time.
+   */
+  Run fork(final String classpath, final String cdsOption,
+      final File report) throws MojoExecutionException {
+    List<String> command = new ArrayList<>();
+    if (javaExecutable == null) {
+      command.add(System.getProperty("java.home") + File.separator + "bin"
+          + File.separator + "java");
+    } else {
+      command.add(javaExecutable);
+    }
+    if (cdsOption != null) {
+      command.add(cdsOption);
+    }
+    if (systemProperties != null) {
+      for (Map.Entry<String, String> systemProperty
+          : systemProperties.entrySet()) {
+        command.add("-D" + systemProperty.getKey() + "="
+            + systemProperty.getValue());
+      }
+    }
+    command.add("-cp");
+    command.add(classpath);
+    command.add(CdsTrainingMain.class.getName());
+    command.add(report.getAbsolutePath());
+    command.add(applicationClassName);
+    if (arguments != null) {
+      command.addAll(arguments);
+    }
+    getLog().debug("Running " + command);
+
+    // A stale report from a previous run would be taken as this run time.
+    if (report.exists() && !report.delete()) {
+      throw new MojoExecutionException("Cannot delete " + report);
+    }
+    File output = new File(report.getParentFile(), OUTPUT);
+
+    Run result = new Run();
+    long start = System.nanoTime();
+    Process process = null;
+    try {
+      // The output goes to a file, so a child that fills the pipe and never
+      // exits cannot block this thread before waitFor.
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(output);
+      process = builder.start();
+      if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+        throw new MojoExecutionException(applicationClassName
+            + " did not stop after " + timeout + " seconds. See " + output
+            + ".");
+      }
+      logOutput(output);
+      if (process.exitValue() != 0) {
+        throw new MojoExecutionException(applicationClassName
+            + " failed, exit code " + process.exitValue() + ". See "
+            + output + ".");
+      }
+      if (!report.exists()) {
+        throw new MojoExecutionException(applicationClassName
+            + " did not report its run time. See " + output + ".");
+      }
+      result.runMillis = Long.parseLong(new String(
+            Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new MojoExecutionException("Cannot run " + command.get(0), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MojoExecutionException("Interrupted running "
+          + applicationClassName, e);
+    } finally {
+      if (process != null && process.isAlive()) {
+        process.destroyForcibly();
+      }
+    }
+    result.totalMillis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+    return result;
+  }
+
+  /** Copies the output of a forked jvm to the debug log.
+   *
+   * @param output the file with the output of the jvm. It cannot be null.
+   *
+   * @throws IOException in case of error reading the file.
+   */
+  private void logOutput(final File output) throws IOException {
+    if (!getLog().isDebugEnabled()) {
+      return;
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(output), StandardCharsets.UTF_8))) {
+      String line = reader.readLine();
+      while (line != null) {
+        getLog().debug(line);
+        line = reader.readLine();
+      }
+    }
+  }
+
+  /** The times of an application run in a forked jvm.
+   */
+  static class Run {
+
+    /** The time from the jvm launch to its exit, in milliseconds. */
+    private long totalMillis;
+
+    /** The time Application.run took, in milliseconds, -1 if not known. */
+    private long runMillis = -1;
+
+    /** Returns the time Application.run took.
+     *
+     * @return the time in milliseconds, -1 if not known.
+     */
+    long getRunMillis() {
+      return runMillis;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return "jvm " + totalMillis + " ms, Application.run " + runMillis
+        + " ms";
+    }
+  }
+}
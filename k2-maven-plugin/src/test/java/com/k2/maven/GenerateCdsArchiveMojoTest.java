@@ -0,0 +1,115 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.maven;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.containsString;
+
+public class GenerateCdsArchiveMojoTest {
+
+  private File directory;
+
+  private File report;
+
+  private String classpath;
+
+  @Before public void setUp() throws Exception {
+    directory = new File("target/cds-test");
+    directory.mkdirs();
+    report = new File(directory, "run-millis.txt");
+    classpath = new File("target/classes").getAbsolutePath()
+      + File.pathSeparator + new File("target/test-classes").getAbsolutePath();
+  }
+
+  @Test public void fork() throws Exception {
+    GenerateCdsArchiveMojo mojo = createMojo(NoisyApplication.class, 60);
+    GenerateCdsArchiveMojo.Run run = mojo.fork(classpath, null, report);
+    assertThat(run.getRunMillis() >= 0, is(true));
+    assertThat(new File(directory, "fork.log").length()
+        > NoisyApplication.LINES, is(true));
+  }
+
+  @Test public void fork_timeout() throws Exception {
+    GenerateCdsArchiveMojo mojo = createMojo(HangingApplication.class, 2);
+    long start = System.currentTimeMillis();
+    try {
+      mojo.fork(classpath, null, report);
+      fail("A hung jvm must fail the goal.");
+    } catch (MojoExecutionException e) {
+      assertThat(e.getMessage(), containsString("did not stop after 2"));
+    }
+    assertThat(System.currentTimeMillis() - start < 30000, is(true));
+  }
+
+  @Test public void fork_staleReport() throws Exception {
+    Files.write(report.toPath(), "12345".getBytes(StandardCharsets.UTF_8));
+    GenerateCdsArchiveMojo mojo = createMojo(FailingApplication.class, 60);
+    try {
+      mojo.fork(classpath, null, report);
+      fail("A failed run must fail the goal.");
+    } catch (MojoExecutionException e) {
+      assertThat(e.getMessage(), containsString("exit code"));
+    }
+    assertThat(report.exists(), is(false));
+  }
+
+  private GenerateCdsArchiveMojo createMojo(final Class<?> applicationClass,
+      final int timeout) throws Exception {
+    GenerateCdsArchiveMojo mojo = new GenerateCdsArchiveMojo();
+    set(mojo, "applicationClassName", applicationClass.getName());
+    set(mojo, "timeout", timeout);
+    return mojo;
+  }
+
+  private void set(final Object target, final String name, final Object value)
+      throws Exception {
+    Field field = target.getClass().getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(target, value);
+  }
+
+  /** Writes more than a pipe buffer of output. */
+  public static class NoisyApplication {
+    static final int LINES = 100000;
+    public void run(final String[] args) {
+      PrintStream out = System.out;
+      for (int i = 0; i < LINES; i++) {
+        out.println("line " + i);
+      }
+    }
+    public void stop() {
+    }
+  }
+
+  /** Never returns from run. */
+  public static class HangingApplication {
+    public void run(final String[] args) throws InterruptedException {
+      Thread.sleep(Long.MAX_VALUE);
+    }
+    public void stop() {
+    }
+  }
+
+  /** Fails in run. */
+  public static class FailingApplication {
+    public void run(final String[] args) {
+      throw new IllegalStateException("failed");
+    }
+    public void stop() {
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import org.apache.commons.lang3.Validate;
+
+/** A rate limit on the requests that match a url pattern.
+ */
+class Limit {
+
+  /** The context relative url pattern, in ant syntax, never null. */
+  private final String pattern;
+
+  /** What identifies the clients that share the limit, never null. */
+  private final RateLimitRegistry.Key key;
+
+  /** The number of requests that a client can make in a burst. */
+  private final int capacity;
+
+  /** The sustained number of requests per second that a client can make. */
+  private final double tokensPerSecond;
+
+  /** Constructor, creates a limit.
+   *
+   * @param thePattern the context relative url pattern. It cannot be null.
+   *
+   * @param theKey what identifies the clients that share the limit. It cannot
+   * be null.
+   *
+   * @param theCapacity the number of requests that a client can make in a
+   * burst. It must be greater than 0.
+   *
+   * @param theTokensPerSecond the sustained number of requests per second
+   * that a client can make. It must be greater than 0.
+   */
+  Limit(final String thePattern, final RateLimitRegistry.Key theKey,
+      final int theCapacity, final double theTokensPerSecond) {
+    Validate.notNull(thePattern, "The pattern cannot be null.");
+    Validate.notNull(theKey, "The key cannot be null.");
+    Validate.isTrue(theCapacity > 0, "The capacity must be greater than 0.");
+    Validate.isTrue(theTokensPerSecond > 0,
+        "The tokens per second must be greater than 0.");
+    pattern = thePattern;
+    key = theKey;
+    capacity = theCapacity;
+    tokensPerSecond = theTokensPerSecond;
+  }
+
+  /** The context relative url pattern.
+   *
+   * @return the pattern, never null.
+   */
+  String getPattern() {
+    return pattern;
+  }
+
+  /** What identifies the clients that share the limit.
+   *
+   * @return the key, never null.
+   */
+  RateLimitRegistry.Key getKey() {
+    return key;
+  }
+
+  /** Creates the token buckets that enforce this limit.
+   *
+   * @param maxBuckets the maximum number of buckets to keep. It must be
+   * greater than 0.
+   *
+   * @return new empty buckets, never null.
+   */
+  TokenBuckets createBuckets(final int maxBuckets) {
+    return new TokenBuckets(capacity, tokensPerSecond, maxBuckets);
+  }
+}
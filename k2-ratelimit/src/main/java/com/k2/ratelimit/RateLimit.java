@@ -0,0 +1,93 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.stereotype.Component;
+
+import com.k2.core.Application;
+import com.k2.core.ModuleDefinition;
+import com.k2.core.RegistryFactory;
+
+/** This module limits the rate of the requests to the module endpoints.
+ *
+ * Modules register their limits with the RateLimitRegistry. This module
+ * enforces them with a filter that runs after the shiro filter, if there is
+ * one, so the limits by principal see the authenticated user.
+ *
+ * The rateLimit.maxBuckets property sets the maximum number of clients that
+ * each limit tracks, 100000 by default.
+ */
+@Component("rateLimit")
+public class RateLimit implements RegistryFactory {
+
+  /** The order of the rate limit filter, after the request metrics filters
+   * and the k2-shiro filter, and before the response cache filters. */
+  public static final int FILTER_ORDER = Application.METRICS_FILTER_ORDER
+    + 20;
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(RateLimit.class);
+
+  /** The limits registered by the modules, in registration order, never
+   * null.
+   *
+   * This is written by the RateLimitRegistry when a module calls limit.
+   */
+  private final List<Limit> limits = new ArrayList<>();
+
+  /** Adds a new limit.
+   *
+   * See RateLimitRegistry.limit for more information.
+   *
+   * @param pattern the context relative url pattern. It cannot be null.
+   *
+   * @param key what identifies the clients that share the limit. It cannot
+   * be null.
+   *
+   * @param capacity the number of requests that a client can make in a burst.
+   *
+   * @param tokensPerSecond the sustained number of requests per second that
+   * a client can make.
+   */
+  void addLimit(final String pattern, final RateLimitRegistry.Key key,
+      final int capacity, final double tokensPerSecond) {
+    limits.add(new Limit(pattern, key, capacity, tokensPerSecond));
+  }
+
+  /** Creates a rate limit registry for the provided module. */
+  @Override
+  public RateLimitRegistry getRegistry(final ModuleDefinition requestor) {
+    log.trace("Entering getRegistry({})", requestor.getModuleName());
+    RateLimitRegistry result;
+    result = new RateLimitRegistry(requestor.getModuleName(), this);
+    log.trace("Leaving getRegistry()");
+    return result;
+  }
+
+  /** Creates the filter that enforces the limits.
+   *
+   * @param maxBuckets the maximum number of clients that each limit tracks.
+   *
+   * @return the filter registration, never returns null.
+   */
+  @Bean public FilterRegistrationBean<Filter> rateLimitFilter(
+      @Value("${rateLimit.maxBuckets:100000}") final int maxBuckets) {
+    FilterRegistrationBean<Filter> registration;
+    registration = new FilterRegistrationBean<>(
+        new RateLimitFilter(limits, maxBuckets));
+    registration.setName("rateLimitFilter");
+    registration.setOrder(FILTER_ORDER);
+    return registration;
+  }
+}
@@ -0,0 +1,158 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.Validate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.util.UrlPathHelper;
+
+/** The filter that enforces the rate limits.
+ *
+ * Each request takes a token from the bucket of its client in each limit
+ * that matches the request path. If any of those buckets is empty, the
+ * request gets a 429 (too many requests) response with a Retry-After header.
+ */
+class RateLimitFilter implements Filter {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(RateLimitFilter.class);
+
+  /** The status code of the rejected requests, not defined in
+   * HttpServletResponse. */
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  /** The number of nanoseconds in a second. */
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /** The key of the global limits. */
+  private static final String GLOBAL_KEY = "";
+
+  /** The url path patterns of the limits, never null. */
+  private final String[] patterns;
+
+  /** The keys of the limits, never null. */
+  private final RateLimitRegistry.Key[] keys;
+
+  /** The token buckets of the limits, never null. */
+  private final TokenBuckets[] buckets;
+
+  /** Matches the request paths against the patterns, never null. */
+  private final PathMatcher pathMatcher = new AntPathMatcher();
+
+  /** Obtains the request paths, never null. */
+  private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+  /** Constructor, creates a filter that enforces the provided limits.
+   *
+   * @param limits the limits to enforce. It cannot be null.
+   *
+   * @param maxBuckets the maximum number of clients that each limit tracks.
+   * It must be greater than 0.
+   */
+  RateLimitFilter(final List<Limit> limits, final int maxBuckets) {
+    Validate.notNull(limits, "The limits cannot be null.");
+    patterns = new String[limits.size()];
+    keys = new RateLimitRegistry.Key[limits.size()];
+    buckets = new TokenBuckets[limits.size()];
+    for (int i = 0; i < patterns.length; i++) {
+      Limit limit = limits.get(i);
+      patterns[i] = limit.getPattern();
+      keys[i] = limit.getKey();
+      buckets[i] = limit.createBuckets(maxBuckets);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void init(final FilterConfig filterConfig) {
+  }
+
+  /** {@inheritDoc}
+   *
+   * Takes a token for the request in each matching limit.
+   */
+  @Override
+  public void doFilter(final ServletRequest request,
+      final ServletResponse response, final FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    if (patterns.length != 0) {
+      String path = urlPathHelper.getPathWithinApplication(httpRequest);
+      long now = System.nanoTime();
+      for (int i = 0; i < patterns.length; i++) {
+        if (pathMatcher.match(patterns[i], path)) {
+          long wait = buckets[i].take(getClientKey(keys[i], httpRequest), now);
+          if (wait != 0) {
+            log.debug("Rejecting request to {}, limited by {}", path,
+                patterns[i]);
+            reject((HttpServletResponse) response, wait);
+            return;
+          }
+        }
+      }
+    }
+    chain.doFilter(request, response);
+  }
+
+  /** Sends the too many requests response.
+   *
+   * @param response the response. It cannot be null.
+   *
+   * @param wait the time until the client gets a new token, in nanoseconds.
+   */
+  private static void reject(final HttpServletResponse response,
+      final long wait) {
+    long seconds = (wait + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND;
+    response.setHeader("Retry-After", Long.toString(seconds));
+    response.setStatus(SC_TOO_MANY_REQUESTS);
+  }
+
+  /** Obtains the key of the client that made the request.
+   *
+   * @param key what identifies the clients that share the limit. It cannot
+   * be null.
+   *
+   * @param request the request. It cannot be null.
+   *
+   * @return the client key, never null.
+   */
+  private static String getClientKey(final RateLimitRegistry.Key key,
+      final HttpServletRequest request) {
+    switch (key) {
+      case GLOBAL:
+        return GLOBAL_KEY;
+      case PRINCIPAL:
+        Principal principal = request.getUserPrincipal();
+        if (principal != null) {
+          return "principal:" + principal.getName();
+        }
+        return "ip:" + request.getRemoteAddr();
+      default:
+        return "ip:" + request.getRemoteAddr();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void destroy() {
+  }
+}
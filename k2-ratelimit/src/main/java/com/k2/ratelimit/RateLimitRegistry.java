@@ -0,0 +1,104 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** The rate limit registry.
+ *
+ * Through the rate limit registry, modules limit the rate of the requests to
+ * their endpoints, for example:
+ *
+ * registry.limit("/export/**", RateLimitRegistry.Key.IP, 10, 0.5);
+ *
+ * lets each client ip make bursts of up to 10 requests to /export/**, and
+ * then one request every 2 seconds.
+ */
+public class RateLimitRegistry {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(RateLimitRegistry.class);
+
+  /** What identifies the clients that share a limit. */
+  public enum Key {
+
+    /** Each client ip address has its own limit. */
+    IP,
+
+    /** Each authenticated user has its own limit. Anonymous requests are
+     * limited by client ip address. */
+    PRINCIPAL,
+
+    /** All the clients share the same limit. */
+    GLOBAL
+  }
+
+  /** The name of the module using this registry, never null.
+   */
+  private String moduleName;
+
+  /** The rate limit module, never null.
+   */
+  private RateLimit rateLimitModule;
+
+  /** Constructor, creates a rate limit registry.
+   *
+   * @param theModuleName the name of the module using this registry. It cannot
+   * be null.
+   *
+   * @param rateLimit the rate limit module. It cannot be null.
+   */
+  RateLimitRegistry(final String theModuleName, final RateLimit rateLimit) {
+    moduleName = theModuleName;
+    rateLimitModule = rateLimit;
+  }
+
+  /** Limits the rate of the requests to an endpoint.
+   *
+   * Each client gets a bucket of capacity tokens that refills at
+   * tokensPerSecond. Each request takes a token, and the requests that find
+   * the bucket empty get a 429 (too many requests) response with a
+   * Retry-After header. If a request matches more than one limit, it must
+   * pass all of them.
+   *
+   * @param pattern the module relative url path pattern to match against a
+   * request url, in ant syntax. It cannot be null.
+   *
+   * @param key what identifies the clients that share a limit. It cannot be
+   * null.
+   *
+   * @param capacity the number of requests that a client can make in a
+   * burst. It must be greater than 0.
+   *
+   * @param tokensPerSecond the sustained number of requests per second that
+   * a client can make. It must be greater than 0.
+   */
+  public void limit(final String pattern, final Key key, final int capacity,
+      final double tokensPerSecond) {
+    log.trace("Entering limit");
+    Validate.notNull(pattern, "The pattern cannot be null.");
+    Validate.notNull(key, "The key cannot be null.");
+    String urlPattern = getContextRelativeUrl(pattern);
+    log.debug("Limiting {} by {} to {} requests, {} per second", urlPattern,
+        key, capacity, tokensPerSecond);
+    rateLimitModule.addLimit(urlPattern, key, capacity, tokensPerSecond);
+    log.trace("Leaving limit");
+  }
+
+  /** Obtains the context relative url from a module relative url.
+   *
+   * @param moduleRelativeUrl The module relative url. It cannot be null.
+   *
+   * @return the context relative url, never returns null.
+   */
+  private String getContextRelativeUrl(final String moduleRelativeUrl) {
+    String result = "/" + moduleName;
+    if (!moduleRelativeUrl.startsWith("/")) {
+      result += "/";
+    }
+    result += moduleRelativeUrl;
+    return result;
+  }
+}
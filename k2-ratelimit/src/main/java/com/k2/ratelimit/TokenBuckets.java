@@ -0,0 +1,150 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+
+/** A bounded set of token buckets, one for each client key.
+ *
+ * Each bucket holds up to capacity tokens and gets new tokens at a constant
+ * rate. A request takes one token from the bucket of its client, and is
+ * rejected if the bucket is empty.
+ *
+ * The buckets are implemented with the generic cell rate algorithm: each
+ * bucket is a single AtomicLong with the time the bucket will be full again,
+ * updated with compare and set, so taking a token does not lock nor allocate
+ * memory, except for the first request of a client.
+ *
+ * A bucket that is full again is equivalent to a missing one, so it expires.
+ * When the number of buckets reaches the maximum, the first thread that
+ * notices it removes the expired buckets and, if that is not enough, some
+ * arbitrary ones. This keeps the memory bounded no matter the number of
+ * distinct clients, at the cost of forgetting the state of some clients when
+ * there are more active clients than the maximum. A request that races with
+ * the removal of its bucket may also go uncounted.
+ */
+class TokenBuckets {
+
+  /** The number of nanoseconds in a second. */
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /** The time it takes a bucket to get a new token, in nanoseconds. */
+  private final long interval;
+
+  /** The time it takes an empty bucket to get capacity - 1 tokens, in
+   * nanoseconds. */
+  private final long tolerance;
+
+  /** The maximum number of buckets. */
+  private final int maxBuckets;
+
+  /** The time each bucket will be full again, as returned by
+   * System.nanoTime, keyed by client key, never null. */
+  private final ConcurrentMap<String, AtomicLong> buckets
+      = new ConcurrentHashMap<>();
+
+  /** Set while a thread removes buckets, never null. */
+  private final AtomicBoolean sweeping = new AtomicBoolean(false);
+
+  /** Constructor, creates an empty set of buckets.
+   *
+   * @param capacity the maximum number of tokens in a bucket, the maximum
+   * number of requests that a client can make in a burst. It must be greater
+   * than 0.
+   *
+   * @param tokensPerSecond the rate at which the buckets get new tokens, the
+   * sustained number of requests per second of a client. It must be greater
+   * than 0.
+   *
+   * @param theMaxBuckets the maximum number of buckets to keep. It must be
+   * greater than 0.
+   */
+  TokenBuckets(final int capacity, final double tokensPerSecond,
+      final int theMaxBuckets) {
+    Validate.isTrue(capacity > 0, "The capacity must be greater than 0.");
+    Validate.isTrue(tokensPerSecond > 0,
+        "The tokens per second must be greater than 0.");
+    Validate.isTrue(theMaxBuckets > 0,
+        "The maximum number of buckets must be greater than 0.");
+    interval = Math.max(1, (long) (NANOS_PER_SECOND / tokensPerSecond));
+    tolerance = interval * (capacity - 1);
+    maxBuckets = theMaxBuckets;
+  }
+
+  /** Takes a token from the bucket of a client.
+   *
+   * @param key the client key. It cannot be null.
+   *
+   * @param now the current time, as returned by System.nanoTime.
+   *
+   * @return 0 if the request can proceed, otherwise the time until the bucket
+   * gets a new token, in nanoseconds.
+   */
+  long take(final String key, final long now) {
+    AtomicLong bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= maxBuckets) {
+        sweep(now);
+      }
+      AtomicLong newBucket = new AtomicLong(now);
+      bucket = buckets.putIfAbsent(key, newBucket);
+      if (bucket == null) {
+        bucket = newBucket;
+      }
+    }
+    while (true) {
+      long full = bucket.get();
+      long start = Math.max(full, now);
+      long wait = start - tolerance - now;
+      if (wait > 0) {
+        return wait;
+      }
+      if (bucket.compareAndSet(full, start + interval)) {
+        return 0;
+      }
+    }
+  }
+
+  /** Removes buckets to make room for a new one.
+   *
+   * Only one thread sweeps at a time, other threads go on without waiting.
+   *
+   * @param now the current time, as returned by System.nanoTime.
+   */
+  private void sweep(final long now) {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      Iterator<AtomicLong> expired = buckets.values().iterator();
+      while (expired.hasNext()) {
+        if (expired.next().get() - now <= 0) {
+          expired.remove();
+        }
+      }
+      Iterator<String> active = buckets.keySet().iterator();
+      while (buckets.size() >= maxBuckets && active.hasNext()) {
+        active.next();
+        active.remove();
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+
+  /** The number of buckets.
+   *
+   * @return the number of buckets, at most the maximum plus the number of
+   * threads that concurrently create one.
+   */
+  int size() {
+    return buckets.size();
+  }
+}
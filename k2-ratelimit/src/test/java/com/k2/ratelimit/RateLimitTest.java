@@ -0,0 +1,137 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import com.k2.core.Application;
+import com.k2.core.ModuleContext;
+import com.k2.core.Registrator;
+import com.k2.core.K2Environment;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+/** The RateLimit module integration tests.
+ */
+public class RateLimitTest {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(RateLimitTest.class);
+
+  private Application application;
+
+  private Executor executor = Executor.newInstance();
+
+  private String home;
+
+  @Before public void setUp() {
+    log.trace("Entering setUp");
+
+    application = new TestApplication();
+    application.run(new String[] {"--server.port=0"});
+
+    K2Environment environment;
+    environment = application.getBean("environment", K2Environment.class);
+    home = "http://localhost:" + environment.getProperty("local.server.port");
+
+    log.trace("Leaving setUp");
+  }
+
+  @After public void tearDown() {
+    application.stop();
+  }
+
+  @Test public void limit() throws Exception {
+    assertThat(getStatus("/test/export.html"), is(200));
+    assertThat(getStatus("/test/export.html"), is(200));
+
+    HttpResponse response = executor.execute(
+        Request.Get(home + "/test/export.html")).returnResponse();
+    assertThat(response.getStatusLine().getStatusCode(), is(429));
+    // A new token every 100 seconds.
+    int retryAfter = Integer.parseInt(
+        response.getFirstHeader("Retry-After").getValue());
+    assertThat(retryAfter > 90 && retryAfter <= 100, is(true));
+
+    // Other endpoints are not limited.
+    assertThat(getStatus("/test/hi.html"), is(200));
+    assertThat(getStatus("/test/hi.html"), is(200));
+    assertThat(getStatus("/test/hi.html"), is(200));
+  }
+
+  private int getStatus(final String path) throws Exception {
+    return executor.execute(Request.Get(home + path)).returnResponse()
+      .getStatusLine().getStatusCode();
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  ///////////    The test application and module  /////////////////////
+  /////////////////////////////////////////////////////////////////////
+
+  /* A test controller.
+   */
+  @Controller
+  public static class TestController {
+
+    // An expensive endpoint (export.html).
+    @RequestMapping(value = "/export.html", method = RequestMethod.GET)
+    public HttpEntity<String> export() {
+      return new HttpEntity<String>("Export");
+    }
+
+    // A hi endpoint (hi.html).
+    @RequestMapping(value = "/hi.html", method = RequestMethod.GET)
+    public HttpEntity<String> hi() {
+      return new HttpEntity<String>("Hello");
+    }
+  };
+
+  /* A module named test that limits export.html to 2 requests per client.
+   */
+  @Component("test")
+  public static class TestModule implements Registrator {
+
+    @Override
+    public void addRegistrations(final ModuleContext moduleContext) {
+      RateLimitRegistry registry = moduleContext.get(RateLimitRegistry.class);
+      registry.limit("/export.html", RateLimitRegistry.Key.IP, 2, 0.01);
+    }
+
+    @Bean public TestController testController() {
+      return new TestController();
+    }
+  };
+
+  /* The test application.
+   */
+  @Configuration
+  public static class TestApplication extends Application {
+
+    public TestApplication() {
+      super(new RateLimit(), new TestModule());
+    }
+
+    public static void main(final String... args) {
+      Application application = new TestApplication();
+      application.run(args);
+    }
+  }
+}
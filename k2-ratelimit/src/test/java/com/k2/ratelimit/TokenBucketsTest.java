@@ -0,0 +1,50 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class TokenBucketsTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test public void take_burstAndRefill() {
+    TokenBuckets buckets = new TokenBuckets(3, 1, 10);
+    long now = 0;
+    assertThat(buckets.take("a", now), is(0L));
+    assertThat(buckets.take("a", now), is(0L));
+    assertThat(buckets.take("a", now), is(0L));
+    assertThat(buckets.take("a", now), is(SECOND));
+    // Other clients have their own bucket.
+    assertThat(buckets.take("b", now), is(0L));
+
+    assertThat(buckets.take("a", now + SECOND / 2), is(SECOND / 2));
+    assertThat(buckets.take("a", now + SECOND), is(0L));
+    assertThat(buckets.take("a", now + SECOND), is(SECOND));
+  }
+
+  @Test public void take_bounded() {
+    TokenBuckets buckets = new TokenBuckets(1, 1, 10);
+    for (int i = 0; i < 1000; i++) {
+      buckets.take("client" + i, 0);
+    }
+    assertThat(buckets.size() <= 10, is(true));
+  }
+
+  @Test public void take_removesExpired() {
+    TokenBuckets buckets = new TokenBuckets(1, 1, 10);
+    for (int i = 0; i < 10; i++) {
+      buckets.take("client" + i, 0);
+    }
+    // A bucket that is full again expires, it does not keep its client
+    // limited.
+    assertThat(buckets.take("new", 2 * SECOND), is(0L));
+    assertThat(buckets.size(), is(1));
+  }
+}
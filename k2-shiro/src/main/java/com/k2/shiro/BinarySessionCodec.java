@@ -0,0 +1,518 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.shiro.subject.SimplePrincipalCollection;
+
+/** The default session codec, a compact binary format.
+ *
+ * The encoded session starts with a format byte, followed by the number of
+ * attributes and the key and value of each attribute. Each key or value is a
+ * type tag followed by its data. Strings, booleans, integers, longs, doubles
+ * and shiro SimplePrincipalCollection have their own tag; numbers and lengths
+ * are written as variable length integers. Any other value is written with
+ * java serialization, so it must be Serializable.
+ *
+ * If compression is enabled, sessions larger than 128 bytes are deflated
+ * when that makes them smaller.
+ *
+ * This codec also decodes the sessions written with java serialization by
+ * previous k2 versions.
+ *
+ * This class is thread safe.
+ */
+public class BinarySessionCodec implements SessionCodec {
+
+  /** The format byte of an uncompressed session. */
+  private static final byte PLAIN = 'K';
+
+  /** The format byte of a deflated session. */
+  private static final byte DEFLATED = 'Z';
+
+  /** The first byte of a java serialization stream. */
+  private static final byte JAVA_MAGIC_0 = (byte) 0xac;
+
+  /** The second byte of a java serialization stream. */
+  private static final byte JAVA_MAGIC_1 = (byte) 0xed;
+
+  /** The minimum size of a session to try to deflate it. */
+  private static final int MIN_DEFLATE_SIZE = 128;
+
+  /** The maximum size of a decoded session, in bytes. */
+  private static final int MAX_SIZE = 1048576;
+
+  /** The type tag of null. */
+  private static final int NULL = 0;
+
+  /** The type tag of a string. */
+  private static final int STRING = 1;
+
+  /** The type tag of Boolean.TRUE. */
+  private static final int TRUE = 2;
+
+  /** The type tag of Boolean.FALSE. */
+  private static final int FALSE = 3;
+
+  /** The type tag of an integer. */
+  private static final int INTEGER = 4;
+
+  /** The type tag of a long. */
+  private static final int LONG = 5;
+
+  /** The type tag of a double. */
+  private static final int DOUBLE = 6;
+
+  /** The type tag of a shiro SimplePrincipalCollection. */
+  private static final int PRINCIPALS = 7;
+
+  /** The type tag of a value written with java serialization. */
+  private static final int SERIALIZED = 8;
+
+  /** The bits of each byte of a variable length integer. */
+  private static final int VARINT_BITS = 7;
+
+  /** The mask of the value bits of each byte of a variable length integer. */
+  private static final int VARINT_MASK = 0x7f;
+
+  /** The flag that marks that a variable length integer continues. */
+  private static final int VARINT_MORE = 0x80;
+
+  /** The number of bits in a long. */
+  private static final int LONG_BITS = 64;
+
+  /** The mask to read a byte as an unsigned value. */
+  private static final int BYTE_MASK = 0xff;
+
+  /** Whether to deflate the large sessions. */
+  private final boolean compress;
+
+  /** Constructor, creates a codec that deflates the large sessions.
+   */
+  public BinarySessionCodec() {
+    this(true);
+  }
+
+  /** Constructor, creates a codec.
+   *
+   * @param isCompress true to deflate the sessions larger than 128 bytes.
+   */
+  public BinarySessionCodec(final boolean isCompress) {
+    compress = isCompress;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public byte[] encode(final Map<Object, Object> attributes)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(PLAIN);
+    writeVarLong(out, attributes.size());
+    for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+      writeValue(out, entry.getKey(), true);
+      writeValue(out, entry.getValue(), true);
+    }
+    byte[] plain = out.toByteArray();
+    if (!compress || plain.length < MIN_DEFLATE_SIZE) {
+      return plain;
+    }
+    return deflate(plain);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<Object, Object> decode(final byte[] data) throws IOException {
+    if (data.length > 1 && data[0] == JAVA_MAGIC_0
+        && data[1] == JAVA_MAGIC_1) {
+      return readJavaSession(data);
+    }
+    Reader in;
+    if (data.length > 0 && data[0] == PLAIN) {
+      in = new Reader(data, 1);
+    } else if (data.length > 0 && data[0] == DEFLATED) {
+      in = new Reader(inflate(data), 1);
+    } else {
+      throw new IOException("Unknown session format");
+    }
+    int size = in.readLength();
+    Map<Object, Object> attributes = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      Object key = readValue(in, true);
+      attributes.put(key, readValue(in, true));
+    }
+    if (in.position != in.data.length) {
+      throw new IOException("Unexpected data at the end of the session");
+    }
+    return attributes;
+  }
+
+  /** Writes a key or a value.
+   *
+   * @param out the stream to write to. It cannot be null.
+   *
+   * @param value the value to write, possibly null.
+   *
+   * @param principalsTag whether to write principal collections with their
+   * own tag. It is false for the principals in a principal collection, so
+   * the decoder does not need to recurse.
+   *
+   * @throws IOException if the value cannot be serialized.
+   */
+  private static void writeValue(final ByteArrayOutputStream out,
+      final Object value, final boolean principalsTag) throws IOException {
+    if (value == null) {
+      out.write(NULL);
+    } else if (value instanceof String) {
+      out.write(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Boolean) {
+      out.write(((Boolean) value) ? TRUE : FALSE);
+    } else if (value instanceof Integer) {
+      out.write(INTEGER);
+      writeVarLong(out, zigzag((Integer) value));
+    } else if (value instanceof Long) {
+      out.write(LONG);
+      writeVarLong(out, zigzag((Long) value));
+    } else if (value instanceof Double) {
+      out.write(DOUBLE);
+      long bits = Double.doubleToLongBits((Double) value);
+      for (int shift = LONG_BITS - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+        out.write((int) (bits >>> shift));
+      }
+    } else if (principalsTag
+        && value.getClass() == SimplePrincipalCollection.class) {
+      SimplePrincipalCollection principals = (SimplePrincipalCollection) value;
+      Set<String> realms = principals.getRealmNames();
+      if (realms == null) {
+        realms = Collections.emptySet();
+      }
+      out.write(PRINCIPALS);
+      writeVarLong(out, realms.size());
+      for (String realm : realms) {
+        writeString(out, realm);
+        Collection<?> realmPrincipals = principals.fromRealm(realm);
+        writeVarLong(out, realmPrincipals.size());
+        for (Object principal : realmPrincipals) {
+          writeValue(out, principal, false);
+        }
+      }
+    } else {
+      out.write(SERIALIZED);
+      ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(serialized)) {
+        oos.writeObject(value);
+      }
+      writeVarLong(out, serialized.size());
+      serialized.writeTo(out);
+    }
+  }
+
+  /** Reads a key or a value.
+   *
+   * @param in the data to read from. It cannot be null.
+   *
+   * @param principalsTag whether the principal collection tag is valid.
+   *
+   * @return the value, possibly null.
+   *
+   * @throws IOException if the data is not valid.
+   */
+  private static Object readValue(final Reader in,
+      final boolean principalsTag) throws IOException {
+    int tag = in.readByte();
+    if (tag == PRINCIPALS && !principalsTag) {
+      throw new IOException("Nested principal collection in session");
+    }
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return in.readString();
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case INTEGER:
+        return (int) unzigzag(in.readVarLong());
+      case LONG:
+        return unzigzag(in.readVarLong());
+      case DOUBLE:
+        long bits = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+          bits = (bits << Byte.SIZE) | in.readByte();
+        }
+        return Double.longBitsToDouble(bits);
+      case PRINCIPALS:
+        SimplePrincipalCollection principals = new SimplePrincipalCollection();
+        int realms = in.readLength();
+        for (int i = 0; i < realms; i++) {
+          String realm = in.readString();
+          int count = in.readLength();
+          for (int j = 0; j < count; j++) {
+            principals.add(readValue(in, false), realm);
+          }
+        }
+        return principals;
+      case SERIALIZED:
+        int length = in.readLength();
+        try (ObjectInputStream ois = new ObjectInputStream(
+            new ByteArrayInputStream(in.data, in.skip(length), length))) {
+          return ois.readObject();
+        } catch (ClassNotFoundException e) {
+          throw new IOException("Unknown session attribute class", e);
+        }
+      default:
+        throw new IOException("Unknown session attribute type " + tag);
+    }
+  }
+
+  /** Reads a session written by previous k2 versions, a HashMap written with
+   * java serialization.
+   *
+   * @param data the serialized session. It cannot be null.
+   *
+   * @return the session attributes, never null.
+   *
+   * @throws IOException if the data is not a serialized map.
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<Object, Object> readJavaSession(final byte[] data)
+      throws IOException {
+    try (ObjectInputStream ois = new ObjectInputStream(
+        new ByteArrayInputStream(data))) {
+      Object result = ois.readObject();
+      if (!(result instanceof Map)) {
+        throw new IOException("The session is not a map");
+      }
+      return (Map<Object, Object>) result;
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown session attribute class", e);
+    }
+  }
+
+  /** Deflates an encoded session, if that makes it smaller.
+   *
+   * @param plain the uncompressed session, starting with the PLAIN format
+   * byte. It cannot be null.
+   *
+   * @return the deflated session, or plain if deflate did not make it
+   * smaller. Never returns null.
+   */
+  private static byte[] deflate(final byte[] plain) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    try {
+      deflater.setInput(plain, 1, plain.length - 1);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length);
+      out.write(DEFLATED);
+      writeVarLong(out, plain.length - 1);
+      byte[] buffer = new byte[plain.length];
+      while (!deflater.finished()) {
+        int length = deflater.deflate(buffer);
+        out.write(buffer, 0, length);
+        if (out.size() >= plain.length) {
+          return plain;
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Inflates a deflated session.
+   *
+   * @param data the deflated session, starting with the DEFLATED format
+   * byte. It cannot be null.
+   *
+   * @return the uncompressed session, starting with the PLAIN format byte.
+   * Never returns null.
+   *
+   * @throws IOException if the data is not valid.
+   */
+  private static byte[] inflate(final byte[] data) throws IOException {
+    Reader in = new Reader(data, 1);
+    int length = in.readLength();
+    if (length > MAX_SIZE) {
+      throw new IOException("Session too large");
+    }
+    byte[] plain = new byte[length + 1];
+    plain[0] = PLAIN;
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data, in.position, data.length - in.position);
+      int offset = 1;
+      while (offset < plain.length) {
+        int read = inflater.inflate(plain, offset, plain.length - offset);
+        if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new IOException("Truncated session");
+        }
+        offset += read;
+      }
+      return plain;
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid deflated session", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Writes a string as its utf-8 length and bytes.
+   *
+   * @param out the stream to write to. It cannot be null.
+   *
+   * @param value the string to write. It cannot be null.
+   */
+  private static void writeString(final ByteArrayOutputStream out,
+      final String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /** Writes a non negative long in 7 bit groups, least significant first.
+   *
+   * @param out the stream to write to. It cannot be null.
+   *
+   * @param value the value to write.
+   */
+  private static void writeVarLong(final ByteArrayOutputStream out,
+      final long value) {
+    long remaining = value;
+    while ((remaining & ~VARINT_MASK) != 0) {
+      out.write((int) ((remaining & VARINT_MASK) | VARINT_MORE));
+      remaining >>>= VARINT_BITS;
+    }
+    out.write((int) remaining);
+  }
+
+  /** Maps signed values to unsigned ones, so that small negative numbers are
+   * written in few bytes.
+   *
+   * @param value the value to map.
+   *
+   * @return the mapped value.
+   */
+  private static long zigzag(final long value) {
+    return (value << 1) ^ (value >> (LONG_BITS - 1));
+  }
+
+  /** Reverses zigzag.
+   *
+   * @param value the mapped value.
+   *
+   * @return the original value.
+   */
+  private static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Reads the encoded data, checking that it does not read past its end.
+   */
+  private static final class Reader {
+
+    /** The encoded data, never null. */
+    private final byte[] data;
+
+    /** The position of the next byte to read. */
+    private int position;
+
+    /** Constructor, creates a reader.
+     *
+     * @param theData the data to read. It cannot be null.
+     *
+     * @param start the position of the first byte to read.
+     */
+    private Reader(final byte[] theData, final int start) {
+      data = theData;
+      position = start;
+    }
+
+    /** Reads an unsigned byte.
+     *
+     * @return the byte, between 0 and 255.
+     *
+     * @throws IOException if there is no more data.
+     */
+    private int readByte() throws IOException {
+      if (position >= data.length) {
+        throw new IOException("Truncated session");
+      }
+      return data[position++] & BYTE_MASK;
+    }
+
+    /** Reads a variable length integer.
+     *
+     * @return the value.
+     *
+     * @throws IOException if the data is not valid.
+     */
+    private long readVarLong() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < LONG_BITS; shift += VARINT_BITS) {
+        int b = readByte();
+        result |= (long) (b & VARINT_MASK) << shift;
+        if ((b & VARINT_MORE) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("Invalid number in session");
+    }
+
+    /** Reads a length or a count, that cannot be larger than MAX_SIZE.
+     *
+     * @return the length.
+     *
+     * @throws IOException if the data is not valid.
+     */
+    private int readLength() throws IOException {
+      long length = readVarLong();
+      if (length > MAX_SIZE) {
+        throw new IOException("Invalid length in session");
+      }
+      return (int) length;
+    }
+
+    /** Reads a string written by writeString.
+     *
+     * @return the string, never null.
+     *
+     * @throws IOException if the data is not valid.
+     */
+    private String readString() throws IOException {
+      int length = readLength();
+      return new String(data, skip(length), length, StandardCharsets.UTF_8);
+    }
+
+    /** Skips some bytes.
+     *
+     * @param length the number of bytes to skip.
+     *
+     * @return the position of the first skipped byte.
+     *
+     * @throws IOException if there are less than length bytes left.
+     */
+    private int skip(final int length) throws IOException {
+      if (length > data.length - position) {
+        throw new IOException("Truncated session");
+      }
+      int start = position;
+      position += length;
+      return start;
+    }
+  }
+}
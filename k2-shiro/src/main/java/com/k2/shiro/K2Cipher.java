@@ -1,66 +1,217 @@
 package com.k2.shiro;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.lang3.Validate;
 
-import org.apache.shiro.codec.Base64;
-
 /** A cipher that encrypts and decrypts information.
  *
  * This cipher encrypts an array of bytes an generates a base 64 encoded string
  * so that the encrypted data can be passed to browsers in cookies.
  *
- * Implementation note: the {@link K2Cipher} uses RC4 encryption algorithm.
- * Depending on your installation, you may need to install the Java
- * Cryptography Extension (JCE) Unlimited Strength Jurisdiction Policy Files,
- * otherwise this cipher may use a shorter key length.
+ * This cipher supports two algorithms:
+ *
+ * - RC4, the default, kept for compatibility with existing cookies. It does
+ * not detect modified cookies.
+ *
+ * - AES_GCM, authenticated encryption with a random 96 bit iv per message.
+ * The jvm uses the aes and carry-less multiplication instructions of the cpu
+ * when available. The encrypted data starts with a key version byte, so the
+ * password can be changed keeping the previous one to decrypt the existing
+ * cookies (see addPreviousKey). It can also decrypt the RC4 cookies
+ * encrypted with the same password, so applications can move from RC4 to
+ * AES_GCM without invalidating the sessions. This is off by default, because
+ * any message that fails the AES_GCM authentication is then accepted as RC4
+ * (see setDecryptRc4).
+ *
+ * The cipher keeps a pool of initialized javax.crypto.Cipher instances and
+ * output buffers, at most one per cpu, and the key specs are created once.
+ * A pool instead of a thread local keeps the ciphers reused when requests run
+ * in virtual threads, that are not reused. The pool is lock free on the
+ * common path; under contention, a call creates a new cipher that is
+ * discarded if the pool is full. This is thread safe.
+ *
+ * Implementation note: depending on your installation, you may need to
+ * install the Java Cryptography Extension (JCE) Unlimited Strength
+ * Jurisdiction Policy Files, otherwise this cipher may use a shorter key
+ * length.
  */
 public class K2Cipher {
 
   /** The class logger. */
   private static Logger log = LoggerFactory.getLogger(K2Cipher.class);
 
-  /** The encryption algorithm.*/
-  private static final String ENCRYPTION_ALGORITHM = "RC4";
+  /** The encryption algorithms supported by K2Cipher.
+   */
+  public enum Algorithm {
+    /** The RC4 stream cipher, without authentication. */
+    RC4,
+    /** AES in Galois/Counter mode, with authentication. */
+    AES_GCM
+  }
+
+  /** The RC4 encryption algorithm.*/
+  private static final String RC4_ALGORITHM = "RC4";
+
+  /** The AES key algorithm.*/
+  private static final String AES_ALGORITHM = "AES";
+
+  /** The AES-GCM transformation.*/
+  private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
+  /** The length of the AES-GCM iv, in bytes. */
+  private static final int IV_LENGTH = 12;
 
-  /** The key to use to encrypt or decrypt messages.
+  /** The length of the AES-GCM authentication tag, in bits. */
+  private static final int TAG_BITS = 128;
+
+  /** The number of possible key versions, one byte. */
+  private static final int KEY_VERSIONS = 256;
+
+  /** The mask to read a key version byte as an unsigned value. */
+  private static final int BYTE_MASK = 0xff;
+
+  /** The algorithm used to encrypt, never null. */
+  private final Algorithm algorithm;
+
+  /** The version of the key used to encrypt, between 0 and 255, only used
+   * with AES_GCM. */
+  private final int keyVersion;
+
+  /** The RC4 key, derived from the password with sha-1, never null.
    *
-   * This is generated from the password provided in the constructor. It is
-   * never null.
+   * With AES_GCM, this is only used to decrypt the RC4 cookies.
    */
-  private byte[] key;
+  private final SecretKeySpec rc4Key;
 
-  /** Constructor, creates a k2 cipher.
+  /** The AES keys, indexed by key version, never null.
+   *
+   * The entries of the unknown versions are null.
+   */
+  private final SecretKeySpec[] aesKeys = new SecretKeySpec[KEY_VERSIONS];
+
+  /** Whether AES_GCM decrypts the messages encrypted with RC4. */
+  private volatile boolean decryptRc4 = false;
+
+  /** The idle cipher instances and buffers, never null. */
+  private final BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(
+      Runtime.getRuntime().availableProcessors());
+
+  /** Constructor, creates a k2 cipher that uses RC4.
    *
    * @param password the password to use. It cannot be null.
    */
   public K2Cipher(final String password) {
+    this(Algorithm.RC4, 0, password);
+  }
+
+  /** Constructor, creates a k2 cipher.
+   *
+   * @param theAlgorithm the algorithm used to encrypt. It cannot be null.
+   *
+   * @param theKeyVersion the version of the key derived from the password,
+   * between 0 and 255. It is written in the encrypted data with AES_GCM, and
+   * ignored with RC4.
+   *
+   * @param password the password to use. It cannot be null.
+   */
+  public K2Cipher(final Algorithm theAlgorithm, final int theKeyVersion,
+      final String password) {
+    Validate.notNull(theAlgorithm, "The algorithm cannot be null.");
+    Validate.inclusiveBetween(0, KEY_VERSIONS - 1, theKeyVersion,
+        "The key version must be between 0 and 255.");
     Validate.notNull(password, "The password cannot be null.");
     log.trace("Entering K2Cipher");
+    algorithm = theAlgorithm;
+    keyVersion = theKeyVersion;
+    rc4Key = new SecretKeySpec(createKey(password, "SHA-1", RC4_ALGORITHM),
+        RC4_ALGORITHM);
+    if (algorithm == Algorithm.AES_GCM) {
+      addPreviousKey(keyVersion, password);
+    }
+    log.trace("Leaving K2Cipher");
+  }
+
+  /** Adds a key to decrypt the data encrypted with a previous password.
+   *
+   * This is only supported with AES_GCM. Call it before using this cipher.
+   *
+   * @param previousKeyVersion the key version of the previous password,
+   * between 0 and 255.
+   *
+   * @param password the previous password. It cannot be null.
+   */
+  public void addPreviousKey(final int previousKeyVersion,
+      final String password) {
+    Validate.isTrue(algorithm == Algorithm.AES_GCM,
+        "Only AES_GCM supports more than one key.");
+    Validate.inclusiveBetween(0, KEY_VERSIONS - 1, previousKeyVersion,
+        "The key version must be between 0 and 255.");
+    Validate.notNull(password, "The password cannot be null.");
+    Validate.isTrue(aesKeys[previousKeyVersion] == null,
+        "Duplicate key version " + previousKeyVersion);
+    aesKeys[previousKeyVersion] = new SecretKeySpec(
+        createKey(password, "SHA-256", AES_ALGORITHM), AES_ALGORITHM);
+  }
+
+  /** Determines if an AES_GCM cipher decrypts the RC4 cookies.
+   *
+   * When enabled, the messages that fail the AES_GCM authentication are
+   * decrypted with RC4, that uses a fixed key and no iv, and does not detect
+   * modified messages. Only enable this while migrating from RC4, and disable
+   * it once the RC4 cookies expired.
+   *
+   * @param isDecryptRc4 true to decrypt the RC4 messages, false by default.
+   */
+  public void setDecryptRc4(final boolean isDecryptRc4) {
+    decryptRc4 = isDecryptRc4;
+  }
+
+  /** Derives a key from a password.
+   *
+   * @param password the password. It cannot be null.
+   *
+   * @param digest the digest algorithm used to derive the key. It cannot be
+   * null.
+   *
+   * @param keyAlgorithm the algorithm of the key, to find the maximum key
+   * length. It cannot be null.
+   *
+   * @return the key, never null.
+   */
+  private static byte[] createKey(final String password, final String digest,
+      final String keyAlgorithm) {
     try {
-      MessageDigest sha;
-      sha = MessageDigest.getInstance("SHA-1");
-      key = sha.digest(password.getBytes("UTF-8"));
+      MessageDigest sha = MessageDigest.getInstance(digest);
+      byte[] key = sha.digest(password.getBytes(StandardCharsets.UTF_8));
 
-      int maxKeyLength = Cipher.getMaxAllowedKeyLength(ENCRYPTION_ALGORITHM);
+      int maxKeyLength = Cipher.getMaxAllowedKeyLength(keyAlgorithm);
       if (maxKeyLength < key.length * Byte.SIZE) {
-        log.warn("Using limited AES key length of {} bits. Install Java"
+        log.warn("Using limited {} key length of {} bits. Install Java"
             + " Cryptography Extension (JCE) Unlimited Strength Jurisdiction"
-            + " Policy Files.", maxKeyLength);
+            + " Policy Files.", keyAlgorithm, maxKeyLength);
         key = Arrays.copyOf(key, maxKeyLength / Byte.SIZE);
       }
+      return key;
     } catch (Exception e) {
       throw new RuntimeException("Error creating key from password", e);
     }
-    log.trace("Leaving K2Cipher");
   }
 
   /** Encrypts the provided plain text and generates an encrypted string.
@@ -71,13 +222,37 @@ public class K2Cipher {
    * returns null.
    */
   public String encrypt(final byte[] plainText) {
+    Worker worker = borrow();
     try {
-      SecretKeySpec keySpec = new SecretKeySpec(key, ENCRYPTION_ALGORITHM);
-      Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-      cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-      return Base64.encodeToString(cipher.doFinal(plainText));
-    } catch (Exception e) {
+      int length;
+      if (algorithm == Algorithm.RC4) {
+        Cipher cipher = worker.getRc4();
+        cipher.init(Cipher.ENCRYPT_MODE, rc4Key);
+        byte[] output = worker.getBuffer(cipher.getOutputSize(
+              plainText.length));
+        length = cipher.doFinal(plainText, 0, plainText.length, output);
+      } else {
+        Cipher cipher = worker.getGcm();
+        byte[] iv = worker.nextIv();
+        cipher.init(Cipher.ENCRYPT_MODE, aesKeys[keyVersion],
+            new GCMParameterSpec(TAG_BITS, iv));
+        byte[] version = {(byte) keyVersion};
+        cipher.updateAAD(version);
+        byte[] output = worker.getBuffer(1 + IV_LENGTH
+            + cipher.getOutputSize(plainText.length));
+        output[0] = version[0];
+        System.arraycopy(iv, 0, output, 1, IV_LENGTH);
+        length = 1 + IV_LENGTH + cipher.doFinal(plainText, 0,
+            plainText.length, output, 1 + IV_LENGTH);
+      }
+      ByteBuffer encoded = Base64.getEncoder().encode(
+          ByteBuffer.wrap(worker.buffer, 0, length));
+      return new String(encoded.array(), 0, encoded.remaining(),
+          StandardCharsets.ISO_8859_1);
+    } catch (GeneralSecurityException e) {
       throw new RuntimeException("Error encrypting message.", e);
+    } finally {
+      workers.offer(worker);
     }
   }
 
@@ -87,16 +262,129 @@ public class K2Cipher {
    * be null.
    *
    * @return the decrypted plain array of bytes. Never returns null.
+   *
+   * @throws IllegalArgumentException if the cipher text was not encrypted
+   * with a known key or it was modified. RC4 cannot detect this, it returns
+   * garbage.
    */
   public byte[] decrypt(final String cipherText) {
+    byte[] input = Base64.getMimeDecoder().decode(cipherText);
+    Worker worker = borrow();
     try {
-      SecretKeySpec keySpec = new SecretKeySpec(key, ENCRYPTION_ALGORITHM);
-      Cipher cipher = Cipher.getInstance(ENCRYPTION_ALGORITHM);
-      cipher.init(Cipher.DECRYPT_MODE, keySpec);
-      return cipher.doFinal(Base64.decode(cipherText));
-    } catch (Exception e) {
+      if (algorithm == Algorithm.AES_GCM) {
+        SecretKeySpec key = null;
+        if (input.length >= 1 + IV_LENGTH + TAG_BITS / Byte.SIZE) {
+          key = aesKeys[input[0] & BYTE_MASK];
+        }
+        if (key != null) {
+          Cipher cipher = worker.getGcm();
+          cipher.init(Cipher.DECRYPT_MODE, key,
+              new GCMParameterSpec(TAG_BITS, input, 1, IV_LENGTH));
+          cipher.updateAAD(input, 0, 1);
+          try {
+            return cipher.doFinal(input, 1 + IV_LENGTH,
+                input.length - 1 - IV_LENGTH);
+          } catch (AEADBadTagException e) {
+            // Not an AES_GCM message, or modified. Try RC4 below.
+            log.trace("Invalid AES_GCM message", e);
+          }
+        }
+        if (!decryptRc4) {
+          throw new IllegalArgumentException("Invalid encrypted message.");
+        }
+      }
+      Cipher cipher = worker.getRc4();
+      cipher.init(Cipher.DECRYPT_MODE, rc4Key);
+      return cipher.doFinal(input);
+    } catch (GeneralSecurityException e) {
       throw new RuntimeException("Error decrypting message.", e);
+    } finally {
+      workers.offer(worker);
     }
   }
-}
 
+  /** Takes an idle worker from the pool, or creates one if there is none.
+   *
+   * Return the worker to the pool with workers.offer when done, that drops it
+   * if the pool is full.
+   *
+   * @return the worker, never null.
+   */
+  private Worker borrow() {
+    Worker worker = workers.poll();
+    if (worker == null) {
+      worker = new Worker();
+    }
+    return worker;
+  }
+
+  /** The cipher instances and buffers of a call, only used by one thread at
+   * a time.
+   */
+  private static final class Worker {
+
+    /** The RC4 cipher, null until first used. */
+    private Cipher rc4 = null;
+
+    /** The AES-GCM cipher, null until first used. */
+    private Cipher gcm = null;
+
+    /** The random number generator for the ivs, null until first used. */
+    private SecureRandom random = null;
+
+    /** The buffer for the encrypted data, grown as needed, never null. */
+    private byte[] buffer = new byte[0];
+
+    /** Returns the RC4 cipher of this worker.
+     *
+     * @return the cipher, never null.
+     *
+     * @throws GeneralSecurityException if RC4 is not available.
+     */
+    private Cipher getRc4() throws GeneralSecurityException {
+      if (rc4 == null) {
+        rc4 = Cipher.getInstance(RC4_ALGORITHM);
+      }
+      return rc4;
+    }
+
+    /** Returns the AES-GCM cipher of this worker.
+     *
+     * @return the cipher, never null.
+     *
+     * @throws GeneralSecurityException if AES-GCM is not available.
+     */
+    private Cipher getGcm() throws GeneralSecurityException {
+      if (gcm == null) {
+        gcm = Cipher.getInstance(GCM_TRANSFORMATION);
+      }
+      return gcm;
+    }
+
+    /** Generates a random iv.
+     *
+     * @return a new iv, never null.
+     */
+    private byte[] nextIv() {
+      if (random == null) {
+        random = new SecureRandom();
+      }
+      byte[] iv = new byte[IV_LENGTH];
+      random.nextBytes(iv);
+      return iv;
+    }
+
+    /** Returns the output buffer of this worker.
+     *
+     * @param size the minimum size of the buffer.
+     *
+     * @return the buffer, never null.
+     */
+    private byte[] getBuffer(final int size) {
+      if (buffer.length < size) {
+        buffer = new byte[size];
+      }
+      return buffer;
+    }
+  }
+}
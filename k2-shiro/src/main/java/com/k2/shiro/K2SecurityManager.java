@@ -0,0 +1,82 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.shiro.mgt.DefaultSubjectDAO;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.subject.SubjectContext;
+import org.apache.shiro.util.CollectionUtils;
+import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
+
+/** A shiro security manager that does not read the session to create a
+ * subject.
+ *
+ * Shiro's security manager reads the principals and the authenticated flag
+ * from the session when it creates a subject, and again when it saves the
+ * subject to the session. That decrypts the session cookie on every request
+ * that goes through the shiro filter. This security manager leaves that to
+ * K2Subject, that reads them on the first call to getPrincipals or
+ * isAuthenticated, and does not save a subject that was not read, because
+ * it has nothing that is not already in the session.
+ *
+ * It uses a K2SubjectFactory.
+ */
+public class K2SecurityManager extends DefaultWebSecurityManager {
+
+  /** The class logger. */
+  private final Logger log = LoggerFactory.getLogger(K2SecurityManager.class);
+
+  /** Constructor, creates a security manager.
+   */
+  public K2SecurityManager() {
+    setSubjectFactory(new K2SubjectFactory());
+    DefaultSubjectDAO subjectDao = new K2SubjectDao();
+    subjectDao.setSessionStorageEvaluator(
+        ((DefaultSubjectDAO) getSubjectDAO()).getSessionStorageEvaluator());
+    setSubjectDAO(subjectDao);
+  }
+
+  /** Obtains the principals of the subject being created, without reading
+   * the session.
+   *
+   * If the context has no principals, this looks for the remembered
+   * identity, like the superclass.
+   *
+   * @param context the subject context. It cannot be null.
+   *
+   * @return the same context, never null.
+   */
+  @Override
+  protected SubjectContext resolvePrincipals(final SubjectContext context) {
+    PrincipalCollection principals;
+    principals = K2SubjectFactory.resolvePrincipals(context);
+    if (CollectionUtils.isEmpty(principals)) {
+      principals = getRememberedIdentity(context);
+      if (!CollectionUtils.isEmpty(principals)) {
+        log.debug("Found remembered PrincipalCollection.");
+        context.setPrincipals(principals);
+      }
+    }
+    return context;
+  }
+
+  /** Saves the subjects to the session, except the K2Subjects that did not
+   * read it.
+   */
+  private static final class K2SubjectDao extends DefaultSubjectDAO {
+
+    /** {@inheritDoc} */
+    @Override
+    protected void saveToSession(final Subject subject) {
+      if (subject instanceof K2Subject
+          && !((K2Subject) subject).isResolved()) {
+        return;
+      }
+      super.saveToSession(subject);
+    }
+  }
+}
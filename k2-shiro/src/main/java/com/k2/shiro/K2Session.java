@@ -2,15 +2,13 @@
 
 package com.k2.shiro;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -24,15 +22,37 @@ import org.apache.shiro.session.InvalidSessionException;
 import org.apache.shiro.session.mgt.ValidatingSession;
 
 /** A shiro session that keeps its information in a cookie.
+ *
+ * The session only sends the cookie when it changed: when some attribute is
+ * set or removed, or the session is stopped. Objects stored in the session
+ * that are modified in place must be set again to be saved.
+ *
+ * Sessions with a timeout expire when they are not saved for that time. They
+ * are saved again, even if unchanged, once every refresh interval, so active
+ * users keep their session.
+ *
+ * The cookie is decrypted and decoded on the first access to the session
+ * attributes. A session that is never read is not saved nor refreshed.
  */
 public class K2Session implements ValidatingSession {
 
   /** The class logger. */
   private final Logger log = LoggerFactory.getLogger(K2Session.class);
 
+  /** The name of the session cookie. */
+  private static final String COOKIE_NAME = "k2session";
+
+  /** The attribute that keeps the time the session was saved, only in the
+   * cookie of sessions with a timeout. */
+  private static final String SAVED_AT_KEY = "k2.savedAt";
+
   /** The cipher to use to encrypt session cookies, never null. */
   private K2Cipher cipher;
 
+  /** The codec that converts the session attributes to the bytes encrypted
+   * in the session cookie, never null. */
+  private SessionCodec codec;
+
   /** The servlet request, never null.
    */
   private HttpServletRequest request;
@@ -47,7 +67,7 @@ public class K2Session implements ValidatingSession {
 
   /** The session attributes, never null.
    */
-  private HashMap<Object, Object> attributes = new HashMap<>();
+  private Map<Object, Object> attributes = new HashMap<>();
 
   /** Indicates that the session should be stopped.
    *
@@ -55,7 +75,32 @@ public class K2Session implements ValidatingSession {
    */
   private boolean stopping = false;
 
-  /** Constructor, creates a k2 session.
+  /** Whether the session changed since it was read from the cookie. */
+  private boolean dirty = false;
+
+  /** Whether save wrote the session cookie to the response. */
+  private boolean written = false;
+
+  /** Whether the request carried a session cookie. */
+  private boolean hasCookie = false;
+
+  /** The value of the session cookie not yet decoded, null if there is no
+   * cookie or it was already decoded. */
+  private String cookieValue = null;
+
+  /** The time the session cookie was written, in milliseconds since the
+   * epoch, 0 if not known. */
+  private long savedAt = 0;
+
+  /** The time the session lives without being saved, in milliseconds, 0 for
+   * a browser session cookie that never expires. */
+  private long timeout;
+
+  /** The minimum time between saves of an unchanged session with a timeout,
+   * in milliseconds. */
+  private long refreshInterval;
+
+  /** Constructor, creates a k2 session with the default session codec.
    *
    * @param theCipher the cipher to use to encrypt and decript session cookies.
    * It cannot be null.
@@ -69,56 +114,147 @@ public class K2Session implements ValidatingSession {
   public K2Session(final K2Cipher theCipher, final String theHost,
       final HttpServletRequest theRequest,
       final HttpServletResponse theResponse) {
+    this(theCipher, new BinarySessionCodec(), theHost, theRequest,
+        theResponse);
+  }
+
+  /** Constructor, creates a k2 session.
+   *
+   * @param theCipher the cipher to use to encrypt and decript session cookies.
+   * It cannot be null.
+   *
+   * @param theCodec the codec that converts the session attributes to bytes.
+   * It cannot be null.
+   *
+   * @param theHost the host that originated the request.
+   *
+   * @param theRequest the servlet request. It cannot be null.
+   *
+   * @param theResponse the servlet request. It cannot be null.
+   */
+  public K2Session(final K2Cipher theCipher, final SessionCodec theCodec,
+      final String theHost, final HttpServletRequest theRequest,
+      final HttpServletResponse theResponse) {
+    this(theCipher, theCodec, 0, 0, theHost, theRequest, theResponse);
+  }
+
+  /** Constructor, creates a k2 session that expires.
+   *
+   * @param theCipher the cipher to use to encrypt and decript session cookies.
+   * It cannot be null.
+   *
+   * @param theCodec the codec that converts the session attributes to bytes.
+   * It cannot be null.
+   *
+   * @param theTimeout the time the session lives without being saved, in
+   * milliseconds, 0 for a session that does not expire.
+   *
+   * @param theRefreshInterval the minimum time between saves of an unchanged
+   * session with a timeout, in milliseconds.
+   *
+   * @param theHost the host that originated the request.
+   *
+   * @param theRequest the servlet request. It cannot be null.
+   *
+   * @param theResponse the servlet request. It cannot be null.
+   */
+  K2Session(final K2Cipher theCipher, final SessionCodec theCodec,
+      final long theTimeout, final long theRefreshInterval,
+      final String theHost, final HttpServletRequest theRequest,
+      final HttpServletResponse theResponse) {
 
     cipher = theCipher;
+    codec = theCodec;
+    timeout = theTimeout;
+    refreshInterval = theRefreshInterval;
     request = theRequest;
     response = theResponse;
     host = theHost;
 
     if (request.getCookies() != null) {
       for (Cookie cookie : this.request.getCookies()) {
-        if ("k2session".equals(cookie.getName())) {
-          deserialize(cookie.getValue());
+        if (COOKIE_NAME.equals(cookie.getName())) {
+          hasCookie = true;
+          cookieValue = cookie.getValue();
         }
       }
     }
   }
 
+  /** Decodes the session cookie, if not already done.
+   */
+  private void load() {
+    if (cookieValue != null) {
+      String value = cookieValue;
+      cookieValue = null;
+      deserialize(value);
+    }
+  }
+
   /** Deserializes the session from a string representation that is recovered
    * fron a browser cookie.
    *
    * @param value the serialized representation of the session. It cannot be
    * null.
    */
-  @SuppressWarnings("unchecked")
   private void deserialize(final String value) {
     log.trace("Entering toMap()");
-    try (ObjectInputStream ois = new ObjectInputStream(
-        new ByteArrayInputStream(cipher.decrypt(value)))) {
-      attributes = (HashMap<Object, Object>) ois.readObject();
-    } catch (ClassNotFoundException | IOException e) {
+    try {
+      attributes = codec.decode(cipher.decrypt(value));
+      Object saved = attributes.remove(SAVED_AT_KEY);
+      if (saved instanceof Long) {
+        savedAt = (Long) saved;
+      }
+      if (timeout > 0 && savedAt > 0
+          && System.currentTimeMillis() - savedAt > timeout) {
+        log.debug("Session expired");
+        attributes.clear();
+        dirty = true;
+      }
+    } catch (IOException | IllegalArgumentException e) {
       log.debug("Could not deserialize session, ignored");
+      // Replaces the invalid cookie.
+      dirty = true;
     }
     log.trace("Leaving toMap()");
   }
 
   /** Sends the string representation of this k2 session to the client as a
-   * browser cookie.
+   * browser cookie, if the session changed or needs to be refreshed.
+   *
+   * An empty session removes the cookie.
    */
   void save() {
     log.trace("Entering save");
 
+    if (cookieValue != null) {
+      log.trace("Leaving save, session not read");
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    boolean refresh = timeout > 0 && hasCookie && !attributes.isEmpty()
+      && now - savedAt >= refreshInterval;
+    if (!dirty && !refresh) {
+      log.trace("Leaving save, session not changed");
+      return;
+    }
+
     String sessionValue = "";
 
-    SimpleCookie cookie = new SimpleCookie("k2session");
-    if (stopping) {
+    SimpleCookie cookie = new SimpleCookie(COOKIE_NAME);
+    if (stopping || attributes.isEmpty()) {
       cookie.setMaxAge(0);
     } else {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
-        oos.writeObject(attributes);
-        oos.close();
-        sessionValue = cipher.encrypt(baos.toByteArray());
+      Map<Object, Object> saved = attributes;
+      if (timeout > 0) {
+        saved = new HashMap<>(attributes);
+        saved.put(SAVED_AT_KEY, now);
+        cookie.setMaxAge((int) Math.max(1,
+              TimeUnit.MILLISECONDS.toSeconds(timeout)));
+      }
+      try {
+        sessionValue = cipher.encrypt(codec.encode(saved));
       } catch (IOException e) {
         log.debug("Error saving session", e);
       }
@@ -126,17 +262,41 @@ public class K2Session implements ValidatingSession {
 
     cookie.setValue(sessionValue);
     cookie.saveTo(request, response);
+    written = true;
+    dirty = false;
+    hasCookie = !sessionValue.isEmpty();
+    savedAt = now;
 
     log.trace("Leaving save");
   }
 
+  /** Makes the next save write the session cookie again, if it was already
+   * written.
+   *
+   * Call this when the response headers are cleared, so the cookie is not
+   * lost.
+   */
+  void unsave() {
+    if (written) {
+      written = false;
+      dirty = true;
+    }
+  }
+
   @Override
   public void setAttribute(final Object key, final Object value) {
+    load();
     attributes.put(key, value);
+    dirty = true;
   }
 
   @Override
   public Object removeAttribute(final Object key) {
+    load();
+    if (!attributes.containsKey(key)) {
+      return null;
+    }
+    dirty = true;
     return attributes.remove(key);
   }
 
@@ -160,15 +320,23 @@ public class K2Session implements ValidatingSession {
     return null;
   }
 
-  /** Not implemented yet. */
+  /** The time the session lives without being saved.
+   *
+   * @return the timeout in milliseconds, 0 if the session does not expire.
+   */
   @Override
   public long getTimeout() {
-    return 0;
+    return timeout;
   }
 
-  /** Not implemented yet. */
+  /** Sets the time the session lives without being saved.
+   *
+   * @param maxIdleTimeInMillis the timeout in milliseconds, 0 if the session
+   * does not expire.
+   */
   @Override
   public void setTimeout(final long maxIdleTimeInMillis) {
+    timeout = maxIdleTimeInMillis;
   }
 
   @Override
@@ -183,17 +351,21 @@ public class K2Session implements ValidatingSession {
 
   @Override
   public void stop() {
+    cookieValue = null;
     attributes.clear();
     stopping = true;
+    dirty = true;
   }
 
   @Override
   public Collection<Object> getAttributeKeys() {
+    load();
     return attributes.keySet();
   }
 
   @Override
   public Object getAttribute(final Object key) {
+    load();
     return attributes.get(key);
   }
 
@@ -2,6 +2,7 @@
 
 package com.k2.shiro;
 
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -14,20 +15,84 @@ import org.apache.shiro.session.mgt.SessionKey;
 import org.apache.shiro.session.mgt.SessionManager;
 
 /** A shiro session manager that obtains the session from a browser cookie.
+ *
+ * The session is created once per request and kept in a request attribute,
+ * so every call to getSession in the same request, including async
+ * dispatches, returns the same session.
  */
 public class K2SessionManager implements SessionManager {
 
+  /** The default refresh interval of the sessions with a timeout, one
+   * minute. */
+  private static final long DEFAULT_REFRESH_INTERVAL = 60000;
+
+  /** The request attribute that keeps the session of the request. */
+  private static final String SESSION_ATTRIBUTE = "k2.session";
+
   /** The cipher to use to encrypt session cookies, never null. */
   private K2Cipher cipher;
 
-  /** Constructor, creates a new session manager.
+  /** The codec that converts the session attributes to the bytes encrypted
+   * in the session cookie, never null. */
+  private SessionCodec codec;
+
+  /** The time the sessions live without being saved, in milliseconds, 0 if
+   * they do not expire. */
+  private long sessionTimeout = 0;
+
+  /** The minimum time between saves of an unchanged session with a timeout,
+   * in milliseconds. */
+  private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+  /** Constructor, creates a new session manager with the default session
+   * codec, a BinarySessionCodec.
    *
    * @param theCipher the cipher to use to encrypt session cookies. It cannot
    * be null.
    */
   public K2SessionManager(final K2Cipher theCipher) {
+    this(theCipher, new BinarySessionCodec());
+  }
+
+  /** Constructor, creates a new session manager.
+   *
+   * @param theCipher the cipher to use to encrypt session cookies. It cannot
+   * be null.
+   *
+   * @param theCodec the codec that converts the session attributes to bytes.
+   * It cannot be null.
+   */
+  public K2SessionManager(final K2Cipher theCipher,
+      final SessionCodec theCodec) {
     Validate.notNull(theCipher, "The cipher cannot be null.");
+    Validate.notNull(theCodec, "The codec cannot be null.");
     cipher = theCipher;
+    codec = theCodec;
+  }
+
+  /** Sets the time the sessions live without being saved.
+   *
+   * By default, sessions do not expire, they use a browser session cookie.
+   * With a timeout, the cookie expires after the timeout, and k2 rejects
+   * sessions older than the timeout.
+   *
+   * @param timeout the timeout in milliseconds, 0 for no timeout.
+   */
+  public void setSessionTimeout(final long timeout) {
+    Validate.isTrue(timeout >= 0, "The timeout cannot be negative.");
+    sessionTimeout = timeout;
+  }
+
+  /** Sets how often an unchanged session with a timeout is saved again to
+   * extend its life.
+   *
+   * @param interval the minimum time between saves in milliseconds. It is
+   * one minute by default. It must be shorter than the session timeout.
+   */
+  public void setRefreshInterval(final long interval) {
+    Validate.isTrue(interval >= 0,
+        "The refresh interval cannot be negative.");
+    refreshInterval = interval;
   }
 
   /** This should never be called because sessions start implicitly with the
@@ -39,13 +104,22 @@ public class K2SessionManager implements SessionManager {
   }
 
   /** Obtains the session from the request wrapped in key.
+   *
+   * The first call in a request creates the session, the following calls
+   * return the same instance.
    */
   @Override
   public Session getSession(final SessionKey key) {
     WebSessionKey wk = (WebSessionKey) key;
-    return new K2Session(cipher, wk.getServletRequest().getRemoteHost(),
-        (HttpServletRequest) wk.getServletRequest(),
-        (HttpServletResponse) wk.getServletResponse());
+    ServletRequest request = wk.getServletRequest();
+    K2Session session = (K2Session) request.getAttribute(SESSION_ATTRIBUTE);
+    if (session == null) {
+      session = new K2Session(cipher, codec, sessionTimeout, refreshInterval,
+          request.getRemoteHost(), (HttpServletRequest) request,
+          (HttpServletResponse) wk.getServletResponse());
+      request.setAttribute(SESSION_ATTRIBUTE, session);
+    }
+    return session;
   }
 }
 
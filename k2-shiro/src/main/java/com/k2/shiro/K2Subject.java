@@ -23,6 +23,11 @@ import org.apache.shiro.subject.support.DefaultSubjectContext;
  * state in its 'session'. It knows about http requests and responses, and can
  * read and write state to a cookie.
  *
+ * Unless created for a login, the subject reads the principals and the
+ * authenticated flag from the session on the first call to getPrincipals or
+ * isAuthenticated, so requests that do not need them do not decrypt the
+ * session cookie.
+ *
  * See K2Session and K2SessionManager for more information.
  */
 public class K2Subject extends WebDelegatingSubject {
@@ -34,12 +39,17 @@ public class K2Subject extends WebDelegatingSubject {
    */
   private K2Session currentSession;
 
+  /** Whether the principals and the authenticated flag were read from the
+   * session, or did not need to. */
+  private boolean resolved = false;
+
   /** Constructor, creates a new K2Subject.
    *
-   * @param principals the principals that identifies this subject. May be null
-   * if the subject is not authenticated.
+   * @param principals the principals that identifies this subject. If null,
+   * the subject uses the principals in the session.
    *
-   * @param authenticated indicates if the subject is authenticated.
+   * @param authenticated indicates if the subject is authenticated. If
+   * false, the subject uses the authenticated flag in the session.
    *
    * @param host the host that originated the request.
    *
@@ -67,27 +77,75 @@ public class K2Subject extends WebDelegatingSubject {
 
     currentSession = (K2Session) session;
 
+    if (authenticated) {
+      // Only sets the flag if missing, so the session does not change.
+      if (!Boolean.TRUE.equals(session.getAttribute(
+          DefaultSubjectContext.AUTHENTICATED_SESSION_KEY))) {
+        session.setAttribute(
+            DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+      }
+      resolved = true;
+    } else if (principals != null) {
+      // The authenticated flag still comes from the session.
+      resolve();
+    }
+  }
+
+  /** Reads the principals and the authenticated flag from the session, if
+   * not already done.
+   */
+  private void resolve() {
+    if (resolved) {
+      return;
+    }
+    resolved = true;
     PrincipalCollection sessionPrincipals = (PrincipalCollection)
-        session.getAttribute(
+        currentSession.getAttribute(
             DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
     if (sessionPrincipals != null && super.principals == null) {
       // Copy principals from session.
       super.principals = sessionPrincipals;
     }
+    super.authenticated = Boolean.TRUE.equals(currentSession.getAttribute(
+        DefaultSubjectContext.AUTHENTICATED_SESSION_KEY));
+  }
 
-    if (authenticated) {
-      session.setAttribute(
-          DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
-      super.authenticated = true;
-    } else {
-      Object auth = session.getAttribute(
-          DefaultSubjectContext.AUTHENTICATED_SESSION_KEY);
-      if (auth != null && ((boolean) auth)) {
-        super.authenticated = true;
-      } else {
-        super.authenticated = false;
-      }
-    }
+  /** Determines if the subject read the principals and the authenticated
+   * flag from the session.
+   *
+   * K2SecurityManager does not save a subject that did not read them, it has
+   * nothing that is not in the session.
+   *
+   * @return true if the subject read the session, or did not need to.
+   */
+  boolean isResolved() {
+    return resolved;
+  }
+
+  /** Obtains the principals, reading them from the session the first time.
+   */
+  @Override
+  public PrincipalCollection getPrincipals() {
+    resolve();
+    return super.getPrincipals();
+  }
+
+  /** Determines if the subject is authenticated, reading the flag from the
+   * session the first time.
+   */
+  @Override
+  public boolean isAuthenticated() {
+    resolve();
+    return super.isAuthenticated();
+  }
+
+  /** Obtains the principals before a runAs, reading the principals from the
+   * session the first time.
+   */
+  @Override
+  public PrincipalCollection getPreviousPrincipals() {
+    resolve();
+    return super.getPreviousPrincipals();
   }
 
   /** We override this because the SaveSessionFilter needs a K2Session to
@@ -105,6 +163,7 @@ public class K2Subject extends WebDelegatingSubject {
   public void login(final AuthenticationToken token) {
     log.trace("Entering login");
     super.login(token);
+    resolved = true;
     session.setAttribute(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY,
         Boolean.TRUE);
     log.trace("Leaving login");
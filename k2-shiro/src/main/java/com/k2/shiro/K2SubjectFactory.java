@@ -8,6 +8,7 @@ import javax.servlet.ServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.web.mgt.DefaultWebSubjectFactory;
 import org.apache.shiro.mgt.SecurityManager;
 
@@ -16,8 +17,12 @@ import org.apache.shiro.session.Session;
 import org.apache.shiro.subject.PrincipalCollection;
 import org.apache.shiro.subject.Subject;
 import org.apache.shiro.subject.SubjectContext;
+import org.apache.shiro.util.CollectionUtils;
 
 /** A shiro subject factory that creates K2Subject instances.
+ *
+ * This factory does not read the principals nor the authenticated flag from
+ * the session, K2Subject reads them when first needed.
  */
 public class K2SubjectFactory extends DefaultWebSubjectFactory {
 
@@ -46,8 +51,8 @@ public class K2SubjectFactory extends DefaultWebSubjectFactory {
       SecurityManager securityManager = wsc.resolveSecurityManager();
       Session session = wsc.resolveSession();
       boolean sessionEnabled = wsc.isSessionCreationEnabled();
-      PrincipalCollection principals = wsc.resolvePrincipals();
-      boolean authenticated = wsc.resolveAuthenticated();
+      PrincipalCollection principals = resolvePrincipals(wsc);
+      boolean authenticated = resolveAuthenticated(wsc);
       String host = wsc.resolveHost();
       ServletRequest request = wsc.resolveServletRequest();
       ServletResponse response = wsc.resolveServletResponse();
@@ -58,5 +63,41 @@ public class K2SubjectFactory extends DefaultWebSubjectFactory {
     log.debug("Leaving createSubject()");
     return result;
   }
+
+  /** Obtains the principals of the subject being created, like
+   * SubjectContext.resolvePrincipals, but without reading the session.
+   *
+   * @param context the subject context. It cannot be null.
+   *
+   * @return the principals from the context, the authentication info or the
+   * existing subject, null if there are none.
+   */
+  static PrincipalCollection resolvePrincipals(final SubjectContext context) {
+    PrincipalCollection principals = context.getPrincipals();
+    if (CollectionUtils.isEmpty(principals)) {
+      AuthenticationInfo info = context.getAuthenticationInfo();
+      if (info != null) {
+        principals = info.getPrincipals();
+      }
+    }
+    if (CollectionUtils.isEmpty(principals)) {
+      Subject subject = context.getSubject();
+      if (subject != null) {
+        principals = subject.getPrincipals();
+      }
+    }
+    return principals;
+  }
+
+  /** Determines if the subject being created is authenticated, like
+   * SubjectContext.resolveAuthenticated, but without reading the session.
+   *
+   * @param context the subject context. It cannot be null.
+   *
+   * @return true if the context says so, or it has authentication info.
+   */
+  static boolean resolveAuthenticated(final SubjectContext context) {
+    return context.isAuthenticated() || context.getAuthenticationInfo() != null;
+  }
 }
 
@@ -3,45 +3,256 @@
 package com.k2.shiro;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
 
 import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.web.servlet.AdviceFilter;
-import org.springframework.web.util.ContentCachingResponseWrapper;
+import org.springframework.web.util.WebUtils;
 
 /** Filter that k2 adds to the shiro filter chain that sends the session
  * cookie to the browser.
  *
- * This filter buffers the response so that cookies can be sent as late as
- * possible.
+ * The cookie must be sent before the response is committed. This filter
+ * wraps the response and saves the session just before the first byte of the
+ * body is written, the response is flushed or an error or redirect is sent.
+ * If none of that happens, the session is saved when the chain ends. The body
+ * is not buffered, so streamed responses are sent as they are written.
+ * Changes to the session after the response started are not sent. If the
+ * application resets the response, the session is saved again on the next
+ * write.
+ *
+ * For asynchronous requests, the async dispatch, that also goes through the
+ * shiro filter, reuses the wrapped response, and the session is saved when
+ * the async dispatch completes, or earlier if the application writes to the
+ * response from another thread.
  */
 public class SaveSessionFilter extends AdviceFilter {
 
+  /** The request attribute that marks that the session was already saved. */
+  private static final String COOKIE_WRITTEN = "k2.cookieWritten";
+
   @Override
   protected void executeChain(final ServletRequest request,
       final ServletResponse response, final FilterChain chain)
           throws Exception {
 
-    ContentCachingResponseWrapper wrappedResponse
-        = new ContentCachingResponseWrapper((HttpServletResponse) response) {
+    SessionSavingResponse wrappedResponse = WebUtils.getNativeResponse(
+        response, SessionSavingResponse.class);
+    if (wrappedResponse == null) {
+      wrappedResponse = new SessionSavingResponse(request,
+          (HttpServletResponse) response,
+          (K2Session) SecurityUtils.getSubject().getSession());
+    }
+
+    chain.doFilter(request, wrappedResponse);
+    if (!request.isAsyncStarted()) {
+      wrappedResponse.saveSession();
+    }
+  }
+
+  /** The response that sends the session cookie before it is committed.
+   */
+  private static final class SessionSavingResponse
+      extends HttpServletResponseWrapper {
+
+    /** The request, never null. */
+    private final ServletRequest request;
+
+    /** The session to save, never null.
+     *
+     * This is the session of the request, so it is available when the
+     * response is written from threads that have no shiro subject.
+     */
+    private final K2Session session;
+
+    /** The output stream that saves the session on the first write, null
+     * until getOutputStream is called. */
+    private ServletOutputStream outputStream = null;
+
+    /** The writer that saves the session on the first write, null until
+     * getWriter is called. */
+    private PrintWriter writer = null;
+
+    /** Constructor, creates a session saving response.
+     *
+     * @param theRequest the request. It cannot be null.
+     *
+     * @param response the response to wrap. It cannot be null.
+     *
+     * @param theSession the session to save. It cannot be null.
+     */
+    private SessionSavingResponse(final ServletRequest theRequest,
+        final HttpServletResponse response, final K2Session theSession) {
+      super(response);
+      request = theRequest;
+      session = theSession;
+    }
+
+    /** Sends the session cookie, if not already sent in this request. */
+    private synchronized void saveSession() {
+      if (request.getAttribute(COOKIE_WRITTEN) == null) {
+        request.setAttribute(COOKIE_WRITTEN, true);
+        if (!isCommitted()) {
+          session.save();
+        }
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        outputStream = new SessionSavingOutputStream(
+            super.getOutputStream());
+      }
+      return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        writer = new PrintWriter(new SessionSavingWriter(super.getWriter()));
+      }
+      return writer;
+    }
+
+    /** {@inheritDoc}
+     *
+     * This also clears the session cookie, so the next write saves the
+     * session again. resetBuffer keeps the headers, it needs no override.
+     */
+    @Override
+    public synchronized void reset() {
+      super.reset();
+      if (request.getAttribute(COOKIE_WRITTEN) != null) {
+        request.removeAttribute(COOKIE_WRITTEN);
+        session.unsave();
+      }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      saveSession();
+      super.flushBuffer();
+    }
+
+    @Override
+    public void sendError(final int sc) throws IOException {
+      saveSession();
+      super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(final int sc, final String msg) throws IOException {
+      saveSession();
+      super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(final String location) throws IOException {
+      saveSession();
+      super.sendRedirect(location);
+    }
+
+    /** The output stream that saves the session before writing. */
+    private final class SessionSavingOutputStream
+        extends ServletOutputStream {
+
+      /** The wrapped output stream, never null. */
+      private final ServletOutputStream delegate;
+
+      /** Constructor, wraps the response output stream.
+       *
+       * @param theDelegate the stream to wrap. It cannot be null.
+       */
+      private SessionSavingOutputStream(
+          final ServletOutputStream theDelegate) {
+        delegate = theDelegate;
+      }
+
+      @Override
+      public void write(final int b) throws IOException {
+        saveSession();
+        delegate.write(b);
+      }
+
+      @Override
+      public void write(final byte[] b, final int off, final int len)
+          throws IOException {
+        saveSession();
+        delegate.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        saveSession();
+        delegate.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        saveSession();
+        delegate.close();
+      }
+
+      @Override
+      public boolean isReady() {
+        return delegate.isReady();
+      }
 
-      /** Sends the cookies before writing the content. */
       @Override
-      protected void copyBodyToResponse(final boolean complete)
+      public void setWriteListener(final WriteListener writeListener) {
+        delegate.setWriteListener(writeListener);
+      }
+    }
+
+    /** The writer that saves the session before writing. */
+    private final class SessionSavingWriter extends Writer {
+
+      /** The wrapped writer, never null. */
+      private final Writer delegate;
+
+      /** Constructor, wraps the response writer.
+       *
+       * @param theDelegate the writer to wrap. It cannot be null.
+       */
+      private SessionSavingWriter(final Writer theDelegate) {
+        delegate = theDelegate;
+      }
+
+      @Override
+      public void write(final char[] cbuf, final int off, final int len)
           throws IOException {
-        if (request.getAttribute("k2.cookieWritten") == null) {
-          ((K2Session) SecurityUtils.getSubject().getSession()).save();
-          request.setAttribute("k2.cookieWritten", true);
-        }
-        super.copyBodyToResponse(complete);
+        saveSession();
+        delegate.write(cbuf, off, len);
       }
-    };
 
-    chain.doFilter(request, wrappedResponse);
-    wrappedResponse.copyBodyToResponse();
+      @Override
+      public void write(final String str, final int off, final int len)
+          throws IOException {
+        saveSession();
+        delegate.write(str, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        saveSession();
+        delegate.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        saveSession();
+        delegate.close();
+      }
+    }
   }
 }
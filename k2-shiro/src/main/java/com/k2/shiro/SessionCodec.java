@@ -0,0 +1,36 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import java.io.IOException;
+import java.util.Map;
+
+/** Converts the attributes of a k2 session to the bytes that k2 encrypts in
+ * the session cookie, and back.
+ *
+ * The default implementation is BinarySessionCodec. Applications that need a
+ * different format pass their codec to K2SessionManager.
+ */
+public interface SessionCodec {
+
+  /** Encodes the session attributes.
+   *
+   * @param attributes the session attributes. It cannot be null.
+   *
+   * @return the encoded attributes, never null.
+   *
+   * @throws IOException if some attribute cannot be encoded.
+   */
+  byte[] encode(Map<Object, Object> attributes) throws IOException;
+
+  /** Decodes the session attributes.
+   *
+   * @param data the encoded attributes, as returned by encode. It cannot be
+   * null.
+   *
+   * @return the session attributes, never null.
+   *
+   * @throws IOException if the data is not valid.
+   */
+  Map<Object, Object> decode(byte[] data) throws IOException;
+}
@@ -5,6 +5,7 @@ package com.k2.shiro;
 import java.util.Map;
 import java.util.LinkedHashMap;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 
 import org.slf4j.Logger;
@@ -15,15 +16,14 @@ import org.apache.commons.lang3.Validate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
-import org.springframework.core.Ordered;
 import org.springframework.stereotype.Component;
 
 import org.apache.shiro.mgt.SecurityManager;
-import org.apache.shiro.web.mgt.DefaultWebSecurityManager;
 
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.spring.web.ShiroFilterFactoryBean;
 
+import com.k2.core.Application;
 import com.k2.core.ModuleDefinition;
 import com.k2.core.RegistryFactory;
 
@@ -41,6 +41,12 @@ import com.k2.core.RegistryFactory;
 @Component("shiro")
 public class Shiro implements RegistryFactory {
 
+  /** The order of the shiro filter, after the request metrics filters and
+   * before the response cache filters, so only authenticated and authorized
+   * requests reach the rest of the filters. */
+  public static final int FILTER_ORDER = Application.METRICS_FILTER_ORDER
+    + 10;
+
   /** The class logger. */
   private final Logger log = LoggerFactory.getLogger(Shiro.class);
 
@@ -97,6 +103,17 @@ public class Shiro implements RegistryFactory {
    *
    * @param cipher the cipher to use to encrypt and decrypt session cookies.
    *
+   * @param sessionCodec the codec that converts the session attributes to
+   * the bytes encrypted in the session cookie. It cannot be null.
+   *
+   * @param sessionTimeout the time the sessions live without being saved,
+   * in milliseconds, from shiro.session.timeout. 0, the default, keeps the
+   * sessions until the browser closes.
+   *
+   * @param refreshInterval how often an unchanged session with a timeout is
+   * saved again to extend it, in milliseconds, from
+   * shiro.session.refreshInterval (one minute by default).
+   *
    * @param realm the realm used by the security manager. This in intended to
    * be configured in the K2 application as a spring bean. The name is
    * irrelevant, it will be matched by type. It cannot be null.
@@ -104,13 +121,20 @@ public class Shiro implements RegistryFactory {
    * @return the security manager, never null.
    */
   @Bean public SecurityManager securityManager(final K2Cipher cipher,
+      final SessionCodec sessionCodec,
+      @Value("${shiro.session.timeout:0}") final long sessionTimeout,
+      @Value("${shiro.session.refreshInterval:60000}")
+      final long refreshInterval,
       final Realm realm) {
     Validate.notNull(realm,
         "The realm cannot be null. Create one in your application.");
-    DefaultWebSecurityManager securityManager = new DefaultWebSecurityManager();
+    K2SecurityManager securityManager = new K2SecurityManager();
     securityManager.setRealm(realm);
-    securityManager.setSubjectFactory(new K2SubjectFactory());
-    securityManager.setSessionManager(new K2SessionManager(cipher));
+    K2SessionManager sessionManager;
+    sessionManager = new K2SessionManager(cipher, sessionCodec);
+    sessionManager.setSessionTimeout(sessionTimeout);
+    sessionManager.setRefreshInterval(refreshInterval);
+    securityManager.setSessionManager(sessionManager);
     return securityManager;
   }
 
@@ -145,22 +169,75 @@ public class Shiro implements RegistryFactory {
     FilterRegistrationBean<Filter> registration;
     registration = new FilterRegistrationBean<>(filter);
     registration.setName("shiroFilter");
-    registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 1);
+    registration.setOrder(FILTER_ORDER);
+    // Async dispatches also need the subject and the session cookie.
+    registration.setAsyncSupported(true);
+    registration.setDispatcherTypes(DispatcherType.REQUEST,
+        DispatcherType.ASYNC);
 
     return registration;
   }
 
+  /** Creates the codec that converts the session attributes to the bytes
+   * encrypted in the session cookie.
+   *
+   * Set shiro.session.compress to false to never deflate the sessions.
+   *
+   * @param compress whether to deflate the large sessions.
+   *
+   * @return the codec, never null.
+   */
+  @Bean public SessionCodec sessionCodec(
+      @Value("${shiro.session.compress:true}") final boolean compress) {
+    return new BinarySessionCodec(compress);
+  }
+
   /** Creates the cipher to encrypt and decrypt shiro session cookies.
+   *
+   * The shiro.cipher property selects the algorithm, rc4 (the default) or
+   * aes-gcm. With aes-gcm, shiro.keyVersion (1 by default) is the version of
+   * the key derived from shiro.password, and shiro.previousPassword and
+   * shiro.previousKeyVersion, if defined, decrypt the cookies of the previous
+   * password. Set shiro.decryptRc4 to true to also accept the rc4 cookies
+   * while moving from rc4 to aes-gcm, and remove it once they expired.
    *
    * @param password the password to use. It cannot be null.
    *
+   * @param algorithm the algorithm, rc4 or aes-gcm. It cannot be null.
+   *
+   * @param keyVersion the version of the key, between 0 and 255.
+   *
+   * @param previousPassword the previous password, empty if none. It cannot
+   * be null.
+   *
+   * @param previousKeyVersion the version of the previous key.
+   *
+   * @param decryptRc4 whether aes-gcm also decrypts rc4 cookies, false by
+   * default.
+   *
    * @return cipher, never returns null.
    */
   @Bean public K2Cipher cipher(
-      @Value("${shiro.password:}") final String password) {
+      @Value("${shiro.password:}") final String password,
+      @Value("${shiro.cipher:rc4}") final String algorithm,
+      @Value("${shiro.keyVersion:1}") final int keyVersion,
+      @Value("${shiro.previousPassword:}") final String previousPassword,
+      @Value("${shiro.previousKeyVersion:0}") final int previousKeyVersion,
+      @Value("${shiro.decryptRc4:false}") final boolean decryptRc4) {
     Validate.notBlank(password,
         "You must define a property shiro.password with the session password.");
-    return new K2Cipher(password);
+    if ("rc4".equals(algorithm)) {
+      return new K2Cipher(password);
+    }
+    Validate.isTrue("aes-gcm".equals(algorithm),
+        "Unknown shiro.cipher " + algorithm + ", use rc4 or aes-gcm.");
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, keyVersion,
+        password);
+    if (!previousPassword.isEmpty()) {
+      cipher.addPreviousKey(previousKeyVersion, previousPassword);
+    }
+    cipher.setDecryptRc4(decryptRc4);
+    return cipher;
   }
 }
 
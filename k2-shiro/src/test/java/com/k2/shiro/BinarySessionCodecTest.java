@@ -0,0 +1,96 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+
+public class BinarySessionCodecTest {
+
+  private Map<Object, Object> createSession() {
+    Map<Object, Object> session = new HashMap<>();
+    SimplePrincipalCollection principals = new SimplePrincipalCollection();
+    principals.add("admin", "realm");
+    principals.add(Long.valueOf(42), "realm");
+    principals.add("other", "otherRealm");
+    session.put(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, principals);
+    session.put(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, true);
+    session.put("count", -3);
+    session.put("id", Long.MAX_VALUE);
+    session.put("ratio", 0.25);
+    session.put("name", "\u00f1and\u00fa");
+    session.put("date", new Date(1000));
+    session.put("empty", null);
+    session.put(7, false);
+    return session;
+  }
+
+  @Test public void roundTrip() throws Exception {
+    BinarySessionCodec codec = new BinarySessionCodec(false);
+    Map<Object, Object> session = createSession();
+    Map<Object, Object> decoded = codec.decode(codec.encode(session));
+    assertThat(decoded, is(session));
+  }
+
+  @Test public void roundTrip_compressed() throws Exception {
+    BinarySessionCodec codec = new BinarySessionCodec();
+    Map<Object, Object> session = createSession();
+    char[] text = new char[1000];
+    Arrays.fill(text, 'a');
+    session.put("text", new String(text));
+
+    byte[] encoded = codec.encode(session);
+    assertThat(encoded[0], is((byte) 'Z'));
+    assertThat(encoded.length < text.length, is(true));
+    assertThat(codec.decode(encoded), is(session));
+  }
+
+  @Test public void smallerThanJavaSerialization() throws Exception {
+    Map<Object, Object> session = createSession();
+    session.remove("date");
+    ByteArrayOutputStream java = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(java)) {
+      oos.writeObject(new HashMap<>(session));
+    }
+    byte[] encoded = new BinarySessionCodec().encode(session);
+    assertThat(encoded.length * 4 < java.size(), is(true));
+  }
+
+  @Test public void decode_javaSerialization() throws Exception {
+    // The format of the sessions of previous k2 versions.
+    HashMap<Object, Object> session = new HashMap<>(createSession());
+    ByteArrayOutputStream java = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(java)) {
+      oos.writeObject(session);
+    }
+    Map<Object, Object> decoded;
+    decoded = new BinarySessionCodec().decode(java.toByteArray());
+    assertThat(decoded, is((Map<Object, Object>) session));
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_truncated() throws Exception {
+    BinarySessionCodec codec = new BinarySessionCodec(false);
+    byte[] encoded = codec.encode(createSession());
+    codec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_garbage() throws Exception {
+    new BinarySessionCodec().decode("garbage".getBytes());
+  }
+}
@@ -2,6 +2,14 @@
 
 package com.k2.shiro;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.shiro.codec.Base64;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertThat;
@@ -32,5 +40,79 @@ public class K2CipherTest {
 
     assertThat(plainText, not(is("plain text")));
   }
-}
 
+  @Test public void cipher_rc4Compatible() throws Exception {
+    // The rc4 messages are the same as the ones of previous k2 versions.
+    byte[] key = MessageDigest.getInstance("SHA-1").digest(
+        "password".getBytes(StandardCharsets.UTF_8));
+    Cipher rc4 = Cipher.getInstance("RC4");
+    rc4.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "RC4"));
+    String expected = Base64.encodeToString(rc4.doFinal(
+          "plain text".getBytes()));
+
+    K2Cipher cipher = new K2Cipher("password");
+    assertThat(cipher.encrypt("plain text".getBytes()), is(expected));
+    assertThat(new String(cipher.decrypt(expected)), is("plain text"));
+  }
+
+  @Test public void cipher_gcm() {
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 3, "password");
+    String first = cipher.encrypt("plain text".getBytes());
+    String second = cipher.encrypt("plain text".getBytes());
+
+    assertThat(first, not(is(second)));
+    assertThat(Base64.decode(first)[0], is((byte) 3));
+    assertThat(new String(cipher.decrypt(first)), is("plain text"));
+    assertThat(new String(cipher.decrypt(second)), is("plain text"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cipher_gcmModified() {
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 1, "password");
+    cipher.setDecryptRc4(false);
+    byte[] message = Base64.decode(cipher.encrypt("plain text".getBytes()));
+    message[message.length - 1] ^= 1;
+    cipher.decrypt(Base64.encodeToString(message));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cipher_gcmWrongPassword() {
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 1, "password");
+    String cipherText = cipher.encrypt("plain text".getBytes());
+
+    cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 1, "pass2");
+    cipher.setDecryptRc4(false);
+    cipher.decrypt(cipherText);
+  }
+
+  @Test public void cipher_gcmDecryptsRc4() {
+    String cipherText = new K2Cipher("password").encrypt(
+        "plain text".getBytes());
+
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 1, "password");
+    cipher.setDecryptRc4(true);
+    assertThat(new String(cipher.decrypt(cipherText)), is("plain text"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cipher_gcmRejectsRc4ByDefault() {
+    String cipherText = new K2Cipher("password").encrypt(
+        "plain text".getBytes());
+
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 1, "password");
+    cipher.decrypt(cipherText);
+  }
+
+  @Test public void cipher_gcmPreviousKey() {
+    K2Cipher previous;
+    previous = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 1, "password");
+    String cipherText = previous.encrypt("plain text".getBytes());
+
+    K2Cipher cipher = new K2Cipher(K2Cipher.Algorithm.AES_GCM, 2, "pass2");
+    cipher.addPreviousKey(1, "password");
+    cipher.setDecryptRc4(false);
+    assertThat(new String(cipher.decrypt(cipherText)), is("plain text"));
+    assertThat(Base64.decode(cipher.encrypt("plain text".getBytes()))[0],
+        is((byte) 2));
+  }
+}
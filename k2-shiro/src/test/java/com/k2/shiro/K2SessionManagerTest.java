@@ -0,0 +1,37 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.web.session.mgt.WebSessionKey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class K2SessionManagerTest {
+
+  private K2SessionManager manager
+    = new K2SessionManager(new K2Cipher("password"));
+
+  @Test public void getSession_oncePerRequest() {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    Session session;
+    session = manager.getSession(new WebSessionKey(request, response));
+    assertThat(manager.getSession(new WebSessionKey(request, response)),
+        is(sameInstance(session)));
+
+    MockHttpServletRequest other = new MockHttpServletRequest();
+    assertThat(manager.getSession(new WebSessionKey(other, response)),
+        is(not(sameInstance(session))));
+  }
+}
@@ -0,0 +1,145 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class K2SessionTest {
+
+  private K2Cipher cipher = new K2Cipher("password");
+
+  private BinarySessionCodec codec = new BinarySessionCodec();
+
+  private MockHttpServletResponse response;
+
+  private K2Session createSession(final Cookie cookie, final long timeout,
+      final long refreshInterval) {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    if (cookie != null) {
+      request.setCookies(cookie);
+    }
+    response = new MockHttpServletResponse();
+    return new K2Session(cipher, codec, timeout, refreshInterval, "host",
+        request, response);
+  }
+
+  @Test public void save_unchanged() {
+    K2Session session = createSession(null, 0, 0);
+    session.save();
+    assertThat(response.getCookie("k2session"), is(nullValue()));
+
+    session.setAttribute("user", "test");
+    session.save();
+    Cookie cookie = response.getCookie("k2session");
+    assertThat(cookie, is(not(nullValue())));
+
+    session = createSession(cookie, 0, 0);
+    assertThat(session.getAttribute("user"), is((Object) "test"));
+    session.removeAttribute("missing");
+    session.save();
+    assertThat(response.getCookie("k2session"), is(nullValue()));
+  }
+
+  @Test public void save_removed() {
+    K2Session session = createSession(null, 0, 0);
+    session.setAttribute("user", "test");
+    session.save();
+
+    session = createSession(response.getCookie("k2session"), 0, 0);
+    session.removeAttribute("user");
+    session.save();
+    assertThat(response.getCookie("k2session").getMaxAge(), is(0));
+  }
+
+  @Test public void save_stopped() {
+    K2Session session = createSession(null, 0, 0);
+    session.setAttribute("user", "test");
+    session.save();
+
+    session = createSession(response.getCookie("k2session"), 0, 0);
+    session.stop();
+    session.save();
+    assertThat(response.getCookie("k2session").getMaxAge(), is(0));
+  }
+
+  @Test public void save_invalidCookie() {
+    K2Session session;
+    session = createSession(new Cookie("k2session", "garbage"), 0, 0);
+    assertThat(session.getAttribute("user"), is(nullValue()));
+    session.save();
+    assertThat(response.getCookie("k2session").getMaxAge(), is(0));
+  }
+
+  @Test public void save_refresh() throws Exception {
+    K2Session session = createSession(null, 60000, 0);
+    session.setAttribute("user", "test");
+    session.save();
+    Cookie cookie = response.getCookie("k2session");
+    assertThat(cookie.getMaxAge(), is(60));
+
+    // The refresh interval is 0, so the unchanged session is saved again.
+    session = createSession(cookie, 60000, 0);
+    session.getAttribute("user");
+    session.save();
+    assertThat(response.getCookie("k2session"), is(not(nullValue())));
+
+    session = createSession(cookie, 60000, 60000);
+    session.getAttribute("user");
+    session.save();
+    assertThat(response.getCookie("k2session"), is(nullValue()));
+
+    // A session that is not read is not refreshed.
+    session = createSession(cookie, 60000, 0);
+    session.save();
+    assertThat(response.getCookie("k2session"), is(nullValue()));
+  }
+
+  @Test public void decode_lazy() throws Exception {
+    K2Session session = createSession(null, 0, 0);
+    session.setAttribute("user", "test");
+    session.save();
+    Cookie cookie = response.getCookie("k2session");
+
+    final AtomicInteger decodes = new AtomicInteger();
+    codec = new BinarySessionCodec() {
+      @Override
+      public Map<Object, Object> decode(final byte[] data)
+          throws IOException {
+        decodes.incrementAndGet();
+        return super.decode(data);
+      }
+    };
+    session = createSession(cookie, 0, 0);
+    assertThat(decodes.get(), is(0));
+    assertThat(session.getAttribute("user"), is((Object) "test"));
+    assertThat(session.getAttribute("user"), is((Object) "test"));
+    assertThat(decodes.get(), is(1));
+  }
+
+  @Test public void expired() throws Exception {
+    K2Session session = createSession(null, 1, 0);
+    session.setAttribute("user", "test");
+    session.save();
+    Cookie cookie = response.getCookie("k2session");
+    Thread.sleep(10);
+
+    session = createSession(cookie, 1, 0);
+    assertThat(session.getAttribute("user"), is(nullValue()));
+    assertThat(session.getAttributeKeys().isEmpty(), is(true));
+  }
+}
@@ -0,0 +1,75 @@
+/* vim: set et ts=2 sw=2 cindent fo=qroca: */
+
+package com.k2.shiro;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.realm.SimpleAccountRealm;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.web.subject.WebSubject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertThat;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class K2SubjectTest {
+
+  private final AtomicInteger decodes = new AtomicInteger();
+
+  private K2SecurityManager securityManager;
+
+  @Before public void setUp() {
+    SimpleAccountRealm realm = new SimpleAccountRealm();
+    realm.addAccount("test", "test");
+    securityManager = new K2SecurityManager();
+    securityManager.setRealm(realm);
+    securityManager.setSessionManager(new K2SessionManager(
+          new K2Cipher("password"), new BinarySessionCodec() {
+      @Override
+      public Map<Object, Object> decode(final byte[] data)
+          throws IOException {
+        decodes.incrementAndGet();
+        return super.decode(data);
+      }
+    }));
+  }
+
+  @Test public void resolve_lazy() {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    Subject subject = new WebSubject.Builder(securityManager, request,
+        response).buildWebSubject();
+    subject.login(new UsernamePasswordToken("test", "test"));
+    ((K2Subject) subject).getSession(false).save();
+    Cookie cookie = response.getCookie("k2session");
+
+    request = new MockHttpServletRequest();
+    request.setCookies(cookie);
+    subject = new WebSubject.Builder(securityManager, request,
+        new MockHttpServletResponse()).buildWebSubject();
+    assertThat(decodes.get(), is(0));
+    assertThat(subject.isAuthenticated(), is(true));
+    assertThat(subject.getPrincipal(), is((Object) "test"));
+    assertThat(decodes.get(), is(1));
+  }
+
+  @Test public void resolve_noSession() {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    Subject subject = new WebSubject.Builder(securityManager, request,
+        new MockHttpServletResponse()).buildWebSubject();
+    assertThat(subject.isAuthenticated(), is(false));
+    assertThat(subject.getPrincipals() == null, is(true));
+    assertThat(decodes.get(), is(0));
+  }
+}
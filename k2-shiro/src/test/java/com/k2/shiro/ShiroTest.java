@@ -2,9 +2,21 @@
 
 package com.k2.shiro;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Form;
 import org.apache.http.client.fluent.Request;
@@ -26,6 +38,7 @@ import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.CoreMatchers.startsWith;
 
 import com.k2.core.Application;
+import com.k2.core.CompressionRegistry;
 import com.k2.core.ModuleContext;
 import com.k2.core.Registrator;
 import com.k2.core.K2Environment;
@@ -36,8 +49,10 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
 
 /** The Shiro module integration tests.
  */
@@ -58,6 +73,8 @@ public class ShiroTest {
   private static String login = "/test/login.html";
   private static String logout = "/logout";
 
+  private static final int STREAM_SIZE = 100000;
+
   @Before public void setUp() {
     log.trace("Entering setUp");
 
@@ -115,12 +132,91 @@ public class ShiroTest {
     assertThat(page, startsWith("Hi, who are you?"));
   }
 
+  @Test public void asyncRequest() throws Exception {
+    executor.execute(Request.Post(home + login).bodyForm(Form.form()
+          .add("username", "test").add("password", "test").build()))
+      .discardContent();
+
+    String page = executor.execute(Request.Get(home + "/test/async.html"))
+      .returnContent().asString();
+    assertThat(page, is("Hello async, test"));
+  }
+
+  @Test public void sessionCookie() throws Exception {
+    Executor plainExecutor = Executor.newInstance(HttpClientBuilder.create()
+        .disableRedirectHandling().build());
+    HttpResponse response = plainExecutor.execute(Request.Post(home + login)
+        .bodyForm(Form.form().add("username", "test").add("password", "test")
+          .build())).returnResponse();
+    assertThat(getSessionCookie(response), startsWith("k2session="));
+
+    // The session did not change, so the cookie is not sent again.
+    response = plainExecutor.execute(Request.Get(home + hi)).returnResponse();
+    assertThat(StreamUtils.copyToString(response.getEntity().getContent(),
+          StandardCharsets.UTF_8), startsWith("Hello, test"));
+    assertThat(getSessionCookie(response), is(nullValue()));
+  }
+
+  @Test public void streamedResponse() throws Exception {
+    Executor plainExecutor = Executor.newInstance(HttpClientBuilder.create()
+        .disableRedirectHandling().disableContentCompression().build());
+    plainExecutor.execute(Request.Post(home + login).bodyForm(Form.form()
+          .add("username", "test").add("password", "test").build()))
+      .discardContent();
+
+    HttpResponse response = plainExecutor.execute(
+        Request.Get(home + "/test/stream.html")).returnResponse();
+    // The body is not buffered, so there is no content length.
+    assertThat(response.getFirstHeader("Content-Length"), is(nullValue()));
+    assertThat(getSessionCookie(response), startsWith("k2session="));
+    assertThat(StreamUtils.copyToString(response.getEntity().getContent(),
+          StandardCharsets.UTF_8).length(), is(STREAM_SIZE * 2));
+  }
+
+  private String getSessionCookie(final HttpResponse response) {
+    for (Header header : response.getHeaders("Set-Cookie")) {
+      if (header.getValue().startsWith("k2session=")) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  @Test public void resetResponse() throws Exception {
+    Executor plainExecutor = Executor.newInstance(HttpClientBuilder.create()
+        .disableRedirectHandling().build());
+    HttpResponse response = plainExecutor.execute(Request.Get(home
+          + "/test/reset.html")).returnResponse();
+    assertThat(StreamUtils.copyToString(response.getEntity().getContent(),
+          StandardCharsets.UTF_8), is("after reset"));
+    assertThat(getSessionCookie(response), startsWith("k2session="));
+  }
+
   @Test public void landing() throws Exception {
     String page;
     page = executor.execute(Request.Get(home)).returnContent().asString();
     assertThat(page, startsWith("Hi, who are you?"));
   }
 
+  @Test public void compressedResponse() throws Exception {
+    // The test module enables the compression of responses of 16 bytes or
+    // more.
+    Executor plainExecutor = Executor.newInstance(HttpClientBuilder.create()
+        .disableContentCompression().build());
+    HttpResponse response = plainExecutor.execute(Request.Get(home + login)
+        .addHeader("Accept-Encoding", "gzip")).returnResponse();
+
+    assertThat(response.getFirstHeader("Content-Encoding").getValue(),
+        is("gzip"));
+    // The anonymous session did not change, so there is no cookie.
+    assertThat(response.getFirstHeader("Set-Cookie"), is(nullValue()));
+    try (InputStream content = new GZIPInputStream(
+          response.getEntity().getContent())) {
+      assertThat(StreamUtils.copyToString(content, StandardCharsets.UTF_8),
+          startsWith("Hi, who are you?"));
+    }
+  }
+
   /////////////////////////////////////////////////////////////////////
   ///////////    The test application and module  /////////////////////
   /////////////////////////////////////////////////////////////////////
@@ -144,6 +240,39 @@ public class ShiroTest {
       return new HttpEntity<String>(form);
     }
 
+    // An asynchronous hi endpoint (async.html).
+    @RequestMapping(value = "/async.html", method = RequestMethod.GET)
+    @ResponseBody
+    public Callable<String> async() {
+      final String principal
+          = SecurityUtils.getSubject().getPrincipal().toString();
+      return () -> "Hello async, " + principal;
+    }
+
+    // A streamed endpoint (stream.html) that changes the session.
+    @RequestMapping(value = "/stream.html", method = RequestMethod.GET)
+    public void stream(final HttpServletResponse response)
+        throws IOException {
+      SecurityUtils.getSubject().getSession().setAttribute("streamed", true);
+      byte[] chunk = new byte[STREAM_SIZE];
+      Arrays.fill(chunk, (byte) 'a');
+      OutputStream out = response.getOutputStream();
+      out.write(chunk);
+      out.flush();
+      out.write(chunk);
+    }
+
+    // An endpoint (reset.html) that changes the session, writes and resets
+    // the response.
+    @RequestMapping(value = "/reset.html", method = RequestMethod.GET)
+    public void reset(final HttpServletResponse response)
+        throws IOException {
+      SecurityUtils.getSubject().getSession().setAttribute("reset", true);
+      response.getWriter().write("before reset");
+      response.reset();
+      response.getWriter().write("after reset");
+    }
+
     // A hi endpoint (hi.html).
     @RequestMapping(value = "/hi.html", method = RequestMethod.GET)
     public HttpEntity<String> hi() {
@@ -164,6 +293,13 @@ public class ShiroTest {
       ShiroRegistry shiroRegistry = moduleContext.get(ShiroRegistry.class);
       shiroRegistry.registerLoginUrl("/login.html");
       shiroRegistry.registerEndpoint("/hi.html", "authc");
+      shiroRegistry.registerEndpoint("/async.html", "authc");
+      shiroRegistry.registerEndpoint("/stream.html", "authc");
+      shiroRegistry.registerEndpoint("/reset.html", "anon");
+      CompressionRegistry compression;
+      compression = moduleContext.get(CompressionRegistry.class);
+      compression.setEnabled(true);
+      compression.setMinSize(16);
     }
 
     @Bean public HiController hiController() {